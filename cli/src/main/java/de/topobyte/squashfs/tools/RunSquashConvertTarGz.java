@@ -24,6 +24,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import de.topobyte.squashfs.compression.ZlibCompression;
+import de.topobyte.squashfs.superblock.SuperBlock;
 
 public class RunSquashConvertTarGz
 {
@@ -33,20 +34,78 @@ public class RunSquashConvertTarGz
 
 	public static void usage()
 	{
-		System.err.printf("Usage: %s <tar-gz-file> <squashfs-file>%n",
+		System.err.printf(
+				"Usage: %s [options...] <tar-gz-file> <squashfs-file>%n",
 				RunSquashConvertTarGz.class.getSimpleName());
 		System.err.println();
+		System.err.println(
+				"    -b,--block-size <size>  Data block size, 4K to 1M (default 128K)");
+		System.err.println(
+				"    -j,--threads <n>        Compress blocks on <n> threads");
+		System.err.println(
+				"    -l,--level <n>          Compression level (1-9)");
+		System.err.println();
 		System.exit(1);
 	}
 
 	public static void main(String[] args) throws Exception
 	{
-		if (args.length != 2) {
+		int threads = 0;
+		int blockSize = SuperBlock.DEFAULT_BLOCK_SIZE;
+		Integer level = null;
+
+		String input = null;
+		String squashfs = null;
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			switch (arg) {
+			case "-b":
+			case "--block-size":
+				if (i + 1 >= args.length) {
+					usage();
+				}
+				try {
+					blockSize = SuperBlock.parseBlockSize(args[++i]);
+				} catch (IllegalArgumentException e) {
+					System.err.println(e.getMessage());
+					usage();
+				}
+				break;
+			case "-j":
+			case "--threads":
+				if (i + 1 >= args.length) {
+					usage();
+				}
+				threads = Integer.parseInt(args[++i], 10);
+				break;
+			case "-l":
+			case "--level":
+				if (i + 1 >= args.length) {
+					usage();
+				}
+				level = Integer.parseInt(args[++i], 10);
+				break;
+			default:
+				if (input != null && squashfs != null) {
+					usage();
+				}
+				if (input == null) {
+					input = arg;
+				} else if (squashfs == null) {
+					squashfs = arg;
+				}
+			}
+		}
+		if (input == null || squashfs == null) {
 			usage();
 		}
+
+		ZlibCompression compression = level == null ? new ZlibCompression()
+				: new ZlibCompression(level);
+
 		SquashConvertTarGz task = new SquashConvertTarGz();
-		task.convertToSquashFs(Paths.get(args[0]), Paths.get(args[1]),
-				new ZlibCompression(), 0);
+		task.convertToSquashFs(Paths.get(input), Paths.get(squashfs),
+				compression, 0, threads, blockSize);
 	}
 
 }
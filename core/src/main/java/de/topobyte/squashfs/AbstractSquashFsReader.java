@@ -20,27 +20,74 @@ package de.topobyte.squashfs;
 
 import java.io.DataOutput;
 import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+import de.topobyte.squashfs.PathCache.Dentry;
 import de.topobyte.squashfs.data.DataBlock;
+import de.topobyte.squashfs.directory.DirectoryEntry;
+import de.topobyte.squashfs.inode.DirectoryINode;
 import de.topobyte.squashfs.inode.FileINode;
 import de.topobyte.squashfs.inode.INode;
+import de.topobyte.squashfs.inode.INodeRef;
+import de.topobyte.squashfs.inode.INodeType;
+import de.topobyte.squashfs.inode.SymlinkINode;
 import de.topobyte.squashfs.superblock.SuperBlock;
 
 abstract public class AbstractSquashFsReader implements SquashFsReader
 {
 
-	protected static int compareBytes(byte[] left, byte[] right)
+	// same limit as Linux (MAXSYMLINKS)
+	public static final int MAX_SYMLINK_FOLLOWS = 40;
+
+	private final PathCache pathCache = new PathCache(
+			PathCache.DEFAULT_CAPACITY);
+
+	private volatile ReadAhead readAhead = null;
+
+	public PathCache getPathCache()
 	{
-		for (int i = 0; i < left.length && i < right.length; i++) {
-			int a = (left[i] & 0xff);
-			int b = (right[i] & 0xff);
-			if (a != b) {
-				return a - b;
-			}
+		return pathCache;
+	}
+
+	@Override
+	public void setReadAhead(ReadAhead readAhead)
+	{
+		if (readAhead != null && !isDataCached()) {
+			throw new IllegalStateException(
+					"Read-ahead requires a data cache");
 		}
-		return left.length - right.length;
+		this.readAhead = readAhead;
+	}
+
+	/**
+	 * @return whether blocks read for sequential reads are kept in a data
+	 *         cache
+	 */
+	abstract protected boolean isDataCached();
+
+	public ReadAhead getReadAhead()
+	{
+		return readAhead;
+	}
+
+	private void prefetchBlock(FileINode fileInode, int blockNumber)
+			throws IOException, SquashFsException
+	{
+		readBlock(fileInode, blockNumber, true).release();
 	}
 
 	protected byte[] createSparseBlock(SuperBlock sb)
@@ -50,6 +97,169 @@ abstract public class AbstractSquashFsReader implements SquashFsReader
 
 	abstract protected byte[] getSparseBlock();
 
+	/**
+	 * Looks up a single name in a directory.
+	 *
+	 * @return the matching entry, or null if the directory has no such entry
+	 */
+	abstract protected DirectoryEntry findDirectoryEntry(DirectoryINode dir,
+			byte[] name) throws IOException, SquashFsException;
+
+	@Override
+	public INode findInodeByPath(String path)
+			throws IOException, SquashFsException, FileNotFoundException
+	{
+		return findInodeByPath(path, false);
+	}
+
+	@Override
+	public INode findInodeByPath(String path, boolean followSymlinks)
+			throws IOException, SquashFsException, FileNotFoundException
+	{
+		// fast path: the whole path has been resolved before
+		Dentry cached = pathCache.get(canonicalPath(path));
+		if (cached != null && cached.isMissing()) {
+			throw new FileNotFoundException(path);
+		}
+		if (cached != null && !(followSymlinks && cached.type.symlink())) {
+			return findInodeByInodeRef(new INodeRef(cached.inodeRef));
+		}
+
+		Dentry root = new Dentry(getSuperBlock().getRootInodeRef(),
+				INodeType.BASIC_DIRECTORY, null);
+
+		// canonical paths and entries of the directories walked so far
+		List<String> keys = new ArrayList<>();
+		List<Dentry> dentries = new ArrayList<>();
+
+		Deque<String> todo = new ArrayDeque<>();
+		pushComponents(todo, path);
+		int follows = 0;
+		while (!todo.isEmpty()) {
+			String name = todo.pop();
+			if (name.equals(".")) {
+				continue;
+			}
+			if (name.equals("..")) {
+				if (!keys.isEmpty()) {
+					keys.remove(keys.size() - 1);
+					dentries.remove(dentries.size() - 1);
+				}
+				continue;
+			}
+
+			String parentKey = keys.isEmpty() ? "" : keys.get(keys.size() - 1);
+			Dentry parent = dentries.isEmpty() ? root
+					: dentries.get(dentries.size() - 1);
+			if (!parent.type.directory()) {
+				throw new FileNotFoundException(path);
+			}
+
+			String key = parentKey + "/" + name;
+			Dentry child = lookup(parent, key, name);
+			if (child.isMissing()) {
+				throw new FileNotFoundException(path);
+			}
+
+			if (followSymlinks && child.type.symlink()) {
+				if (++follows > MAX_SYMLINK_FOLLOWS) {
+					throw new SquashFsException(String.format(
+							"Too many levels of symbolic links: %s", path));
+				}
+				String target = readSymlinkTarget(key, child);
+				if (target.startsWith("/")) {
+					keys.clear();
+					dentries.clear();
+				}
+				pushComponents(todo, target);
+				continue;
+			}
+
+			keys.add(key);
+			dentries.add(child);
+		}
+
+		Dentry result = dentries.isEmpty() ? root
+				: dentries.get(dentries.size() - 1);
+		return findInodeByInodeRef(new INodeRef(result.inodeRef));
+	}
+
+	private Dentry lookup(Dentry parent, String key, String name)
+			throws IOException, SquashFsException
+	{
+		Dentry child = pathCache.get(key);
+		if (child != null) {
+			return child;
+		}
+
+		INode dir = findInodeByInodeRef(new INodeRef(parent.inodeRef));
+		if (!(dir instanceof DirectoryINode)) {
+			throw new SquashFsException(String.format(
+					"Archive corrupt: %s is not a directory", dir));
+		}
+		DirectoryEntry entry = findDirectoryEntry((DirectoryINode) dir,
+				name.getBytes(StandardCharsets.ISO_8859_1));
+		if (entry == null) {
+			child = Dentry.missing();
+		} else {
+			INodeRef ref = new INodeRef(entry.getHeader().getStartBlock(),
+					entry.getOffset());
+			child = new Dentry(ref.getRaw(),
+					INodeType.fromDirectoryValue(entry.getType()), null);
+		}
+		pathCache.put(key, child);
+		return child;
+	}
+
+	private String readSymlinkTarget(String key, Dentry link)
+			throws IOException, SquashFsException
+	{
+		if (link.target != null) {
+			return link.target;
+		}
+		INode inode = findInodeByInodeRef(new INodeRef(link.inodeRef));
+		if (!(inode instanceof SymlinkINode)) {
+			throw new SquashFsException(String.format(
+					"Archive corrupt: %s is not a symlink", inode));
+		}
+		String target = new String(((SymlinkINode) inode).getTargetPath(),
+				StandardCharsets.ISO_8859_1);
+		pathCache.put(key, new Dentry(link.inodeRef, link.type, target));
+		return target;
+	}
+
+	/**
+	 * @return the path with redundant slashes removed, as used for cache keys
+	 */
+	static String canonicalPath(String path)
+	{
+		StringBuilder buf = new StringBuilder(path.length() + 1);
+		int start = 0;
+		while (start < path.length()) {
+			int end = path.indexOf('/', start);
+			if (end < 0) {
+				end = path.length();
+			}
+			if (end > start) {
+				buf.append('/').append(path, start, end);
+			}
+			start = end + 1;
+		}
+		return buf.toString();
+	}
+
+	private static void pushComponents(Deque<String> todo, String path)
+	{
+		int end = path.length();
+		while (end > 0) {
+			int start = path.lastIndexOf('/', end - 1) + 1;
+			if (end > start) {
+				todo.push(path.substring(start, end));
+			}
+			end = start - 1;
+		}
+	}
+
 	abstract protected DataBlock readBlock(FileINode fileInode, int blockNumber,
 			boolean cache) throws IOException, SquashFsException;
 
@@ -78,7 +288,6 @@ abstract public class AbstractSquashFsReader implements SquashFsReader
 
 		FileINode fileInode = (FileINode) inode;
 
-		long fileSize = fileInode.getFileSize();
 		int blockSize = getSuperBlock().getBlockSize();
 		int blockCount = fileInode.getBlockSizes().length;
 		boolean hasFragment = fileInode.isFragmentPresent();
@@ -87,37 +296,171 @@ abstract public class AbstractSquashFsReader implements SquashFsReader
 
 		for (int i = 0; i < blockCount; i++) {
 			DataBlock data = readBlock(fileInode, i, false);
+			bytesRead += writeFileBlock(out, data,
+					i == (blockCount - 1) && !hasFragment, blockSize);
+		}
+
+		return writeFileEnd(fileInode, out, bytesRead);
+	}
+
+	@Override
+	public long writeFileOut(INode inode, DataOutput out, Executor executor,
+			int window) throws IOException, SquashFsException
+	{
 
-			if (i == (blockCount - 1) && !hasFragment) {
+		if (!(inode instanceof FileINode)) {
+			throw new IllegalArgumentException("Inode is not a file");
+		}
+		if (window < 1) {
+			throw new IllegalArgumentException(
+					String.format("Invalid window size %d", window));
+		}
+
+		FileINode fileInode = (FileINode) inode;
+
+		int blockSize = getSuperBlock().getBlockSize();
+		int blockCount = fileInode.getBlockSizes().length;
+		boolean hasFragment = fileInode.isFragmentPresent();
+
+		long bytesRead = 0L;
+
+		Deque<BlockTask> inFlight = new ArrayDeque<>(window);
+		int submitted = 0;
+		try {
+			for (int i = 0; i < blockCount; i++) {
+				while (submitted < blockCount && submitted < i + window) {
+					int blockNumber = submitted++;
+					BlockTask task = new BlockTask(
+							() -> readBlock(fileInode, blockNumber, false));
+					inFlight.addLast(task);
+					executor.execute(task);
+				}
+				DataBlock data = awaitBlock(inFlight.removeFirst());
+				bytesRead += writeFileBlock(out, data,
+						i == (blockCount - 1) && !hasFragment, blockSize);
+			}
+		} finally {
+			// give back the blocks that have been read but not written
+			for (BlockTask task : inFlight) {
+				if (!task.cancel(false)) {
+					task.releaseBlock();
+				}
+			}
+		}
+
+		return writeFileEnd(fileInode, out, bytesRead);
+	}
+
+	private static DataBlock awaitBlock(BlockTask task)
+			throws IOException, SquashFsException
+	{
+		// read the block here if no thread of the executor has started it,
+		// so that a busy executor cannot deadlock the caller
+		task.run();
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(
+					"Interrupted while waiting for block");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new SquashFsException(cause);
+		}
+	}
+
+	/**
+	 * A block read that gives back its block if it completes after having
+	 * been cancelled.
+	 */
+	private static final class BlockTask extends FutureTask<DataBlock>
+	{
+
+		BlockTask(Callable<DataBlock> callable)
+		{
+			super(callable);
+		}
+
+		@Override
+		protected void set(DataBlock block)
+		{
+			super.set(block);
+			if (isCancelled()) {
+				block.release();
+			}
+		}
+
+		/**
+		 * Releases the block of a completed task.
+		 */
+		void releaseBlock()
+		{
+			try {
+				get().release();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				// no block has been read
+			}
+		}
+
+	}
+
+	private long writeFileBlock(DataOutput out, DataBlock data, boolean last,
+			int blockSize) throws IOException, SquashFsException
+	{
+		try {
+			if (last) {
 				if (data.getLogicalSize() > blockSize) {
 					throw new SquashFsException(String.format(
 							"Error during block read: expected max %d bytes, got %d",
 							blockSize, data.getLogicalSize()));
 				}
-				writeBlock(getSparseBlock(), out, data);
-				bytesRead += data.getLogicalSize();
 			} else {
 				if (data.getLogicalSize() != blockSize) {
 					throw new SquashFsException(String.format(
 							"Error during file read: expected %d bytes, got %d",
 							blockSize, data.getLogicalSize()));
 				}
-				writeBlock(getSparseBlock(), out, data);
-				bytesRead += data.getLogicalSize();
 			}
+			writeBlock(getSparseBlock(), out, data);
+			return data.getLogicalSize();
+		} finally {
+			data.release();
 		}
+	}
+
+	private long writeFileEnd(FileINode fileInode, DataOutput out,
+			long bytesRead) throws IOException, SquashFsException
+	{
+		long fileSize = fileInode.getFileSize();
+		int blockSize = getSuperBlock().getBlockSize();
+		boolean hasFragment = fileInode.isFragmentPresent();
 
 		if (hasFragment) {
 			DataBlock data = readFragment(fileInode,
 					(int) (fileSize - bytesRead), true);
 
-			if (data.getLogicalSize() > blockSize) {
-				throw new SquashFsException(String.format(
-						"Error during fragment read: expected max %d bytes, got %d",
-						blockSize, data.getLogicalSize()));
+			try {
+				if (data.getLogicalSize() > blockSize) {
+					throw new SquashFsException(String.format(
+							"Error during fragment read: expected max %d bytes, got %d",
+							blockSize, data.getLogicalSize()));
+				}
+				writeBlock(getSparseBlock(), out, data);
+				bytesRead += data.getLogicalSize();
+			} finally {
+				data.release();
 			}
-			writeBlock(getSparseBlock(), out, data);
-			bytesRead += data.getLogicalSize();
 		}
 		if (bytesRead != fileSize) {
 			throw new SquashFsException(String.format(
@@ -132,6 +475,13 @@ abstract public class AbstractSquashFsReader implements SquashFsReader
 	public int read(INode inode, long fileOffset, byte[] buf, int off, int len)
 			throws IOException, SquashFsException
 	{
+		return read(inode, inode, fileOffset, buf, off, len);
+	}
+
+	@Override
+	public int read(Object stream, INode inode, long fileOffset, byte[] buf,
+			int off, int len) throws IOException, SquashFsException
+	{
 
 		if (!(inode instanceof FileINode)) {
 			throw new IllegalArgumentException("Inode is not a file");
@@ -151,54 +501,288 @@ abstract public class AbstractSquashFsReader implements SquashFsReader
 		int bytesToRead = Math.max(0, Math.min(len, blockSize - blockRelative));
 
 		if (blockNumber < blockCount) {
+			ReadAhead ra = readAhead;
+			if (ra != null) {
+				ra.access(stream, fileInode, blockNumber,
+						this::prefetchBlock);
+			}
+
 			// read the block
 			DataBlock data = readBlock(fileInode, blockNumber, true);
 
-			if (blockNumber == (blockCount - 1) && !hasFragment) {
+			try {
+				if (blockNumber == (blockCount - 1) && !hasFragment) {
+					if (data.getLogicalSize() > blockSize) {
+						throw new SquashFsException(String.format(
+								"Error during block read: expected max %d bytes, got %d",
+								blockSize, data.getLogicalSize()));
+					}
+
+					int bytesCopied = copyData(getSparseBlock(), blockRelative,
+							buf, off, bytesToRead, data);
+					if (bytesCopied == 0) {
+						bytesCopied = -1;
+					}
+					return bytesCopied;
+
+				} else {
+					if (data.getLogicalSize() != blockSize) {
+						throw new SquashFsException(String.format(
+								"Error during file read: expected %d bytes, got %d",
+								blockSize, data.getLogicalSize()));
+					}
+					return copyData(getSparseBlock(), blockRelative, buf, off,
+							bytesToRead, data);
+				}
+			} finally {
+				data.release();
+			}
+		} else if (blockNumber == blockCount && hasFragment) {
+			int fragmentSize = (int) (fileSize % (long) blockSize);
+
+			// read fragment
+			DataBlock data = readFragment(fileInode, fragmentSize, true);
+
+			try {
 				if (data.getLogicalSize() > blockSize) {
 					throw new SquashFsException(String.format(
-							"Error during block read: expected max %d bytes, got %d",
+							"Error during fragment read: expected max %d bytes, got %d",
 							blockSize, data.getLogicalSize()));
 				}
-
-				int bytesCopied = copyData(getSparseBlock(), blockRelative, buf,
-						off, bytesToRead, data);
+				int bytesCopied = copyData(getSparseBlock(), blockRelative,
+						buf, off, bytesToRead, data);
 				if (bytesCopied == 0) {
 					bytesCopied = -1;
 				}
 				return bytesCopied;
+			} finally {
+				data.release();
+			}
 
-			} else {
-				if (data.getLogicalSize() != blockSize) {
-					throw new SquashFsException(String.format(
-							"Error during file read: expected %d bytes, got %d",
-							blockSize, data.getLogicalSize()));
-				}
-				return copyData(getSparseBlock(), blockRelative, buf, off,
-						bytesToRead, data);
+		} else {
+			// EOF
+			return -1;
+		}
+	}
+
+	/**
+	 * Returns a read-only view of a block. The default implementation wraps
+	 * the block returned by {@link #readBlock(FileINode, int, boolean)}.
+	 */
+	protected ByteBuffer readBlockBuffer(FileINode fileInode, int blockNumber,
+			boolean cache) throws IOException, SquashFsException
+	{
+		DataBlock data = readBlock(fileInode, blockNumber, cache);
+		try {
+			return asBuffer(data);
+		} finally {
+			data.release();
+		}
+	}
+
+	/**
+	 * Returns a read-only view of the part of a fragment that belongs to a
+	 * file. The default implementation wraps the block returned by
+	 * {@link #readFragment(FileINode, int, boolean)}, which shares the array
+	 * of a cached fragment block.
+	 */
+	protected ByteBuffer readFragmentBuffer(FileINode fileInode,
+			int fragmentSize, boolean cache)
+			throws IOException, SquashFsException
+	{
+		DataBlock data = readFragment(fileInode, fragmentSize, cache);
+		try {
+			return asBuffer(data);
+		} finally {
+			data.release();
+		}
+	}
+
+	/**
+	 * Wraps a block for a caller that keeps the view, which stops a pooled
+	 * array from being recycled.
+	 */
+	private ByteBuffer asBuffer(DataBlock block)
+	{
+		if (block.isSparse()) {
+			return ByteBuffer.wrap(getSparseBlock(), 0, block.getLogicalSize())
+					.slice().asReadOnlyBuffer();
+		}
+		return block.asBuffer();
+	}
+
+	/**
+	 * Copies a block that is stored uncompressed in the image to a channel
+	 * without reading it into memory, if the reader supports that.
+	 *
+	 * @return whether the block has been transferred
+	 */
+	protected boolean transferStoredBlock(long imageOffset, int length,
+			WritableByteChannel out) throws IOException
+	{
+		return false;
+	}
+
+	@Override
+	public ByteBuffer readBuffer(INode inode, long fileOffset, int len)
+			throws IOException, SquashFsException
+	{
+		return readBuffer(inode, inode, fileOffset, len);
+	}
+
+	@Override
+	public ByteBuffer readBuffer(Object stream, INode inode, long fileOffset,
+			int len) throws IOException, SquashFsException
+	{
+
+		if (!(inode instanceof FileINode)) {
+			throw new IllegalArgumentException("Inode is not a file");
+		}
+
+		FileINode fileInode = (FileINode) inode;
+
+		long fileSize = fileInode.getFileSize();
+		int blockSize = getSuperBlock().getBlockSize();
+		int blockCount = fileInode.getBlockSizes().length;
+		boolean hasFragment = fileInode.isFragmentPresent();
+
+		int blockRelative = (int) (fileOffset % (long) blockSize);
+		int blockNumber = (int) ((fileOffset - blockRelative)
+				/ (long) blockSize);
+
+		ByteBuffer buffer;
+		if (blockNumber < blockCount) {
+			ReadAhead ra = readAhead;
+			if (ra != null) {
+				ra.access(stream, fileInode, blockNumber,
+						this::prefetchBlock);
+			}
+			buffer = readBlockBuffer(fileInode, blockNumber, true);
+			boolean last = blockNumber == (blockCount - 1) && !hasFragment;
+			if (!last && buffer.remaining() != blockSize) {
+				throw new SquashFsException(String.format(
+						"Error during file read: expected %d bytes, got %d",
+						blockSize, buffer.remaining()));
 			}
 		} else if (blockNumber == blockCount && hasFragment) {
 			int fragmentSize = (int) (fileSize % (long) blockSize);
+			buffer = readFragmentBuffer(fileInode, fragmentSize, true);
+		} else {
+			// EOF
+			return null;
+		}
 
-			// read fragment
-			DataBlock data = readFragment(fileInode, fragmentSize, true);
+		if (buffer.remaining() > blockSize) {
+			throw new SquashFsException(String.format(
+					"Error during block read: expected max %d bytes, got %d",
+					blockSize, buffer.remaining()));
+		}
+		if (blockRelative >= buffer.remaining()) {
+			return null;
+		}
+		buffer.position(blockRelative);
+		buffer.limit(blockRelative
+				+ Math.max(0, Math.min(len, buffer.remaining())));
+		return buffer.slice();
+	}
 
-			if (data.getLogicalSize() > blockSize) {
-				throw new SquashFsException(String.format(
-						"Error during fragment read: expected max %d bytes, got %d",
-						blockSize, data.getLogicalSize()));
-			}
-			int bytesCopied = copyData(getSparseBlock(), blockRelative, buf,
-					off, bytesToRead, data);
-			if (bytesCopied == 0) {
-				bytesCopied = -1;
+	@Override
+	public long transferFile(INode inode, WritableByteChannel out)
+			throws IOException, SquashFsException
+	{
+
+		if (!(inode instanceof FileINode)) {
+			throw new IllegalArgumentException("Inode is not a file");
+		}
+
+		FileINode fileInode = (FileINode) inode;
+
+		long fileSize = fileInode.getFileSize();
+		int[] blockSizes = fileInode.getBlockSizes();
+		long blocksStart = fileInode.getBlocksStart();
+
+		long bytesWritten = 0L;
+
+		for (int i = 0; i < blockSizes.length; i++) {
+			int dataSize = blockSizes[i];
+			int actualSize = dataSize & 0xffffff;
+			if ((dataSize & 0x1000000) != 0 && actualSize != 0
+					&& transferStoredBlock(
+							blocksStart + fileInode.getBlockOffset(i),
+							actualSize, out)) {
+				bytesWritten += actualSize;
+				continue;
 			}
-			return bytesCopied;
+			bytesWritten += transferBlock(fileInode, i, out);
+		}
 
-		} else {
-			// EOF
-			return -1;
+		if (fileInode.isFragmentPresent()) {
+			bytesWritten += transferFragment(fileInode,
+					(int) (fileSize - bytesWritten), out);
+		}
+		if (bytesWritten != fileSize) {
+			throw new SquashFsException(String.format(
+					"Error during final block read: expected %d total bytes, got %d",
+					fileSize, bytesWritten));
+		}
+
+		return bytesWritten;
+	}
+
+	/**
+	 * Writes a block to a channel. The default implementation writes the
+	 * block returned by {@link #readBlock(FileINode, int, boolean)} without
+	 * keeping a reference to its array.
+	 *
+	 * @return the number of bytes written
+	 */
+	protected int transferBlock(FileINode fileInode, int blockNumber,
+			WritableByteChannel out) throws IOException, SquashFsException
+	{
+		DataBlock data = readBlock(fileInode, blockNumber, false);
+		try {
+			return transfer(data, out);
+		} finally {
+			data.release();
+		}
+	}
+
+	/**
+	 * Writes the part of a fragment that belongs to a file to a channel. The
+	 * default implementation writes the block returned by
+	 * {@link #readFragment(FileINode, int, boolean)}.
+	 *
+	 * @return the number of bytes written
+	 */
+	protected int transferFragment(FileINode fileInode, int fragmentSize,
+			WritableByteChannel out) throws IOException, SquashFsException
+	{
+		DataBlock data = readFragment(fileInode, fragmentSize, true);
+		try {
+			return transfer(data, out);
+		} finally {
+			data.release();
+		}
+	}
+
+	private int transfer(DataBlock block, WritableByteChannel out)
+			throws IOException
+	{
+		if (block.isSparse()) {
+			return writeFully(out, ByteBuffer.wrap(getSparseBlock(), 0,
+					block.getLogicalSize()));
+		}
+		return block.writeTo(out);
+	}
+
+	static int writeFully(WritableByteChannel out, ByteBuffer buffer)
+			throws IOException
+	{
+		int length = buffer.remaining();
+		while (buffer.hasRemaining()) {
+			out.write(buffer);
 		}
+		return length;
 	}
 
 	protected int copyData(byte[] sparseBlock, int blockOffset, byte[] data,
@@ -218,7 +802,7 @@ abstract public class AbstractSquashFsReader implements SquashFsReader
 			System.arraycopy(sparseBlock, 0, data, off, bytesToCopy);
 			return bytesToCopy;
 		}
-		System.arraycopy(block.getData(), blockOffset, data, off, bytesToCopy);
+		block.copyTo(blockOffset, data, off, bytesToCopy);
 		return bytesToCopy;
 	}
 
@@ -234,7 +818,7 @@ abstract public class AbstractSquashFsReader implements SquashFsReader
 			return;
 		}
 
-		out.write(block.getData(), 0, block.getLogicalSize());
+		block.writeTo(out, block.getLogicalSize());
 	}
 
 }
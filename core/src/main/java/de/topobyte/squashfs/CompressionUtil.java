@@ -1,29 +1,428 @@
 package de.topobyte.squashfs;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.zip.Deflater;
+
+import org.tukaani.xz.ARMOptions;
+import org.tukaani.xz.ARMThumbOptions;
+import org.tukaani.xz.FilterOptions;
+import org.tukaani.xz.IA64Options;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.LZMAOutputStream;
+import org.tukaani.xz.PowerPCOptions;
+import org.tukaani.xz.SPARCOptions;
+import org.tukaani.xz.X86Options;
+import org.tukaani.xz.XZ;
+import org.tukaani.xz.XZOutputStream;
 
 import com.github.luben.zstd.ZstdOutputStream;
 
+import de.topobyte.squashfs.compression.BcjFilter;
 import de.topobyte.squashfs.compression.Compression;
+import de.topobyte.squashfs.compression.CompressionCodec;
+import de.topobyte.squashfs.compression.CompressionCodecs;
 import de.topobyte.squashfs.compression.Lz4Compression;
 import de.topobyte.squashfs.compression.LzmaCompression;
 import de.topobyte.squashfs.compression.LzoCompression;
 import de.topobyte.squashfs.compression.NoCompression;
 import de.topobyte.squashfs.compression.XzCompression;
 import de.topobyte.squashfs.compression.ZlibCompression;
+import de.topobyte.squashfs.compression.ZlibStrategy;
 import de.topobyte.squashfs.compression.ZstdCompression;
 import de.topobyte.squashfs.superblock.CompressionId;
 
 public class CompressionUtil
 {
 
+	private static final ThreadLocal<byte[]> COMPRESSED = new ThreadLocal<>();
+	private static final ThreadLocal<byte[]> ZLIB_SCRATCH = new ThreadLocal<>();
+	private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal
+			.withInitial(Deflater::new);
+
 	public static ZstdOutputStream createZstdOutputStream(OutputStream os,
 			ZstdCompression options) throws IOException
 	{
 		return new ZstdOutputStream(os, options.getLevel());
 	}
 
+	/**
+	 * Compresses the data as a zlib stream with the configured level. If
+	 * several strategies are configured, each of them is tried in turn and
+	 * the smallest result is kept.
+	 */
+	public static byte[] compressZlib(byte[] data, int offset, int length,
+			ZlibCompression options) throws IOException
+	{
+		// zlib's compressBound plus some slack
+		byte[] result = new byte[length + (length >>> 12) + (length >>> 14)
+				+ (length >>> 25) + 64];
+		int size = compressZlib(data, offset, length, options, result, 0,
+				result.length);
+		return Arrays.copyOf(result, size);
+	}
+
+	/**
+	 * Compresses the data as a zlib stream straight into the destination
+	 * array, using one {@link Deflater} per thread.
+	 *
+	 * @return the compressed length, or -1 if no result fits into maxLength
+	 *         bytes
+	 * @see #compressZlib(byte[], int, int, ZlibCompression)
+	 */
+	public static int compressZlib(byte[] data, int offset, int length,
+			ZlibCompression options, byte[] dst, int dstOffset, int maxLength)
+	{
+		Deflater deflater = DEFLATER.get();
+		int level = options.getLevel();
+		if (options.getStrategies().isEmpty()) {
+			return deflate(deflater, level, Deflater.DEFAULT_STRATEGY, data,
+					offset, length, dst, dstOffset, maxLength);
+		}
+
+		int best = -1;
+		byte[] scratch = null;
+		for (ZlibStrategy strategy : options.getStrategies()) {
+			int strategyId = strategy.getDeflaterStrategy();
+			if (best < 0) {
+				best = deflate(deflater, level, strategyId, data, offset,
+						length, dst, dstOffset, maxLength);
+				continue;
+			}
+			// only a smaller result can replace the one in dst
+			if (scratch == null) {
+				scratch = ZLIB_SCRATCH.get();
+				if (scratch == null || scratch.length < best) {
+					scratch = new byte[maxLength];
+					ZLIB_SCRATCH.set(scratch);
+				}
+			}
+			int size = deflate(deflater, level, strategyId, data, offset,
+					length, scratch, 0, best - 1);
+			if (size >= 0) {
+				System.arraycopy(scratch, 0, dst, dstOffset, size);
+				best = size;
+			}
+		}
+		return best;
+	}
+
+	private static int deflate(Deflater deflater, int level, int strategy,
+			byte[] data, int offset, int length, byte[] dst, int dstOffset,
+			int maxLength)
+	{
+		deflater.reset();
+		deflater.setLevel(level);
+		deflater.setStrategy(strategy);
+		deflater.setInput(data, offset, length);
+		deflater.finish();
+		int size = 0;
+		while (!deflater.finished()) {
+			if (size == maxLength) {
+				return -1;
+			}
+			size += deflater.deflate(dst, dstOffset + size, maxLength - size);
+		}
+		return size;
+	}
+
+	/**
+	 * Compresses the data as an XZ stream with a CRC32 check, as required by
+	 * the kernel. If filters are configured, each of them is tried in turn
+	 * along with plain LZMA2, and the smallest result is kept.
+	 */
+	public static byte[] compressXz(byte[] data, int offset, int length,
+			XzCompression options, int dictionarySize) throws IOException
+	{
+		LZMA2Options lzma2 = new LZMA2Options();
+		lzma2.setDictSize(dictionarySize);
+
+		byte[] best = compressXz(data, offset, length,
+				new FilterOptions[] { lzma2 });
+		for (BcjFilter filter : options.getFilters()) {
+			byte[] result = compressXz(data, offset, length,
+					new FilterOptions[] { createBcjOptions(filter), lzma2 });
+			if (result.length < best.length) {
+				best = result;
+			}
+		}
+		return best;
+	}
+
+	private static byte[] compressXz(byte[] data, int offset, int length,
+			FilterOptions[] filters) throws IOException
+	{
+		try (ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
+			try (XZOutputStream xos = new XZOutputStream(bos, filters,
+					XZ.CHECK_CRC32)) {
+				xos.write(data, offset, length);
+			}
+			return bos.toByteArray();
+		}
+	}
+
+	private static FilterOptions createBcjOptions(BcjFilter filter)
+	{
+		switch (filter) {
+		default:
+		case X86:
+			return new X86Options();
+		case POWERPC:
+			return new PowerPCOptions();
+		case IA64:
+			return new IA64Options();
+		case ARM:
+			return new ARMOptions();
+		case ARMTHUMB:
+			return new ARMThumbOptions();
+		case SPARC:
+			return new SPARCOptions();
+		}
+	}
+
+	/**
+	 * Compresses the data in the legacy .lzma format, with the uncompressed
+	 * size stored in the header.
+	 */
+	public static byte[] compressLzma(byte[] data, int offset, int length,
+			int dictionarySize) throws IOException
+	{
+		LZMA2Options lzma = new LZMA2Options();
+		lzma.setDictSize(dictionarySize);
+
+		try (ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
+			try (LZMAOutputStream los = new LZMAOutputStream(bos, lzma,
+					length)) {
+				los.write(data, offset, length);
+			}
+			return bos.toByteArray();
+		}
+	}
+
+	/**
+	 * Compresses a block with the codec selected for the compression type.
+	 *
+	 * @param blockSize
+	 *            the size of the blocks being written, for codecs whose
+	 *            dictionary size depends on it
+	 * @return the compressed data, or null if there is no codec for the
+	 *         compression type or the result would be longer than maxLength
+	 */
+	public static byte[] compress(Compression compression, int blockSize,
+			byte[] data, int offset, int length, int maxLength)
+			throws IOException
+	{
+		CompressionCodec codec = CompressionCodecs
+				.getCodec(compression.getCompressionId());
+		if (codec == null) {
+			return null;
+		}
+		byte[] result = COMPRESSED.get();
+		if (result == null || result.length < maxLength) {
+			result = new byte[maxLength];
+			COMPRESSED.set(result);
+		}
+		int size = codec.compress(compression, blockSize,
+				ByteBuffer.wrap(data, offset, length),
+				ByteBuffer.wrap(result, 0, maxLength));
+		if (size < 0) {
+			return null;
+		}
+		return Arrays.copyOf(result, size);
+	}
+
+	/**
+	 * Decompresses a complete block straight into the destination array with
+	 * the codec selected for the compression type.
+	 *
+	 * @return the number of bytes written to the destination
+	 */
+	public static int decompress(Compression compression, byte[] src,
+			int srcOffset, int srcLength, byte[] dst, int maxLength)
+			throws IOException
+	{
+		return decompress(compression,
+				ByteBuffer.wrap(src, srcOffset, srcLength),
+				ByteBuffer.wrap(dst, 0, maxLength));
+	}
+
+	/**
+	 * Decompresses the remaining bytes of src, which may be a mapped buffer,
+	 * into dst, leaving the positions of both buffers unchanged.
+	 *
+	 * @return the number of bytes written to the destination
+	 */
+	public static int decompress(Compression compression, ByteBuffer src,
+			ByteBuffer dst) throws IOException
+	{
+		CompressionId compressionId = compression.getCompressionId();
+		if (compressionId == CompressionId.NONE) {
+			throw new SquashFsException(
+					"Archive claims no compression, but found compressed data");
+		}
+		CompressionCodec codec = CompressionCodecs.getCodec(compressionId);
+		if (codec == null) {
+			throw new UnsupportedOperationException(String.format(
+					"Reading compressed data of type %s not yet supported",
+					compression));
+		}
+		return codec.decompress(src, dst);
+	}
+
+	/**
+	 * Creates the compressor options stored after the superblock.
+	 *
+	 * @return the options, or null if the compression uses the defaults
+	 *         assumed by squashfs-tools
+	 */
+	public static byte[] createCompressorOptions(Compression compression,
+			int blockSize)
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(8)
+				.order(ByteOrder.LITTLE_ENDIAN);
+		switch (compression.getCompressionId()) {
+		case ZLIB:
+			ZlibCompression zlib = (ZlibCompression) compression;
+			if (zlib.getWindowSize() != ZlibCompression.DEFAULT_WINDOW_SIZE) {
+				throw new IllegalArgumentException(String.format(
+						"Zlib window size %d not supported for compression",
+						zlib.getWindowSize()));
+			}
+			for (ZlibStrategy strategy : zlib.getStrategies()) {
+				if (!strategy.isSupported()) {
+					throw new IllegalArgumentException(String.format(
+							"Zlib strategy %s not supported for compression",
+							strategy));
+				}
+			}
+			if (zlib.isDefault()) {
+				return null;
+			}
+			buffer.putInt(zlib.getLevel());
+			buffer.putShort((short) zlib.getWindowSize());
+			buffer.putShort(
+					(short) ZlibStrategy.flagsFor(zlib.getStrategies()));
+			return buffer.array();
+		case ZSTD:
+			ZstdCompression zstd = (ZstdCompression) compression;
+			if (zstd.getLevel() == ZstdCompression.SQUASHFS_DEFAULT_LEVEL) {
+				return null;
+			}
+			buffer.putInt(zstd.getLevel());
+			return Arrays.copyOf(buffer.array(), 4);
+		case LZ4:
+			// always stored, readers need the format version
+			Lz4Compression lz4 = (Lz4Compression) compression;
+			buffer.putInt(Lz4Compression.VERSION_LEGACY);
+			buffer.putInt(lz4.isHighCompression() ? Lz4Compression.FLAG_HC : 0);
+			return buffer.array();
+		case XZ:
+			XzCompression xz = (XzCompression) compression;
+			int dictionarySize = xz.getDictionarySize(blockSize);
+			if (dictionarySize > blockSize) {
+				throw new IllegalArgumentException(String.format(
+						"Invalid dictionary size %d (max = block size %d)",
+						dictionarySize, blockSize));
+			}
+			if (dictionarySize == blockSize && xz.getFilters().isEmpty()) {
+				return null;
+			}
+			buffer.putInt(dictionarySize);
+			buffer.putInt(BcjFilter.flagsFor(xz.getFilters()));
+			return buffer.array();
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Creates the compression described by the compressor options stored
+	 * after the superblock.
+	 */
+	public static Compression fromCompressorOptions(
+			CompressionId compressionId, byte[] options, int blockSize)
+			throws SquashFsException
+	{
+		ByteBuffer buffer = ByteBuffer.wrap(options)
+				.order(ByteOrder.LITTLE_ENDIAN);
+		try {
+			switch (compressionId) {
+			case ZLIB:
+				checkOptionsSize(compressionId, options, 8);
+				int level = buffer.getInt();
+				int windowSize = buffer.getShort();
+				int strategies = buffer.getShort() & 0xffff;
+				if ((strategies & ~ZlibStrategy
+						.flagsFor(EnumSet.allOf(ZlibStrategy.class))) != 0) {
+					throw new SquashFsException(String.format(
+							"Corrupt compressor options, unknown zlib strategies %x",
+							strategies));
+				}
+				return new ZlibCompression(level, windowSize,
+						ZlibStrategy.strategiesPresent(strategies)
+								.toArray(new ZlibStrategy[0]));
+			case ZSTD:
+				checkOptionsSize(compressionId, options, 4);
+				return new ZstdCompression(buffer.getInt());
+			case LZ4:
+				checkOptionsSize(compressionId, options, 8);
+				int version = buffer.getInt();
+				int flags = buffer.getInt();
+				if (version != Lz4Compression.VERSION_LEGACY) {
+					throw new SquashFsException(String.format(
+							"Unsupported LZ4 format version %d", version));
+				}
+				if ((flags & ~Lz4Compression.FLAG_HC) != 0) {
+					throw new SquashFsException(String.format(
+							"Corrupt compressor options, unknown LZ4 flags %x",
+							flags));
+				}
+				return new Lz4Compression(
+						(flags & Lz4Compression.FLAG_HC) != 0);
+			case XZ:
+				checkOptionsSize(compressionId, options, 8);
+				int dictionarySize = buffer.getInt();
+				int filters = buffer.getInt();
+				if (!XzCompression.isValidDictionarySize(dictionarySize)
+						|| dictionarySize > blockSize) {
+					throw new SquashFsException(String.format(
+							"Corrupt compressor options, invalid XZ dictionary size %d",
+							dictionarySize));
+				}
+				if ((filters & ~BcjFilter
+						.flagsFor(EnumSet.allOf(BcjFilter.class))) != 0) {
+					throw new SquashFsException(String.format(
+							"Corrupt compressor options, unknown XZ filters %x",
+							filters));
+				}
+				return new XzCompression(dictionarySize,
+						BcjFilter.filtersPresent(filters)
+								.toArray(new BcjFilter[0]));
+			default:
+				// options do not affect decompression
+				return fromCompressionId(compressionId);
+			}
+		} catch (IllegalArgumentException e) {
+			throw new SquashFsException(String.format(
+					"Corrupt compressor options: %s", e.getMessage()));
+		}
+	}
+
+	private static void checkOptionsSize(CompressionId compressionId,
+			byte[] options, int expected) throws SquashFsException
+	{
+		if (options.length != expected) {
+			throw new SquashFsException(String.format(
+					"Corrupt compressor options for %s, expected %d bytes, got %d",
+					compressionId, expected, options.length));
+		}
+	}
+
 	public static Compression fromCompressionId(CompressionId compressionId)
 	{
 		switch (compressionId) {
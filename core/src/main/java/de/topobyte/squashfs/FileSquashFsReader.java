@@ -18,10 +18,11 @@
 
 package de.topobyte.squashfs;
 
+import static de.topobyte.squashfs.util.BinUtils.compareBytes;
+
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -30,6 +31,7 @@ import de.topobyte.squashfs.data.DataBlockCache;
 import de.topobyte.squashfs.data.DataBlockReader;
 import de.topobyte.squashfs.directory.DirectoryEntry;
 import de.topobyte.squashfs.directory.DirectoryHeader;
+import de.topobyte.squashfs.directory.DirectoryIndex;
 import de.topobyte.squashfs.inode.DirectoryINode;
 import de.topobyte.squashfs.inode.FileINode;
 import de.topobyte.squashfs.inode.INode;
@@ -39,9 +41,8 @@ import de.topobyte.squashfs.metadata.MetadataBlockCache;
 import de.topobyte.squashfs.metadata.MetadataBlockReader;
 import de.topobyte.squashfs.metadata.MetadataReader;
 import de.topobyte.squashfs.metadata.TaggedMetadataBlockReader;
+import de.topobyte.squashfs.ra.ChannelRandomAccess;
 import de.topobyte.squashfs.ra.IRandomAccess;
-import de.topobyte.squashfs.ra.OffsetRandomAccess;
-import de.topobyte.squashfs.ra.SimpleRandomAccess;
 import de.topobyte.squashfs.superblock.SuperBlock;
 import de.topobyte.squashfs.table.ExportTable;
 import de.topobyte.squashfs.table.FileTableReader;
@@ -78,11 +79,7 @@ public class FileSquashFsReader extends AbstractSquashFsReader
 		this.tag = tag;
 		this.dataCache = dataCache;
 		this.fragmentCache = fragmentCache;
-		if (offset == 0) {
-			raf = new SimpleRandomAccess(inputFile, "r");
-		} else {
-			raf = new OffsetRandomAccess(inputFile, "r", offset);
-		}
+		raf = new ChannelRandomAccess(inputFile, offset);
 		superBlock = readSuperBlock(raf);
 		sparseBlock = createSparseBlock(superBlock);
 
@@ -207,59 +204,34 @@ public class FileSquashFsReader extends AbstractSquashFsReader
 	}
 
 	@Override
-	public INode findInodeByPath(String path)
-			throws IOException, SquashFsException, FileNotFoundException
+	protected DirectoryEntry findDirectoryEntry(DirectoryINode dirInode,
+			byte[] name) throws IOException, SquashFsException
 	{
-		long rootInodeRef = superBlock.getRootInodeRef();
-		MetadataReader rootInodeReader = metaReader.inodeReader(tag,
-				rootInodeRef);
-		INode parent = INode.read(metaReader.getSuperBlock(tag),
-				rootInodeReader);
-
-		// normalize path
-		String[] parts = path.replaceAll("^/+", "").replaceAll("/+$", "")
-				.split("/+");
-
-		for (String part : parts) {
-			byte[] left = part.getBytes(StandardCharsets.ISO_8859_1);
-
-			if (!(parent instanceof DirectoryINode)) {
-				throw new FileNotFoundException(path);
-			}
-			DirectoryINode dirInode = (DirectoryINode) parent;
-
-			MetadataReader dirReader = metaReader.directoryReader(tag,
-					dirInode);
-			int bytesToRead = dirInode.getFileSize() - 3;
-			boolean found = false;
-			while (dirReader.position() < bytesToRead) {
-				DirectoryHeader header = DirectoryHeader.read(dirReader);
-				for (int i = 0; i <= header.getCount(); i++) {
-					DirectoryEntry entry = DirectoryEntry.read(header,
-							dirReader);
-					byte[] right = entry.getName();
-					int compare = compareBytes(left, right);
-					if (compare == 0) {
-						found = true;
-						parent = INode.read(superBlock,
-								metaReader.inodeReader(tag, entry));
-						break;
-					} else if (compare < 0) {
-						// went past
-						throw new FileNotFoundException(path);
-					}
-				}
-
-				if (found) {
-					break;
+		// start at the indexed header closest to the name, if any
+		DirectoryIndex index = DirectoryIndex.find(dirInode.getIndexes(),
+				name);
+		MetadataReader dirReader;
+		int bytesToRead = dirInode.getFileSize() - 3;
+		if (index == null) {
+			dirReader = metaReader.directoryReader(tag, dirInode);
+		} else {
+			dirReader = metaReader.directoryReader(tag, dirInode, index);
+			bytesToRead -= index.getIndex();
+		}
+		while (dirReader.position() < bytesToRead) {
+			DirectoryHeader header = DirectoryHeader.read(dirReader);
+			for (int i = 0; i <= header.getCount(); i++) {
+				DirectoryEntry entry = DirectoryEntry.read(header, dirReader);
+				int compare = compareBytes(name, entry.getName());
+				if (compare == 0) {
+					return entry;
+				} else if (compare < 0) {
+					// went past
+					return null;
 				}
 			}
-			if (!found) {
-				throw new FileNotFoundException(path);
-			}
 		}
-
-		return parent;
+		return null;
 	}
 
 	@Override
@@ -297,6 +269,12 @@ public class FileSquashFsReader extends AbstractSquashFsReader
 		return dirEntries;
 	}
 
+	@Override
+	protected boolean isDataCached()
+	{
+		return dataCache != DataBlockCache.NO_CACHE;
+	}
+
 	@Override
 	protected DataBlock readBlock(FileINode fileInode, int blockNumber,
 			boolean cache) throws IOException, SquashFsException
@@ -306,6 +284,17 @@ public class FileSquashFsReader extends AbstractSquashFsReader
 				blockNumber, cache ? dataCache : DataBlockCache.NO_CACHE);
 	}
 
+	@Override
+	protected boolean transferStoredBlock(long imageOffset, int length,
+			WritableByteChannel out) throws IOException
+	{
+		if (!(raf instanceof ChannelRandomAccess)) {
+			return false;
+		}
+		((ChannelRandomAccess) raf).transferTo(imageOffset, length, out);
+		return true;
+	}
+
 	@Override
 	protected DataBlock readFragment(FileINode fileInode, int fragmentSize,
 			boolean cache) throws IOException, SquashFsException
@@ -0,0 +1,111 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.topobyte.squashfs;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import de.topobyte.squashfs.metadata.MetadataBlockRef;
+import de.topobyte.squashfs.metadata.MetadataWriter;
+
+/**
+ * Inode references of written inodes, indexed by inode number. References are
+ * packed into a primitive array as metadata block index and offset rather
+ * than held as one boxed map entry per inode, and are converted to the raw
+ * export table format once the inode table has been compressed.
+ */
+class INodeRefTable
+{
+
+	private static final long PRESENT = 1L << 63;
+
+	private final MetadataWriter writer;
+	private long[] refs = new long[1024];
+	private int size = 0;
+	private int maxInodeNumber = 0;
+
+	INodeRefTable(MetadataWriter writer)
+	{
+		this.writer = writer;
+	}
+
+	boolean contains(int inodeNumber)
+	{
+		return inodeNumber > 0 && inodeNumber <= refs.length
+				&& refs[inodeNumber - 1] != 0L;
+	}
+
+	MetadataBlockRef get(int inodeNumber)
+	{
+		if (!contains(inodeNumber)) {
+			return null;
+		}
+		long packed = refs[inodeNumber - 1];
+		return writer.getReference((int) ((packed & ~PRESENT) >>> 16),
+				(short) packed);
+	}
+
+	void put(int inodeNumber, MetadataBlockRef ref)
+	{
+		if (inodeNumber < 1) {
+			throw new IllegalArgumentException(
+					String.format("Invalid inode number %d", inodeNumber));
+		}
+		if (ref.getBlock() < 0) {
+			throw new IllegalArgumentException(
+					String.format("Reference %s not created by writer", ref));
+		}
+		if (inodeNumber > refs.length) {
+			int capacity = refs.length;
+			while (capacity < inodeNumber) {
+				capacity = (int) Math.min(Integer.MAX_VALUE - 8,
+						capacity * 2L);
+			}
+			refs = Arrays.copyOf(refs, capacity);
+		}
+		if (refs[inodeNumber - 1] == 0L) {
+			size++;
+		}
+		refs[inodeNumber - 1] = ((long) ref.getBlock() << 16)
+				| (ref.getOffset() & 0xffffL) | PRESENT;
+		maxInodeNumber = Math.max(maxInodeNumber, inodeNumber);
+	}
+
+	int size()
+	{
+		return size;
+	}
+
+	int getMaxInodeNumber()
+	{
+		return maxInodeNumber;
+	}
+
+	/**
+	 * @return the raw inode reference, as stored in the export table
+	 */
+	long getRaw(int inodeNumber) throws IOException
+	{
+		long packed = refs[inodeNumber - 1];
+		int block = (int) ((packed & ~PRESENT) >>> 16);
+		long location = writer.getBlockLocation(block) & 0xffffffffL;
+		return (location << 16) | (packed & 0xffffL);
+	}
+
+}
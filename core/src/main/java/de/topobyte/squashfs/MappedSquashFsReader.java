@@ -18,9 +18,11 @@
 
 package de.topobyte.squashfs;
 
-import java.io.FileNotFoundException;
+import static de.topobyte.squashfs.util.BinUtils.compareBytes;
+
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -32,6 +34,7 @@ import de.topobyte.squashfs.data.DataBlockCache;
 import de.topobyte.squashfs.data.MappedDataBlockReader;
 import de.topobyte.squashfs.directory.DirectoryEntry;
 import de.topobyte.squashfs.directory.DirectoryHeader;
+import de.topobyte.squashfs.directory.DirectoryIndex;
 import de.topobyte.squashfs.inode.DirectoryINode;
 import de.topobyte.squashfs.inode.FileINode;
 import de.topobyte.squashfs.inode.INode;
@@ -215,59 +218,34 @@ public class MappedSquashFsReader extends AbstractSquashFsReader
 	}
 
 	@Override
-	public INode findInodeByPath(String path)
-			throws IOException, SquashFsException, FileNotFoundException
+	protected DirectoryEntry findDirectoryEntry(DirectoryINode dirInode,
+			byte[] name) throws IOException, SquashFsException
 	{
-		long rootInodeRef = superBlock.getRootInodeRef();
-		MetadataReader rootInodeReader = metaReader.inodeReader(tag,
-				rootInodeRef);
-		INode parent = INode.read(metaReader.getSuperBlock(tag),
-				rootInodeReader);
-
-		// normalize path
-		String[] parts = path.replaceAll("^/+", "").replaceAll("/+$", "")
-				.split("/+");
-
-		for (String part : parts) {
-			byte[] left = part.getBytes(StandardCharsets.ISO_8859_1);
-
-			if (!(parent instanceof DirectoryINode)) {
-				throw new FileNotFoundException(path);
-			}
-			DirectoryINode dirInode = (DirectoryINode) parent;
-
-			MetadataReader dirReader = metaReader.directoryReader(tag,
-					dirInode);
-			int bytesToRead = dirInode.getFileSize() - 3;
-			boolean found = false;
-			while (dirReader.position() < bytesToRead) {
-				DirectoryHeader header = DirectoryHeader.read(dirReader);
-				for (int i = 0; i <= header.getCount(); i++) {
-					DirectoryEntry entry = DirectoryEntry.read(header,
-							dirReader);
-					byte[] right = entry.getName();
-					int compare = compareBytes(left, right);
-					if (compare == 0) {
-						found = true;
-						parent = INode.read(superBlock,
-								metaReader.inodeReader(tag, entry));
-						break;
-					} else if (compare < 0) {
-						// went past
-						throw new FileNotFoundException(path);
-					}
-				}
-
-				if (found) {
-					break;
+		// start at the indexed header closest to the name, if any
+		DirectoryIndex index = DirectoryIndex.find(dirInode.getIndexes(),
+				name);
+		MetadataReader dirReader;
+		int bytesToRead = dirInode.getFileSize() - 3;
+		if (index == null) {
+			dirReader = metaReader.directoryReader(tag, dirInode);
+		} else {
+			dirReader = metaReader.directoryReader(tag, dirInode, index);
+			bytesToRead -= index.getIndex();
+		}
+		while (dirReader.position() < bytesToRead) {
+			DirectoryHeader header = DirectoryHeader.read(dirReader);
+			for (int i = 0; i <= header.getCount(); i++) {
+				DirectoryEntry entry = DirectoryEntry.read(header, dirReader);
+				int compare = compareBytes(name, entry.getName());
+				if (compare == 0) {
+					return entry;
+				} else if (compare < 0) {
+					// went past
+					return null;
 				}
 			}
-			if (!found) {
-				throw new FileNotFoundException(path);
-			}
 		}
-
-		return parent;
+		return null;
 	}
 
 	@Override
@@ -305,6 +283,12 @@ public class MappedSquashFsReader extends AbstractSquashFsReader
 		return dirEntries;
 	}
 
+	@Override
+	protected boolean isDataCached()
+	{
+		return dataCache != DataBlockCache.NO_CACHE;
+	}
+
 	@Override
 	protected DataBlock readBlock(FileINode fileInode, int blockNumber,
 			boolean cache) throws IOException, SquashFsException
@@ -314,6 +298,55 @@ public class MappedSquashFsReader extends AbstractSquashFsReader
 				blockNumber, cache ? dataCache : DataBlockCache.NO_CACHE);
 	}
 
+	@Override
+	protected ByteBuffer readBlockBuffer(FileINode fileInode, int blockNumber,
+			boolean cache) throws IOException, SquashFsException
+	{
+		ByteBuffer stored = MappedDataBlockReader.storedBlock(mmap, fileInode,
+				blockNumber);
+		if (stored != null) {
+			return stored;
+		}
+		return super.readBlockBuffer(fileInode, blockNumber, cache);
+	}
+
+	@Override
+	protected int transferBlock(FileINode fileInode, int blockNumber,
+			WritableByteChannel out) throws IOException, SquashFsException
+	{
+		ByteBuffer stored = MappedDataBlockReader.storedBlock(mmap, fileInode,
+				blockNumber);
+		if (stored != null) {
+			return writeFully(out, stored);
+		}
+		return super.transferBlock(fileInode, blockNumber, out);
+	}
+
+	@Override
+	protected int transferFragment(FileINode fileInode, int fragmentSize,
+			WritableByteChannel out) throws IOException, SquashFsException
+	{
+		ByteBuffer stored = MappedDataBlockReader.storedFragment(mmap,
+				fileInode, fragmentTable, fragmentSize);
+		if (stored != null) {
+			return writeFully(out, stored);
+		}
+		return super.transferFragment(fileInode, fragmentSize, out);
+	}
+
+	@Override
+	protected ByteBuffer readFragmentBuffer(FileINode fileInode,
+			int fragmentSize, boolean cache)
+			throws IOException, SquashFsException
+	{
+		ByteBuffer stored = MappedDataBlockReader.storedFragment(mmap,
+				fileInode, fragmentTable, fragmentSize);
+		if (stored != null) {
+			return stored;
+		}
+		return super.readFragmentBuffer(fileInode, fragmentSize, cache);
+	}
+
 	@Override
 	protected DataBlock readFragment(FileINode fileInode, int fragmentSize,
 			boolean cache) throws IOException, SquashFsException
@@ -0,0 +1,161 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.topobyte.squashfs;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+import de.topobyte.squashfs.inode.INodeType;
+
+/**
+ * A bounded cache mapping canonical paths within an image to the inode they
+ * resolve to. Paths that do not exist are cached as well.
+ *
+ * Lookups do not lock, insertions are serialized. When the cache is full,
+ * inserting an entry evicts an entry that has not been used since the clock
+ * hand last passed it (a simple second chance policy), so frequently used
+ * paths stay cached.
+ */
+public class PathCache
+{
+
+	public static final int DEFAULT_CAPACITY = 16384;
+
+	public static final PathCache NO_CACHE = new PathCache(0);
+
+	// upper bound for the entries inspected by a single eviction
+	private static final int MAX_EVICTION_SCAN = 64;
+
+	private final int capacity;
+	private final ConcurrentHashMap<String, Dentry> entries;
+	// keys in the order the clock hand visits them, grown up to capacity
+	private String[] ring = new String[0];
+	private int used = 0;
+	private int hand = 0;
+
+	public PathCache(int capacity)
+	{
+		if (capacity < 0) {
+			throw new IllegalArgumentException(
+					String.format("Invalid capacity %d", capacity));
+		}
+		this.capacity = capacity;
+		this.entries = new ConcurrentHashMap<>(Math.min(capacity, 1024));
+	}
+
+	public int getCapacity()
+	{
+		return capacity;
+	}
+
+	public int size()
+	{
+		return entries.size();
+	}
+
+	public synchronized void clear()
+	{
+		entries.clear();
+		Arrays.fill(ring, null);
+		used = 0;
+		hand = 0;
+	}
+
+	Dentry get(String path)
+	{
+		Dentry dentry = entries.get(path);
+		if (dentry != null) {
+			dentry.referenced = true;
+		}
+		return dentry;
+	}
+
+	synchronized void put(String path, Dentry dentry)
+	{
+		if (capacity == 0) {
+			return;
+		}
+		if (entries.containsKey(path)) {
+			entries.put(path, dentry);
+			return;
+		}
+		if (used < capacity) {
+			if (used == ring.length) {
+				ring = Arrays.copyOf(ring,
+						Math.min(capacity, Math.max(16, ring.length * 2)));
+			}
+			ring[used++] = path;
+		} else {
+			ring[evict()] = path;
+		}
+		entries.put(path, dentry);
+	}
+
+	/**
+	 * Advances the clock hand to an entry that has not been used since the
+	 * hand last passed it, or gives up after a bounded number of entries,
+	 * removes that entry and returns its slot.
+	 */
+	private int evict()
+	{
+		for (int i = 0;; i++) {
+			int slot = hand;
+			hand = (hand + 1) % used;
+			Dentry dentry = entries.get(ring[slot]);
+			if (!dentry.referenced || i >= MAX_EVICTION_SCAN) {
+				entries.remove(ring[slot]);
+				return slot;
+			}
+			dentry.referenced = false;
+		}
+	}
+
+	/**
+	 * A resolved path component: the inode it refers to, its type and, for
+	 * symbolic links whose target has been read, the link target. Paths that
+	 * do not exist are cached as {@link #missing()} entries.
+	 */
+	static final class Dentry
+	{
+
+		static Dentry missing()
+		{
+			return new Dentry(-1L, null, null);
+		}
+
+		final long inodeRef;
+		final INodeType type;
+		final String target;
+		volatile boolean referenced = false;
+
+		Dentry(long inodeRef, INodeType type, String target)
+		{
+			this.inodeRef = inodeRef;
+			this.type = type;
+			this.target = target;
+		}
+
+		boolean isMissing()
+		{
+			return type == null;
+		}
+
+	}
+
+}
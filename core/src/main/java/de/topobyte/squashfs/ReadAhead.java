@@ -0,0 +1,238 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.topobyte.squashfs;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import de.topobyte.squashfs.inode.FileINode;
+
+/**
+ * Detects sequential reads of a file and decompresses the blocks ahead of the
+ * reader on a background executor, so that they are already in the data
+ * cache when the reader gets there.
+ *
+ * A stream of reads is tracked per handle supplied by the caller, such as an
+ * open file, so that concurrent readers of the same file do not disturb each
+ * other. Reading the block after the last one continues the stream, any other
+ * block or file resets it. The number of blocks kept ahead starts at one and
+ * doubles whenever the reader has to wait for a prefetch or finds no
+ * prefetched block, up to the maximum depth. It halves once the reader has
+ * consumed a whole window without waiting, so a reader that consumes slower
+ * than blocks are prefetched settles on a shallow window. A reader that
+ * reaches a block whose prefetch has not started yet decompresses it itself
+ * instead of waiting for the executor.
+ * <p>
+ * Prefetched blocks are only useful if the reader keeps them in a data
+ * cache.
+ */
+public class ReadAhead
+{
+
+	public static final int DEFAULT_MAX_DEPTH = 8;
+
+	// number of streams tracked at the same time
+	private static final int MAX_STREAMS = 256;
+
+	/**
+	 * Decompresses a block into the data cache.
+	 */
+	@FunctionalInterface
+	public interface Prefetcher
+	{
+		public void prefetch(FileINode inode, int blockNum) throws Exception;
+	}
+
+	private final Executor executor;
+	private final int maxDepth;
+	private final Map<Object, Stream> streams = new LinkedHashMap<Object, Stream>(
+			16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Object, Stream> eldest)
+		{
+			return size() > MAX_STREAMS;
+		}
+
+	};
+	// prefetches in flight, by offset of the block within the image
+	private final ConcurrentHashMap<Long, FutureTask<Void>> pending = new ConcurrentHashMap<>();
+
+	public ReadAhead(Executor executor)
+	{
+		this(executor, DEFAULT_MAX_DEPTH);
+	}
+
+	public ReadAhead(Executor executor, int maxDepth)
+	{
+		if (maxDepth < 1) {
+			throw new IllegalArgumentException(
+					String.format("Invalid read-ahead depth %d", maxDepth));
+		}
+		this.executor = executor;
+		this.maxDepth = maxDepth;
+	}
+
+	public int getMaxDepth()
+	{
+		return maxDepth;
+	}
+
+	/**
+	 * @return the current read-ahead depth of the given stream, or zero if it
+	 *         is not being read sequentially
+	 */
+	public synchronized int getDepth(Object handle)
+	{
+		Stream stream = streams.get(handle);
+		return stream == null ? 0 : stream.depth;
+	}
+
+	/**
+	 * Same as {@link #access(Object, FileINode, int, Prefetcher)}, using the
+	 * inode instance as the stream handle.
+	 */
+	public void access(FileINode inode, int blockNum, Prefetcher prefetcher)
+	{
+		access(inode, inode, blockNum, prefetcher);
+	}
+
+	/**
+	 * Records that the given block is about to be read through the stream
+	 * identified by {@code handle}, waits for a prefetch of it that is in
+	 * flight and schedules prefetches of the blocks ahead.
+	 */
+	public void access(Object handle, FileINode inode, int blockNum,
+			Prefetcher prefetcher)
+	{
+		boolean waited = await(inode, blockNum);
+
+		int from;
+		int to;
+		synchronized (this) {
+			Stream stream = streams.get(handle);
+			if (stream == null
+					|| stream.blocksStart != inode.getBlocksStart()) {
+				stream = new Stream(inode.getBlocksStart());
+				streams.put(handle, stream);
+			} else if (blockNum == stream.lastBlock) {
+				return;
+			}
+			if (blockNum == stream.lastBlock + 1) {
+				if (waited || stream.prefetchedTo < blockNum) {
+					stream.depth = stream.depth == 0 ? 1
+							: Math.min(maxDepth, stream.depth * 2);
+					stream.hits = 0;
+				} else if (++stream.hits >= stream.depth) {
+					// a whole window was consumed without waiting
+					stream.depth = Math.max(1, stream.depth / 2);
+					stream.hits = 0;
+				}
+			} else {
+				stream.depth = 0;
+				stream.hits = 0;
+				stream.prefetchedTo = blockNum;
+			}
+			stream.lastBlock = blockNum;
+
+			from = Math.max(stream.prefetchedTo, blockNum) + 1;
+			to = Math.min(inode.getBlockSizes().length - 1,
+					blockNum + stream.depth);
+			if (to >= from) {
+				stream.prefetchedTo = to;
+			}
+		}
+
+		for (int i = from; i <= to; i++) {
+			schedule(inode, i, prefetcher);
+		}
+	}
+
+	private static long blockKey(FileINode inode, int blockNum)
+	{
+		return inode.getBlocksStart() + inode.getBlockOffset(blockNum);
+	}
+
+	private boolean await(FileINode inode, int blockNum)
+	{
+		FutureTask<Void> task = pending.get(blockKey(inode, blockNum));
+		if (task == null) {
+			return false;
+		}
+		// runs the prefetch here if the executor has not started it yet
+		task.run();
+		try {
+			task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			// the reader decompresses the block itself and reports the error
+		}
+		return true;
+	}
+
+	private void schedule(FileINode inode, int blockNum, Prefetcher prefetcher)
+	{
+		if ((inode.getBlockSizes()[blockNum] & 0xffffff) == 0) {
+			// sparse block, nothing to decompress
+			return;
+		}
+		Long key = blockKey(inode, blockNum);
+		FutureTask<Void> task = new FutureTask<>(() -> {
+			try {
+				prefetcher.prefetch(inode, blockNum);
+			} finally {
+				pending.remove(key);
+			}
+			return null;
+		});
+		if (pending.putIfAbsent(key, task) != null) {
+			return;
+		}
+		try {
+			executor.execute(task);
+		} catch (RejectedExecutionException e) {
+			pending.remove(key);
+		}
+	}
+
+	private static final class Stream
+	{
+
+		final long blocksStart;
+		int lastBlock = -1;
+		int prefetchedTo = -1;
+		int depth = 0;
+		int hits = 0;
+
+		Stream(long blocksStart)
+		{
+			this.blocksStart = blocksStart;
+		}
+
+	}
+
+}
@@ -25,14 +25,15 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import de.topobyte.squashfs.data.DataBlockList;
 import de.topobyte.squashfs.data.DataBlockRef;
 import de.topobyte.squashfs.data.FragmentRef;
 import de.topobyte.squashfs.directory.DirectoryBuilder;
+import de.topobyte.squashfs.directory.DirectoryIndex;
 import de.topobyte.squashfs.inode.DeviceINode;
 import de.topobyte.squashfs.inode.DirectoryINode;
 import de.topobyte.squashfs.inode.ExtendedBlockDeviceINode;
@@ -52,10 +53,17 @@ import de.topobyte.squashfs.metadata.MetadataWriter;
 
 public class SquashFsEntry
 {
-	final List<SquashFsEntry> children = new ArrayList<>();
+	List<SquashFsEntry> children = Collections.emptyList();
+	// next entry in the same bucket of the tree's child table
+	SquashFsEntry nextInBucket;
 	int inodeNumber;
 	SquashFsEntry parent;
 	INodeType type;
+	// type of the inode as written, which hardlinks to the entry share
+	INodeType inodeType;
+	// a directory's inode, from writing its listing until writing the inode
+	DirectoryINode directoryInode;
+	// only created on demand by getInode()
 	INode inode;
 	String name;
 	boolean synthetic;
@@ -70,7 +78,7 @@ public class SquashFsEntry
 	String symlinkTarget;
 	String hardlinkTarget;
 	SquashFsEntry hardlinkEntry;
-	List<DataBlockRef> dataBlocks;
+	DataBlockList dataBlocks;
 	FragmentRef fragment;
 
 	SquashFsEntry()
@@ -84,14 +92,13 @@ public class SquashFsEntry
 		this.lastModified = (int) (System.currentTimeMillis() / 1000);
 	}
 
-	SquashFsEntry(INodeType type, String name, short uid, short gid,
-			short permissions, int major, int minor, long fileSize,
-			int lastModified, String symlinkTarget, String hardlinkTarget,
-			List<DataBlockRef> dataBlocks, FragmentRef fragment,
+	SquashFsEntry(INodeType type, short uid, short gid, short permissions,
+			int major, int minor, long fileSize, int lastModified,
+			String symlinkTarget, String hardlinkTarget,
+			DataBlockList dataBlocks, FragmentRef fragment,
 			boolean synthetic)
 	{
 		this.type = type;
-		this.name = name;
 		this.uid = uid;
 		this.gid = gid;
 		this.permissions = permissions;
@@ -107,23 +114,63 @@ public class SquashFsEntry
 		this.synthetic = synthetic;
 	}
 
-	static int compareBytes(byte[] left, byte[] right)
+	/**
+	 * Creates a stand-in for a parent directory that has not been added yet.
+	 */
+	static SquashFsEntry placeholder(String name)
 	{
-		for (int i = 0; i < left.length && i < right.length; i++) {
-			int a = (left[i] & 0xff);
-			int b = (right[i] & 0xff);
+		SquashFsEntry entry = new SquashFsEntry();
+		entry.type = null;
+		entry.name = name;
+		return entry;
+	}
+
+	boolean isPlaceholder()
+	{
+		return type == null && hardlinkTarget == null;
+	}
+
+	void addChild(SquashFsEntry child)
+	{
+		if (!(children instanceof ArrayList)) {
+			children = new ArrayList<>(4);
+		}
+		children.add(child);
+	}
+
+	/**
+	 * Takes the place of an entry of the same name, adopting its children.
+	 * The replaced entry is dropped from the parent's children when the tree
+	 * is built.
+	 */
+	void replace(SquashFsEntry prev)
+	{
+		children = prev.children;
+		prev.children = Collections.emptyList();
+		for (SquashFsEntry child : children) {
+			child.parent = this;
+		}
+		parent.addChild(this);
+	}
+
+	static int compareEntries(SquashFsEntry left, SquashFsEntry right)
+	{
+		// same order as BinUtils.compareBytes() on the ISO-8859-1 encoded names
+		String l = left.name;
+		String r = right.name;
+		for (int i = 0; i < l.length() && i < r.length(); i++) {
+			int a = latin1(l.charAt(i));
+			int b = latin1(r.charAt(i));
 			if (a != b) {
 				return a - b;
 			}
 		}
-		return left.length - right.length;
+		return l.length() - r.length();
 	}
 
-	static int compareEntries(SquashFsEntry left, SquashFsEntry right)
+	private static int latin1(char c)
 	{
-		return compareBytes(
-				left.getShortName().getBytes(StandardCharsets.ISO_8859_1),
-				right.getShortName().getBytes(StandardCharsets.ISO_8859_1));
+		return c > 0xff ? '?' : c;
 	}
 
 	public int getInodeNumber()
@@ -136,14 +183,46 @@ public class SquashFsEntry
 		return parent;
 	}
 
+	/**
+	 * @return the inode of the entry once the archive has been written, or
+	 *         null before. The inode is created from the entry on first use,
+	 *         so a directory's inode does not point to its listing. Hardlinks
+	 *         return the inode of their target.
+	 */
 	public INode getInode()
 	{
+		if (hardlinkEntry != null) {
+			return hardlinkEntry.getInode();
+		}
+		if (inode == null && inodeType != null) {
+			inode = createINode().simplify();
+		}
 		return inode;
 	}
 
 	public String getName()
 	{
-		return name;
+		if (parent == null) {
+			return name;
+		}
+		int length = name.length();
+		for (SquashFsEntry e = parent; e != null; e = e.parent) {
+			length += e.name.length() + 1;
+		}
+		StringBuilder buf = new StringBuilder(length);
+		buf.setLength(length);
+		int end = length;
+		for (SquashFsEntry e = this; e != null; e = e.parent) {
+			int start = end - e.name.length();
+			for (int i = 0; i < e.name.length(); i++) {
+				buf.setCharAt(start + i, e.name.charAt(i));
+			}
+			if (e.parent != null) {
+				buf.setCharAt(--start, '/');
+			}
+			end = start;
+		}
+		return buf.toString();
 	}
 
 	public boolean isSynthetic()
@@ -203,7 +282,10 @@ public class SquashFsEntry
 
 	public List<DataBlockRef> getDataBlocks()
 	{
-		return Collections.unmodifiableList(dataBlocks);
+		if (dataBlocks == null) {
+			return Collections.emptyList();
+		}
+		return dataBlocks.asList();
 	}
 
 	public FragmentRef getFragment()
@@ -213,7 +295,7 @@ public class SquashFsEntry
 
 	public String getShortName()
 	{
-		return name.substring(name.lastIndexOf('/') + 1);
+		return name;
 	}
 
 	public List<SquashFsEntry> getChildren()
@@ -229,8 +311,7 @@ public class SquashFsEntry
 		}
 	}
 
-	void assignInodes(Map<String, SquashFsEntry> entryMap,
-			AtomicInteger inodeAssignments)
+	void assignInodes(AtomicInteger inodeAssignments)
 	{
 		for (SquashFsEntry child : children) {
 			if (child.hardlinkTarget == null) {
@@ -238,19 +319,18 @@ public class SquashFsEntry
 			}
 		}
 		for (SquashFsEntry child : children) {
-			child.assignInodes(entryMap, inodeAssignments);
+			child.assignInodes(inodeAssignments);
 		}
 		if (parent == null) {
 			inodeNumber = inodeAssignments.incrementAndGet();
 		}
 	}
 
-	void assignHardlinkInodes(SortedMap<String, SquashFsEntry> entryMap,
+	void assignHardlinkInodes(
 			SortedMap<Integer, Set<SquashFsEntry>> inodeToEntry)
 	{
-		if (hardlinkTarget != null) {
-			SquashFsEntry target = entryMap.get(hardlinkTarget);
-			hardlinkEntry = target;
+		if (hardlinkEntry != null) {
+			SquashFsEntry target = hardlinkEntry;
 			inodeNumber = target.inodeNumber;
 			Integer key = Integer.valueOf(inodeNumber);
 			if (!inodeToEntry.containsKey(key)) {
@@ -260,7 +340,7 @@ public class SquashFsEntry
 			inodeToEntry.get(key).add(this);
 		}
 		for (SquashFsEntry child : children) {
-			child.assignHardlinkInodes(entryMap, inodeToEntry);
+			child.assignHardlinkInodes(inodeToEntry);
 		}
 	}
 
@@ -285,39 +365,15 @@ public class SquashFsEntry
 		}
 	}
 
-	void createInodes()
-	{
-		for (SquashFsEntry child : children) {
-			if (child.hardlinkTarget == null) {
-				child.inode = child.createINode();
-			}
-		}
-		for (SquashFsEntry child : children) {
-			child.createInodes();
-		}
-		if (parent == null) {
-			inode = createINode();
-		}
-	}
-
-	void createHardlinkInodes()
-	{
-		if (hardlinkEntry != null) {
-			this.inode = hardlinkEntry.inode;
-		}
-		for (SquashFsEntry child : children) {
-			child.createHardlinkInodes();
-		}
-	}
-
 	MetadataBlockRef writeMetadata(MetadataWriter inodeWriter,
-			MetadataWriter dirWriter,
-			Map<Integer, MetadataBlockRef> visitedInodes) throws IOException
+			MetadataWriter dirWriter, INodeRefTable visitedInodes)
+			throws IOException
 	{
 
 		if (type != null && type.directory()) {
+			DirectoryINode dirInode = createDirectoryINode();
+			directoryInode = dirInode;
 			if (children.isEmpty()) {
-				DirectoryINode dirInode = (DirectoryINode) inode;
 				dirInode.setFileSize(3);
 				dirInode.setStartBlock(0);
 				dirInode.setOffset((short) 0);
@@ -329,44 +385,46 @@ public class SquashFsEntry
 				DirectoryBuilder db = new DirectoryBuilder();
 
 				for (SquashFsEntry child : children) {
-					Integer inodeKey = Integer.valueOf(child.inodeNumber);
-
+					// hardlinks share the inode of their target
+					SquashFsEntry target = child.hardlinkEntry == null ? child
+							: child.hardlinkEntry;
 					MetadataBlockRef inodeRef;
-					if (visitedInodes.containsKey(inodeKey)) {
-						inodeRef = visitedInodes.get(inodeKey);
+					if (visitedInodes.contains(child.inodeNumber)) {
+						inodeRef = visitedInodes.get(child.inodeNumber);
 					} else {
-						child.inode = child.inode.simplify();
+						INode childInode = target.takeINode().simplify();
 						inodeRef = inodeWriter.getCurrentReference();
-						child.inode.writeData(inodeWriter);
-						visitedInodes.put(inodeKey, inodeRef);
+						childInode.writeData(inodeWriter);
+						visitedInodes.put(child.inodeNumber, inodeRef);
+						target.inodeType = childInode.getInodeType();
 					}
 
-					db.add(child.getShortName(), inodeRef.getLocation(),
-							child.inodeNumber, inodeRef.getOffset(),
-							child.inode.getInodeType());
+					db.add(child.getShortName(), inodeRef, child.inodeNumber,
+							target.inodeType);
 				}
 
 				MetadataBlockRef dirRef = dirWriter.getCurrentReference();
 				db.write(dirWriter);
 
 				int size = db.getStructureSize();
-				DirectoryINode dirInode = (DirectoryINode) inode;
 				dirInode.setFileSize(size + 3);
-				dirInode.setStartBlock(dirRef.getLocation());
+				dirInode.setStartBlock(dirRef);
 				dirInode.setOffset(dirRef.getOffset());
+				dirInode.setIndexes(
+						db.getIndexes().toArray(new DirectoryIndex[0]));
 			}
 
 			if (parent == null) {
 				// root
 				MetadataBlockRef rootInodeRef = inodeWriter
 						.getCurrentReference();
-				visitedInodes.put(Integer.valueOf(inode.getInodeNumber()),
-						rootInodeRef);
+				visitedInodes.put(inodeNumber, rootInodeRef);
 
-				DirectoryINode rootInode = (DirectoryINode) inode;
+				DirectoryINode rootInode = (DirectoryINode) takeINode();
 				rootInode.setParentInodeNumber(visitedInodes.size() + 1);
-				inode = rootInode.simplify();
-				inode.writeData(inodeWriter);
+				INode simplified = rootInode.simplify();
+				simplified.writeData(inodeWriter);
+				inodeType = simplified.getInodeType();
 
 				return rootInodeRef;
 			}
@@ -375,6 +433,20 @@ public class SquashFsEntry
 		return null;
 	}
 
+	/**
+	 * @return the inode to write for this entry, which is only kept for
+	 *         directories until it is written
+	 */
+	private INode takeINode()
+	{
+		INode inode = directoryInode;
+		if (inode == null) {
+			inode = createINode();
+		}
+		directoryInode = null;
+		return inode;
+	}
+
 	private INode createINode()
 	{
 		switch (type) {
@@ -426,25 +498,12 @@ public class SquashFsEntry
 			file.setBlockSizes(new int[0]);
 			file.setSparse(0L);
 		} else {
-			long sparse = 0L;
-			file.setBlocksStart(dataBlocks.get(0).getLocation());
-			int[] sizes = new int[dataBlocks.size()];
-			for (int i = 0; i < sizes.length; i++) {
-				DataBlockRef dbr = dataBlocks.get(i);
-				if (dbr.isSparse()) {
-					sparse += dbr.getLogicalSize();
-					sizes[i] = 0;
-				} else {
-					sizes[i] = dbr.getPhysicalSize();
-					if (!dbr.isCompressed()) {
-						sizes[i] |= 0x1_000_000; // uncompressed bit
-					}
-				}
-			}
+			file.setBlocksStart(dataBlocks.getStart());
+			long sparse = dataBlocks.getSparseBytes();
 			if (sparse >= fileSize) {
 				sparse = fileSize - 1L;
 			}
-			file.setBlockSizes(sizes);
+			file.setBlockSizes(dataBlocks.getInodeSizes());
 			file.setSparse(sparse);
 		}
 
@@ -510,7 +569,7 @@ public class SquashFsEntry
 				inodeNumber, nlink, fileSize,
 				new SimpleDateFormat("yyyy-MM-dd HH:mm:ss")
 						.format(lastModified * 1000L),
-				(parent == null && inode != null) ? "/" : "", name,
+				(parent == null && inode != null) ? "/" : "", getName(),
 				hardlinkTarget == null ? "" : " link to " + hardlinkTarget,
 				symlinkTarget == null ? "" : " -> " + symlinkTarget);
 	}
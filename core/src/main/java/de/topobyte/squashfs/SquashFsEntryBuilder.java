@@ -22,16 +22,16 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.time.Instant;
-import java.util.ArrayList;
 import java.util.Date;
-import java.util.List;
 import java.util.Optional;
 import java.util.function.LongConsumer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import de.topobyte.squashfs.data.DataBlockList;
 import de.topobyte.squashfs.data.DataBlockRef;
+import de.topobyte.squashfs.data.FileContentIndex;
 import de.topobyte.squashfs.data.FragmentRef;
 import de.topobyte.squashfs.inode.INodeType;
 
@@ -54,7 +54,7 @@ public class SquashFsEntryBuilder
 	private Integer lastModified;
 	private String symlinkTarget;
 	private String hardlinkTarget;
-	private List<DataBlockRef> dataBlocks;
+	private DataBlockList dataBlocks;
 	private FragmentRef fragment;
 	private boolean synthetic = false;
 
@@ -90,7 +90,7 @@ public class SquashFsEntryBuilder
 	public SquashFsEntryBuilder dataBlock(DataBlockRef block)
 	{
 		if (dataBlocks == null) {
-			dataBlocks = new ArrayList<>();
+			dataBlocks = new DataBlockList();
 		}
 		logger.debug("Wrote datablock {}", block);
 		dataBlocks.add(block);
@@ -212,6 +212,7 @@ public class SquashFsEntryBuilder
 		int off = 0;
 
 		byte[] blockBuffer = writer.getBlockBuffer();
+		writer.getDataWriter().startFile();
 
 		// determine how many bytes to read
 		int bytesToRead = (int) Math.min(blockBuffer.length - off,
@@ -240,10 +241,17 @@ public class SquashFsEntryBuilder
 		}
 
 		if (off > 0) {
-			// write final block
-			logger.trace("Writing fragment of size {}", off);
-			FragmentRef fragment = writer.getFragmentWriter().write(blockBuffer,
-					0, off);
+			// write final block, full blocks of identical files have already
+			// been shared by the data writer
+			int length = off;
+			FileContentIndex contentIndex = writer.getContentIndex();
+			FragmentRef fragment;
+			if (contentIndex == null) {
+				fragment = writeFragment(length);
+			} else {
+				fragment = contentIndex.share(written, blockBuffer, 0, length,
+						() -> writeFragment(length));
+			}
 			fragment(fragment);
 			progress.accept(written);
 			off = 0;
@@ -264,6 +272,13 @@ public class SquashFsEntryBuilder
 		return this;
 	}
 
+	private FragmentRef writeFragment(int length) throws IOException
+	{
+		logger.trace("Writing fragment of size {}", length);
+		return writer.getFragmentWriter().write(writer.getBlockBuffer(), 0,
+				length);
+	}
+
 	public SquashFsEntry build()
 	{
 		if (type == null && hardlinkTarget == null) {
@@ -285,7 +300,7 @@ public class SquashFsEntryBuilder
 			lastModified = (int) (System.currentTimeMillis() / 1000L);
 		}
 
-		SquashFsEntry entry = new SquashFsEntry(type, name,
+		SquashFsEntry entry = new SquashFsEntry(type,
 				Optional.ofNullable(uid).orElse((short) 0),
 				Optional.ofNullable(gid).orElse((short) 0),
 				Optional.ofNullable(permissions).orElse((short) 0), major,
@@ -293,7 +308,7 @@ public class SquashFsEntryBuilder
 				Optional.ofNullable(lastModified).orElse(0), symlinkTarget,
 				hardlinkTarget, dataBlocks, fragment, synthetic);
 
-		writer.getFsTree().add(entry);
+		writer.getFsTree().add(name, entry);
 
 		return entry;
 	}
@@ -24,7 +24,10 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 import de.topobyte.squashfs.data.DataBlockCache;
 import de.topobyte.squashfs.directory.DirectoryEntry;
@@ -42,6 +45,10 @@ import de.topobyte.squashfs.table.IdTable;
 public interface SquashFsReader extends Closeable
 {
 
+	/**
+	 * Opens an image file for reading. The returned reader uses positional
+	 * reads and may be shared by multiple threads.
+	 */
 	public static SquashFsReader fromFile(int tag, File inputFile, int offset)
 			throws SquashFsException, IOException
 	{
@@ -92,6 +99,18 @@ public interface SquashFsReader extends Closeable
 	public INode findInodeByPath(String path)
 			throws IOException, SquashFsException, FileNotFoundException;
 
+	/**
+	 * Resolves a path within the image. Resolved paths are cached, so
+	 * repeated lookups of the same paths are cheap.
+	 *
+	 * @param followSymlinks
+	 *            whether to follow symbolic links, including one named by the
+	 *            last path component. If false, a symbolic link is returned
+	 *            as is and cannot be used as a directory.
+	 */
+	public INode findInodeByPath(String path, boolean followSymlinks)
+			throws IOException, SquashFsException, FileNotFoundException;
+
 	public List<DirectoryEntry> getChildren(INode parent)
 			throws IOException, SquashFsException;
 
@@ -101,7 +120,64 @@ public interface SquashFsReader extends Closeable
 	public long writeFileOut(INode inode, DataOutput out)
 			throws IOException, SquashFsException;
 
+	/**
+	 * Writes the content of a file, decompressing its blocks in parallel on
+	 * the given executor. Blocks are written in order, and at most
+	 * {@code window} blocks are decompressed ahead of the one being written.
+	 * The output is the same as that of
+	 * {@link #writeFileOut(INode, DataOutput)}.
+	 */
+	public long writeFileOut(INode inode, DataOutput out, Executor executor,
+			int window) throws IOException, SquashFsException;
+
+	/**
+	 * Enables prefetching of file blocks ahead of sequential
+	 * {@link #read(INode, long, byte[], int, int)} calls, or disables it if
+	 * null. Prefetched blocks are kept in the data cache, so this requires the
+	 * reader to have one.
+	 *
+	 * @throws IllegalStateException
+	 *             if the reader has no data cache
+	 */
+	public void setReadAhead(ReadAhead readAhead);
+
 	public int read(INode inode, long fileOffset, byte[] buf, int off, int len)
 			throws IOException, SquashFsException;
 
+	/**
+	 * Same as {@link #read(INode, long, byte[], int, int)}, but sequential
+	 * reads are tracked for read-ahead per {@code stream}, such as an open
+	 * file handle, rather than per inode instance.
+	 */
+	public int read(Object stream, INode inode, long fileOffset, byte[] buf,
+			int off, int len) throws IOException, SquashFsException;
+
+	/**
+	 * Returns a read-only view of up to {@code len} bytes of a file starting
+	 * at {@code fileOffset}, not extending beyond the block that contains the
+	 * offset. Blocks stored uncompressed in a mapped image and blocks from a
+	 * heap data cache are not copied, so the buffer must not be retained
+	 * longer than the reader is open.
+	 *
+	 * @return the buffer, or null at the end of the file
+	 */
+	public ByteBuffer readBuffer(INode inode, long fileOffset, int len)
+			throws IOException, SquashFsException;
+
+	/**
+	 * Same as {@link #readBuffer(INode, long, int)}, but sequential reads are
+	 * tracked for read-ahead per {@code stream}.
+	 */
+	public ByteBuffer readBuffer(Object stream, INode inode, long fileOffset,
+			int len) throws IOException, SquashFsException;
+
+	/**
+	 * Writes the content of a file to a channel. Blocks stored uncompressed
+	 * in an image file are transferred with
+	 * {@link java.nio.channels.FileChannel#transferTo} where possible and are
+	 * never read onto the heap.
+	 */
+	public long transferFile(INode inode, WritableByteChannel out)
+			throws IOException, SquashFsException;
+
 }
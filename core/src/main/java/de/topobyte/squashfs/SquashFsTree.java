@@ -20,125 +20,287 @@ package de.topobyte.squashfs;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.stream.Collectors;
 
 import de.topobyte.squashfs.compression.Compression;
+import de.topobyte.squashfs.data.CompressionPipeline;
 import de.topobyte.squashfs.inode.INodeType;
 import de.topobyte.squashfs.metadata.MetadataBlockRef;
 import de.topobyte.squashfs.metadata.MetadataWriter;
 import de.topobyte.squashfs.table.ExportTable;
 
+/**
+ * Directory tree of the entries of an archive. Entries are linked to their
+ * parent directory as they are added and only hold their own (interned) path
+ * component, so no full paths are kept around while building large images.
+ */
 public class SquashFsTree
 {
 
-	private final SortedMap<String, SquashFsEntry> map = new TreeMap<>();
+	private Map<String, String> names = new HashMap<>();
 
 	private final AtomicInteger inodeAssignments = new AtomicInteger(0);
 	private final SortedMap<Integer, Set<SquashFsEntry>> inodeToEntry = new TreeMap<>();
 	private final MetadataWriter inodeWriter;
 	private final MetadataWriter dirWriter;
-	private final SortedMap<Integer, MetadataBlockRef> visitedInodes = new TreeMap<>();
+	private final INodeRefTable visitedInodes;
 
 	private final SquashFsEntry root = new SquashFsEntry();
 	private MetadataBlockRef rootInodeRef;
 
+	private String lastDirName = "";
+	private SquashFsEntry lastDir = root;
+
+	// the entries by parent and name, only kept while entries are added
+	private SquashFsEntry[] childTable = new SquashFsEntry[64];
+	private int childCount = 0;
+
 	SquashFsTree(Compression compression)
 	{
-		inodeWriter = new MetadataWriter(compression);
-		dirWriter = new MetadataWriter(compression);
+		this(compression, null);
+	}
+
+	SquashFsTree(Compression compression, CompressionPipeline pipeline)
+	{
+		inodeWriter = new MetadataWriter(compression, pipeline);
+		dirWriter = new MetadataWriter(compression, pipeline);
+		visitedInodes = new INodeRefTable(inodeWriter);
 	}
 
-	void add(SquashFsEntry squashFsEntry)
+	void add(String name, SquashFsEntry squashFsEntry)
 	{
-		SquashFsEntry prev = map.get(squashFsEntry.name);
-		if (prev == null || (prev.synthetic && !squashFsEntry.synthetic)) {
-			map.put(squashFsEntry.name, squashFsEntry);
+		int slash = name.lastIndexOf('/');
+		SquashFsEntry dir = directory(name, slash);
+
+		String shortName = intern(name.substring(slash + 1));
+		squashFsEntry.name = shortName;
+		squashFsEntry.parent = dir;
+
+		SquashFsEntry prev = child(dir, shortName);
+		if (prev == null) {
+			dir.addChild(squashFsEntry);
+			insert(squashFsEntry);
+		} else if (prev.isPlaceholder()
+				|| (prev.synthetic && !squashFsEntry.synthetic)) {
+			remove(prev);
+			prev.children.removeIf(child -> child(prev, child.name) != child);
+			for (SquashFsEntry child : prev.children) {
+				remove(child);
+			}
+			squashFsEntry.replace(prev);
+			insert(squashFsEntry);
+			for (SquashFsEntry child : squashFsEntry.children) {
+				insert(child);
+			}
+			if (lastDir == prev) {
+				lastDir = squashFsEntry;
+			}
 		}
 	}
 
-	public SquashFsEntry getRoot()
+	private SquashFsEntry directory(String name, int slash)
 	{
-		return root;
+		if (slash == lastDirName.length()
+				&& name.startsWith(lastDirName)) {
+			return lastDir;
+		}
+
+		SquashFsEntry dir = root;
+		int start = 1;
+		int next;
+		while (start <= slash && (next = name.indexOf('/', start)) >= 0) {
+			String component = name.substring(start, next);
+			SquashFsEntry child = child(dir, component);
+			if (child == null) {
+				child = SquashFsEntry.placeholder(intern(component));
+				child.parent = dir;
+				dir.addChild(child);
+				insert(child);
+			}
+			dir = child;
+			start = next + 1;
+		}
+
+		lastDirName = name.substring(0, slash);
+		lastDir = dir;
+		return dir;
 	}
 
-	void build() throws SquashFsException, IOException
+	private static int childHash(SquashFsEntry dir, String name)
 	{
-		for (Map.Entry<String, SquashFsEntry> squashFsEntry : map.entrySet()) {
-			String name = squashFsEntry.getKey();
-			String parent = name;
-			while ((parent = parentName(parent)) != null) {
-				SquashFsEntry p = map.get(parent);
-				if (p == null || p.type != INodeType.BASIC_DIRECTORY) {
-					throw new IllegalArgumentException(String.format(
-							"Parent '%s' not found for entry '%s'", parent,
-							name));
+		int h = System.identityHashCode(dir) * 31 + name.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	private SquashFsEntry child(SquashFsEntry dir, String name)
+	{
+		SquashFsEntry entry = childTable[childHash(dir, name)
+				& (childTable.length - 1)];
+		while (entry != null
+				&& !(entry.parent == dir && entry.name.equals(name))) {
+			entry = entry.nextInBucket;
+		}
+		return entry;
+	}
+
+	private void insert(SquashFsEntry entry)
+	{
+		int index = childHash(entry.parent, entry.name)
+				& (childTable.length - 1);
+		entry.nextInBucket = childTable[index];
+		childTable[index] = entry;
+		childCount++;
+		if (childCount > childTable.length - (childTable.length >>> 2)) {
+			SquashFsEntry[] old = childTable;
+			childTable = new SquashFsEntry[old.length * 2];
+			for (SquashFsEntry bucket : old) {
+				SquashFsEntry e = bucket;
+				while (e != null) {
+					SquashFsEntry next = e.nextInBucket;
+					int i = childHash(e.parent, e.name)
+							& (childTable.length - 1);
+					e.nextInBucket = childTable[i];
+					childTable[i] = e;
+					e = next;
 				}
 			}
+		}
+	}
 
-			String hardLinkTarget = squashFsEntry.getValue().hardlinkTarget;
-			if (hardLinkTarget != null && !map.containsKey(hardLinkTarget)) {
-				throw new IllegalArgumentException(String.format(
-						"Hardlink target '%s' not found for entry '%s'",
-						hardLinkTarget, name));
-			}
+	private void remove(SquashFsEntry entry)
+	{
+		int index = childHash(entry.parent, entry.name)
+				& (childTable.length - 1);
+		SquashFsEntry prev = null;
+		SquashFsEntry current = childTable[index];
+		while (current != entry) {
+			prev = current;
+			current = current.nextInBucket;
+		}
+		if (prev == null) {
+			childTable[index] = entry.nextInBucket;
+		} else {
+			prev.nextInBucket = entry.nextInBucket;
+		}
+		entry.nextInBucket = null;
+		childCount--;
+	}
 
-			// assign parent
-			parent = parentName(name);
-			if (parent == null) {
-				root.children.add(squashFsEntry.getValue());
-				squashFsEntry.getValue().parent = root;
-			} else {
-				SquashFsEntry parentEntry = map.get(parent);
-				parentEntry.children.add(squashFsEntry.getValue());
-				squashFsEntry.getValue().parent = parentEntry;
+	private String intern(String name)
+	{
+		String prev = names.putIfAbsent(name, name);
+		return prev == null ? name : prev;
+	}
+
+	SquashFsEntry find(String name)
+	{
+		if (!name.startsWith("/")) {
+			return null;
+		}
+		SquashFsEntry entry = root;
+		int start = 1;
+		while (entry != null && start <= name.length()) {
+			int next = name.indexOf('/', start);
+			if (next < 0) {
+				next = name.length();
 			}
+			entry = child(entry, name.substring(start, next));
+			start = next + 1;
 		}
+		return entry == null || entry.isPlaceholder() ? null : entry;
+	}
+
+	public SquashFsEntry getRoot()
+	{
+		return root;
+	}
+
+	void build() throws SquashFsException, IOException
+	{
+		link(root);
+		clearChildTable(root);
+		names = null;
+		lastDirName = "";
+		lastDir = root;
 
 		// walk tree, sort entries and assign inodes
 		root.sortChildren();
 
-		root.assignInodes(map, inodeAssignments);
-		root.assignHardlinkInodes(map, inodeToEntry);
+		root.assignInodes(inodeAssignments);
+		root.assignHardlinkInodes(inodeToEntry);
 
 		root.updateDirectoryLinkCounts();
 		root.updateHardlinkInodeCounts(inodeToEntry);
 
-		root.createInodes();
-		root.createHardlinkInodes();
-
 		rootInodeRef = root.writeMetadata(inodeWriter, dirWriter,
 				visitedInodes);
 
 		// make sure all inodes were visited
-		if (visitedInodes.size() != root.inode.getInodeNumber()) {
+		if (visitedInodes.size() != root.inodeNumber) {
 			throw new SquashFsException(String.format(
 					"BUG: Visited inode count %d != actual inode count %d",
-					visitedInodes.size(), root.inode.getInodeNumber()));
+					visitedInodes.size(), root.inodeNumber));
 		}
 
 		// make sure all inode numbers exist, from 1 to n
-		List<Integer> allInodes = visitedInodes.keySet().stream()
-				.collect(Collectors.toList());
-		if (allInodes.get(0).intValue() != 1) {
-			throw new SquashFsException(
-					String.format("BUG: First inode number %d != 1",
-							allInodes.get(0).intValue()));
+		if (!visitedInodes.contains(1)) {
+			throw new SquashFsException("BUG: First inode number != 1");
 		}
-		if (allInodes.get(allInodes.size() - 1).intValue() != allInodes
-				.size()) {
+		if (visitedInodes.getMaxInodeNumber() != visitedInodes.size()) {
 			throw new SquashFsException(
 					String.format("BUG: Last inode number %d != %d",
-							allInodes.get(allInodes.size() - 1).intValue(),
-							allInodes.size()));
+							visitedInodes.getMaxInodeNumber(),
+							visitedInodes.size()));
 		}
 	}
 
+	/**
+	 * Drops replaced entries, checks parents and resolves hardlink targets of
+	 * all entries below the given directory.
+	 */
+	private void link(SquashFsEntry dir)
+	{
+		dir.children.removeIf(child -> child(dir, child.name) != child);
+
+		for (SquashFsEntry child : dir.children) {
+			if (dir.type != INodeType.BASIC_DIRECTORY) {
+				throw new IllegalArgumentException(
+						String.format("Parent '%s' not found for entry '%s'",
+								dir.getName(), child.getName()));
+			}
+
+			String hardLinkTarget = child.hardlinkTarget;
+			if (hardLinkTarget != null) {
+				child.hardlinkEntry = find(hardLinkTarget);
+				if (child.hardlinkEntry == null) {
+					throw new IllegalArgumentException(String.format(
+							"Hardlink target '%s' not found for entry '%s'",
+							hardLinkTarget, child.getName()));
+				}
+			}
+		}
+
+		for (SquashFsEntry child : dir.children) {
+			link(child);
+		}
+	}
+
+	private void clearChildTable(SquashFsEntry dir)
+	{
+		for (SquashFsEntry child : dir.children) {
+			child.nextInBucket = null;
+			clearChildTable(child);
+		}
+		childTable = null;
+		childCount = 0;
+	}
+
 	int getInodeCount()
 	{
 		return visitedInodes.size();
@@ -150,19 +312,11 @@ public class SquashFsTree
 
 		List<MetadataBlockRef> exportRefs = new ArrayList<>();
 
-		int index = 0;
-		for (Map.Entry<Integer, MetadataBlockRef> entry : visitedInodes
-				.entrySet()) {
-			if (index % ExportTable.ENTRIES_PER_BLOCK == 0) {
+		for (int i = 0; i < visitedInodes.size(); i++) {
+			if (i % ExportTable.ENTRIES_PER_BLOCK == 0) {
 				exportRefs.add(writer.getCurrentReference());
 			}
-			MetadataBlockRef metaRef = entry.getValue();
-
-			long inodeRef = ((metaRef.getLocation() & 0xffffffffL) << 16)
-					| ((metaRef.getOffset()) & 0xffffL);
-
-			writer.writeLong(inodeRef);
-			index++;
+			writer.writeLong(visitedInodes.getRaw(i + 1));
 		}
 
 		return exportRefs;
@@ -183,13 +337,4 @@ public class SquashFsTree
 		return dirWriter;
 	}
 
-	private String parentName(String name)
-	{
-		int slash = name.lastIndexOf('/');
-		if (slash == 0) {
-			return null;
-		}
-		return name.substring(0, slash);
-	}
-
 }
@@ -31,14 +31,16 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import de.topobyte.squashfs.compression.Compression;
+import de.topobyte.squashfs.compression.SuperBlockFlag;
 import de.topobyte.squashfs.compression.ZlibCompression;
+import de.topobyte.squashfs.data.CompressionPipeline;
 import de.topobyte.squashfs.data.DataBlockWriter;
+import de.topobyte.squashfs.data.FileContentIndex;
 import de.topobyte.squashfs.data.FragmentWriter;
 import de.topobyte.squashfs.metadata.MetadataBlockRef;
 import de.topobyte.squashfs.metadata.MetadataWriter;
+import de.topobyte.squashfs.ra.BufferedChannelRandomAccess;
 import de.topobyte.squashfs.ra.IRandomAccess;
-import de.topobyte.squashfs.ra.OffsetRandomAccess;
-import de.topobyte.squashfs.ra.SimpleRandomAccess;
 import de.topobyte.squashfs.superblock.SuperBlock;
 import de.topobyte.squashfs.table.IdTableGenerator;
 
@@ -53,6 +55,8 @@ public class SquashFsWriter implements Closeable
 	private final IdTableGenerator idGenerator;
 	private final SuperBlock superBlock;
 	private final SquashFsTree fsTree;
+	private final CompressionPipeline pipeline;
+	private final FileContentIndex contentIndex;
 	private final DataBlockWriter dataWriter;
 	private final FragmentWriter fragmentWriter;
 	private final byte[] blockBuffer;
@@ -67,19 +71,51 @@ public class SquashFsWriter implements Closeable
 	public SquashFsWriter(File outputFile, Compression compression, int offset)
 			throws SquashFsException, IOException
 	{
-		this.compression = compression;
-		if (offset == 0) {
-			raf = new SimpleRandomAccess(outputFile, "rw");
-		} else {
-			raf = new OffsetRandomAccess(outputFile, "rw", offset);
+		this(outputFile, compression, offset, 0);
+	}
+
+	/**
+	 * @param compressionThreads
+	 *            number of worker threads used to compress data and fragment
+	 *            blocks; 0 compresses on the calling thread
+	 */
+	public SquashFsWriter(File outputFile, Compression compression, int offset,
+			int compressionThreads) throws SquashFsException, IOException
+	{
+		this(outputFile, compression, offset, compressionThreads,
+				SuperBlock.DEFAULT_BLOCK_SIZE);
+	}
+
+	/**
+	 * @param compressionThreads
+	 *            number of worker threads used to compress data and fragment
+	 *            blocks; 0 compresses on the calling thread
+	 * @param blockSize
+	 *            size of data blocks, a power of two between
+	 *            {@link SuperBlock#MIN_BLOCK_SIZE} and
+	 *            {@link SuperBlock#MAX_BLOCK_SIZE}
+	 */
+	public SquashFsWriter(File outputFile, Compression compression, int offset,
+			int compressionThreads, int blockSize)
+			throws SquashFsException, IOException
+	{
+		if (compressionThreads < 0) {
+			throw new IllegalArgumentException(String.format(
+					"Invalid number of compression threads %d (min 0)",
+					compressionThreads));
 		}
+		this.compression = compression;
+		superBlock = createSuperBlock(compression, blockSize);
+		raf = new BufferedChannelRandomAccess(outputFile, offset);
 		writeDummySuperblock(raf);
-		superBlock = createSuperBlock(compression);
+		writeCompressorOptions(superBlock, raf);
 		blockBuffer = createBlockBuffer(superBlock);
 		idGenerator = createIdTableGenerator();
+		pipeline = createPipeline(superBlock, compressionThreads);
 		fsTree = createSquashFsTree();
-		dataWriter = createDataWriter(superBlock, raf, compression);
-		fragmentWriter = createFragmentWriter(superBlock, raf);
+		dataWriter = createDataWriter(superBlock, raf, compression, pipeline);
+		fragmentWriter = createFragmentWriter(superBlock, raf, pipeline);
+		contentIndex = createContentIndex(superBlock, fragmentWriter);
 	}
 
 	public void setModificationTime(int modificationTime)
@@ -93,9 +129,28 @@ public class SquashFsWriter implements Closeable
 		raf.write(new byte[SuperBlock.SIZE]);
 	}
 
-	static SuperBlock createSuperBlock(Compression compression)
+	static SuperBlock createSuperBlock(Compression compression, int blockSize)
 	{
-		return new SuperBlock(compression);
+		return new SuperBlock(compression, blockSize);
+	}
+
+	static void writeCompressorOptions(SuperBlock sb, IRandomAccess raf)
+			throws IOException
+	{
+		byte[] options = CompressionUtil.createCompressorOptions(
+				sb.getCompression(), sb.getBlockSize());
+		if (options == null) {
+			return;
+		}
+
+		// stored as a single uncompressed metadata block
+		int header = (options.length & 0x7fff) | 0x8000;
+		raf.write(header & 0xff);
+		raf.write((header >> 8) & 0xff);
+		raf.write(options);
+
+		sb.setFlags((short) (sb.getFlags()
+				| SuperBlockFlag.COMPRESSOR_OPTIONS.mask()));
 	}
 
 	static byte[] createBlockBuffer(SuperBlock sb)
@@ -112,18 +167,38 @@ public class SquashFsWriter implements Closeable
 
 	SquashFsTree createSquashFsTree()
 	{
-		return new SquashFsTree(compression);
+		return new SquashFsTree(compression, pipeline);
+	}
+
+	static CompressionPipeline createPipeline(SuperBlock sb, int threads)
+	{
+		if (threads == 0) {
+			return null;
+		}
+		return new CompressionPipeline(sb.getBlockSize(), threads);
 	}
 
 	static DataBlockWriter createDataWriter(SuperBlock sb, IRandomAccess raf,
-			Compression compression)
+			Compression compression, CompressionPipeline pipeline)
+	{
+		return new DataBlockWriter(raf, sb.getBlockSize(), compression,
+				pipeline, sb.hasFlag(SuperBlockFlag.DUPLICATES));
+	}
+
+	FragmentWriter createFragmentWriter(SuperBlock sb, IRandomAccess raf,
+			CompressionPipeline pipeline)
 	{
-		return new DataBlockWriter(raf, sb.getBlockSize(), compression);
+		return new FragmentWriter(raf, sb.getBlockSize(), compression,
+				pipeline);
 	}
 
-	FragmentWriter createFragmentWriter(SuperBlock sb, IRandomAccess raf)
+	static FileContentIndex createContentIndex(SuperBlock sb,
+			FragmentWriter fragmentWriter)
 	{
-		return new FragmentWriter(raf, sb.getBlockSize(), compression);
+		if (!sb.hasFlag(SuperBlockFlag.DUPLICATES)) {
+			return null;
+		}
+		return new FileContentIndex(fragmentWriter);
 	}
 
 	SuperBlock getSuperBlock()
@@ -146,6 +221,11 @@ public class SquashFsWriter implements Closeable
 		return fragmentWriter;
 	}
 
+	FileContentIndex getContentIndex()
+	{
+		return contentIndex;
+	}
+
 	byte[] getBlockBuffer()
 	{
 		return blockBuffer;
@@ -166,6 +246,11 @@ public class SquashFsWriter implements Closeable
 		// flush any remaining fragments
 		fragmentWriter.flush();
 
+		// wait for all data and fragment blocks to be written
+		if (pipeline != null) {
+			pipeline.drain();
+		}
+
 		// build the directory tree
 		fsTree.build();
 
@@ -181,9 +266,12 @@ public class SquashFsWriter implements Closeable
 
 		// build fragment table
 		long fragMetaStart = raf.getFilePointer();
-		MetadataWriter fragMetaWriter = new MetadataWriter(compression);
-		List<MetadataBlockRef> fragRefs = fragmentWriter.save(fragMetaWriter);
-		fragMetaWriter.save(raf);
+		List<MetadataBlockRef> fragRefs;
+		try (MetadataWriter fragMetaWriter = new MetadataWriter(compression,
+				pipeline)) {
+			fragRefs = fragmentWriter.save(fragMetaWriter);
+			fragMetaWriter.save(raf);
+		}
 
 		// save fragment table
 		long fragTableStart = raf.getFilePointer();
@@ -198,10 +286,12 @@ public class SquashFsWriter implements Closeable
 
 		// build export table
 		long exportMetaStart = raf.getFilePointer();
-		MetadataWriter exportMetaWriter = new MetadataWriter(compression);
-		List<MetadataBlockRef> exportRefs = fsTree
-				.saveExportTable(exportMetaWriter);
-		exportMetaWriter.save(raf);
+		List<MetadataBlockRef> exportRefs;
+		try (MetadataWriter exportMetaWriter = new MetadataWriter(compression,
+				pipeline)) {
+			exportRefs = fsTree.saveExportTable(exportMetaWriter);
+			exportMetaWriter.save(raf);
+		}
 
 		// write export table
 		long exportTableStart = raf.getFilePointer();
@@ -216,9 +306,12 @@ public class SquashFsWriter implements Closeable
 
 		// build ID table
 		long idMetaStart = raf.getFilePointer();
-		MetadataWriter idMetaWriter = new MetadataWriter(compression);
-		List<MetadataBlockRef> idRefs = idGenerator.save(idMetaWriter);
-		idMetaWriter.save(raf);
+		List<MetadataBlockRef> idRefs;
+		try (MetadataWriter idMetaWriter = new MetadataWriter(compression,
+				pipeline)) {
+			idRefs = idGenerator.save(idMetaWriter);
+			idMetaWriter.save(raf);
+		}
 
 		MetadataBlockRef rootInodeRef = fsTree.getRootInodeRef();
 		logger.debug("Root inode ref: {}", rootInodeRef);
@@ -240,9 +333,7 @@ public class SquashFsWriter implements Closeable
 
 		// pad to 4096 bytes
 		int padding = (4096 - ((int) (archiveSize % 4096L))) % 4096;
-		for (int i = 0; i < padding; i++) {
-			raf.write(0);
-		}
+		raf.write(new byte[padding]);
 
 		long fileSize = raf.getFilePointer();
 		logger.debug("File size: {}", fileSize);
@@ -276,7 +367,15 @@ public class SquashFsWriter implements Closeable
 	@Override
 	public void close() throws IOException
 	{
-		raf.close();
+		try {
+			if (pipeline != null) {
+				pipeline.close();
+			}
+			fsTree.getINodeWriter().close();
+			fsTree.getDirWriter().close();
+		} finally {
+			raf.close();
+		}
 	}
 
 }
@@ -0,0 +1,126 @@
+package de.topobyte.squashfs.compression;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import de.topobyte.squashfs.SquashFsException;
+
+/**
+ * Base class for codecs that work on arrays. Buffers that are not backed by
+ * an accessible array are copied through per-thread scratch arrays. This
+ * includes compressed blocks of a memory mapped image, which the array based
+ * decompressors of Java 8 cannot read in place.
+ */
+abstract class ArrayCodec implements CompressionCodec
+{
+
+	private static final ThreadLocal<byte[]> SOURCE = new ThreadLocal<>();
+	private static final ThreadLocal<byte[]> TARGET = new ThreadLocal<>();
+
+	protected abstract int compress(Compression options, int blockSize,
+			byte[] src, int srcOffset, int srcLength, byte[] dst,
+			int dstOffset, int maxLength) throws IOException;
+
+	protected abstract int decompress(byte[] src, int srcOffset,
+			int srcLength, byte[] dst, int dstOffset, int maxLength)
+			throws IOException;
+
+	@Override
+	public int compress(Compression options, int blockSize, ByteBuffer src,
+			ByteBuffer dst) throws IOException
+	{
+		int srcLength = src.remaining();
+		int maxLength = dst.remaining();
+		byte[] in = array(src, SOURCE);
+		int srcOffset = src.hasArray() ? src.arrayOffset() + src.position()
+				: 0;
+		if (dst.hasArray()) {
+			return compress(options, blockSize, in, srcOffset, srcLength,
+					dst.array(), dst.arrayOffset() + dst.position(),
+					maxLength);
+		}
+		byte[] out = scratch(TARGET, maxLength);
+		int size = compress(options, blockSize, in, srcOffset, srcLength, out,
+				0, maxLength);
+		if (size > 0) {
+			dst.duplicate().put(out, 0, size);
+		}
+		return size;
+	}
+
+	@Override
+	public int decompress(ByteBuffer src, ByteBuffer dst) throws IOException
+	{
+		int srcLength = src.remaining();
+		int maxLength = dst.remaining();
+		byte[] in = array(src, SOURCE);
+		int srcOffset = src.hasArray() ? src.arrayOffset() + src.position()
+				: 0;
+		if (dst.hasArray()) {
+			return decompress(in, srcOffset, srcLength, dst.array(),
+					dst.arrayOffset() + dst.position(), maxLength);
+		}
+		byte[] out = scratch(TARGET, maxLength);
+		int size = decompress(in, srcOffset, srcLength, out, 0, maxLength);
+		dst.duplicate().put(out, 0, size);
+		return size;
+	}
+
+	private static byte[] array(ByteBuffer buffer, ThreadLocal<byte[]> local)
+	{
+		if (buffer.hasArray()) {
+			return buffer.array();
+		}
+		byte[] array = scratch(local, buffer.remaining());
+		buffer.duplicate().get(array, 0, buffer.remaining());
+		return array;
+	}
+
+	private static byte[] scratch(ThreadLocal<byte[]> local, int size)
+	{
+		byte[] array = local.get();
+		if (array == null || array.length < size) {
+			array = new byte[size];
+			local.set(array);
+		}
+		return array;
+	}
+
+	/**
+	 * Reads a decompressing stream to its end.
+	 */
+	protected static int readFully(InputStream in, byte[] dst, int dstOffset,
+			int maxLength) throws IOException
+	{
+		try (InputStream is = in) {
+			int size = 0;
+			int c;
+			while (size < maxLength && (c = is.read(dst, dstOffset + size,
+					maxLength - size)) >= 0) {
+				size += c;
+			}
+			if (size == maxLength && is.read() >= 0) {
+				throw new SquashFsException(String.format(
+						"Corrupt block: Got more than %d bytes", maxLength));
+			}
+			return size;
+		}
+	}
+
+	/**
+	 * Copies a compressed result if it fits.
+	 *
+	 * @return the length of the result, or -1 if it is too long
+	 */
+	protected static int copyResult(byte[] result, byte[] dst, int dstOffset,
+			int maxLength)
+	{
+		if (result.length > maxLength) {
+			return -1;
+		}
+		System.arraycopy(result, 0, dst, dstOffset, result.length);
+		return result.length;
+	}
+
+}
@@ -0,0 +1,50 @@
+package de.topobyte.squashfs.compression;
+
+import java.util.Collection;
+import java.util.EnumSet;
+
+/**
+ * Branch/call/jump filters that can be applied before XZ compression to
+ * improve the ratio of executable code.
+ */
+public enum BcjFilter {
+	X86(0),
+	POWERPC(1),
+	IA64(2),
+	ARM(3),
+	ARMTHUMB(4),
+	SPARC(5);
+
+	private final int mask;
+
+	private BcjFilter(int bit)
+	{
+		mask = 1 << bit;
+	}
+
+	public static EnumSet<BcjFilter> filtersPresent(int value)
+	{
+		EnumSet<BcjFilter> values = EnumSet.noneOf(BcjFilter.class);
+		for (BcjFilter filter : values()) {
+			if ((value & filter.mask) != 0) {
+				values.add(filter);
+			}
+		}
+		return values;
+	}
+
+	public static int flagsFor(Collection<BcjFilter> filters)
+	{
+		int value = 0;
+		for (BcjFilter filter : filters) {
+			value |= filter.mask;
+		}
+		return value;
+	}
+
+	public int mask()
+	{
+		return mask;
+	}
+
+}
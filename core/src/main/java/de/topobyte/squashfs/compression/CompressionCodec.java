@@ -0,0 +1,54 @@
+package de.topobyte.squashfs.compression;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import de.topobyte.squashfs.superblock.CompressionId;
+
+/**
+ * Compresses and decompresses single blocks of one compression type.
+ *
+ * Codecs are looked up through {@link CompressionCodecs}, which also finds
+ * implementations registered with {@link java.util.ServiceLoader}, so that
+ * native and pure-Java implementations can replace each other. Both methods
+ * work on the remaining bytes of the buffers, which may be direct, and leave
+ * the positions of the buffers unchanged.
+ */
+public interface CompressionCodec
+{
+
+	CompressionId getCompressionId();
+
+	/**
+	 * @return the priority of this codec, codecs with a higher priority are
+	 *         preferred over others for the same compression type. The
+	 *         built-in codecs have priority 0.
+	 */
+	default int getPriority()
+	{
+		return 0;
+	}
+
+	/**
+	 * @param options
+	 *            the compression options, of the type matching
+	 *            {@link #getCompressionId()}
+	 * @param blockSize
+	 *            the size of the blocks being written, for codecs whose
+	 *            dictionary size depends on it
+	 * @return the number of bytes written to dst, or -1 if the compressed
+	 *         data does not fit into it
+	 */
+	int compress(Compression options, int blockSize, ByteBuffer src,
+			ByteBuffer dst) throws IOException;
+
+	/**
+	 * Decompresses one complete block.
+	 *
+	 * @return the number of bytes written to dst
+	 * @throws de.topobyte.squashfs.SquashFsException
+	 *             if the data is corrupt or does not fit into dst
+	 */
+	int decompress(ByteBuffer src, ByteBuffer dst) throws IOException;
+
+}
@@ -0,0 +1,124 @@
+package de.topobyte.squashfs.compression;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.topobyte.squashfs.superblock.CompressionId;
+
+/**
+ * Registry of the available {@link CompressionCodec}s.
+ *
+ * Besides the built-in codecs, every codec listed in a
+ * {@code META-INF/services/de.topobyte.squashfs.compression.CompressionCodec}
+ * file on the class path is loaded. For each compression type, the codec with
+ * the highest priority is used unless another one is selected with
+ * {@link #setCodec(CompressionCodec)}.
+ */
+public class CompressionCodecs
+{
+
+	// initialized before the codecs are loaded
+	private static final Logger logger = LoggerFactory
+			.getLogger(CompressionCodecs.class);
+
+	private static final Map<CompressionId, List<CompressionCodec>> AVAILABLE = load();
+
+	private static volatile Map<CompressionId, CompressionCodec> selected = select();
+
+	private static Map<CompressionId, CompressionCodec> select()
+	{
+		Map<CompressionId, CompressionCodec> map = new EnumMap<>(
+				CompressionId.class);
+		for (Map.Entry<CompressionId, List<CompressionCodec>> entry : AVAILABLE
+				.entrySet()) {
+			map.put(entry.getKey(), entry.getValue().get(0));
+		}
+		return map;
+	}
+
+	private static Map<CompressionId, List<CompressionCodec>> load()
+	{
+		List<CompressionCodec> codecs = new ArrayList<>();
+		codecs.add(new ZlibCodec());
+		codecs.add(new ZstdCodec());
+		codecs.add(new Lz4Codec());
+		codecs.add(new XzCodec());
+		codecs.add(new LzmaCodec());
+
+		ServiceLoader<CompressionCodec> loader = ServiceLoader
+				.load(CompressionCodec.class,
+						CompressionCodecs.class.getClassLoader());
+		try {
+			for (CompressionCodec codec : loader) {
+				codecs.add(codec);
+			}
+		} catch (ServiceConfigurationError e) {
+			// keep the codecs found so far
+			logger.warn("Unable to load compression codecs", e);
+		}
+
+		Map<CompressionId, List<CompressionCodec>> byId = new EnumMap<>(
+				CompressionId.class);
+		for (CompressionCodec codec : codecs) {
+			byId.computeIfAbsent(codec.getCompressionId(),
+					id -> new ArrayList<>()).add(codec);
+		}
+		for (List<CompressionCodec> list : byId.values()) {
+			// stable, so built-in codecs win ties
+			list.sort((a, b) -> Integer.compare(b.getPriority(),
+					a.getPriority()));
+		}
+		return byId;
+	}
+
+	/**
+	 * @return the codec used for the compression type, or null if there is
+	 *         none
+	 */
+	public static CompressionCodec getCodec(CompressionId compressionId)
+	{
+		return selected.get(compressionId);
+	}
+
+	/**
+	 * @return all codecs found for the compression type, in order of
+	 *         descending priority
+	 */
+	public static List<CompressionCodec> getCodecs(CompressionId compressionId)
+	{
+		List<CompressionCodec> codecs = AVAILABLE.get(compressionId);
+		if (codecs == null) {
+			return Collections.emptyList();
+		}
+		return Collections.unmodifiableList(codecs);
+	}
+
+	/**
+	 * Selects the codec to use for its compression type, for example to
+	 * compare implementations. The codec does not need to be registered as a
+	 * service.
+	 */
+	public static synchronized void setCodec(CompressionCodec codec)
+	{
+		Map<CompressionId, CompressionCodec> map = new EnumMap<>(selected);
+		map.put(codec.getCompressionId(), codec);
+		selected = map;
+	}
+
+	/**
+	 * Goes back to the codecs with the highest priority.
+	 */
+	public static synchronized void reset()
+	{
+		selected = select();
+	}
+
+}
@@ -0,0 +1,339 @@
+package de.topobyte.squashfs.compression;
+
+import java.util.Arrays;
+
+import de.topobyte.squashfs.SquashFsException;
+
+/**
+ * Compressor and decompressor for the raw LZ4 block format, as used by
+ * SquashFS for data, fragment and metadata blocks.
+ * 
+ * The high compression variant searches a chain of previous occurrences for
+ * the longest match instead of taking the first one found; its output is
+ * decoded by the same decompressor.
+ * 
+ * The match finder tables are kept per thread and reused across calls. Their
+ * entries are stored relative to a base that moves on with every call, so
+ * entries of earlier calls read as empty without clearing the tables.
+ */
+public class Lz4Block
+{
+
+	private static final int MIN_MATCH = 4;
+	private static final int LAST_LITERALS = 5;
+	private static final int MF_LIMIT = 12;
+	private static final int MAX_DISTANCE = 0xffff;
+	private static final int RUN_MASK = 0xf;
+
+	private static final int HASH_LOG = 16;
+	private static final int MIN_HASH_LOG = 10;
+	private static final int HC_ATTEMPTS = 256;
+
+	private static final ThreadLocal<Tables> TABLES = ThreadLocal
+			.withInitial(Tables::new);
+
+	private Lz4Block()
+	{
+	}
+
+	public static int maxCompressedLength(int length)
+	{
+		return length + length / 255 + 16;
+	}
+
+	public static byte[] compress(byte[] src, int offset, int length,
+			boolean highCompression)
+	{
+		byte[] dst = new byte[maxCompressedLength(length)];
+		int size = compress(src, offset, length, dst, 0, dst.length,
+				highCompression);
+		return Arrays.copyOf(dst, size);
+	}
+
+	/**
+	 * Compresses into the given array.
+	 *
+	 * @return the compressed length, or -1 if the result does not fit into
+	 *         {@code maxLength} bytes
+	 */
+	public static int compress(byte[] src, int offset, int length, byte[] dst,
+			int dstOffset, int maxLength, boolean highCompression)
+	{
+		int dp = dstOffset;
+		int dstEnd = dstOffset + maxLength;
+
+		int end = offset + length;
+		int anchor = offset;
+
+		if (length > MF_LIMIT) {
+			int mfLimit = end - MF_LIMIT;
+			int matchLimit = end - LAST_LITERALS;
+			int attempts = highCompression ? HC_ATTEMPTS : 1;
+
+			Tables tables = TABLES.get();
+			int[] head = tables.head;
+			int[] chain = highCompression ? tables.chain() : null;
+			int hashShift = 32 - hashLog(length);
+			// stored entries are positions relative to offset plus base
+			int base = tables.begin(length);
+			int inserted = offset;
+
+			int ip = offset;
+			while (ip < mfLimit) {
+				// index all positions up to and including the current one
+				int candidate = -1;
+				for (; inserted <= ip; inserted++) {
+					int h = hash(src, inserted, hashShift);
+					int stored = head[h];
+					candidate = stored < base ? -1 : stored - base + offset;
+					if (chain != null) {
+						chain[inserted & MAX_DISTANCE] = candidate;
+					}
+					head[h] = inserted - offset + base;
+				}
+
+				int matchLength = 0;
+				int matchPos = -1;
+				for (int i = 0; i < attempts && candidate >= offset
+						&& ip - candidate <= MAX_DISTANCE; i++) {
+					if (candidate < ip) {
+						int len = matchLength(src, candidate, ip, matchLimit);
+						if (len > matchLength) {
+							matchLength = len;
+							matchPos = candidate;
+						}
+					}
+					if (chain == null) {
+						break;
+					}
+					candidate = chain[candidate & MAX_DISTANCE];
+				}
+
+				if (matchLength < MIN_MATCH) {
+					ip++;
+					continue;
+				}
+
+				// extend the match backwards into pending literals
+				while (ip > anchor && matchPos > offset
+						&& src[ip - 1] == src[matchPos - 1]) {
+					ip--;
+					matchPos--;
+					matchLength++;
+				}
+
+				dp = writeSequence(dst, dp, dstEnd, src, anchor, ip - anchor,
+						ip - matchPos, matchLength);
+				if (dp < 0) {
+					return -1;
+				}
+				ip += matchLength;
+				anchor = ip;
+			}
+		}
+
+		dp = writeSequence(dst, dp, dstEnd, src, anchor, end - anchor, 0, 0);
+		return dp < 0 ? -1 : dp - dstOffset;
+	}
+
+	public static byte[] decompress(byte[] src, int offset, int length,
+			int maxLength) throws SquashFsException
+	{
+		byte[] dst = new byte[maxLength];
+		int size = decompress(src, offset, length, dst, 0, maxLength);
+		return size == maxLength ? dst : Arrays.copyOf(dst, size);
+	}
+
+	public static int decompress(byte[] src, int offset, int length,
+			byte[] dst, int dstOffset, int maxLength) throws SquashFsException
+	{
+		int sp = offset;
+		int end = offset + length;
+		int dp = dstOffset;
+		int dstEnd = dstOffset + maxLength;
+
+		while (true) {
+			if (sp >= end) {
+				throw corrupt("unexpected end of input");
+			}
+			int token = src[sp++] & 0xff;
+
+			int literals = token >>> 4;
+			if (literals == RUN_MASK) {
+				int b;
+				do {
+					if (sp >= end) {
+						throw corrupt("unexpected end of input");
+					}
+					b = src[sp++] & 0xff;
+					literals += b;
+				} while (b == 0xff);
+			}
+			if (literals > end - sp) {
+				throw corrupt("literals exceed input");
+			}
+			if (literals > dstEnd - dp) {
+				throw corrupt("output exceeds maximum size");
+			}
+			System.arraycopy(src, sp, dst, dp, literals);
+			sp += literals;
+			dp += literals;
+
+			if (sp == end) {
+				// the last sequence consists of literals only
+				return dp - dstOffset;
+			}
+
+			if (end - sp < 2) {
+				throw corrupt("unexpected end of input");
+			}
+			int distance = (src[sp] & 0xff) | ((src[sp + 1] & 0xff) << 8);
+			sp += 2;
+			if (distance == 0 || distance > dp - dstOffset) {
+				throw corrupt(String.format("invalid match offset %d",
+						distance));
+			}
+
+			int matchLength = token & RUN_MASK;
+			if (matchLength == RUN_MASK) {
+				int b;
+				do {
+					if (sp >= end) {
+						throw corrupt("unexpected end of input");
+					}
+					b = src[sp++] & 0xff;
+					matchLength += b;
+				} while (b == 0xff);
+			}
+			matchLength += MIN_MATCH;
+			if (matchLength > dstEnd - dp) {
+				throw corrupt("output exceeds maximum size");
+			}
+
+			// an overlapping match repeats the last distance bytes, so each
+			// copy can take twice as many bytes as the one before
+			int ref = dp - distance;
+			int matchEnd = dp + matchLength;
+			while (dp < matchEnd) {
+				int chunk = Math.min(dp - ref, matchEnd - dp);
+				System.arraycopy(dst, ref, dst, dp, chunk);
+				dp += chunk;
+			}
+		}
+	}
+
+	private static SquashFsException corrupt(String reason)
+	{
+		return new SquashFsException(
+				String.format("Corrupt LZ4 data: %s", reason));
+	}
+
+	/**
+	 * @return the number of hash bits to use for an input, fewer for small
+	 *         inputs such as metadata blocks
+	 */
+	private static int hashLog(int length)
+	{
+		int bits = 32 - Integer.numberOfLeadingZeros(length - 1);
+		return Math.max(MIN_HASH_LOG, Math.min(HASH_LOG, bits));
+	}
+
+	private static int hash(byte[] src, int pos, int shift)
+	{
+		int value = (src[pos] & 0xff) | ((src[pos + 1] & 0xff) << 8)
+				| ((src[pos + 2] & 0xff) << 16) | ((src[pos + 3] & 0xff) << 24);
+		return (value * -1640531535) >>> shift;
+	}
+
+	private static int matchLength(byte[] src, int ref, int pos, int limit)
+	{
+		int len = 0;
+		while (pos + len < limit && src[ref + len] == src[pos + len]) {
+			len++;
+		}
+		return len;
+	}
+
+	/**
+	 * @return the new output position, or -1 if the sequence does not fit
+	 */
+	private static int writeSequence(byte[] dst, int dp, int dstEnd,
+			byte[] src, int anchor, int literals, int distance,
+			int matchLength)
+	{
+		// token, literal length, literals, offset and match length
+		long needed = 1L + literals / 255 + 1 + literals + 2
+				+ matchLength / 255 + 1;
+		if (dp + needed > dstEnd) {
+			return -1;
+		}
+		int tokenPos = dp++;
+		int token;
+
+		if (literals >= RUN_MASK) {
+			token = RUN_MASK << 4;
+			dp = writeLength(dst, dp, literals - RUN_MASK);
+		} else {
+			token = literals << 4;
+		}
+		System.arraycopy(src, anchor, dst, dp, literals);
+		dp += literals;
+
+		if (matchLength > 0) {
+			dst[dp++] = (byte) (distance & 0xff);
+			dst[dp++] = (byte) ((distance >>> 8) & 0xff);
+			int length = matchLength - MIN_MATCH;
+			if (length >= RUN_MASK) {
+				token |= RUN_MASK;
+				dp = writeLength(dst, dp, length - RUN_MASK);
+			} else {
+				token |= length;
+			}
+		}
+
+		dst[tokenPos] = (byte) token;
+		return dp;
+	}
+
+	private static int writeLength(byte[] dst, int dp, int length)
+	{
+		while (length >= 0xff) {
+			dst[dp++] = (byte) 0xff;
+			length -= 0xff;
+		}
+		dst[dp++] = (byte) length;
+		return dp;
+	}
+
+	private static final class Tables
+	{
+
+		final int[] head = new int[1 << HASH_LOG];
+		private int[] chain;
+		private int base = 1;
+
+		int[] chain()
+		{
+			if (chain == null) {
+				chain = new int[MAX_DISTANCE + 1];
+			}
+			return chain;
+		}
+
+		/**
+		 * @return the base of a call for an input of the given length
+		 */
+		int begin(int length)
+		{
+			if (base > Integer.MAX_VALUE - length) {
+				Arrays.fill(head, 0);
+				base = 1;
+			}
+			int start = base;
+			base += length;
+			return start;
+		}
+
+	}
+
+}
@@ -0,0 +1,36 @@
+package de.topobyte.squashfs.compression;
+
+import java.io.IOException;
+
+import de.topobyte.squashfs.superblock.CompressionId;
+
+/**
+ * Built-in pure-Java LZ4 codec, see {@link Lz4Block}.
+ */
+public class Lz4Codec extends ArrayCodec
+{
+
+	@Override
+	public CompressionId getCompressionId()
+	{
+		return CompressionId.LZ4;
+	}
+
+	@Override
+	protected int compress(Compression options, int blockSize, byte[] src,
+			int srcOffset, int srcLength, byte[] dst, int dstOffset,
+			int maxLength) throws IOException
+	{
+		return Lz4Block.compress(src, srcOffset, srcLength, dst, dstOffset,
+				maxLength, ((Lz4Compression) options).isHighCompression());
+	}
+
+	@Override
+	protected int decompress(byte[] src, int srcOffset, int srcLength,
+			byte[] dst, int dstOffset, int maxLength) throws IOException
+	{
+		return Lz4Block.decompress(src, srcOffset, srcLength, dst, dstOffset,
+				maxLength);
+	}
+
+}
@@ -5,12 +5,32 @@ import de.topobyte.squashfs.superblock.CompressionId;
 public class Lz4Compression implements Compression
 {
 
+	public static final int VERSION_LEGACY = 1;
+	public static final int FLAG_HC = 1;
+
+	private boolean highCompression;
+
+	public Lz4Compression()
+	{
+		this(false);
+	}
+
+	public Lz4Compression(boolean highCompression)
+	{
+		this.highCompression = highCompression;
+	}
+
 	@Override
 	public CompressionId getCompressionId()
 	{
 		return CompressionId.LZ4;
 	}
 
+	public boolean isHighCompression()
+	{
+		return highCompression;
+	}
+
 	@Override
 	public String toString()
 	{
@@ -0,0 +1,43 @@
+package de.topobyte.squashfs.compression;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import org.tukaani.xz.LZMAInputStream;
+
+import de.topobyte.squashfs.CompressionUtil;
+import de.topobyte.squashfs.superblock.CompressionId;
+
+/**
+ * Built-in codec for the legacy .lzma format, on top of the XZ for Java
+ * library.
+ */
+public class LzmaCodec extends ArrayCodec
+{
+
+	@Override
+	public CompressionId getCompressionId()
+	{
+		return CompressionId.LZMA;
+	}
+
+	@Override
+	protected int compress(Compression options, int blockSize, byte[] src,
+			int srcOffset, int srcLength, byte[] dst, int dstOffset,
+			int maxLength) throws IOException
+	{
+		byte[] result = CompressionUtil.compressLzma(src, srcOffset,
+				srcLength, blockSize);
+		return copyResult(result, dst, dstOffset, maxLength);
+	}
+
+	@Override
+	protected int decompress(byte[] src, int srcOffset, int srcLength,
+			byte[] dst, int dstOffset, int maxLength) throws IOException
+	{
+		return readFully(new LZMAInputStream(
+				new ByteArrayInputStream(src, srcOffset, srcLength)), dst,
+				dstOffset, maxLength);
+	}
+
+}
@@ -0,0 +1,43 @@
+package de.topobyte.squashfs.compression;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import org.tukaani.xz.XZInputStream;
+
+import de.topobyte.squashfs.CompressionUtil;
+import de.topobyte.squashfs.superblock.CompressionId;
+
+/**
+ * Built-in XZ codec on top of the XZ for Java library.
+ */
+public class XzCodec extends ArrayCodec
+{
+
+	@Override
+	public CompressionId getCompressionId()
+	{
+		return CompressionId.XZ;
+	}
+
+	@Override
+	protected int compress(Compression options, int blockSize, byte[] src,
+			int srcOffset, int srcLength, byte[] dst, int dstOffset,
+			int maxLength) throws IOException
+	{
+		XzCompression xz = (XzCompression) options;
+		byte[] result = CompressionUtil.compressXz(src, srcOffset, srcLength,
+				xz, xz.getDictionarySize(blockSize));
+		return copyResult(result, dst, dstOffset, maxLength);
+	}
+
+	@Override
+	protected int decompress(byte[] src, int srcOffset, int srcLength,
+			byte[] dst, int dstOffset, int maxLength) throws IOException
+	{
+		return readFully(new XZInputStream(
+				new ByteArrayInputStream(src, srcOffset, srcLength)), dst,
+				dstOffset, maxLength);
+	}
+
+}
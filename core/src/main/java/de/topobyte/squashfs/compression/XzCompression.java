@@ -1,16 +1,82 @@
 package de.topobyte.squashfs.compression;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
 import de.topobyte.squashfs.superblock.CompressionId;
 
 public class XzCompression implements Compression
 {
 
+	public static final int MIN_DICTIONARY_SIZE = 8192;
+
+	/**
+	 * Dictionary size used when none is specified, which means the block size
+	 * of the archive.
+	 */
+	public static final int DEFAULT_DICTIONARY_SIZE = 0;
+
+	private int dictionarySize;
+	private Set<BcjFilter> filters;
+
+	public XzCompression()
+	{
+		this(DEFAULT_DICTIONARY_SIZE);
+	}
+
+	public XzCompression(BcjFilter... filters)
+	{
+		this(DEFAULT_DICTIONARY_SIZE, filters);
+	}
+
+	public XzCompression(int dictionarySize, BcjFilter... filters)
+	{
+		if (dictionarySize != DEFAULT_DICTIONARY_SIZE
+				&& !isValidDictionarySize(dictionarySize)) {
+			throw new IllegalArgumentException(String.format(
+					"Invalid dictionary size %d (must be at least %d and either 2^n or 2^n+2^(n-1))",
+					dictionarySize, MIN_DICTIONARY_SIZE));
+		}
+		this.dictionarySize = dictionarySize;
+		EnumSet<BcjFilter> set = EnumSet.noneOf(BcjFilter.class);
+		set.addAll(Arrays.asList(filters));
+		this.filters = Collections.unmodifiableSet(set);
+	}
+
+	public static boolean isValidDictionarySize(int dictionarySize)
+	{
+		if (dictionarySize < MIN_DICTIONARY_SIZE) {
+			return false;
+		}
+		int n = Integer.numberOfTrailingZeros(dictionarySize);
+		int rest = dictionarySize >>> n;
+		return rest == 1 || rest == 3;
+	}
+
 	@Override
 	public CompressionId getCompressionId()
 	{
 		return CompressionId.XZ;
 	}
 
+	public int getDictionarySize()
+	{
+		return dictionarySize;
+	}
+
+	public int getDictionarySize(int blockSize)
+	{
+		return dictionarySize == DEFAULT_DICTIONARY_SIZE ? blockSize
+				: dictionarySize;
+	}
+
+	public Set<BcjFilter> getFilters()
+	{
+		return filters;
+	}
+
 	@Override
 	public String toString()
 	{
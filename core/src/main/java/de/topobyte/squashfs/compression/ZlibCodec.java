@@ -0,0 +1,67 @@
+package de.topobyte.squashfs.compression;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import de.topobyte.squashfs.CompressionUtil;
+import de.topobyte.squashfs.SquashFsException;
+import de.topobyte.squashfs.superblock.CompressionId;
+
+/**
+ * Built-in zlib codec. Compression and decompression reuse one
+ * {@link java.util.zip.Deflater} and {@link Inflater} per thread, working
+ * straight on the caller's arrays.
+ */
+public class ZlibCodec extends ArrayCodec
+{
+
+	private static final ThreadLocal<Inflater> INFLATER = ThreadLocal
+			.withInitial(Inflater::new);
+
+	@Override
+	public CompressionId getCompressionId()
+	{
+		return CompressionId.ZLIB;
+	}
+
+	@Override
+	protected int compress(Compression options, int blockSize, byte[] src,
+			int srcOffset, int srcLength, byte[] dst, int dstOffset,
+			int maxLength) throws IOException
+	{
+		return CompressionUtil.compressZlib(src, srcOffset, srcLength,
+				(ZlibCompression) options, dst, dstOffset, maxLength);
+	}
+
+	@Override
+	protected int decompress(byte[] src, int srcOffset, int srcLength,
+			byte[] dst, int dstOffset, int maxLength) throws IOException
+	{
+		Inflater inflater = INFLATER.get();
+		inflater.reset();
+		inflater.setInput(src, srcOffset, srcLength);
+		int size = 0;
+		try {
+			while (!inflater.finished() && size < maxLength) {
+				int c = inflater.inflate(dst, dstOffset + size,
+						maxLength - size);
+				if (c == 0 && (inflater.needsInput()
+						|| inflater.needsDictionary())) {
+					throw new SquashFsException(
+							"Corrupt block: Unexpected end of zlib stream");
+				}
+				size += c;
+			}
+		} catch (DataFormatException e) {
+			throw new SquashFsException(
+					String.format("Corrupt block: %s", e.getMessage()));
+		}
+		if (!inflater.finished()) {
+			throw new SquashFsException(String.format(
+					"Corrupt block: Got more than %d bytes", maxLength));
+		}
+		return size;
+	}
+
+}
@@ -1,16 +1,98 @@
 package de.topobyte.squashfs.compression;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
 import de.topobyte.squashfs.superblock.CompressionId;
 
 public class ZlibCompression implements Compression
 {
 
+	public static final int MIN_LEVEL = 1;
+	public static final int MAX_LEVEL = 9;
+	public static final int DEFAULT_LEVEL = MAX_LEVEL;
+
+	public static final int MIN_WINDOW_SIZE = 8;
+	public static final int MAX_WINDOW_SIZE = 15;
+	public static final int DEFAULT_WINDOW_SIZE = MAX_WINDOW_SIZE;
+
+	private int level;
+	private int windowSize;
+	private Set<ZlibStrategy> strategies;
+
+	public ZlibCompression()
+	{
+		this(DEFAULT_LEVEL);
+	}
+
+	public ZlibCompression(int level, ZlibStrategy... strategies)
+	{
+		this(level, DEFAULT_WINDOW_SIZE, strategies);
+	}
+
+	/**
+	 * @param windowSize
+	 *            base two logarithm of the deflate window size
+	 * @param strategies
+	 *            strategies to try for each block, the smallest result is
+	 *            kept; none means the default strategy only
+	 */
+	public ZlibCompression(int level, int windowSize,
+			ZlibStrategy... strategies)
+	{
+		if (level < MIN_LEVEL || level > MAX_LEVEL) {
+			throw new IllegalArgumentException(String.format(
+					"Invalid compression level %d (min %d, max %d)", level,
+					MIN_LEVEL, MAX_LEVEL));
+		}
+		if (windowSize < MIN_WINDOW_SIZE || windowSize > MAX_WINDOW_SIZE) {
+			throw new IllegalArgumentException(String.format(
+					"Invalid window size %d (min %d, max %d)", windowSize,
+					MIN_WINDOW_SIZE, MAX_WINDOW_SIZE));
+		}
+		this.level = level;
+		this.windowSize = windowSize;
+		EnumSet<ZlibStrategy> set = EnumSet.noneOf(ZlibStrategy.class);
+		set.addAll(Arrays.asList(strategies));
+		if (set.equals(EnumSet.of(ZlibStrategy.DEFAULT))) {
+			set.clear();
+		}
+		this.strategies = Collections.unmodifiableSet(set);
+	}
+
 	@Override
 	public CompressionId getCompressionId()
 	{
 		return CompressionId.ZLIB;
 	}
 
+	public int getLevel()
+	{
+		return level;
+	}
+
+	public int getWindowSize()
+	{
+		return windowSize;
+	}
+
+	/**
+	 * @return the selected strategies, empty if only the default strategy is
+	 *         used
+	 */
+	public Set<ZlibStrategy> getStrategies()
+	{
+		return strategies;
+	}
+
+	public boolean isDefault()
+	{
+		return level == DEFAULT_LEVEL && windowSize == DEFAULT_WINDOW_SIZE
+				&& strategies.isEmpty();
+	}
+
 	@Override
 	public String toString()
 	{
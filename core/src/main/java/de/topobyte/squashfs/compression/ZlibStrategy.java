@@ -0,0 +1,71 @@
+package de.topobyte.squashfs.compression;
+
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.zip.Deflater;
+
+/**
+ * Deflate strategies that can be tried when compressing with zlib. Only some
+ * of them are available through {@link Deflater}, the others can be read
+ * from existing images but not used for writing.
+ */
+public enum ZlibStrategy {
+	DEFAULT(0, Deflater.DEFAULT_STRATEGY),
+	FILTERED(1, Deflater.FILTERED),
+	HUFFMAN_ONLY(2, Deflater.HUFFMAN_ONLY),
+	RUN_LENGTH_ENCODED(3, -1),
+	FIXED(4, -1);
+
+	private final int mask;
+	private final int deflaterStrategy;
+
+	private ZlibStrategy(int bit, int deflaterStrategy)
+	{
+		mask = 1 << bit;
+		this.deflaterStrategy = deflaterStrategy;
+	}
+
+	public static EnumSet<ZlibStrategy> strategiesPresent(int value)
+	{
+		EnumSet<ZlibStrategy> values = EnumSet.noneOf(ZlibStrategy.class);
+		for (ZlibStrategy strategy : values()) {
+			if ((value & strategy.mask) != 0) {
+				values.add(strategy);
+			}
+		}
+		return values;
+	}
+
+	public static int flagsFor(Collection<ZlibStrategy> strategies)
+	{
+		int value = 0;
+		for (ZlibStrategy strategy : strategies) {
+			value |= strategy.mask;
+		}
+		return value;
+	}
+
+	public int mask()
+	{
+		return mask;
+	}
+
+	public boolean isSupported()
+	{
+		return deflaterStrategy >= 0;
+	}
+
+	/**
+	 * @return the strategy constant to pass to
+	 *         {@link Deflater#setStrategy(int)}
+	 */
+	public int getDeflaterStrategy()
+	{
+		if (!isSupported()) {
+			throw new UnsupportedOperationException(String.format(
+					"Zlib strategy %s not supported for compression", this));
+		}
+		return deflaterStrategy;
+	}
+
+}
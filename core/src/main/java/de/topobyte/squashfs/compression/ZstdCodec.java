@@ -0,0 +1,93 @@
+package de.topobyte.squashfs.compression;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdCompressCtx;
+import com.github.luben.zstd.ZstdDecompressCtx;
+import com.github.luben.zstd.ZstdException;
+
+import de.topobyte.squashfs.SquashFsException;
+import de.topobyte.squashfs.superblock.CompressionId;
+
+/**
+ * Built-in zstd codec on top of zstd-jni, with one compression and one
+ * decompression context per thread. Direct buffers are passed to the native
+ * library without copying. Data blocks are decompressed into pooled heap
+ * arrays, though, so blocks of a mapped image still go through a copy.
+ */
+public class ZstdCodec extends ArrayCodec
+{
+
+	private static final ThreadLocal<ZstdCompressCtx> COMPRESS_CONTEXT = ThreadLocal
+			.withInitial(ZstdCompressCtx::new);
+	private static final ThreadLocal<ZstdDecompressCtx> DECOMPRESS_CONTEXT = ThreadLocal
+			.withInitial(ZstdDecompressCtx::new);
+	private static final ThreadLocal<byte[]> BOUND = new ThreadLocal<>();
+
+	@Override
+	public CompressionId getCompressionId()
+	{
+		return CompressionId.ZSTD;
+	}
+
+	@Override
+	public int decompress(ByteBuffer src, ByteBuffer dst) throws IOException
+	{
+		if (!src.isDirect() || !dst.isDirect()) {
+			return super.decompress(src, dst);
+		}
+		try {
+			return DECOMPRESS_CONTEXT.get().decompressDirectByteBuffer(dst,
+					dst.position(), dst.remaining(), src, src.position(),
+					src.remaining());
+		} catch (ZstdException e) {
+			throw new SquashFsException(
+					String.format("Corrupt block: %s", e.getMessage()));
+		}
+	}
+
+	@Override
+	protected int compress(Compression options, int blockSize, byte[] src,
+			int srcOffset, int srcLength, byte[] dst, int dstOffset,
+			int maxLength) throws IOException
+	{
+		// compress into a buffer of the worst case size, so that errors are
+		// not mistaken for results that are too large
+		int bound = (int) Zstd.compressBound(srcLength);
+		byte[] out = BOUND.get();
+		if (out == null || out.length < bound) {
+			out = new byte[bound];
+			BOUND.set(out);
+		}
+		ZstdCompressCtx context = COMPRESS_CONTEXT.get();
+		context.setLevel(((ZstdCompression) options).getLevel());
+		int size;
+		try {
+			size = context.compressByteArray(out, 0, bound, src, srcOffset,
+					srcLength);
+		} catch (ZstdException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+		if (size > maxLength) {
+			return -1;
+		}
+		System.arraycopy(out, 0, dst, dstOffset, size);
+		return size;
+	}
+
+	@Override
+	protected int decompress(byte[] src, int srcOffset, int srcLength,
+			byte[] dst, int dstOffset, int maxLength) throws IOException
+	{
+		try {
+			return DECOMPRESS_CONTEXT.get().decompressByteArray(dst,
+					dstOffset, maxLength, src, srcOffset, srcLength);
+		} catch (ZstdException e) {
+			throw new SquashFsException(
+					String.format("Corrupt block: %s", e.getMessage()));
+		}
+	}
+
+}
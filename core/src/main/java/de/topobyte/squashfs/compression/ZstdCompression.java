@@ -7,6 +7,14 @@ import de.topobyte.squashfs.superblock.CompressionId;
 public class ZstdCompression implements Compression
 {
 
+	public static final int MIN_LEVEL = 1;
+	public static final int MAX_LEVEL = 22;
+
+	/**
+	 * Level assumed by squashfs-tools when no compressor options are stored.
+	 */
+	public static final int SQUASHFS_DEFAULT_LEVEL = 15;
+
 	private int level;
 
 	public ZstdCompression()
@@ -16,6 +24,11 @@ public class ZstdCompression implements Compression
 
 	public ZstdCompression(int level)
 	{
+		if (level < MIN_LEVEL || level > MAX_LEVEL) {
+			throw new IllegalArgumentException(String.format(
+					"Invalid compression level %d (min %d, max %d)", level,
+					MIN_LEVEL, MAX_LEVEL));
+		}
 		this.level = level;
 	}
 
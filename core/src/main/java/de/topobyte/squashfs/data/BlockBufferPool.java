@@ -0,0 +1,100 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.topobyte.squashfs.data;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of block-sized arrays that decompressed data blocks are
+ * written to. Arrays come back through {@link PooledDataBlock#release()} once
+ * neither a reader nor a cache holds the block any longer.
+ */
+class BlockBufferPool
+{
+
+	static final int MAX_POOLED_BYTES = 32 * 1024 * 1024;
+
+	private static final ConcurrentHashMap<Integer, BlockBufferPool> POOLS = new ConcurrentHashMap<>();
+
+	private static final ThreadLocal<byte[]> SOURCE = new ThreadLocal<>();
+
+	static BlockBufferPool forSize(int size)
+	{
+		return POOLS.computeIfAbsent(size, BlockBufferPool::new);
+	}
+
+	/**
+	 * @return a per-thread array of at least the given size for compressed
+	 *         bytes, which is only valid until the thread asks again
+	 */
+	static byte[] sourceBuffer(int size)
+	{
+		byte[] buffer = SOURCE.get();
+		if (buffer == null || buffer.length < size) {
+			buffer = new byte[size];
+			SOURCE.set(buffer);
+		}
+		return buffer;
+	}
+
+	private final int size;
+	private final int maxBuffers;
+	private final ConcurrentLinkedQueue<byte[]> buffers = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger count = new AtomicInteger();
+
+	BlockBufferPool(int size)
+	{
+		this.size = size;
+		this.maxBuffers = Math.max(1, MAX_POOLED_BYTES / size);
+	}
+
+	int getSize()
+	{
+		return size;
+	}
+
+	byte[] acquire()
+	{
+		byte[] buffer = buffers.poll();
+		if (buffer == null) {
+			return new byte[size];
+		}
+		count.decrementAndGet();
+		return buffer;
+	}
+
+	void recycle(byte[] buffer)
+	{
+		if (buffer.length != size) {
+			return;
+		}
+		if (count.incrementAndGet() > maxBuffers) {
+			count.decrementAndGet();
+			return;
+		}
+		buffers.offer(buffer);
+	}
+
+	int getPooledCount()
+	{
+		return count.get();
+	}
+
+}
@@ -0,0 +1,270 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.topobyte.squashfs.data;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Runs block compression on a pool of worker threads while committing the
+ * results in submission order.
+ * 
+ * Submission and commit both happen on the thread that owns the writers, so
+ * the underlying output never sees concurrent access and the resulting image
+ * is byte-identical to the one produced by compressing inline. The number of
+ * blocks in flight is bounded, which also bounds the memory held by block
+ * buffers. Work submitted from within a {@link Commit} callback is queued
+ * and submitted once the callback has returned.
+ */
+public class CompressionPipeline implements Closeable
+{
+
+	public static final int DEFAULT_BLOCKS_PER_THREAD = 2;
+
+	@FunctionalInterface
+	public interface Commit<T>
+	{
+		public void commit(T result) throws IOException;
+	}
+
+	private final int bufferSize;
+	private final ExecutorService executor;
+	private final boolean shouldShutdown;
+	private final int maxInFlight;
+	private final Deque<Pending<?>> pending = new ArrayDeque<>();
+	private final Deque<byte[]> freeBuffers = new ArrayDeque<>();
+	private final Deque<Pending<?>> deferred = new ArrayDeque<>();
+	private int committing = 0;
+
+	public CompressionPipeline(int bufferSize, int threads)
+	{
+		this(bufferSize, createExecutor(threads),
+				threads * DEFAULT_BLOCKS_PER_THREAD, true);
+	}
+
+	public CompressionPipeline(int bufferSize, ExecutorService executor,
+			int maxInFlight, boolean shouldShutdown)
+	{
+		if (maxInFlight < 1) {
+			throw new IllegalArgumentException(String.format(
+					"Invalid number of blocks in flight %d (min 1)",
+					maxInFlight));
+		}
+		this.bufferSize = bufferSize;
+		this.executor = executor;
+		this.maxInFlight = maxInFlight;
+		this.shouldShutdown = shouldShutdown;
+	}
+
+	private static ExecutorService createExecutor(int threads)
+	{
+		if (threads < 1) {
+			throw new IllegalArgumentException(String.format(
+					"Invalid number of compression threads %d (min 1)",
+					threads));
+		}
+		AtomicInteger counter = new AtomicInteger(0);
+		ThreadFactory factory = r -> {
+			Thread thread = new Thread(r, String.format(
+					"squashfs-compression-%d", counter.incrementAndGet()));
+			thread.setDaemon(true);
+			return thread;
+		};
+		return Executors.newFixedThreadPool(threads, factory);
+	}
+
+	public int getMaxInFlight()
+	{
+		return maxInFlight;
+	}
+
+	public int getInFlight()
+	{
+		return pending.size();
+	}
+
+	/**
+	 * Returns a buffer of the configured size to copy block data into. Blocks
+	 * until a slot in the pipeline is available by committing the oldest
+	 * pending block.
+	 */
+	public byte[] acquireBuffer() throws IOException
+	{
+		while (pending.size() >= maxInFlight) {
+			commitNext();
+		}
+		byte[] buffer = freeBuffers.pollFirst();
+		return buffer == null ? new byte[bufferSize] : buffer;
+	}
+
+	/**
+	 * Returns a buffer obtained from {@link #acquireBuffer()} for reuse. Must
+	 * be called from a {@link Commit} callback or the submitting thread.
+	 */
+	public void releaseBuffer(byte[] buffer)
+	{
+		if (buffer.length == bufferSize && freeBuffers.size() < maxInFlight) {
+			freeBuffers.addFirst(buffer);
+		}
+	}
+
+	public <T> void submit(Callable<T> work, Commit<T> commit)
+			throws IOException
+	{
+		if (committing > 0) {
+			deferred.addLast(new Pending<>(work, commit));
+			return;
+		}
+		while (pending.size() >= maxInFlight) {
+			commitNext();
+		}
+		pending.addLast(new Pending<>(executor.submit(work), commit));
+		commitCompleted();
+	}
+
+	private void submitDeferred() throws IOException
+	{
+		while (committing == 0 && !deferred.isEmpty()) {
+			Pending<?> next = deferred.removeFirst();
+			submitDeferred(next);
+		}
+	}
+
+	private <T> void submitDeferred(Pending<T> p) throws IOException
+	{
+		submit(p.work, p.commit);
+	}
+
+	/**
+	 * Commits all pending blocks, waiting for outstanding work to finish.
+	 */
+	public void drain() throws IOException
+	{
+		while (!pending.isEmpty()) {
+			commitNext();
+		}
+	}
+
+	/**
+	 * Commits pending blocks in order until the condition holds or nothing is
+	 * pending any more.
+	 */
+	public void drainUntil(BooleanSupplier condition) throws IOException
+	{
+		while (!condition.getAsBoolean() && !pending.isEmpty()) {
+			commitNext();
+		}
+	}
+
+	private void commitCompleted() throws IOException
+	{
+		while (!pending.isEmpty() && pending.peekFirst().future.isDone()) {
+			commitNext();
+		}
+	}
+
+	private void commitNext() throws IOException
+	{
+		Pending<?> next = pending.removeFirst();
+		committing++;
+		try {
+			next.commit();
+		} catch (IOException | RuntimeException e) {
+			cancelPending();
+			throw e;
+		} finally {
+			committing--;
+		}
+		submitDeferred();
+	}
+
+	private void cancelPending()
+	{
+		for (Pending<?> p : pending) {
+			p.future.cancel(true);
+		}
+		pending.clear();
+		deferred.clear();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		cancelPending();
+		if (shouldShutdown) {
+			executor.shutdownNow();
+		}
+	}
+
+	private static class Pending<T>
+	{
+
+		final Future<T> future;
+		final Callable<T> work;
+		final Commit<T> commit;
+
+		Pending(Future<T> future, Commit<T> commit)
+		{
+			this.future = future;
+			this.work = null;
+			this.commit = commit;
+		}
+
+		Pending(Callable<T> work, Commit<T> commit)
+		{
+			this.future = null;
+			this.work = work;
+			this.commit = commit;
+		}
+
+		void commit() throws IOException
+		{
+			T result;
+			try {
+				result = future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while compressing block",
+						e);
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof IOException) {
+					throw (IOException) cause;
+				}
+				if (cause instanceof RuntimeException) {
+					throw (RuntimeException) cause;
+				}
+				throw new IOException("Error while compressing block", cause);
+			}
+			commit.commit(result);
+		}
+
+	}
+
+}
@@ -18,6 +18,11 @@
 
 package de.topobyte.squashfs.data;
 
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
 public class DataBlock
 {
 
@@ -52,4 +57,95 @@ public class DataBlock
 		this.physicalSize = physicalSize;
 	}
 
+	/**
+	 * @return the number of bytes held by the block, which may differ from
+	 *         its logical size
+	 */
+	public int getDataLength()
+	{
+		return data.length;
+	}
+
+	public void copyTo(int blockOffset, byte[] dst, int off, int len)
+	{
+		System.arraycopy(data, blockOffset, dst, off, len);
+	}
+
+	/**
+	 * Copies bytes of the block into a buffer without handing out the
+	 * block's array.
+	 */
+	public void copyTo(int blockOffset, ByteBuffer dst, int len)
+	{
+		dst.put(data, blockOffset, len);
+	}
+
+	public void writeTo(DataOutput out, int len) throws IOException
+	{
+		out.write(data, 0, len);
+	}
+
+	/**
+	 * Writes the decompressed bytes to a channel without handing out the
+	 * block's array.
+	 *
+	 * @return the number of bytes written
+	 */
+	public int writeTo(WritableByteChannel out) throws IOException
+	{
+		return writeFully(out,
+				ByteBuffer.wrap(data, 0, Math.min(data.length, logicalSize)));
+	}
+
+	static int writeFully(WritableByteChannel out, ByteBuffer buffer)
+			throws IOException
+	{
+		int length = buffer.remaining();
+		while (buffer.hasRemaining()) {
+			out.write(buffer);
+		}
+		return length;
+	}
+
+	/**
+	 * @return a read-only view of the decompressed bytes, which shares the
+	 *         block's array
+	 */
+	public ByteBuffer asBuffer()
+	{
+		return ByteBuffer.wrap(data, 0, Math.min(data.length, logicalSize))
+				.slice().asReadOnlyBuffer();
+	}
+
+	/**
+	 * Signals that the caller is done with this block. Blocks served by an
+	 * off-heap {@link DataBlockCache} stay pinned in direct memory until they
+	 * are released; for other blocks this does nothing.
+	 */
+	public void release()
+	{
+	}
+
+	/**
+	 * Takes another reference to the block, for blocks that are reference
+	 * counted.
+	 */
+	void retain()
+	{
+	}
+
+	/**
+	 * @return the decompressed bytes without marking a pooled array as handed
+	 *         out, for copies made within this package
+	 */
+	byte[] peekData()
+	{
+		return data;
+	}
+
+	long getWeight()
+	{
+		return data.length;
+	}
+
 }
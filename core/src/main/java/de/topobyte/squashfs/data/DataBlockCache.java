@@ -18,85 +18,334 @@
 
 package de.topobyte.squashfs.data;
 
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.Objects;
+import java.io.Closeable;
+import java.util.concurrent.atomic.LongAdder;
 
-public class DataBlockCache
+import de.topobyte.squashfs.io.DiskBlockCache;
+
+import de.topobyte.squashfs.util.CacheBypass;
+import de.topobyte.squashfs.util.CachePolicy;
+import de.topobyte.squashfs.util.FrequencySketch;
+
+/**
+ * A cache for decompressed data blocks that can be shared by many reader
+ * threads.
+ *
+ * Blocks are identified by primitive values, so lookups do not allocate. The
+ * cache is split into independently locked segments, each of which evicts its
+ * least recently used blocks once it exceeds its share of the entry limit or
+ * of the byte limit. Small caches use a single segment, which makes their
+ * eviction order exact.
+ *
+ * With {@link CachePolicy#TINY_LFU}, each segment keeps new blocks in a small
+ * window and only moves them into its main area if they are used more often
+ * than the block they would replace. Threads inside a {@link CacheBypass}
+ * scope are served cached blocks but never add blocks to the cache.
+ *
+ * An off-heap cache keeps the decompressed bytes in direct memory, which lets
+ * it grow to many gigabytes without adding to garbage collection work. Its
+ * direct memory use never exceeds the byte limit. Blocks returned by
+ * {@link #get} are pinned until {@link DataBlock#release()} is called, and
+ * {@link #close()} frees the memory once the cache is no longer used.
+ *
+ * If a {@link DiskBlockCache} is attached, evicted blocks are written to it,
+ * and blocks missing from memory are looked up there before the caller has to
+ * decompress them again.
+ */
+public class DataBlockCache implements Closeable
 {
 
 	public static final DataBlockCache NO_CACHE = new DataBlockCache(0);
 
-	private final LruBlockCache cache;
+	public static final long UNLIMITED_BYTES = Long.MAX_VALUE;
+
+	private static final int MAX_SEGMENTS = 16;
+	private static final int MIN_ENTRIES_PER_SEGMENT = 256;
+	private static final int MAX_SKETCH_KEYS_PER_SEGMENT = 1 << 16;
+	// smallest block size, used to estimate the entries of byte bounded caches
+	private static final int MIN_BLOCK_SIZE = 4096;
+	// direct memory kept free for blocks being inserted or still being read
+	private static final long MAX_OFF_HEAP_RESERVE = 64L << 20;
+
 	private final int cacheSize;
-	private volatile long cacheHits = 0L;
-	private volatile long cacheMisses = 0L;
+	private final long maxBytes;
+	private final CachePolicy policy;
+	private final OffHeapBlockStore store;
+	private final Segment[] segments;
+	private volatile DiskBlockCache diskCache = null;
+	private final LongAdder cacheHits = new LongAdder();
+	private final LongAdder cacheMisses = new LongAdder();
 
+	/**
+	 * @param cacheSize
+	 *            maximum number of blocks to keep
+	 */
 	public DataBlockCache(int cacheSize)
 	{
-		this.cache = cacheSize < 1 ? null : new LruBlockCache(cacheSize);
+		this(cacheSize, UNLIMITED_BYTES);
+	}
+
+	/**
+	 * @param cacheSize
+	 *            maximum number of blocks to keep
+	 * @param maxBytes
+	 *            maximum number of decompressed bytes to keep
+	 */
+	public DataBlockCache(int cacheSize, long maxBytes)
+	{
+		this(cacheSize, maxBytes, CachePolicy.LRU);
+	}
+
+	/**
+	 * @param cacheSize
+	 *            maximum number of blocks to keep
+	 * @param maxBytes
+	 *            maximum number of decompressed bytes to keep
+	 * @param policy
+	 *            the admission and eviction policy
+	 */
+	public DataBlockCache(int cacheSize, long maxBytes, CachePolicy policy)
+	{
+		this(cacheSize, maxBytes, policy, false);
+	}
+
+	/**
+	 * @param cacheSize
+	 *            maximum number of blocks to keep
+	 * @param maxBytes
+	 *            maximum number of decompressed bytes to keep, required to be
+	 *            limited if the cache is off-heap
+	 * @param policy
+	 *            the admission and eviction policy
+	 * @param offHeap
+	 *            whether to store the decompressed bytes in direct memory
+	 */
+	public DataBlockCache(int cacheSize, long maxBytes, CachePolicy policy,
+			boolean offHeap)
+	{
 		this.cacheSize = cacheSize;
+		this.maxBytes = maxBytes;
+		this.policy = policy;
+		if (cacheSize < 1 || maxBytes < 1) {
+			store = null;
+			segments = null;
+			return;
+		}
+		long entryBytes = maxBytes;
+		if (offHeap) {
+			if (maxBytes == UNLIMITED_BYTES) {
+				throw new IllegalArgumentException(
+						"An off-heap cache requires a byte limit");
+			}
+			store = new OffHeapBlockStore(maxBytes);
+			entryBytes = maxBytes - Math.min(maxBytes / 8, MAX_OFF_HEAP_RESERVE);
+		} else {
+			store = null;
+		}
+		int count = 1;
+		while (count < MAX_SEGMENTS
+				&& (long) count * 2 * MIN_ENTRIES_PER_SEGMENT <= cacheSize) {
+			count *= 2;
+		}
+		int segmentEntries = (int) (((long) cacheSize + count - 1) / count);
+		long segmentBytes = Math.max(1L, entryBytes / count);
+		segments = new Segment[count];
+		for (int i = 0; i < count; i++) {
+			segments[i] = new Segment(segmentEntries, segmentBytes, policy);
+		}
 	}
 
-	public synchronized void put(Key key, DataBlock block)
+	private static int hash(int tag, long fileOffset)
 	{
-		if (cache != null) {
-			cache.put(key, block);
+		long h = (fileOffset ^ ((long) tag << 48)) * 0x9e3779b97f4a7c15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	private Segment segmentFor(int hash)
+	{
+		return segments[(hash >>> 28) & (segments.length - 1)];
+	}
+
+	public void put(int tag, boolean compressed, long fileOffset, int dataSize,
+			int expectedSize, DataBlock block)
+	{
+		if (segments == null || CacheBypass.isActive()) {
+			return;
+		}
+		if (store != null) {
+			block = DirectDataBlock.copyOf(store, block);
+			if (block == null) {
+				return;
+			}
+		} else {
+			block.retain();
+		}
+		int hash = hash(tag, fileOffset);
+		Entry evicted = segmentFor(hash).put(hash, tag, compressed,
+				fileOffset, dataSize, expectedSize, block);
+		// spill evicted blocks without holding the segment lock
+		while (evicted != null) {
+			spill(evicted);
+			evicted.block.release();
+			evicted = evicted.nextInBucket;
 		}
 	}
 
-	public synchronized DataBlock get(Key key)
+	/**
+	 * @return the cached block or null. Callers should release the block once
+	 *         they have copied its data.
+	 */
+	public DataBlock get(int tag, boolean compressed, long fileOffset,
+			int dataSize, int expectedSize)
 	{
-		if (cache == null) {
-			cacheMisses++;
+		if (segments == null) {
+			cacheMisses.increment();
 			return null;
 		}
-
-		DataBlock block = cache.get(key);
+		int hash = hash(tag, fileOffset);
+		DataBlock block = segmentFor(hash).get(hash, tag, compressed,
+				fileOffset, dataSize, expectedSize, CacheBypass.isActive());
 		if (block != null) {
-			cacheHits++;
-		} else {
-			cacheMisses++;
+			cacheHits.increment();
+			return block;
+		}
+		cacheMisses.increment();
+		DiskBlockCache disk = diskCache;
+		if (disk != null) {
+			block = disk.getDataBlock(tag, fileOffset, compressed, dataSize,
+					expectedSize);
+			if (block != null) {
+				put(tag, compressed, fileOffset, dataSize, expectedSize, block);
+			}
 		}
 		return block;
 	}
 
+	public void put(Key key, DataBlock block)
+	{
+		put(key.tag, key.compressed, key.fileOffset, key.dataSize,
+				key.expectedSize, block);
+	}
+
+	public DataBlock get(Key key)
+	{
+		return get(key.tag, key.compressed, key.fileOffset, key.dataSize,
+				key.expectedSize);
+	}
+
+	public CachePolicy getPolicy()
+	{
+		return policy;
+	}
+
+	/**
+	 * Attaches a second cache level that evicted blocks are written to, or
+	 * detaches it if null. The disk cache is not closed by this cache.
+	 */
+	public void setDiskCache(DiskBlockCache diskCache)
+	{
+		this.diskCache = diskCache;
+	}
+
+	public DiskBlockCache getDiskCache()
+	{
+		return diskCache;
+	}
+
+	private void spill(Entry entry)
+	{
+		DiskBlockCache disk = diskCache;
+		if (disk != null) {
+			disk.putDataBlock(entry.tag, entry.fileOffset, entry.compressed,
+					entry.dataSize, entry.expectedSize, entry.block);
+		}
+	}
+
+	public boolean isOffHeap()
+	{
+		return store != null;
+	}
+
+	/**
+	 * @return the number of bytes of direct memory allocated by an off-heap
+	 *         cache
+	 */
+	public long getOffHeapBytes()
+	{
+		return store == null ? 0L : store.getAllocatedBytes();
+	}
+
 	public long getCacheHits()
 	{
-		return cacheHits;
+		return cacheHits.sum();
 	}
 
 	public long getCacheMisses()
 	{
-		return cacheMisses;
+		return cacheMisses.sum();
 	}
 
-	public synchronized int getCacheLoad()
+	public int getCacheLoad()
 	{
-		return cache == null ? 0 : cache.size();
+		int load = 0;
+		if (segments != null) {
+			for (Segment segment : segments) {
+				load += segment.size();
+			}
+		}
+		return load;
+	}
+
+	/**
+	 * @return the number of decompressed bytes currently cached
+	 */
+	public long getCacheBytes()
+	{
+		long bytes = 0L;
+		if (segments != null) {
+			for (Segment segment : segments) {
+				bytes += segment.bytes();
+			}
+		}
+		return bytes;
 	}
 
 	public void resetStatistics()
 	{
-		cacheHits = 0L;
-		cacheMisses = 0L;
+		cacheHits.reset();
+		cacheMisses.reset();
 	}
 
-	public synchronized void clearCache()
+	public void clearCache()
 	{
-		if (cache != null) {
-			cache.clear();
+		if (segments != null) {
+			for (Segment segment : segments) {
+				segment.clear();
+			}
 		}
 		resetStatistics();
 	}
 
+	/**
+	 * Empties the cache and frees the direct memory of an off-heap cache. The
+	 * cache must not be used afterwards.
+	 */
+	@Override
+	public void close()
+	{
+		clearCache();
+		if (store != null) {
+			store.close();
+		}
+	}
+
 	public static final class Key
 	{
 
 		private final int tag;
 		private final boolean compressed;
 		private final long fileOffset;
-		private final long dataSize;
+		private final int dataSize;
 		private final int expectedSize;
 
 		public Key(int tag, boolean compressed, long fileOffset, int dataSize,
@@ -112,8 +361,7 @@ public class DataBlockCache
 		@Override
 		public int hashCode()
 		{
-			return Objects.hash(tag, compressed, fileOffset, dataSize,
-					expectedSize);
+			return hash(tag, fileOffset);
 		}
 
 		@Override
@@ -137,23 +385,278 @@ public class DataBlockCache
 		}
 	}
 
-	private static class LruBlockCache extends LinkedHashMap<Key, DataBlock>
+	private static final class Entry
 	{
 
-		private static final long serialVersionUID = -156607843124781789L;
+		int hash;
+		int tag;
+		long fileOffset;
+		boolean compressed;
+		int dataSize;
+		int expectedSize;
+		DataBlock block;
+		long weight;
+		boolean inWindow;
 
-		private final int cacheSize;
+		// once evicted, the next entry that is waiting to be spilled
+		Entry nextInBucket;
+		// neighbours in the LRU list of the window or the main area
+		Entry newer;
+		Entry older;
 
-		public LruBlockCache(int cacheSize)
+		boolean matches(int tag, boolean compressed, long fileOffset,
+				int dataSize, int expectedSize)
 		{
-			super(16, 0.75f, true);
-			this.cacheSize = cacheSize;
+			return this.tag == tag && this.fileOffset == fileOffset
+					&& this.compressed == compressed
+					&& this.dataSize == dataSize
+					&& this.expectedSize == expectedSize;
 		}
 
-		@Override
-		protected boolean removeEldestEntry(Map.Entry<Key, DataBlock> eldest)
+	}
+
+	private static final class Segment
+	{
+
+		private final int maxEntries;
+		private final long maxBytes;
+		private final int windowMaxEntries;
+		private final long windowMaxBytes;
+		// only used by TINY_LFU segments
+		private final FrequencySketch sketch;
+
+		// sentinels of the circular LRU lists, head.older is the newest entry
+		private final Entry head = new Entry();
+		private final Entry windowHead = new Entry();
+		private Entry[] table = new Entry[16];
+		private int size = 0;
+		private long bytes = 0L;
+		private int windowSize = 0;
+		private long windowBytes = 0L;
+
+		Segment(int maxEntries, long maxBytes, CachePolicy policy)
+		{
+			this.maxEntries = maxEntries;
+			this.maxBytes = maxBytes;
+			windowMaxEntries = Math.max(1, maxEntries / 100);
+			windowMaxBytes = Math.max(1L, maxBytes / 100);
+			if (policy == CachePolicy.TINY_LFU) {
+				long keys = Math.min(maxEntries, maxBytes / MIN_BLOCK_SIZE);
+				sketch = new FrequencySketch(
+						(int) Math.min(keys, MAX_SKETCH_KEYS_PER_SEGMENT));
+			} else {
+				sketch = null;
+			}
+			head.newer = head;
+			head.older = head;
+			windowHead.newer = windowHead;
+			windowHead.older = windowHead;
+		}
+
+		synchronized int size()
+		{
+			return size;
+		}
+
+		synchronized long bytes()
+		{
+			return bytes;
+		}
+
+		synchronized DataBlock get(int hash, int tag, boolean compressed,
+				long fileOffset, int dataSize, int expectedSize,
+				boolean bypass)
+		{
+			if (sketch != null && !bypass) {
+				sketch.increment(hash);
+			}
+			Entry entry = table[hash & (table.length - 1)];
+			while (entry != null) {
+				if (entry.hash == hash && entry.matches(tag, compressed,
+						fileOffset, dataSize, expectedSize)) {
+					if (!bypass) {
+						unlink(entry);
+						linkNewest(entry.inWindow ? windowHead : head, entry);
+					}
+					entry.block.retain();
+					return entry.block;
+				}
+				entry = entry.nextInBucket;
+			}
+			return null;
+		}
+
+		/**
+		 * @return the evicted entries, chained through
+		 *         {@link Entry#nextInBucket}, whose blocks the caller has to
+		 *         release
+		 */
+		synchronized Entry put(int hash, int tag, boolean compressed,
+				long fileOffset, int dataSize, int expectedSize,
+				DataBlock block)
+		{
+			int index = hash & (table.length - 1);
+			Entry entry = table[index];
+			while (entry != null && !(entry.hash == hash && entry.matches(tag,
+					compressed, fileOffset, dataSize, expectedSize))) {
+				entry = entry.nextInBucket;
+			}
+			if (entry == null) {
+				entry = new Entry();
+				entry.hash = hash;
+				entry.tag = tag;
+				entry.fileOffset = fileOffset;
+				entry.compressed = compressed;
+				entry.dataSize = dataSize;
+				entry.expectedSize = expectedSize;
+				entry.inWindow = sketch != null;
+				entry.nextInBucket = table[index];
+				table[index] = entry;
+				size++;
+				if (entry.inWindow) {
+					windowSize++;
+				}
+			} else {
+				unlink(entry);
+				bytes -= entry.weight;
+				if (entry.inWindow) {
+					windowBytes -= entry.weight;
+				}
+				entry.block.release();
+			}
+			entry.block = block;
+			entry.weight = block.getWeight();
+			bytes += entry.weight;
+			if (entry.inWindow) {
+				windowBytes += entry.weight;
+			}
+			linkNewest(entry.inWindow ? windowHead : head, entry);
+
+			Entry evicted = null;
+			if (sketch != null) {
+				evicted = drainWindow();
+			}
+			while ((size > maxEntries || bytes > maxBytes) && size > 0) {
+				Entry victim = head.newer != head ? head.newer
+						: windowHead.newer;
+				remove(victim);
+				victim.nextInBucket = evicted;
+				evicted = victim;
+			}
+			if (size > table.length - (table.length >>> 2)) {
+				resize();
+			}
+			return evicted;
+		}
+
+		/**
+		 * Moves the oldest window entries into the main area while the window
+		 * is too large. If the segment is full, an entry is only admitted if
+		 * it has been used more often than the main area's eviction victim,
+		 * otherwise it is dropped.
+		 *
+		 * @return the dropped entries
+		 */
+		private Entry drainWindow()
+		{
+			Entry evicted = null;
+			while (windowSize > 1 && (windowSize > windowMaxEntries
+					|| windowBytes > windowMaxBytes)) {
+				Entry candidate = windowHead.newer;
+				unlink(candidate);
+				candidate.inWindow = false;
+				windowSize--;
+				windowBytes -= candidate.weight;
+
+				Entry victim = head.newer;
+				boolean full = size > maxEntries || bytes > maxBytes;
+				if (!full || victim == head || sketch.frequency(
+						candidate.hash) > sketch.frequency(victim.hash)) {
+					linkNewest(head, candidate);
+				} else {
+					removeFromTable(candidate);
+					candidate.nextInBucket = evicted;
+					evicted = candidate;
+				}
+			}
+			return evicted;
+		}
+
+		synchronized void clear()
+		{
+			for (Entry bucket : table) {
+				for (Entry entry = bucket; entry != null; entry = entry
+						.nextInBucket) {
+					entry.block.release();
+				}
+			}
+			table = new Entry[16];
+			head.newer = head;
+			head.older = head;
+			windowHead.newer = windowHead;
+			windowHead.older = windowHead;
+			size = 0;
+			bytes = 0L;
+			windowSize = 0;
+			windowBytes = 0L;
+		}
+
+		private static void linkNewest(Entry head, Entry entry)
 		{
-			return size() > cacheSize;
+			entry.newer = head;
+			entry.older = head.older;
+			head.older.newer = entry;
+			head.older = entry;
+		}
+
+		private static void unlink(Entry entry)
+		{
+			entry.older.newer = entry.newer;
+			entry.newer.older = entry.older;
+		}
+
+		private void remove(Entry entry)
+		{
+			unlink(entry);
+			if (entry.inWindow) {
+				windowSize--;
+				windowBytes -= entry.weight;
+			}
+			removeFromTable(entry);
+		}
+
+		private void removeFromTable(Entry entry)
+		{
+			int index = entry.hash & (table.length - 1);
+			Entry prev = null;
+			Entry current = table[index];
+			while (current != entry) {
+				prev = current;
+				current = current.nextInBucket;
+			}
+			if (prev == null) {
+				table[index] = entry.nextInBucket;
+			} else {
+				prev.nextInBucket = entry.nextInBucket;
+			}
+			size--;
+			bytes -= entry.weight;
+		}
+
+		private void resize()
+		{
+			Entry[] newTable = new Entry[table.length * 2];
+			for (Entry bucket : table) {
+				Entry entry = bucket;
+				while (entry != null) {
+					Entry next = entry.nextInBucket;
+					int index = entry.hash & (newTable.length - 1);
+					entry.nextInBucket = newTable[index];
+					newTable[index] = entry;
+					entry = next;
+				}
+			}
+			table = newTable;
 		}
 
 	}
@@ -162,8 +665,9 @@ public class DataBlockCache
 	public String toString()
 	{
 		return String.format(
-				"data-block-cache { capacity=%d, size=%d, hits=%d, misses=%d }",
-				cacheSize, getCacheLoad(), getCacheHits(), getCacheMisses());
+				"data-block-cache { policy=%s, offHeap=%s, capacity=%d, maxBytes=%d, size=%d, bytes=%d, hits=%d, misses=%d }",
+				policy, isOffHeap(), cacheSize, maxBytes, getCacheLoad(), getCacheBytes(),
+				getCacheHits(), getCacheMisses());
 	}
 
 }
@@ -0,0 +1,208 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.topobyte.squashfs.data;
+
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Block list of a single file, stored as the encoded block sizes that go into
+ * its inode. The blocks of a file are contiguous, so only the first block is
+ * kept as an object (its location may still move while the file is being
+ * written); all other references are encoded as soon as they are committed.
+ */
+public class DataBlockList
+{
+
+	private static final int UNCOMPRESSED = 0x1000000;
+
+	private DataBlockRef first;
+	private int[] sizes = new int[8];
+	private int size = 0;
+	private int logicalSize = -1;
+	private int[] logicalSizes;
+	private long sparseBytes = 0L;
+	private final ArrayDeque<DataBlockRef> uncommitted = new ArrayDeque<>(0);
+
+	public DataBlockList()
+	{
+	}
+
+	public DataBlockList(List<DataBlockRef> blocks)
+	{
+		for (DataBlockRef block : blocks) {
+			add(block);
+		}
+	}
+
+	public void add(DataBlockRef block)
+	{
+		if (first == null) {
+			first = block;
+		}
+		uncommitted.addLast(block);
+		encodeCommitted();
+	}
+
+	private void encodeCommitted()
+	{
+		while (!uncommitted.isEmpty() && uncommitted.peekFirst().isValid()) {
+			encode(uncommitted.removeFirst());
+		}
+	}
+
+	private void encode(DataBlockRef block)
+	{
+		if (size == sizes.length) {
+			sizes = Arrays.copyOf(sizes, Math.max(8, size + (size >> 1)));
+		}
+
+		if (logicalSizes == null && size > 0
+				&& logicalSize != block.getLogicalSize()) {
+			logicalSizes = new int[sizes.length];
+			Arrays.fill(logicalSizes, 0, size, logicalSize);
+		}
+		if (logicalSizes != null) {
+			if (logicalSizes.length < sizes.length) {
+				logicalSizes = Arrays.copyOf(logicalSizes, sizes.length);
+			}
+			logicalSizes[size] = block.getLogicalSize();
+		}
+		logicalSize = block.getLogicalSize();
+
+		if (block.isSparse()) {
+			sparseBytes += block.getLogicalSize();
+			sizes[size++] = 0;
+		} else {
+			sizes[size++] = block.getInodeSize();
+		}
+	}
+
+	private void ensureEncoded()
+	{
+		encodeCommitted();
+		if (!uncommitted.isEmpty()) {
+			throw new IllegalStateException(String.format(
+					"%d data blocks not yet written", uncommitted.size()));
+		}
+	}
+
+	public int size()
+	{
+		return size + uncommitted.size();
+	}
+
+	public boolean isEmpty()
+	{
+		return first == null;
+	}
+
+	/**
+	 * @return the location of the first block
+	 */
+	public long getStart()
+	{
+		return first == null ? 0L : first.getLocation();
+	}
+
+	/**
+	 * @return block sizes in inode format, with 0 for sparse blocks
+	 */
+	public int[] getInodeSizes()
+	{
+		ensureEncoded();
+		return Arrays.copyOf(sizes, size);
+	}
+
+	/**
+	 * @return the number of bytes covered by sparse blocks
+	 */
+	public long getSparseBytes()
+	{
+		ensureEncoded();
+		return sparseBytes;
+	}
+
+	public DataBlockList copy()
+	{
+		DataBlockList copy = new DataBlockList();
+		copy.first = first;
+		copy.sizes = Arrays.copyOf(sizes, Math.max(size, 1));
+		copy.size = size;
+		copy.logicalSize = logicalSize;
+		copy.logicalSizes = logicalSizes == null ? null
+				: Arrays.copyOf(logicalSizes, copy.sizes.length);
+		copy.sparseBytes = sparseBytes;
+		copy.uncommitted.addAll(uncommitted);
+		return copy;
+	}
+
+	/**
+	 * Returns a view of the blocks as references, created on access.
+	 */
+	public List<DataBlockRef> asList()
+	{
+		if (first == null) {
+			return Collections.emptyList();
+		}
+		ensureEncoded();
+		int count = size;
+		int[] encoded = Arrays.copyOf(sizes, count);
+		int[] logical = logicalSizes == null ? null
+				: Arrays.copyOf(logicalSizes, count);
+		int defaultLogical = logicalSize;
+		long[] locations = new long[count];
+		long location = first.getLocation();
+		for (int i = 0; i < count; i++) {
+			locations[i] = location;
+			location += encoded[i] & 0xffffff;
+		}
+		return new AbstractList<DataBlockRef>() {
+
+			@Override
+			public DataBlockRef get(int index)
+			{
+				if (index < 0 || index >= count) {
+					throw new IndexOutOfBoundsException(
+							String.format("Invalid index %d", index));
+				}
+				int logicalSize = logical == null ? defaultLogical
+						: logical[index];
+				if (encoded[index] == 0) {
+					return new DataBlockRef(locations[index], logicalSize, 0,
+							false, true);
+				}
+				return new DataBlockRef(locations[index], logicalSize,
+						encoded[index] & 0xffffff,
+						(encoded[index] & UNCOMPRESSED) == 0, false);
+			}
+
+			@Override
+			public int size()
+			{
+				return count;
+			}
+
+		};
+	}
+
+}
@@ -18,17 +18,12 @@
 
 package de.topobyte.squashfs.data;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.zip.Inflater;
-import java.util.zip.InflaterInputStream;
-
-import com.github.luben.zstd.ZstdInputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
+import de.topobyte.squashfs.CompressionUtil;
 import de.topobyte.squashfs.SquashFsException;
-import de.topobyte.squashfs.compression.SuperBlockFlag;
-import de.topobyte.squashfs.data.DataBlockCache.Key;
 import de.topobyte.squashfs.inode.FileINode;
 import de.topobyte.squashfs.ra.IRandomAccess;
 import de.topobyte.squashfs.superblock.SuperBlock;
@@ -65,11 +60,11 @@ public class DataBlockReader
 
 		long blocksStart = inode.getBlocksStart();
 		long fileSize = inode.getFileSize();
-		long fileOffset = getFileOffset(blocksStart, blockNum, blockSizes);
+		long fileOffset = blocksStart + inode.getBlockOffset(blockNum);
 
 		int dataSize = blockSizes[blockNum];
 		boolean compressed = (dataSize & 0x1000000) == 0;
-		int actualSize = (dataSize & 0xfffff);
+		int actualSize = (dataSize & 0xffffff);
 
 		long expectedSize = blockSize;
 
@@ -82,13 +77,13 @@ public class DataBlockReader
 			return new DataBlock(EMPTY, (int) expectedSize, 0);
 		}
 
-		DataBlockCache.Key key = new Key(tag, compressed, fileOffset,
-				actualSize, (int) expectedSize);
-		DataBlock block = cache.get(key);
+		DataBlock block = cache.get(tag, compressed, fileOffset, actualSize,
+				(int) expectedSize);
 		if (block == null) {
 			block = readData(sb, raf, compressed, fileOffset, actualSize,
 					(int) expectedSize);
-			cache.put(key, block);
+			cache.put(tag, compressed, fileOffset, actualSize,
+					(int) expectedSize, block);
 		}
 		return block;
 	}
@@ -115,25 +110,24 @@ public class DataBlockReader
 
 		long fileOffset = fragEntry.getStart();
 
-		DataBlockCache.Key key = new Key(tag, compressed, fileOffset, dataSize,
+		DataBlock fragment = cache.get(tag, compressed, fileOffset, dataSize,
 				dataSize);
-		DataBlock fragment = cache.get(key);
 		if (fragment == null) {
 			fragment = readData(sb, raf, compressed, fileOffset, dataSize,
 					dataSize);
-			cache.put(key, fragment);
+			cache.put(tag, compressed, fileOffset, dataSize, dataSize,
+					fragment);
 		}
 
 		int offset = inode.getFragmentOffset();
 		if (offset + length > fragment.getPhysicalSize()) {
+			fragment.release();
 			throw new SquashFsException(String.format(
 					"Attempted to read %d bytes from a fragment with only %d bytes remaining",
 					length, fragment.getLogicalSize() - offset));
 		}
-
-		byte[] data = new byte[length];
-		System.arraycopy(fragment.getData(), offset, data, 0, length);
-		return new DataBlock(data, data.length, data.length);
+		// the slice takes over the reference to the fragment block
+		return new DataBlockSlice(fragment, offset, length);
 	}
 
 	private static DataBlock readData(SuperBlock sb, IRandomAccess raf,
@@ -143,124 +137,54 @@ public class DataBlockReader
 
 		raf.seek(fileOffset);
 
-		DataBlock data = compressed
-				? readCompressed(sb, raf, dataSize, expectedSize)
-				: readUncompressed(sb, raf, dataSize, expectedSize);
-
-		return data;
+		if (!compressed) {
+			return readUncompressed(sb, raf, dataSize, expectedSize);
+		}
+		byte[] buf = BlockBufferPool.sourceBuffer(dataSize);
+		raf.readFully(buf, 0, dataSize);
+		return decompress(sb, ByteBuffer.wrap(buf, 0, dataSize),
+				expectedSize);
 	}
 
 	private static DataBlock readUncompressed(SuperBlock sb, IRandomAccess raf,
 			int dataSize, int expectedSize)
 			throws IOException, SquashFsException
 	{
+		if (dataSize == sb.getBlockSize()) {
+			BlockBufferPool pool = BlockBufferPool.forSize(dataSize);
+			byte[] data = pool.acquire();
+			raf.readFully(data);
+			return new PooledDataBlock(pool, data, expectedSize, dataSize);
+		}
 		byte[] data = new byte[dataSize];
 		raf.readFully(data);
 		return new DataBlock(data, expectedSize, data.length);
 	}
 
-	private static DataBlock readCompressed(SuperBlock sb, IRandomAccess raf,
-			int dataSize, int expectedSize)
-			throws IOException, SquashFsException
-	{
-		switch (sb.getCompression().getCompressionId()) {
-		case NONE:
-			throw new SquashFsException(
-					"Archive claims no compression, but found compressed data");
-		case ZLIB:
-			return readCompressedZlib(sb, raf, dataSize, expectedSize);
-		case ZSTD:
-			return readCompressedZstd(sb, raf, dataSize, expectedSize);
-		default:
-			throw new UnsupportedOperationException(String.format(
-					"Reading compressed data of type %s not yet supported",
-					sb.getCompression()));
-		}
-	}
-
-	private static DataBlock readCompressedZlib(SuperBlock sb,
-			IRandomAccess raf, int dataSize, int expectedSize)
-			throws IOException, SquashFsException
-	{
-		// see if there are compression flags
-		if (sb.hasFlag(SuperBlockFlag.COMPRESSOR_OPTIONS)) {
-			throw new UnsupportedOperationException(
-					"Reading ZLIB compressed data with non-standard options not yet supported");
-		}
-
-		byte[] buf = new byte[dataSize];
-		raf.readFully(buf);
-		byte[] data;
-
-		byte[] xfer = new byte[4096];
-		try (ByteArrayInputStream bis = new ByteArrayInputStream(buf)) {
-			try (InflaterInputStream iis = new InflaterInputStream(bis,
-					new Inflater(), 4096)) {
-				try (ByteArrayOutputStream bos = new ByteArrayOutputStream(
-						4096)) {
-					int c = 0;
-					while ((c = iis.read(xfer, 0, 4096)) >= 0) {
-						if (c > 0) {
-							bos.write(xfer, 0, c);
-						}
-					}
-					data = bos.toByteArray();
-					if (data.length > sb.getBlockSize()) {
-						throw new SquashFsException(String.format(
-								"Corrupt metadata block: Got size %d (max = %d)",
-								data.length, sb.getBlockSize()));
-					}
-				}
-			}
-		}
-
-		return new DataBlock(data, expectedSize, data.length);
-	}
-
-	private static DataBlock readCompressedZstd(SuperBlock sb,
-			IRandomAccess raf, int dataSize, int expectedSize)
-			throws IOException, SquashFsException
+	/**
+	 * Decompresses a block into an array from the pool for the block size.
+	 * Blocks that do not fill the array, such as fragments and file tails,
+	 * are copied to an array of their own size.
+	 */
+	static DataBlock decompress(SuperBlock sb, ByteBuffer src,
+			int expectedSize) throws IOException, SquashFsException
 	{
-		// see if there are compression flags
-		if (sb.hasFlag(SuperBlockFlag.COMPRESSOR_OPTIONS)) {
-			throw new UnsupportedOperationException(
-					"Reading Zstd compressed data with non-standard options not yet supported");
+		BlockBufferPool pool = BlockBufferPool.forSize(sb.getBlockSize());
+		byte[] data = pool.acquire();
+		int size;
+		try {
+			size = CompressionUtil.decompress(sb.getCompression(), src,
+					ByteBuffer.wrap(data));
+		} catch (IOException | RuntimeException e) {
+			pool.recycle(data);
+			throw e;
 		}
-
-		byte[] buf = new byte[dataSize];
-		raf.readFully(buf);
-		byte[] data;
-
-		byte[] xfer = new byte[4096];
-		try (ByteArrayInputStream bis = new ByteArrayInputStream(buf)) {
-			try (ZstdInputStream iis = new ZstdInputStream(bis)) {
-				try (ByteArrayOutputStream bos = new ByteArrayOutputStream(
-						4096)) {
-					int c = 0;
-					while ((c = iis.read(xfer, 0, 4096)) >= 0) {
-						if (c > 0) {
-							bos.write(xfer, 0, c);
-						}
-					}
-					data = bos.toByteArray();
-					if (data.length > sb.getBlockSize()) {
-						throw new SquashFsException(String.format(
-								"Corrupt metadata block: Got size %d (max = %d)",
-								data.length, sb.getBlockSize()));
-					}
-				}
-			}
-		}
-
-		return new DataBlock(data, expectedSize, data.length);
-	}
-
-	static long getFileOffset(long blockStart, int blockNum, int[] blockSizes)
-	{
-		for (int i = 0; i < blockNum; i++) {
-			blockStart += (blockSizes[i] & 0xfffff);
+		if (size == data.length) {
+			return new PooledDataBlock(pool, data, expectedSize, size);
 		}
-		return blockStart;
+		byte[] copy = Arrays.copyOf(data, size);
+		pool.recycle(data);
+		return new DataBlock(copy, expectedSize, size);
 	}
 
 }
@@ -21,11 +21,16 @@ package de.topobyte.squashfs.data;
 public class DataBlockRef
 {
 
-	private final long location;
+	private long location = -1L;
 	private final int logicalSize;
-	private final int physicalSize;
-	private final boolean compressed;
-	private final boolean sparse;
+	private int physicalSize;
+	private boolean compressed;
+	private boolean sparse;
+
+	DataBlockRef(int logicalSize)
+	{
+		this.logicalSize = logicalSize;
+	}
 
 	public DataBlockRef(long location, int logicalSize, int physicalSize,
 			boolean compressed, boolean sparse)
@@ -37,6 +42,20 @@ public class DataBlockRef
 		this.sparse = sparse;
 	}
 
+	public boolean isValid()
+	{
+		return location >= 0L;
+	}
+
+	void commit(long location, int physicalSize, boolean compressed,
+			boolean sparse)
+	{
+		this.location = location;
+		this.physicalSize = physicalSize;
+		this.compressed = compressed;
+		this.sparse = sparse;
+	}
+
 	public long getLocation()
 	{
 		return location;
@@ -64,7 +83,7 @@ public class DataBlockRef
 
 	public int getInodeSize()
 	{
-		return (physicalSize & 0xfffff) | (compressed ? 0 : 0x1000000);
+		return (physicalSize & 0xffffff) | (compressed ? 0 : 0x1000000);
 	}
 
 	@Override
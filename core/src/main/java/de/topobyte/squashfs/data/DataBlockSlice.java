@@ -0,0 +1,129 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.topobyte.squashfs.data;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The bytes of a fragment block that belong to one file.
+ *
+ * The slice shares the fragment block instead of copying it and holds a
+ * reference to it, which {@link #release()} gives back.
+ */
+class DataBlockSlice extends DataBlock
+{
+
+	private final DataBlock block;
+	private final int offset;
+
+	DataBlockSlice(DataBlock block, int offset, int length)
+	{
+		super(null, length, length);
+		this.block = block;
+		this.offset = offset;
+	}
+
+	@Override
+	void retain()
+	{
+		block.retain();
+	}
+
+	@Override
+	public void release()
+	{
+		block.release();
+	}
+
+	@Override
+	long getWeight()
+	{
+		return block.getWeight();
+	}
+
+	@Override
+	public byte[] getData()
+	{
+		byte[] data = new byte[logicalSize];
+		block.copyTo(offset, data, 0, logicalSize);
+		return data;
+	}
+
+	@Override
+	byte[] peekData()
+	{
+		return getData();
+	}
+
+	/**
+	 * @return a read-only view of the slice, which shares the array of a
+	 *         heap block
+	 */
+	@Override
+	public ByteBuffer asBuffer()
+	{
+		if (block.data == null) {
+			return ByteBuffer.wrap(getData()).asReadOnlyBuffer();
+		}
+		return ByteBuffer.wrap(block.getData(), offset, logicalSize).slice()
+				.asReadOnlyBuffer();
+	}
+
+	@Override
+	public int getDataLength()
+	{
+		return logicalSize;
+	}
+
+	@Override
+	public void copyTo(int blockOffset, byte[] dst, int off, int len)
+	{
+		block.copyTo(offset + blockOffset, dst, off, len);
+	}
+
+	@Override
+	public void copyTo(int blockOffset, ByteBuffer dst, int len)
+	{
+		block.copyTo(offset + blockOffset, dst, len);
+	}
+
+	@Override
+	public void writeTo(DataOutput out, int len) throws IOException
+	{
+		if (block.data == null) {
+			out.write(getData(), 0, len);
+			return;
+		}
+		out.write(block.data, offset, len);
+	}
+
+	@Override
+	public int writeTo(WritableByteChannel out) throws IOException
+	{
+		if (block.data == null) {
+			return writeFully(out, ByteBuffer.wrap(getData()));
+		}
+		return writeFully(out,
+				ByteBuffer.wrap(block.data, offset, logicalSize));
+	}
+
+}
@@ -18,30 +18,93 @@
 
 package de.topobyte.squashfs.data;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.util.zip.Deflater;
-import java.util.zip.DeflaterOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import de.topobyte.squashfs.CompressionUtil;
 import de.topobyte.squashfs.compression.Compression;
-import de.topobyte.squashfs.compression.ZstdCompression;
 import de.topobyte.squashfs.ra.IRandomAccess;
 
 public class DataBlockWriter
 {
 
+	/*
+	 * Number of recently stored blocks kept uncompressed, so that matching
+	 * blocks of nearby duplicates can be confirmed without reading back and
+	 * decompressing the output.
+	 */
+	private static final int RECENT_BLOCKS = 32;
+
 	private final IRandomAccess raf;
 	private final int blockSize;
 	private final Compression compression;
+	private final CompressionPipeline pipeline;
+	private final boolean deduplicate;
+
+	/*
+	 * Blocks of a file must be stored contiguously, as the inode only records
+	 * the start of the first block. Duplicate blocks are therefore shared as
+	 * runs: a file keeps pointing into previously written data for as long as
+	 * its blocks continue to match the blocks stored there.
+	 *
+	 * Only the blocks that may still have to be relocated are kept in
+	 * fileBlocks: the leading sparse blocks of a file before its first stored
+	 * block, and the blocks of a run that is currently shared.
+	 *
+	 * Pipeline workers consult blocksByDigest to skip compressing blocks that
+	 * will probably be shared, hence the concurrent map.
+	 */
+	private final Map<ByteBuffer, StoredBlock> blocksByDigest =
+			new ConcurrentHashMap<>();
+	private final Map<Long, StoredBlock> blocksByLocation = new HashMap<>();
+	private final Map<Long, byte[]> recentBlocks = new LinkedHashMap<>(16,
+			0.75f, true);
+	private byte[] readBuffer;
+	private byte[] rawBuffer;
+	private final List<DataBlockRef> fileBlocks = new ArrayList<>();
+	private int submittedFile = 0;
+	private int currentFile = 0;
+	private long runStart = -1L;
+	private long runEnd = -1L;
+	private boolean runShared = false;
 
 	public DataBlockWriter(IRandomAccess raf, int blockSize,
 			Compression compression)
+	{
+		this(raf, blockSize, compression, null);
+	}
+
+	public DataBlockWriter(IRandomAccess raf, int blockSize,
+			Compression compression, CompressionPipeline pipeline)
+	{
+		this(raf, blockSize, compression, pipeline, false);
+	}
+
+	public DataBlockWriter(IRandomAccess raf, int blockSize,
+			Compression compression, CompressionPipeline pipeline,
+			boolean deduplicate)
 	{
 		this.raf = raf;
 		this.blockSize = blockSize;
 		this.compression = compression;
+		this.pipeline = pipeline;
+		this.deduplicate = deduplicate;
+	}
+
+	/**
+	 * Marks the start of a new file. Blocks written after this call may start
+	 * sharing data with any previously written file.
+	 */
+	public void startFile()
+	{
+		submittedFile++;
 	}
 
 	public DataBlockRef write(byte[] data, int offset, int length)
@@ -53,36 +116,192 @@ public class DataBlockWriter
 							length, blockSize));
 		}
 
-		long fileOffset = raf.getFilePointer();
+		if (pipeline != null) {
+			return submit(data, offset, length);
+		}
+
+		DataBlockRef ref = new DataBlockRef(length);
+		boolean sparse = isSparse(data, offset, length);
+		ByteBuffer digest = sparse ? null : digest(data, offset, length);
+		place(ref, submittedFile, data, offset, length, sparse, digest,
+				() -> compress(data, offset, length));
+		return ref;
+	}
+
+	private DataBlockRef submit(byte[] data, int offset, int length)
+			throws IOException
+	{
+		byte[] buffer = pipeline.acquireBuffer();
+		System.arraycopy(data, offset, buffer, 0, length);
+
+		int file = submittedFile;
+		DataBlockRef ref = new DataBlockRef(length);
+		pipeline.submit(() -> {
+			if (isSparse(buffer, 0, length)) {
+				return new Compressed(true, null, false, null);
+			}
+			ByteBuffer digest = digest(buffer, 0, length);
+			if (digest != null && blocksByDigest.containsKey(digest)) {
+				// probably shared, compressed on commit if it is not
+				return new Compressed(false, digest, false, null);
+			}
+			return new Compressed(false, digest, true,
+					compress(buffer, 0, length));
+		}, result -> {
+			place(ref, file, buffer, 0, length, result.sparse, result.digest,
+					() -> result.done ? result.data
+							: compress(buffer, 0, length));
+			pipeline.releaseBuffer(buffer);
+		});
+		return ref;
+	}
+
+	private void place(DataBlockRef ref, int file, byte[] data, int offset,
+			int length, boolean sparse, ByteBuffer digest,
+			BlockCompressor compressor) throws IOException
+	{
+		if (file != currentFile) {
+			currentFile = file;
+			fileBlocks.clear();
+			runStart = -1L;
+			runEnd = -1L;
+			runShared = false;
+		}
 
-		if (isSparse(data, offset, length)) {
-			return new DataBlockRef(fileOffset, length, 0, false, true);
-		}
-
-		byte[] compressed = null;
-		switch (compression.getCompressionId()) {
-		case NONE:
-		case LZ4:
-		case LZMA:
-		case LZO:
-		case XZ:
-			break;
-		case ZLIB:
-			compressed = compressZlib(data, offset, length);
-			break;
-		case ZSTD:
-			compressed = compressZstd(data, offset, length,
-					(ZstdCompression) compression);
-			break;
+		if (sparse) {
+			long location = runStart < 0L ? raf.getFilePointer() : runEnd;
+			ref.commit(location, 0, false, true);
+			track(ref);
+			return;
+		}
+
+		if (digest != null && runStart < 0L) {
+			StoredBlock match = blocksByDigest.get(digest);
+			if (match != null) {
+				// try sharing; leading sparse blocks must point there too
+				for (DataBlockRef sparseRef : fileBlocks) {
+					sparseRef.commit(match.location, 0, false, true);
+				}
+				runStart = match.location;
+				runEnd = match.location;
+				runShared = true;
+			}
+		}
+
+		if (runShared) {
+			StoredBlock next = digest == null ? null
+					: blocksByLocation.get(runEnd);
+			if (next != null && next.digest.equals(digest)
+					&& next.matches(data, offset, length)) {
+				ref.commit(next.location, next.physicalSize, next.compressed,
+						false);
+				track(ref);
+				runEnd += next.physicalSize;
+				return;
+			}
+			unshare();
 		}
+
+		long fileOffset = raf.getFilePointer();
+		byte[] compressed = compressor.compress();
 		if (compressed != null) {
 			raf.write(compressed);
-			return new DataBlockRef(fileOffset, length, compressed.length, true,
-					false);
+			ref.commit(fileOffset, compressed.length, true, false);
+		} else {
+			raf.write(data, offset, length);
+			ref.commit(fileOffset, length, false, false);
+		}
+		fileBlocks.clear();
+
+		if (runStart < 0L) {
+			runStart = fileOffset;
 		}
+		runEnd = fileOffset + ref.getPhysicalSize();
 
-		raf.write(data, offset, length);
-		return new DataBlockRef(fileOffset, length, length, false, false);
+		if (digest != null) {
+			StoredBlock block = new StoredBlock(digest, fileOffset,
+					ref.getPhysicalSize(), ref.isCompressed());
+			blocksByDigest.putIfAbsent(digest, block);
+			blocksByLocation.put(fileOffset, block);
+			remember(fileOffset, data, offset, length);
+		}
+	}
+
+	private void remember(long location, byte[] data, int offset, int length)
+	{
+		byte[] copy = null;
+		if (recentBlocks.size() >= RECENT_BLOCKS) {
+			Iterator<byte[]> eldest = recentBlocks.values().iterator();
+			copy = eldest.next();
+			eldest.remove();
+		}
+		if (copy == null) {
+			copy = new byte[blockSize];
+		}
+		System.arraycopy(data, offset, copy, 0, length);
+		recentBlocks.put(location, copy);
+	}
+
+	/**
+	 * Copies the shared run of the current file to the end of the output so
+	 * that the blocks following it can be appended contiguously.
+	 * <p>
+	 * The run is not capped: a file that matches a stored file for most of its
+	 * length and then diverges has all of the matching part copied. This costs
+	 * at most as much output as writing the file without deduplication, plus
+	 * reading the run back.
+	 */
+	private void unshare() throws IOException
+	{
+		long target = raf.getFilePointer();
+		byte[] buf = readBuffer();
+		for (long pos = runStart; pos < runEnd; pos += buf.length) {
+			int len = (int) Math.min(buf.length, runEnd - pos);
+			raf.seek(pos);
+			raf.readFully(buf, 0, len);
+			raf.seek(target + (pos - runStart));
+			raf.write(buf, 0, len);
+		}
+
+		long delta = target - runStart;
+		for (DataBlockRef ref : fileBlocks) {
+			ref.commit(ref.getLocation() + delta, ref.getPhysicalSize(),
+					ref.isCompressed(), ref.isSparse());
+		}
+		fileBlocks.clear();
+		runStart += delta;
+		runEnd += delta;
+		runShared = false;
+	}
+
+	private void track(DataBlockRef ref)
+	{
+		if (deduplicate && (runStart < 0L || runShared)) {
+			fileBlocks.add(ref);
+		}
+	}
+
+	private ByteBuffer digest(byte[] data, int offset, int length)
+	{
+		if (!deduplicate) {
+			return null;
+		}
+		return ByteBuffer.wrap(FileContentIndex.digest(data, offset, length));
+	}
+
+	private byte[] compress(byte[] data, int offset, int length)
+			throws IOException
+	{
+		return CompressionUtil.compress(compression, blockSize, data, offset,
+				length, blockSize);
+	}
+
+	private byte[] readBuffer()
+	{
+		if (readBuffer == null) {
+			readBuffer = new byte[blockSize];
+		}
+		return readBuffer;
 	}
 
 	private boolean isSparse(byte[] data, int offset, int length)
@@ -96,39 +315,85 @@ public class DataBlockWriter
 		return true;
 	}
 
-	private byte[] compressZlib(byte[] data, int offset, int length)
-			throws IOException
+	private static boolean equal(byte[] a, int aOffset, byte[] b, int bOffset,
+			int length)
 	{
-		Deflater def = new Deflater(Deflater.BEST_COMPRESSION);
-		try (ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
-			try (DeflaterOutputStream dos = new DeflaterOutputStream(bos, def,
-					4096)) {
-				dos.write(data, offset, length);
-			}
-			byte[] result = bos.toByteArray();
-			if (result.length > blockSize) {
-				return null;
+		for (int i = 0; i < length; i++) {
+			if (a[aOffset + i] != b[bOffset + i]) {
+				return false;
 			}
-			return result;
-		} finally {
-			def.end();
 		}
+		return true;
+	}
+
+	@FunctionalInterface
+	private interface BlockCompressor
+	{
+		public byte[] compress() throws IOException;
 	}
 
-	private byte[] compressZstd(byte[] data, int offset, int length,
-			ZstdCompression options) throws IOException
+	private static class Compressed
 	{
-		try (ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
-			try (OutputStream zos = CompressionUtil.createZstdOutputStream(bos,
-					options)) {
-				zos.write(data, offset, length);
+
+		final boolean sparse;
+		final ByteBuffer digest;
+		final boolean done;
+		final byte[] data;
+
+		Compressed(boolean sparse, ByteBuffer digest, boolean done,
+				byte[] data)
+		{
+			this.sparse = sparse;
+			this.digest = digest;
+			this.done = done;
+			this.data = data;
+		}
+
+	}
+
+	private class StoredBlock
+	{
+
+		final ByteBuffer digest;
+		final long location;
+		final int physicalSize;
+		final boolean compressed;
+
+		StoredBlock(ByteBuffer digest, long location, int physicalSize,
+				boolean compressed)
+		{
+			this.digest = digest;
+			this.location = location;
+			this.physicalSize = physicalSize;
+			this.compressed = compressed;
+		}
+
+		boolean matches(byte[] data, int offset, int length)
+				throws IOException
+		{
+			byte[] recent = recentBlocks.get(location);
+			if (recent != null) {
+				return equal(recent, 0, data, offset, length);
 			}
-			byte[] result = bos.toByteArray();
-			if (result.length > blockSize) {
-				return null;
+
+			long end = raf.getFilePointer();
+			byte[] stored = readBuffer();
+			raf.seek(location);
+			raf.readFully(stored, 0, physicalSize);
+			raf.seek(end);
+
+			if (!compressed) {
+				return physicalSize == length
+						&& equal(stored, 0, data, offset, length);
 			}
-			return result;
+			if (rawBuffer == null) {
+				rawBuffer = new byte[blockSize];
+			}
+			int size = CompressionUtil.decompress(compression, stored, 0,
+					physicalSize, rawBuffer, rawBuffer.length);
+			return size == length && equal(rawBuffer, 0, data, offset, length);
 		}
+
 	}
 
 }
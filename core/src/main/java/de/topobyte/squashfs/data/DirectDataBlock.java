@@ -0,0 +1,158 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.topobyte.squashfs.data;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A data block whose decompressed bytes live in an {@link OffHeapBlockStore}.
+ *
+ * The block is reference counted: the cache holds one reference, and each
+ * lookup returns the block with another one that the caller gives back via
+ * {@link #release()}. Its pages are returned to the store once the last
+ * reference is gone.
+ */
+class DirectDataBlock extends DataBlock
+{
+
+	private final OffHeapBlockStore store;
+	private final int[] pages;
+	private final int length;
+	private final AtomicInteger references = new AtomicInteger(1);
+
+	private DirectDataBlock(OffHeapBlockStore store, int[] pages, int length,
+			int logicalSize, int physicalSize)
+	{
+		super(null, logicalSize, physicalSize);
+		this.store = store;
+		this.pages = pages;
+		this.length = length;
+	}
+
+	/**
+	 * @return a copy of the block in the store, or null if the store is full
+	 */
+	static DirectDataBlock copyOf(OffHeapBlockStore store, DataBlock block)
+	{
+		byte[] data = block.peekData();
+		int[] pages = store.allocate(data.length);
+		if (pages == null) {
+			return null;
+		}
+		store.write(pages, data, data.length);
+		return new DirectDataBlock(store, pages, data.length,
+				block.getLogicalSize(), block.getPhysicalSize());
+	}
+
+	@Override
+	void retain()
+	{
+		references.incrementAndGet();
+	}
+
+	@Override
+	public void release()
+	{
+		if (references.decrementAndGet() == 0) {
+			store.free(pages);
+		}
+	}
+
+	@Override
+	long getWeight()
+	{
+		return (long) pages.length << OffHeapBlockStore.PAGE_SHIFT;
+	}
+
+	@Override
+	public byte[] getData()
+	{
+		byte[] data = new byte[length];
+		store.read(pages, 0, data, 0, length);
+		return data;
+	}
+
+	@Override
+	byte[] peekData()
+	{
+		return getData();
+	}
+
+	/**
+	 * @return a read-only copy of the decompressed bytes on the heap, since
+	 *         the pages of the block are not contiguous
+	 */
+	@Override
+	public ByteBuffer asBuffer()
+	{
+		byte[] data = getData();
+		return ByteBuffer.wrap(data, 0, Math.min(data.length, logicalSize))
+				.slice().asReadOnlyBuffer();
+	}
+
+	@Override
+	public int getDataLength()
+	{
+		return length;
+	}
+
+	@Override
+	public void copyTo(int blockOffset, byte[] dst, int off, int len)
+	{
+		store.read(pages, blockOffset, dst, off, len);
+	}
+
+	@Override
+	public void copyTo(int blockOffset, ByteBuffer dst, int len)
+	{
+		store.read(pages, blockOffset, dst, len);
+	}
+
+	@Override
+	public void writeTo(DataOutput out, int len) throws IOException
+	{
+		byte[] buf = new byte[Math.min(len, OffHeapBlockStore.PAGE_SIZE)];
+		for (int pos = 0; pos < len; pos += buf.length) {
+			int chunk = Math.min(buf.length, len - pos);
+			store.read(pages, pos, buf, 0, chunk);
+			out.write(buf, 0, chunk);
+		}
+	}
+
+	@Override
+	public int writeTo(WritableByteChannel out) throws IOException
+	{
+		int len = Math.min(length, logicalSize);
+		ByteBuffer buf = ByteBuffer
+				.allocate(Math.min(len, OffHeapBlockStore.PAGE_SIZE));
+		for (int pos = 0; pos < len; pos += buf.capacity()) {
+			int chunk = Math.min(buf.capacity(), len - pos);
+			buf.clear();
+			store.read(pages, pos, buf, chunk);
+			buf.flip();
+			writeFully(out, buf);
+		}
+		return len;
+	}
+
+}
@@ -0,0 +1,152 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.topobyte.squashfs.data;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Index of file tails already written to an archive, used to let files with
+ * identical content share a single fragment. The full blocks of such files
+ * are shared by {@link DataBlockWriter}.
+ * 
+ * Tails are digested while they are still in memory and looked up by file
+ * size and digest. Only a matching digest makes the index read the earlier
+ * tail back from the fragment writer, to confirm the match byte for byte.
+ */
+public class FileContentIndex
+{
+
+	private static final String DIGEST_ALGORITHM = "SHA-256";
+
+	private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal
+			.withInitial(FileContentIndex::createDigest);
+
+	private final FragmentWriter fragments;
+	private final Map<Key, FragmentRef> files = new HashMap<>();
+	private byte[] readBuffer;
+
+	public FileContentIndex(FragmentWriter fragments)
+	{
+		this.fragments = fragments;
+	}
+
+	public static MessageDigest createDigest()
+	{
+		try {
+			return MessageDigest.getInstance(DIGEST_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Returns the fragment of an earlier file of the same size and with the
+	 * same tail, or writes the tail using {@code write} and records it.
+	 */
+	public FragmentRef share(long fileSize, byte[] data, int offset,
+			int length, FragmentWrite write) throws IOException
+	{
+		Key key = new Key(fileSize, digest(data, offset, length));
+		FragmentRef fragment = files.get(key);
+		if (fragment != null && matches(fragment, data, offset, length)) {
+			return fragment;
+		}
+		FragmentRef written = write.write();
+		if (fragment == null) {
+			files.put(key, written);
+		}
+		return written;
+	}
+
+	public int getFileCount()
+	{
+		return files.size();
+	}
+
+	private boolean matches(FragmentRef fragment, byte[] data, int offset,
+			int length) throws IOException
+	{
+		if (readBuffer == null || readBuffer.length < length) {
+			readBuffer = new byte[length];
+		}
+		fragments.read(fragment, readBuffer, 0, length);
+		for (int i = 0; i < length; i++) {
+			if (readBuffer[i] != data[offset + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Digests the data with a digest that is created once per thread.
+	 */
+	static byte[] digest(byte[] data, int offset, int length)
+	{
+		MessageDigest md = DIGEST.get();
+		md.reset();
+		md.update(data, offset, length);
+		return md.digest();
+	}
+
+	@FunctionalInterface
+	public interface FragmentWrite
+	{
+		public FragmentRef write() throws IOException;
+	}
+
+	private static class Key
+	{
+
+		private final long fileSize;
+		private final byte[] digest;
+		private final int hash;
+
+		Key(long fileSize, byte[] digest)
+		{
+			this.fileSize = fileSize;
+			this.digest = digest;
+			this.hash = 31 * Long.hashCode(fileSize) + Arrays.hashCode(digest);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key o = (Key) obj;
+
+			return fileSize == o.fileSize && Arrays.equals(digest, o.digest);
+		}
+
+	}
+
+}
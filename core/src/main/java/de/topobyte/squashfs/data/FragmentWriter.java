@@ -18,17 +18,12 @@
 
 package de.topobyte.squashfs.data;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.zip.Deflater;
-import java.util.zip.DeflaterOutputStream;
 
 import de.topobyte.squashfs.CompressionUtil;
 import de.topobyte.squashfs.compression.Compression;
-import de.topobyte.squashfs.compression.ZstdCompression;
 import de.topobyte.squashfs.metadata.MetadataBlockRef;
 import de.topobyte.squashfs.metadata.MetadataWriter;
 import de.topobyte.squashfs.ra.IRandomAccess;
@@ -45,14 +40,25 @@ public class FragmentWriter
 	private final List<FragmentRef> currentFragments = new ArrayList<>();
 	private int currentOffset = 0;
 	private final List<FragmentTableEntry> fragmentEntries = new ArrayList<>();
+	private final CompressionPipeline pipeline;
+	private byte[] readBlock;
+	private byte[] readStored;
+	private int readIndex = -1;
 
 	public FragmentWriter(IRandomAccess raf, int blockSize,
 			Compression compression)
+	{
+		this(raf, blockSize, compression, null);
+	}
+
+	public FragmentWriter(IRandomAccess raf, int blockSize,
+			Compression compression, CompressionPipeline pipeline)
 	{
 		this.raf = raf;
 		this.blockSize = blockSize;
 		this.compression = compression;
 		this.currentBlock = new byte[blockSize];
+		this.pipeline = pipeline;
 	}
 
 	public FragmentRef write(byte[] data, int offset, int length)
@@ -76,6 +82,53 @@ public class FragmentWriter
 		return frag;
 	}
 
+	/**
+	 * Reads back the data of a fragment written earlier. The most recently
+	 * read fragment block is kept uncompressed, fragments that are still
+	 * waiting in the pipeline are waited for.
+	 */
+	public void read(FragmentRef fragment, byte[] data, int offset,
+			int length) throws IOException
+	{
+		if (!fragment.isValid()) {
+			System.arraycopy(currentBlock, fragment.getOffset(), data, offset,
+					length);
+			return;
+		}
+
+		int index = fragment.getFragmentIndex();
+		if (index != readIndex) {
+			if (pipeline != null) {
+				pipeline.drainUntil(() -> fragmentEntries.get(index) != null);
+			}
+			FragmentTableEntry entry = fragmentEntries.get(index);
+			if (readBlock == null) {
+				readBlock = new byte[blockSize];
+			}
+			byte[] stored = readBlock;
+			if (entry.isCompressed()) {
+				if (readStored == null
+						|| readStored.length < entry.getDiskSize()) {
+					readStored = new byte[entry.getDiskSize()];
+				}
+				stored = readStored;
+			}
+
+			long end = raf.getFilePointer();
+			raf.seek(entry.getStart());
+			raf.readFully(stored, 0, entry.getDiskSize());
+			raf.seek(end);
+
+			if (entry.isCompressed()) {
+				CompressionUtil.decompress(compression, stored, 0,
+						entry.getDiskSize(), readBlock, readBlock.length);
+			}
+			readIndex = index;
+		}
+		System.arraycopy(readBlock, fragment.getOffset(), data, offset,
+				length);
+	}
+
 	public List<FragmentTableEntry> getFragmentEntries()
 	{
 		return fragmentEntries;
@@ -115,6 +168,11 @@ public class FragmentWriter
 
 	public void flush() throws IOException
 	{
+		if (pipeline != null) {
+			submit();
+			return;
+		}
+
 		long fileOffset = raf.getFilePointer();
 
 		byte[] compressed = null;
@@ -123,7 +181,7 @@ public class FragmentWriter
 			return;
 		}
 
-		compressed = compressData();
+		compressed = compressData(currentBlock, 0, currentOffset);
 		if (compressed == null) {
 			raf.write(currentBlock, 0, currentOffset);
 			size = currentOffset;
@@ -144,54 +202,47 @@ public class FragmentWriter
 		currentOffset = 0;
 	}
 
-	private byte[] compressData() throws IOException
+	private void submit() throws IOException
 	{
-		switch (compression.getCompressionId()) {
-		case ZLIB:
-			return compressDataZlib();
-		case ZSTD:
-			return compressDataZstd((ZstdCompression) compression);
-		case LZ4:
-		case LZMA:
-		case LZO:
-		case NONE:
-		case XZ:
-		default:
-			return null;
+		if (currentOffset <= 0) {
+			return;
 		}
-	}
 
-	private byte[] compressDataZlib() throws IOException
-	{
-		Deflater def = new Deflater(Deflater.BEST_COMPRESSION);
-		try (ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
-			try (DeflaterOutputStream dos = new DeflaterOutputStream(bos, def,
-					4096)) {
-				dos.write(currentBlock, 0, currentOffset);
-			}
-			byte[] result = bos.toByteArray();
-			if (result.length > currentOffset) {
-				return null;
-			}
-			return result;
-		} finally {
-			def.end();
+		// the entry is filled in once the block has a location in the output
+		int fragmentIndex = fragmentEntries.size();
+		fragmentEntries.add(null);
+		for (FragmentRef frag : currentFragments) {
+			frag.commit(fragmentIndex);
 		}
+
+		int length = currentOffset;
+		byte[] buffer = pipeline.acquireBuffer();
+		System.arraycopy(currentBlock, 0, buffer, 0, length);
+
+		pipeline.submit(() -> compressData(buffer, 0, length), compressed -> {
+			long fileOffset = raf.getFilePointer();
+			int size;
+			if (compressed == null) {
+				raf.write(buffer, 0, length);
+				size = length;
+			} else {
+				raf.write(compressed);
+				size = compressed.length;
+			}
+			fragmentEntries.set(fragmentIndex,
+					new FragmentTableEntry(fileOffset, size, compressed != null));
+			pipeline.releaseBuffer(buffer);
+		});
+
+		currentFragments.clear();
+		currentOffset = 0;
 	}
 
-	private byte[] compressDataZstd(ZstdCompression options) throws IOException
+	private byte[] compressData(byte[] data, int offset, int length)
+			throws IOException
 	{
-		try (ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
-			try (OutputStream zos = CompressionUtil.createZstdOutputStream(bos,
-					options)) {
-				zos.write(currentBlock, 0, currentOffset);
-			}
-			byte[] result = bos.toByteArray();
-			if (result.length > currentOffset) {
-				return null;
-			}
-			return result;
-		}
+		return CompressionUtil.compress(compression, blockSize, data, offset,
+				length, length);
 	}
 
 }
@@ -18,18 +18,12 @@
 
 package de.topobyte.squashfs.data;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInput;
+import java.io.EOFException;
 import java.io.IOException;
-import java.util.zip.Inflater;
-import java.util.zip.InflaterInputStream;
+import java.nio.ByteBuffer;
 
 import de.topobyte.squashfs.SquashFsException;
-import de.topobyte.squashfs.compression.SuperBlockFlag;
-import de.topobyte.squashfs.data.DataBlockCache.Key;
 import de.topobyte.squashfs.inode.FileINode;
-import de.topobyte.squashfs.io.ByteBufferDataInput;
 import de.topobyte.squashfs.io.MappedFile;
 import de.topobyte.squashfs.superblock.SuperBlock;
 import de.topobyte.squashfs.table.FragmentTable;
@@ -65,11 +59,11 @@ public class MappedDataBlockReader
 
 		long blocksStart = inode.getBlocksStart();
 		long fileSize = inode.getFileSize();
-		long fileOffset = getFileOffset(blocksStart, blockNum, blockSizes);
+		long fileOffset = blocksStart + inode.getBlockOffset(blockNum);
 
 		int dataSize = blockSizes[blockNum];
 		boolean compressed = (dataSize & 0x1000000) == 0;
-		int actualSize = (dataSize & 0xfffff);
+		int actualSize = (dataSize & 0xffffff);
 
 		long expectedSize = blockSize;
 
@@ -82,13 +76,13 @@ public class MappedDataBlockReader
 			return new DataBlock(EMPTY, (int) expectedSize, 0);
 		}
 
-		DataBlockCache.Key key = new Key(tag, compressed, fileOffset,
-				actualSize, (int) expectedSize);
-		DataBlock block = cache.get(key);
+		DataBlock block = cache.get(tag, compressed, fileOffset, actualSize,
+				(int) expectedSize);
 		if (block == null) {
 			block = readData(sb, mmap, compressed, fileOffset, actualSize,
 					(int) expectedSize);
-			cache.put(key, block);
+			cache.put(tag, compressed, fileOffset, actualSize,
+					(int) expectedSize, block);
 		}
 		return block;
 	}
@@ -115,112 +109,106 @@ public class MappedDataBlockReader
 
 		long fileOffset = fragEntry.getStart();
 
-		DataBlockCache.Key key = new Key(tag, compressed, fileOffset, dataSize,
+		DataBlock fragment = cache.get(tag, compressed, fileOffset, dataSize,
 				dataSize);
-		DataBlock fragment = cache.get(key);
 		if (fragment == null) {
 			fragment = readData(sb, mmap, compressed, fileOffset, dataSize,
 					dataSize);
-			cache.put(key, fragment);
+			cache.put(tag, compressed, fileOffset, dataSize, dataSize,
+					fragment);
 		}
 
 		int offset = inode.getFragmentOffset();
 		if (offset + length > fragment.getPhysicalSize()) {
+			fragment.release();
 			throw new SquashFsException(String.format(
 					"Attempted to read %d bytes from a fragment with only %d bytes remaining",
 					length, fragment.getLogicalSize() - offset));
 		}
-
-		byte[] data = new byte[length];
-		System.arraycopy(fragment.getData(), offset, data, 0, length);
-		return new DataBlock(data, data.length, data.length);
+		// the slice takes over the reference to the fragment block
+		return new DataBlockSlice(fragment, offset, length);
 	}
 
-	private static DataBlock readData(SuperBlock sb, MappedFile mmap,
-			boolean compressed, long fileOffset, int dataSize, int expectedSize)
-			throws IOException, SquashFsException
+	/**
+	 * @return a read-only view of the mapped image for a block stored
+	 *         uncompressed, or null if the block is compressed or sparse
+	 */
+	public static ByteBuffer storedBlock(MappedFile mmap, FileINode inode,
+			int blockNum)
 	{
-
-		DataInput in = new ByteBufferDataInput(mmap.from(fileOffset));
-
-		DataBlock data = compressed
-				? readCompressed(sb, in, dataSize, expectedSize)
-				: readUncompressed(sb, in, dataSize, expectedSize);
-
-		return data;
+		int dataSize = inode.getBlockSizes()[blockNum];
+		int actualSize = dataSize & 0xffffff;
+		if ((dataSize & 0x1000000) == 0 || actualSize == 0) {
+			return null;
+		}
+		long fileOffset = inode.getBlocksStart()
+				+ inode.getBlockOffset(blockNum);
+		return slice(mmap, fileOffset, actualSize);
 	}
 
-	private static DataBlock readUncompressed(SuperBlock sb, DataInput in,
-			int dataSize, int expectedSize)
+	/**
+	 * @return a read-only view of the mapped image for the part of an
+	 *         uncompressed fragment that belongs to the given file, or null if
+	 *         the fragment is compressed
+	 */
+	public static ByteBuffer storedFragment(MappedFile mmap, FileINode inode,
+			FragmentTable fragTable, int length)
 			throws IOException, SquashFsException
 	{
-		byte[] data = new byte[dataSize];
-		in.readFully(data);
-		return new DataBlock(data, expectedSize, data.length);
+		FragmentTableEntry fragEntry = fragTable
+				.getEntry(inode.getFragmentBlockIndex());
+		if (fragEntry.isCompressed()) {
+			return null;
+		}
+		int offset = inode.getFragmentOffset();
+		if (offset + length > fragEntry.getDiskSize()) {
+			throw new SquashFsException(String.format(
+					"Attempted to read %d bytes from a fragment with only %d bytes remaining",
+					length, fragEntry.getDiskSize() - offset));
+		}
+		return slice(mmap, fragEntry.getStart() + offset, length);
 	}
 
-	private static DataBlock readCompressed(SuperBlock sb, DataInput in,
-			int dataSize, int expectedSize)
-			throws IOException, SquashFsException
+	private static ByteBuffer slice(MappedFile mmap, long fileOffset,
+			int length)
 	{
-		switch (sb.getCompression().getCompressionId()) {
-		case NONE:
-			throw new SquashFsException(
-					"Archive claims no compression, but found compressed data");
-		case ZLIB:
-			return readCompressedZlib(sb, in, dataSize, expectedSize);
-		default:
-			throw new UnsupportedOperationException(String.format(
-					"Reading compressed data of type %s not yet supported",
-					sb.getCompression()));
-		}
+		ByteBuffer buffer = mmap.from(fileOffset);
+		buffer.limit(length);
+		return buffer.slice().asReadOnlyBuffer();
 	}
 
-	private static DataBlock readCompressedZlib(SuperBlock sb, DataInput in,
-			int dataSize, int expectedSize)
+	private static DataBlock readData(SuperBlock sb, MappedFile mmap,
+			boolean compressed, long fileOffset, int dataSize, int expectedSize)
 			throws IOException, SquashFsException
 	{
-		// see if there are compression flags
-		if (sb.hasFlag(SuperBlockFlag.COMPRESSOR_OPTIONS)) {
-			throw new UnsupportedOperationException(
-					"Reading ZLIB compressed data with non-standard options not yet supported");
-		}
 
-		byte[] buf = new byte[dataSize];
-		in.readFully(buf);
-		byte[] data;
-
-		byte[] xfer = new byte[4096];
-		try (ByteArrayInputStream bis = new ByteArrayInputStream(buf)) {
-			try (InflaterInputStream iis = new InflaterInputStream(bis,
-					new Inflater(), 4096)) {
-				try (ByteArrayOutputStream bos = new ByteArrayOutputStream(
-						4096)) {
-					int c = 0;
-					while ((c = iis.read(xfer, 0, 4096)) >= 0) {
-						if (c > 0) {
-							bos.write(xfer, 0, c);
-						}
-					}
-					data = bos.toByteArray();
-					if (data.length > sb.getBlockSize()) {
-						throw new SquashFsException(String.format(
-								"Corrupt metadata block: Got size %d (max = %d)",
-								data.length, sb.getBlockSize()));
-					}
-				}
-			}
+		ByteBuffer in = mmap.from(fileOffset);
+		if (in.remaining() < dataSize) {
+			throw new EOFException(String.format(
+					"Attempted to read %d bytes at offset %d, past end of file",
+					dataSize, fileOffset));
 		}
 
-		return new DataBlock(data, expectedSize, data.length);
+		if (!compressed) {
+			return readUncompressed(sb, in, dataSize, expectedSize);
+		}
+		in.limit(dataSize);
+		return DataBlockReader.decompress(sb, in, expectedSize);
 	}
 
-	static long getFileOffset(long blockStart, int blockNum, int[] blockSizes)
+	private static DataBlock readUncompressed(SuperBlock sb, ByteBuffer in,
+			int dataSize, int expectedSize)
+			throws IOException, SquashFsException
 	{
-		for (int i = 0; i < blockNum; i++) {
-			blockStart += (blockSizes[i] & 0xfffff);
+		if (dataSize == sb.getBlockSize()) {
+			BlockBufferPool pool = BlockBufferPool.forSize(dataSize);
+			byte[] data = pool.acquire();
+			in.get(data);
+			return new PooledDataBlock(pool, data, expectedSize, dataSize);
 		}
-		return blockStart;
+		byte[] data = new byte[dataSize];
+		in.get(data);
+		return new DataBlock(data, expectedSize, data.length);
 	}
 
 }
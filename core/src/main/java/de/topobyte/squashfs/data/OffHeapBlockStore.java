@@ -0,0 +1,176 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.topobyte.squashfs.data;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Fixed-size pages of direct memory for cached data blocks.
+ *
+ * Memory is allocated in slabs of up to 16 MiB as it is needed, and never
+ * beyond the configured budget. A block occupies as many pages as it needs,
+ * which do not have to be contiguous, so the store does not fragment.
+ */
+class OffHeapBlockStore
+{
+
+	static final int PAGE_SHIFT = 12;
+	static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+
+	private static final int SLAB_PAGES_SHIFT = 12;
+	private static final int SLAB_PAGES = 1 << SLAB_PAGES_SHIFT;
+
+	private final int maxPages;
+	private volatile ByteBuffer[] slabs = new ByteBuffer[0];
+	private int[] freePages = new int[0];
+	private int freeCount = 0;
+	private int createdPages = 0;
+	private boolean closed = false;
+
+	OffHeapBlockStore(long maxBytes)
+	{
+		long pages = maxBytes >>> PAGE_SHIFT;
+		if (pages < 1 || pages > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException(String.format(
+					"Off-heap budget of %d bytes out of range", maxBytes));
+		}
+		maxPages = (int) pages;
+	}
+
+	static int pagesFor(int bytes)
+	{
+		return (bytes + PAGE_SIZE - 1) >>> PAGE_SHIFT;
+	}
+
+	/**
+	 * @return the pages allocated, or null if the budget is exhausted
+	 */
+	synchronized int[] allocate(int bytes)
+	{
+		int count = pagesFor(bytes);
+		if (closed) {
+			return null;
+		}
+		while (freeCount < count && createdPages < maxPages) {
+			addSlab();
+		}
+		if (freeCount < count) {
+			return null;
+		}
+		int[] pages = new int[count];
+		for (int i = 0; i < count; i++) {
+			pages[i] = freePages[--freeCount];
+		}
+		return pages;
+	}
+
+	synchronized void free(int[] pages)
+	{
+		if (closed) {
+			return;
+		}
+		for (int page : pages) {
+			freePages[freeCount++] = page;
+		}
+	}
+
+	private void addSlab()
+	{
+		int count = Math.min(SLAB_PAGES, maxPages - createdPages);
+		ByteBuffer slab = ByteBuffer.allocateDirect(count << PAGE_SHIFT);
+		ByteBuffer[] newSlabs = Arrays.copyOf(slabs, slabs.length + 1);
+		newSlabs[slabs.length] = slab;
+		slabs = newSlabs;
+
+		if (freePages.length < createdPages + count) {
+			freePages = Arrays.copyOf(freePages, Math.min(maxPages,
+					Math.max(createdPages + count, freePages.length * 2)));
+		}
+		for (int i = count - 1; i >= 0; i--) {
+			freePages[freeCount++] = createdPages + i;
+		}
+		createdPages += count;
+	}
+
+	private ByteBuffer page(int page)
+	{
+		ByteBuffer buffer = slabs[page >>> SLAB_PAGES_SHIFT].duplicate();
+		buffer.position((page & (SLAB_PAGES - 1)) << PAGE_SHIFT);
+		return buffer;
+	}
+
+	void write(int[] pages, byte[] src, int len)
+	{
+		for (int pos = 0; pos < len; pos += PAGE_SIZE) {
+			page(pages[pos >>> PAGE_SHIFT]).put(src, pos,
+					Math.min(PAGE_SIZE, len - pos));
+		}
+	}
+
+	void read(int[] pages, int srcOffset, byte[] dst, int off, int len)
+	{
+		while (len > 0) {
+			int inPage = srcOffset & (PAGE_SIZE - 1);
+			int chunk = Math.min(len, PAGE_SIZE - inPage);
+			ByteBuffer buffer = page(pages[srcOffset >>> PAGE_SHIFT]);
+			buffer.position(buffer.position() + inPage);
+			buffer.get(dst, off, chunk);
+			srcOffset += chunk;
+			off += chunk;
+			len -= chunk;
+		}
+	}
+
+	void read(int[] pages, int srcOffset, ByteBuffer dst, int len)
+	{
+		while (len > 0) {
+			int inPage = srcOffset & (PAGE_SIZE - 1);
+			int chunk = Math.min(len, PAGE_SIZE - inPage);
+			ByteBuffer buffer = page(pages[srcOffset >>> PAGE_SHIFT]);
+			buffer.position(buffer.position() + inPage);
+			buffer.limit(buffer.position() + chunk);
+			dst.put(buffer);
+			srcOffset += chunk;
+			len -= chunk;
+		}
+	}
+
+	/**
+	 * @return the number of bytes of direct memory allocated so far
+	 */
+	synchronized long getAllocatedBytes()
+	{
+		return (long) createdPages << PAGE_SHIFT;
+	}
+
+	/**
+	 * Drops all slabs, so that their memory can be reclaimed. No block of
+	 * this store may be read afterwards.
+	 */
+	synchronized void close()
+	{
+		closed = true;
+		slabs = new ByteBuffer[0];
+		freePages = new int[0];
+		freeCount = 0;
+		createdPages = 0;
+	}
+
+}
@@ -0,0 +1,75 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.topobyte.squashfs.data;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A data block whose array was taken from a {@link BlockBufferPool}.
+ *
+ * Like {@link DirectDataBlock} it is reference counted: the reader that
+ * decompressed it holds the first reference and a heap cache takes another
+ * one while the block is stored. The array goes back to the pool once the
+ * last reference is released, unless it has been handed out through
+ * {@link #getData()} or {@link #asBuffer()}, in which case it is left to the
+ * garbage collector.
+ */
+class PooledDataBlock extends DataBlock
+{
+
+	private final BlockBufferPool pool;
+	private final AtomicInteger references = new AtomicInteger(1);
+	private volatile boolean exposed = false;
+
+	PooledDataBlock(BlockBufferPool pool, byte[] data, int logicalSize,
+			int physicalSize)
+	{
+		super(data, logicalSize, physicalSize);
+		this.pool = pool;
+	}
+
+	@Override
+	void retain()
+	{
+		references.incrementAndGet();
+	}
+
+	@Override
+	public void release()
+	{
+		if (references.decrementAndGet() == 0 && !exposed) {
+			pool.recycle(data);
+		}
+	}
+
+	@Override
+	public byte[] getData()
+	{
+		exposed = true;
+		return data;
+	}
+
+	@Override
+	public ByteBuffer asBuffer()
+	{
+		exposed = true;
+		return super.asBuffer();
+	}
+
+}
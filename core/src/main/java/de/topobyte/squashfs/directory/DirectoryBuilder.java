@@ -24,17 +24,34 @@ import java.util.ArrayList;
 import java.util.List;
 
 import de.topobyte.squashfs.inode.INodeType;
+import de.topobyte.squashfs.metadata.MetadataBlock;
+import de.topobyte.squashfs.metadata.MetadataBlockRef;
 import de.topobyte.squashfs.metadata.MetadataWriter;
 
 public class DirectoryBuilder
 {
 
+	// an index entry count is stored as an unsigned short
+	static final int MAX_INDEX_COUNT = 0xffff;
+
 	boolean dirty = false;
 	final List<Entry> entries = new ArrayList<>();
 	final List<DirectoryElement> elements = new ArrayList<>();
+	final List<DirectoryIndex> indexes = new ArrayList<>();
+	private MetadataBlockRef headerBlock;
 
 	public void add(String name, int startBlock, int inodeNumber, short offset,
 			INodeType type)
+	{
+		add(name, new MetadataBlockRef(startBlock, offset), inodeNumber, type);
+	}
+
+	/**
+	 * Adds an entry for an inode whose location may not be known until the
+	 * inode table has been compressed.
+	 */
+	public void add(String name, MetadataBlockRef inodeRef, int inodeNumber,
+			INodeType type)
 	{
 		dirty = true;
 		byte[] nameBytes = name.getBytes(StandardCharsets.ISO_8859_1);
@@ -46,7 +63,7 @@ public class DirectoryBuilder
 					"Filename '%s' too long (%d bytes, max %d)", name,
 					nameBytes.length, DirectoryEntry.MAX_FILENAME_LENGTH));
 		}
-		entries.add(new Entry(startBlock, inodeNumber, offset, type.dirValue(),
+		entries.add(new Entry(inodeRef, inodeNumber, type.dirValue(),
 				nameBytes));
 	}
 
@@ -68,8 +85,21 @@ public class DirectoryBuilder
 		elements.clear();
 
 		DirectoryHeader header = null;
+		int size = 0;
+		int indexStart = 0;
 		for (Entry entry : entries) {
-			header = advance(header, entry);
+			// start a new header at least once per metadata block, so that
+			// every block of a large directory can be reached via the index
+			boolean split = size + 8 + entry.name.length
+					- indexStart > MetadataBlock.MAX_SIZE;
+			if (split) {
+				indexStart = size;
+			}
+			DirectoryHeader current = advance(header, entry, split);
+			if (current != header) {
+				size += current.getStructureSize();
+				header = current;
+			}
 			header.count++;
 
 			DirectoryEntry dent = new DirectoryEntry();
@@ -82,21 +112,57 @@ public class DirectoryBuilder
 			dent.size = (short) (entry.name.length - 1);
 
 			elements.add(dent);
+			size += dent.getStructureSize();
 		}
 		dirty = false;
 	}
 
+	/**
+	 * Writes the directory listing and collects the index entries for it: one
+	 * for the first directory header starting in each metadata block after
+	 * the one the listing starts in.
+	 */
 	public void write(MetadataWriter out) throws IOException
 	{
 		build();
+		indexes.clear();
+		int position = 0;
+		MetadataBlockRef lastBlock = out.getCurrentReference();
+		MetadataBlockRef pending = null;
+		int pendingPosition = 0;
 		for (DirectoryElement element : elements) {
+			if (element instanceof DirectoryHeader) {
+				MetadataBlockRef ref = out.getCurrentReference();
+				if (!ref.isSameBlock(lastBlock)
+						&& indexes.size() < MAX_INDEX_COUNT) {
+					lastBlock = ref;
+					pending = ref;
+					pendingPosition = position;
+				}
+			} else if (pending != null) {
+				DirectoryEntry dent = (DirectoryEntry) element;
+				indexes.add(new DirectoryIndex(pendingPosition, pending,
+						dent.getName()));
+				pending = null;
+			}
 			element.writeData(out);
+			position += element.getStructureSize();
 		}
 	}
 
-	private DirectoryHeader advance(DirectoryHeader header, Entry entry)
+	/**
+	 * @return the index entries collected by the last call to write()
+	 */
+	public List<DirectoryIndex> getIndexes()
 	{
-		if ((header != null) && (header.startBlock == entry.startBlock)
+		return indexes;
+	}
+
+	private DirectoryHeader advance(DirectoryHeader header, Entry entry,
+			boolean split)
+	{
+		if (!split && (header != null)
+				&& headerBlock.isSameBlock(entry.inodeRef)
 				&& (entry.inodeNumber >= header.inodeNumber)
 				&& (entry.inodeNumber <= (header.inodeNumber + 0x7fff))
 				&& (header.count < (DirectoryHeader.MAX_DIR_ENTRIES - 1))) {
@@ -105,7 +171,12 @@ public class DirectoryBuilder
 
 		header = new DirectoryHeader();
 		header.count = -1;
-		header.startBlock = entry.startBlock;
+		headerBlock = entry.inodeRef;
+		if (entry.inodeRef.isResolved()) {
+			header.startBlock = entry.inodeRef.getLocation();
+		} else {
+			header.startBlockRef = entry.inodeRef;
+		}
 		header.inodeNumber = entry.inodeNumber;
 		elements.add(header);
 		return header;
@@ -113,18 +184,21 @@ public class DirectoryBuilder
 
 	static class Entry
 	{
+		MetadataBlockRef inodeRef;
 		int startBlock;
 		int inodeNumber;
 		byte[] name;
 		short offset;
 		short type;
 
-		Entry(int startBlock, int inodeNumber, short offset, short type,
+		Entry(MetadataBlockRef inodeRef, int inodeNumber, short type,
 				byte[] name)
 		{
-			this.startBlock = startBlock;
+			this.inodeRef = inodeRef;
+			this.startBlock = inodeRef.isResolved() ? inodeRef.getLocation()
+					: 0;
 			this.inodeNumber = inodeNumber;
-			this.offset = offset;
+			this.offset = inodeRef.getOffset();
 			this.type = type;
 			this.name = name;
 		}
@@ -27,6 +27,7 @@ import java.io.DataOutput;
 import java.io.IOException;
 
 import de.topobyte.squashfs.SquashFsException;
+import de.topobyte.squashfs.metadata.MetadataBlockRef;
 
 public class DirectoryHeader implements DirectoryElement
 {
@@ -36,6 +37,7 @@ public class DirectoryHeader implements DirectoryElement
 	protected int count; // number of entries (1 less than actual length)
 	protected int startBlock; // starting inode block
 	protected int inodeNumber; // starting inode number
+	MetadataBlockRef startBlockRef; // starting inode block, while writing
 
 	public int getCount()
 	{
@@ -44,7 +46,8 @@ public class DirectoryHeader implements DirectoryElement
 
 	public int getStartBlock()
 	{
-		return startBlock;
+		return startBlockRef != null ? startBlockRef.getLocation()
+				: startBlock;
 	}
 
 	public int getInodeNumber()
@@ -81,7 +84,11 @@ public class DirectoryHeader implements DirectoryElement
 	public void writeData(DataOutput out) throws IOException
 	{
 		out.writeInt(count);
-		out.writeInt(startBlock);
+		if (startBlockRef != null) {
+			startBlockRef.writeLocation(out);
+		} else {
+			out.writeInt(startBlock);
+		}
 		out.writeInt(inodeNumber);
 	}
 
@@ -0,0 +1,182 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.topobyte.squashfs.directory;
+
+import static de.topobyte.squashfs.util.BinUtils.compareBytes;
+import static de.topobyte.squashfs.util.BinUtils.dumpBin;
+import static de.topobyte.squashfs.util.BinUtils.DumpOptions.DECIMAL;
+import static de.topobyte.squashfs.util.BinUtils.DumpOptions.UNSIGNED;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import de.topobyte.squashfs.SquashFsException;
+import de.topobyte.squashfs.metadata.MetadataBlockRef;
+
+/**
+ * An entry of the index stored after an extended directory inode. Each index
+ * entry points to a directory header and records the name of the first entry
+ * following it, so that a lookup can skip all metadata blocks of the
+ * directory that precede the name it is looking for.
+ */
+public class DirectoryIndex
+{
+
+	private static final byte[] EMPTY = new byte[0];
+
+	protected int index; // offset of the header within the directory listing
+	protected int startBlock; // directory table block containing the header
+	protected int size; // size of name (1 less than actual size)
+	protected byte[] name = EMPTY; // name of the first entry after the header
+	private MetadataBlockRef startBlockRef;
+
+	public DirectoryIndex()
+	{
+	}
+
+	/**
+	 * Creates an index entry for a header whose block location may not be
+	 * known until the directory table has been compressed.
+	 */
+	public DirectoryIndex(int index, MetadataBlockRef startBlock, byte[] name)
+	{
+		this(index, 0, name);
+		this.startBlockRef = startBlock;
+	}
+
+	public DirectoryIndex(int index, int startBlock, byte[] name)
+	{
+		if (name.length < 1
+				|| name.length > DirectoryEntry.MAX_FILENAME_LENGTH) {
+			throw new IllegalArgumentException(String.format(
+					"Invalid directory index name length %d", name.length));
+		}
+		this.index = index;
+		this.startBlock = startBlock;
+		this.size = name.length - 1;
+		this.name = name;
+	}
+
+	public int getIndex()
+	{
+		return index;
+	}
+
+	public int getStartBlock()
+	{
+		return startBlockRef != null ? startBlockRef.getLocation()
+				: startBlock;
+	}
+
+	public int getSize()
+	{
+		return size;
+	}
+
+	public byte[] getName()
+	{
+		return name;
+	}
+
+	public String getNameAsString()
+	{
+		return new String(name, StandardCharsets.ISO_8859_1);
+	}
+
+	public int getStructureSize()
+	{
+		return 12 + name.length;
+	}
+
+	/**
+	 * Finds the index entry to start a lookup of the given name from, i.e. the
+	 * last entry whose name is not greater than {@code name}. Index entries
+	 * are ordered by name, so this is a binary search.
+	 *
+	 * @return the matching index entry, or null if the lookup has to start at
+	 *         the beginning of the directory
+	 */
+	public static DirectoryIndex find(DirectoryIndex[] indexes, byte[] name)
+	{
+		int low = 0;
+		int high = indexes.length - 1;
+		DirectoryIndex result = null;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (compareBytes(indexes[mid].name, name) <= 0) {
+				result = indexes[mid];
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return result;
+	}
+
+	public static DirectoryIndex read(DataInput in)
+			throws SquashFsException, IOException
+	{
+		DirectoryIndex entry = new DirectoryIndex();
+		entry.readData(in);
+		return entry;
+	}
+
+	public void readData(DataInput in) throws SquashFsException, IOException
+	{
+		index = in.readInt();
+		startBlock = in.readInt();
+		size = in.readInt();
+		if (size < 0 || size + 1 > DirectoryEntry.MAX_FILENAME_LENGTH) {
+			throw new SquashFsException(String.format(
+					"Invalid directory index: Found filename of length %d (max = %d)%n%s",
+					size + 1, DirectoryEntry.MAX_FILENAME_LENGTH, this));
+		}
+		name = new byte[size + 1];
+		in.readFully(name);
+	}
+
+	public void writeData(DataOutput out) throws IOException
+	{
+		out.writeInt(index);
+		if (startBlockRef != null) {
+			startBlockRef.writeLocation(out);
+		} else {
+			out.writeInt(startBlock);
+		}
+		out.writeInt(size);
+		out.write(name);
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder buf = new StringBuilder();
+		buf.append(String.format("directory-index {%n"));
+		int width = 12;
+		dumpBin(buf, width, "index", index, DECIMAL, UNSIGNED);
+		dumpBin(buf, width, "startBlock", startBlock, DECIMAL, UNSIGNED);
+		dumpBin(buf, width, "size", size, DECIMAL, UNSIGNED);
+		dumpBin(buf, width, "name", name, 0, name.length, 16, 2);
+		buf.append("}");
+		return buf.toString();
+	}
+
+}
@@ -26,6 +26,8 @@ import java.io.DataInput;
 import java.io.IOException;
 
 import de.topobyte.squashfs.SquashFsException;
+import de.topobyte.squashfs.directory.DirectoryIndex;
+import de.topobyte.squashfs.metadata.MetadataBlockRef;
 import de.topobyte.squashfs.metadata.MetadataWriter;
 import de.topobyte.squashfs.superblock.SuperBlock;
 
@@ -33,6 +35,7 @@ public class BasicDirectoryINode extends AbstractINode implements DirectoryINode
 {
 
 	int startBlock;
+	MetadataBlockRef startBlockRef;
 	int nlink = 1;
 	short fileSize; // 3 + # of uncompressed bytes in directory table
 	short offset;
@@ -59,7 +62,11 @@ public class BasicDirectoryINode extends AbstractINode implements DirectoryINode
 		BasicDirectoryINode dest = new BasicDirectoryINode();
 		src.copyTo(dest);
 
-		dest.setStartBlock(src.getStartBlock());
+		if (src.getStartBlockRef() != null) {
+			dest.setStartBlock(src.getStartBlockRef());
+		} else {
+			dest.setStartBlock(src.getStartBlock());
+		}
 		dest.setNlink(src.getNlink());
 		dest.setFileSize(src.getFileSize());
 		dest.setOffset(src.getOffset());
@@ -71,13 +78,28 @@ public class BasicDirectoryINode extends AbstractINode implements DirectoryINode
 	@Override
 	public int getStartBlock()
 	{
-		return startBlock;
+		return startBlockRef != null ? startBlockRef.getLocation()
+				: startBlock;
 	}
 
 	@Override
 	public void setStartBlock(int startBlock)
 	{
 		this.startBlock = startBlock;
+		this.startBlockRef = null;
+	}
+
+	@Override
+	public void setStartBlock(MetadataBlockRef startBlock)
+	{
+		this.startBlock = 0;
+		this.startBlockRef = startBlock;
+	}
+
+	@Override
+	public MetadataBlockRef getStartBlockRef()
+	{
+		return startBlockRef;
 	}
 
 	@Override
@@ -153,6 +175,21 @@ public class BasicDirectoryINode extends AbstractINode implements DirectoryINode
 		return false;
 	}
 
+	@Override
+	public DirectoryIndex[] getIndexes()
+	{
+		return NO_INDEXES;
+	}
+
+	@Override
+	public void setIndexes(DirectoryIndex[] indexes)
+	{
+		if (indexes.length != 0) {
+			throw new IllegalArgumentException(
+					"Basic directory inodes do not support indexes");
+		}
+	}
+
 	@Override
 	public int getXattrIndex()
 	{
@@ -206,7 +243,11 @@ public class BasicDirectoryINode extends AbstractINode implements DirectoryINode
 	@Override
 	protected void writeExtraData(MetadataWriter out) throws IOException
 	{
-		out.writeInt(startBlock);
+		if (startBlockRef != null) {
+			startBlockRef.writeLocation(out);
+		} else {
+			out.writeInt(startBlock);
+		}
 		out.writeInt(nlink);
 		out.writeShort(fileSize);
 		out.writeShort(offset);
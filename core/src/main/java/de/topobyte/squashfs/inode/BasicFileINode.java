@@ -26,6 +26,7 @@ import java.io.DataInput;
 import java.io.IOException;
 
 import de.topobyte.squashfs.SquashFsException;
+import de.topobyte.squashfs.metadata.MetadataReader;
 import de.topobyte.squashfs.metadata.MetadataWriter;
 import de.topobyte.squashfs.superblock.SuperBlock;
 
@@ -42,6 +43,7 @@ public class BasicFileINode extends AbstractINode implements FileINode
 	int fragmentOffset = 0;
 	int fileSize;
 	int[] blockSizes = EMPTY;
+	private volatile long[] blockOffsets = null;
 
 	static FileINode simplify(FileINode src)
 	{
@@ -214,6 +216,18 @@ public class BasicFileINode extends AbstractINode implements FileINode
 	public void setBlockSizes(int[] blockSizes)
 	{
 		this.blockSizes = blockSizes;
+		this.blockOffsets = null;
+	}
+
+	@Override
+	public long getBlockOffset(int blockNum)
+	{
+		long[] offsets = blockOffsets;
+		if (offsets == null) {
+			offsets = BlockOffsets.compute(blockSizes);
+			blockOffsets = offsets;
+		}
+		return offsets[blockNum];
 	}
 
 	@Override
@@ -254,9 +268,14 @@ public class BasicFileINode extends AbstractINode implements FileINode
 		fileSize = in.readInt();
 		int blockCount = fullBlockCount(sb);
 		blockSizes = new int[blockCount];
-		for (int i = 0; i < blockCount; i++) {
-			blockSizes[i] = in.readInt();
+		if (in instanceof MetadataReader) {
+			((MetadataReader) in).readInts(blockSizes);
+		} else {
+			for (int i = 0; i < blockCount; i++) {
+				blockSizes[i] = in.readInt();
+			}
 		}
+		blockOffsets = null;
 	}
 
 	@Override
@@ -266,9 +285,7 @@ public class BasicFileINode extends AbstractINode implements FileINode
 		out.writeInt(fragmentBlockIndex);
 		out.writeInt(fragmentOffset);
 		out.writeInt(fileSize);
-		for (int bs : blockSizes) {
-			out.writeInt(bs);
-		}
+		out.writeInts(blockSizes);
 	}
 
 	@Override
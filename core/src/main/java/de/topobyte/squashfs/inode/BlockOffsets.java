@@ -0,0 +1,50 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.topobyte.squashfs.inode;
+
+/**
+ * Prefix sums over the on-disk sizes of a file's data blocks, so that the
+ * position of any block can be looked up without summing all of its
+ * predecessors.
+ */
+final class BlockOffsets
+{
+
+	private BlockOffsets()
+	{
+	}
+
+	/**
+	 * @return an array with {@code blockSizes.length + 1} entries where entry
+	 *         {@code i} is the offset of block {@code i} relative to the start
+	 *         of the file's blocks
+	 */
+	static long[] compute(int[] blockSizes)
+	{
+		long[] offsets = new long[blockSizes.length + 1];
+		long offset = 0L;
+		for (int i = 0; i < blockSizes.length; i++) {
+			offsets[i] = offset;
+			offset += (blockSizes[i] & 0xffffff);
+		}
+		offsets[blockSizes.length] = offset;
+		return offsets;
+	}
+
+}
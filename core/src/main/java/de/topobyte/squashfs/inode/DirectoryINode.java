@@ -18,13 +18,30 @@
 
 package de.topobyte.squashfs.inode;
 
+import de.topobyte.squashfs.directory.DirectoryIndex;
+import de.topobyte.squashfs.metadata.MetadataBlockRef;
+
 public interface DirectoryINode extends INode
 {
 
+	public static final DirectoryIndex[] NO_INDEXES = new DirectoryIndex[0];
+
 	public int getStartBlock();
 
 	public void setStartBlock(int startBlock);
 
+	/**
+	 * Sets the start block to a location in a directory table that is still
+	 * being written. It is filled in when the inode is written.
+	 */
+	public void setStartBlock(MetadataBlockRef startBlock);
+
+	/**
+	 * @return the reference given to {@link #setStartBlock(MetadataBlockRef)},
+	 *         or null
+	 */
+	public MetadataBlockRef getStartBlockRef();
+
 	public int getNlink();
 
 	public void setNlink(int nlik);
@@ -47,6 +64,14 @@ public interface DirectoryINode extends INode
 
 	public boolean isIndexPresent();
 
+	public DirectoryIndex[] getIndexes();
+
+	/**
+	 * Sets the index entries for this directory, also updating the index
+	 * count.
+	 */
+	public void setIndexes(DirectoryIndex[] indexes);
+
 	public int getXattrIndex();
 
 	public void setXattrIndex(int xattrIndex);
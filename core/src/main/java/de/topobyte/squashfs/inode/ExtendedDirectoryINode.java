@@ -26,6 +26,8 @@ import java.io.DataInput;
 import java.io.IOException;
 
 import de.topobyte.squashfs.SquashFsException;
+import de.topobyte.squashfs.directory.DirectoryIndex;
+import de.topobyte.squashfs.metadata.MetadataBlockRef;
 import de.topobyte.squashfs.metadata.MetadataWriter;
 import de.topobyte.squashfs.superblock.SuperBlock;
 
@@ -36,21 +38,38 @@ public class ExtendedDirectoryINode extends AbstractINode
 	int nlink = 1;
 	int fileSize; // 3 + # of uncompressed bytes in directory table
 	int startBlock;
+	MetadataBlockRef startBlockRef;
 	int parentInodeNumber;
 	short indexCount;
 	short offset;
 	int xattrIndex = XATTR_NOT_PRESENT;
+	DirectoryIndex[] indexes = NO_INDEXES;
 
 	@Override
 	public int getStartBlock()
 	{
-		return startBlock;
+		return startBlockRef != null ? startBlockRef.getLocation()
+				: startBlock;
 	}
 
 	@Override
 	public void setStartBlock(int startBlock)
 	{
 		this.startBlock = startBlock;
+		this.startBlockRef = null;
+	}
+
+	@Override
+	public void setStartBlock(MetadataBlockRef startBlock)
+	{
+		this.startBlock = 0;
+		this.startBlockRef = startBlock;
+	}
+
+	@Override
+	public MetadataBlockRef getStartBlockRef()
+	{
+		return startBlockRef;
 	}
 
 	@Override
@@ -119,6 +138,19 @@ public class ExtendedDirectoryINode extends AbstractINode
 		return indexCount != (short) 0;
 	}
 
+	@Override
+	public DirectoryIndex[] getIndexes()
+	{
+		return indexes;
+	}
+
+	@Override
+	public void setIndexes(DirectoryIndex[] indexes)
+	{
+		this.indexes = indexes;
+		this.indexCount = (short) indexes.length;
+	}
+
 	public int getXattrIndex()
 	{
 		return xattrIndex;
@@ -138,7 +170,11 @@ public class ExtendedDirectoryINode extends AbstractINode
 	@Override
 	protected int getChildSerializedSize()
 	{
-		return 24;
+		int size = 24;
+		for (DirectoryIndex index : indexes) {
+			size += index.getStructureSize();
+		}
+		return size;
 	}
 
 	@Override
@@ -164,6 +200,12 @@ public class ExtendedDirectoryINode extends AbstractINode
 		indexCount = in.readShort();
 		offset = in.readShort();
 		xattrIndex = in.readInt();
+
+		int count = indexCount & 0xffff;
+		indexes = count == 0 ? NO_INDEXES : new DirectoryIndex[count];
+		for (int i = 0; i < count; i++) {
+			indexes[i] = DirectoryIndex.read(in);
+		}
 	}
 
 	@Override
@@ -171,11 +213,18 @@ public class ExtendedDirectoryINode extends AbstractINode
 	{
 		out.writeInt(nlink);
 		out.writeInt(fileSize);
-		out.writeInt(startBlock);
+		if (startBlockRef != null) {
+			startBlockRef.writeLocation(out);
+		} else {
+			out.writeInt(startBlock);
+		}
 		out.writeInt(parentInodeNumber);
 		out.writeShort(indexCount);
 		out.writeShort(offset);
 		out.writeInt(xattrIndex);
+		for (DirectoryIndex index : indexes) {
+			index.writeData(out);
+		}
 	}
 
 	@Override
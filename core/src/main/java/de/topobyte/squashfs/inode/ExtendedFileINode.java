@@ -26,6 +26,7 @@ import java.io.DataInput;
 import java.io.IOException;
 
 import de.topobyte.squashfs.SquashFsException;
+import de.topobyte.squashfs.metadata.MetadataReader;
 import de.topobyte.squashfs.metadata.MetadataWriter;
 import de.topobyte.squashfs.superblock.SuperBlock;
 
@@ -40,6 +41,7 @@ public class ExtendedFileINode extends AbstractINode implements FileINode
 	int fragmentOffset = 0;
 	int xattrIndex = XATTR_NOT_PRESENT;
 	int[] blockSizes;
+	private volatile long[] blockOffsets = null;
 
 	@Override
 	public long getBlocksStart()
@@ -99,6 +101,18 @@ public class ExtendedFileINode extends AbstractINode implements FileINode
 	public void setBlockSizes(int[] blockSizes)
 	{
 		this.blockSizes = blockSizes;
+		this.blockOffsets = null;
+	}
+
+	@Override
+	public long getBlockOffset(int blockNum)
+	{
+		long[] offsets = blockOffsets;
+		if (offsets == null) {
+			offsets = BlockOffsets.compute(blockSizes);
+			blockOffsets = offsets;
+		}
+		return offsets[blockNum];
 	}
 
 	@Override
@@ -197,9 +211,14 @@ public class ExtendedFileINode extends AbstractINode implements FileINode
 
 		int blockCount = fullBlockCount(sb);
 		blockSizes = new int[blockCount];
-		for (int i = 0; i < blockCount; i++) {
-			blockSizes[i] = in.readInt();
+		if (in instanceof MetadataReader) {
+			((MetadataReader) in).readInts(blockSizes);
+		} else {
+			for (int i = 0; i < blockCount; i++) {
+				blockSizes[i] = in.readInt();
+			}
 		}
+		blockOffsets = null;
 	}
 
 	@Override
@@ -212,9 +231,7 @@ public class ExtendedFileINode extends AbstractINode implements FileINode
 		out.writeInt(fragmentBlockIndex);
 		out.writeInt(fragmentOffset);
 		out.writeInt(xattrIndex);
-		for (int bs : blockSizes) {
-			out.writeInt(bs);
-		}
+		out.writeInts(blockSizes);
 	}
 
 	@Override
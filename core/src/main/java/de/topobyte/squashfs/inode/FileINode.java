@@ -43,6 +43,13 @@ public interface FileINode extends INode
 
 	public void setBlockSizes(int[] blockSizes);
 
+	/**
+	 * Returns the offset of a data block relative to {@link #getBlocksStart()}.
+	 * The offsets are computed once per block list, so this is a constant time
+	 * lookup. Passing the block count returns the total size of all blocks.
+	 */
+	public long getBlockOffset(int blockNum);
+
 	public long getSparse();
 
 	public void setSparse(long sparse);
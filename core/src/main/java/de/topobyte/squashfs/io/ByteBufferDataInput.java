@@ -23,17 +23,26 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 public class ByteBufferDataInput implements DataInput
 {
 	private final ByteBuffer bb;
-	private final byte[] tb = new byte[8];
 
+	/**
+	 * Multi-byte values are read in big-endian order as specified by
+	 * {@link DataInput}, whatever the byte order of the buffer is.
+	 */
 	public ByteBufferDataInput(ByteBuffer buffer)
 	{
 		this.bb = buffer;
 	}
 
+	private boolean isBigEndian()
+	{
+		return bb.order() == ByteOrder.BIG_ENDIAN;
+	}
+
 	@Override
 	public void readFully(byte[] b) throws IOException
 	{
@@ -88,8 +97,12 @@ public class ByteBufferDataInput implements DataInput
 	@Override
 	public short readShort() throws IOException
 	{
-		readFully(tb, 0, 2);
-		return (short) ((tb[0] << 8) | (tb[1] & 0xff));
+		try {
+			short value = bb.getShort();
+			return isBigEndian() ? value : Short.reverseBytes(value);
+		} catch (BufferUnderflowException e) {
+			throw new EOFException();
+		}
 	}
 
 	@Override
@@ -101,26 +114,29 @@ public class ByteBufferDataInput implements DataInput
 	@Override
 	public char readChar() throws IOException
 	{
-		readFully(tb, 0, 2);
-		return (char) ((tb[0] << 8) | (tb[1] & 0xff));
+		return (char) readShort();
 	}
 
 	@Override
 	public int readInt() throws IOException
 	{
-		readFully(tb, 0, 4);
-		return (((tb[0] & 0xff) << 24) | ((tb[1] & 0xff) << 16)
-				| ((tb[2] & 0xff) << 8) | (tb[3] & 0xff));
+		try {
+			int value = bb.getInt();
+			return isBigEndian() ? value : Integer.reverseBytes(value);
+		} catch (BufferUnderflowException e) {
+			throw new EOFException();
+		}
 	}
 
 	@Override
 	public long readLong() throws IOException
 	{
-		readFully(tb, 0, 8);
-		return (((long) (tb[0] & 0xff) << 56) | ((long) (tb[1] & 0xff) << 48)
-				| ((long) (tb[2] & 0xff) << 40) | ((long) (tb[3] & 0xff) << 32)
-				| ((long) (tb[4] & 0xff) << 24) | ((long) (tb[5] & 0xff) << 16)
-				| ((long) (tb[6] & 0xff) << 8) | ((long) (tb[7] & 0xff)));
+		try {
+			long value = bb.getLong();
+			return isBigEndian() ? value : Long.reverseBytes(value);
+		} catch (BufferUnderflowException e) {
+			throw new EOFException();
+		}
 	}
 
 	@Override
@@ -0,0 +1,493 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.topobyte.squashfs.io;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.LongAdder;
+
+import de.topobyte.squashfs.data.DataBlock;
+import de.topobyte.squashfs.metadata.MetadataBlock;
+
+/**
+ * A second cache level on local disk for decompressed data and metadata
+ * blocks, which the in-memory caches spill their evicted blocks to.
+ *
+ * The cache file is memory mapped and used as a ring buffer: blocks are
+ * appended at the write position, and the oldest blocks are evicted as the
+ * write position wraps around and reaches them. The index is kept in memory
+ * only, so the file does not outlive the cache and is deleted on close.
+ *
+ * The index is split into independently locked stripes, and blocks are copied
+ * into and out of the file without holding any lock. A block that is read is
+ * checked to be still indexed once it has been copied, so that a copy that
+ * raced with the block being overwritten is treated as a miss.
+ */
+public class DiskBlockCache implements Closeable
+{
+
+	private static final int DEFAULT_SEGMENT_SIZE = 1 << 30;
+	private static final int STRIPES = 16;
+
+	private final File file;
+	private final RandomAccessFile raf;
+	private final long capacity;
+	private final int segmentSize;
+	private final MappedByteBuffer[] segments;
+	private final Stripe[] stripes = new Stripe[STRIPES];
+
+	// guards the write position and the slots in the order they have been
+	// written, oldest first
+	private final Object ring = new Object();
+	private final ArrayDeque<Slot> slots = new ArrayDeque<>();
+	private long writePosition = 0L;
+	private volatile boolean closed = false;
+
+	private final LongAdder load = new LongAdder();
+	private final LongAdder bytes = new LongAdder();
+	private final LongAdder cacheHits = new LongAdder();
+	private final LongAdder cacheMisses = new LongAdder();
+
+	/**
+	 * @param file
+	 *            the cache file, which is created or overwritten
+	 * @param maxBytes
+	 *            size of the cache file
+	 */
+	public DiskBlockCache(File file, long maxBytes) throws IOException
+	{
+		this(file, maxBytes, DEFAULT_SEGMENT_SIZE);
+	}
+
+	DiskBlockCache(File file, long maxBytes, int segmentSize)
+			throws IOException
+	{
+		if (maxBytes < 1) {
+			throw new IllegalArgumentException(
+					String.format("Invalid cache size %d", maxBytes));
+		}
+		this.file = file;
+		this.capacity = maxBytes;
+		this.segmentSize = segmentSize;
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Stripe();
+		}
+		raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(maxBytes);
+			int count = (int) ((maxBytes + segmentSize - 1) / segmentSize);
+			segments = new MappedByteBuffer[count];
+			for (int i = 0; i < count; i++) {
+				long start = (long) i * segmentSize;
+				segments[i] = raf.getChannel().map(MapMode.READ_WRITE, start,
+						Math.min(segmentSize, maxBytes - start));
+			}
+		} catch (IOException | RuntimeException e) {
+			raf.close();
+			throw e;
+		}
+	}
+
+	private static int hash(boolean metadata, int tag, long fileOffset)
+	{
+		long h = (fileOffset ^ ((long) tag << 48) ^ (metadata ? 1L << 47 : 0L))
+				* 0x9e3779b97f4a7c15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	private Stripe stripeFor(int hash)
+	{
+		return stripes[(hash >>> 28) & (STRIPES - 1)];
+	}
+
+	public void putDataBlock(int tag, long fileOffset, boolean compressed,
+			int dataSize, int expectedSize, DataBlock block)
+	{
+		Slot slot = new Slot(false, tag, fileOffset);
+		slot.compressed = compressed;
+		slot.dataSize = dataSize;
+		slot.expectedSize = expectedSize;
+		slot.logicalSize = block.getLogicalSize();
+		slot.physicalSize = block.getPhysicalSize();
+		if (!reserve(slot, block.getDataLength())) {
+			return;
+		}
+		try {
+			// copied without exposing the array of a pooled block
+			block.copyTo(0, segment(slot.position), slot.length);
+		} finally {
+			slot.written = true;
+		}
+		stripeFor(slot.hash).put(slot);
+	}
+
+	public DataBlock getDataBlock(int tag, long fileOffset, boolean compressed,
+			int dataSize, int expectedSize)
+	{
+		int hash = hash(false, tag, fileOffset);
+		Stripe stripe = stripeFor(hash);
+		Slot slot = stripe.get(hash, false, tag, fileOffset);
+		byte[] data = null;
+		if (slot != null && slot.compressed == compressed
+				&& slot.dataSize == dataSize
+				&& slot.expectedSize == expectedSize) {
+			data = load(stripe, slot);
+		}
+		if (data == null) {
+			cacheMisses.increment();
+			return null;
+		}
+		cacheHits.increment();
+		return new DataBlock(data, slot.logicalSize, slot.physicalSize);
+	}
+
+	public void putMetadataBlock(int tag, long fileOffset, MetadataBlock block)
+	{
+		Slot slot = new Slot(true, tag, fileOffset);
+		slot.header = block.getHeader();
+		slot.fileLength = block.getFileLength();
+		byte[] data = block.getData();
+		if (!reserve(slot, data.length)) {
+			return;
+		}
+		try {
+			segment(slot.position).put(data);
+		} finally {
+			slot.written = true;
+		}
+		stripeFor(slot.hash).put(slot);
+	}
+
+	public MetadataBlock getMetadataBlock(int tag, long fileOffset)
+	{
+		int hash = hash(true, tag, fileOffset);
+		Stripe stripe = stripeFor(hash);
+		Slot slot = stripe.get(hash, true, tag, fileOffset);
+		byte[] data = slot == null ? null : load(stripe, slot);
+		if (data == null) {
+			cacheMisses.increment();
+			return null;
+		}
+		cacheHits.increment();
+		return new MetadataBlock(slot.header, data, slot.fileLength);
+	}
+
+	/**
+	 * Reserves space for a slot at the write position, evicting the oldest
+	 * slots that overlap it. The caller copies the block into the space and
+	 * publishes the slot afterwards.
+	 *
+	 * @return false if the block is not cached, for example because the space
+	 *         is still being written by another thread
+	 */
+	private boolean reserve(Slot slot, int length)
+	{
+		if (closed || length > segmentSize || length > capacity) {
+			return false;
+		}
+		slot.length = length;
+		synchronized (ring) {
+			if (closed) {
+				return false;
+			}
+			// blocks never span two mappings, skip to the next one if needed
+			long start = writePosition;
+			long segmentEnd = Math.min(capacity,
+					(start / segmentSize + 1) * segmentSize);
+			if (start + slot.length > segmentEnd) {
+				start = segmentEnd == capacity ? 0L : segmentEnd;
+			}
+			long consumed = Math.min(capacity,
+					distance(writePosition, start) + slot.length);
+			int overlapping = 0;
+			for (Slot oldest : slots) {
+				if (distance(writePosition, oldest.position) >= consumed) {
+					break;
+				}
+				if (!oldest.written) {
+					return false;
+				}
+				overlapping++;
+			}
+			for (int i = 0; i < overlapping; i++) {
+				Slot oldest = slots.pollFirst();
+				stripeFor(oldest.hash).evict(oldest);
+			}
+
+			slot.position = start;
+			slot.live = true;
+			slots.addLast(slot);
+			writePosition = start + slot.length == capacity ? 0L
+					: start + slot.length;
+			return true;
+		}
+	}
+
+	/**
+	 * @return the slot's bytes, or null if it has been evicted before or
+	 *         while they were copied
+	 */
+	private byte[] load(Stripe stripe, Slot slot)
+	{
+		byte[] data = new byte[slot.length];
+		segment(slot.position).get(data);
+		return stripe.isLive(slot) ? data : null;
+	}
+
+	private long distance(long from, long to)
+	{
+		return to >= from ? to - from : capacity - from + to;
+	}
+
+	private ByteBuffer segment(long position)
+	{
+		ByteBuffer buffer = segments[(int) (position / segmentSize)]
+				.duplicate();
+		buffer.position((int) (position % segmentSize));
+		return buffer;
+	}
+
+	public long getCacheHits()
+	{
+		return cacheHits.sum();
+	}
+
+	public long getCacheMisses()
+	{
+		return cacheMisses.sum();
+	}
+
+	public int getCacheLoad()
+	{
+		return load.intValue();
+	}
+
+	/**
+	 * @return the number of bytes of blocks currently cached
+	 */
+	public long getCacheBytes()
+	{
+		return bytes.sum();
+	}
+
+	public long getCapacity()
+	{
+		return capacity;
+	}
+
+	public void resetStatistics()
+	{
+		cacheHits.reset();
+		cacheMisses.reset();
+	}
+
+	public void clearCache()
+	{
+		synchronized (ring) {
+			// slots stay in the ring until they are overwritten, since some
+			// of them may still be written to
+			for (Slot slot : slots) {
+				stripeFor(slot.hash).evict(slot);
+			}
+		}
+		resetStatistics();
+	}
+
+	/**
+	 * Closes and deletes the cache file. The mappings are released once they
+	 * are garbage collected.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		synchronized (ring) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			for (Slot slot : slots) {
+				stripeFor(slot.hash).evict(slot);
+			}
+			slots.clear();
+		}
+		raf.close();
+		file.delete();
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format(
+				"disk-block-cache { file=%s, capacity=%d, size=%d, bytes=%d, hits=%d, misses=%d }",
+				file, capacity, getCacheLoad(), getCacheBytes(),
+				getCacheHits(), getCacheMisses());
+	}
+
+	/**
+	 * A part of the index, a hash table of the slots whose keys fall into it.
+	 */
+	private final class Stripe
+	{
+
+		private Slot[] table = new Slot[16];
+		private int size = 0;
+
+		synchronized Slot get(int hash, boolean metadata, int tag,
+				long fileOffset)
+		{
+			Slot slot = table[hash & (table.length - 1)];
+			while (slot != null && !(slot.hash == hash
+					&& slot.matches(metadata, tag, fileOffset))) {
+				slot = slot.nextInBucket;
+			}
+			return slot;
+		}
+
+		synchronized boolean isLive(Slot slot)
+		{
+			return slot.live;
+		}
+
+		/**
+		 * Publishes a slot whose bytes have been written, replacing an older
+		 * slot of the same block.
+		 */
+		synchronized void put(Slot slot)
+		{
+			if (!slot.live) {
+				return;
+			}
+			int index = slot.hash & (table.length - 1);
+			for (Slot other = table[index]; other != null; other = other
+					.nextInBucket) {
+				if (other.hash == slot.hash && other.matches(slot.metadata,
+						slot.tag, slot.fileOffset)) {
+					remove(other);
+					break;
+				}
+			}
+			slot.nextInBucket = table[index];
+			table[index] = slot;
+			size++;
+			load.increment();
+			bytes.add(slot.length);
+			if (size > table.length - (table.length >>> 2)) {
+				resize();
+			}
+		}
+
+		synchronized void evict(Slot slot)
+		{
+			if (slot.live) {
+				remove(slot);
+			}
+		}
+
+		private void remove(Slot slot)
+		{
+			slot.live = false;
+			int index = slot.hash & (table.length - 1);
+			Slot prev = null;
+			Slot current = table[index];
+			while (current != null && current != slot) {
+				prev = current;
+				current = current.nextInBucket;
+			}
+			if (current == null) {
+				// not published yet
+				return;
+			}
+			if (prev == null) {
+				table[index] = slot.nextInBucket;
+			} else {
+				prev.nextInBucket = slot.nextInBucket;
+			}
+			size--;
+			load.decrement();
+			bytes.add(-slot.length);
+		}
+
+		private void resize()
+		{
+			Slot[] newTable = new Slot[table.length * 2];
+			for (Slot bucket : table) {
+				Slot slot = bucket;
+				while (slot != null) {
+					Slot next = slot.nextInBucket;
+					int index = slot.hash & (newTable.length - 1);
+					slot.nextInBucket = newTable[index];
+					newTable[index] = slot;
+					slot = next;
+				}
+			}
+			table = newTable;
+		}
+
+	}
+
+	private static final class Slot
+	{
+
+		final boolean metadata;
+		final int tag;
+		final long fileOffset;
+		final int hash;
+		long position;
+		int length;
+
+		// guarded by the slot's stripe, false once the slot has been evicted
+		boolean live;
+		// whether the bytes have been copied into the file
+		volatile boolean written;
+		Slot nextInBucket;
+
+		// data blocks
+		boolean compressed;
+		int dataSize;
+		int expectedSize;
+		int logicalSize;
+		int physicalSize;
+
+		// metadata blocks
+		short header;
+		short fileLength;
+
+		Slot(boolean metadata, int tag, long fileOffset)
+		{
+			this.metadata = metadata;
+			this.tag = tag;
+			this.fileOffset = fileOffset;
+			this.hash = DiskBlockCache.hash(metadata, tag, fileOffset);
+		}
+
+		boolean matches(boolean metadata, int tag, long fileOffset)
+		{
+			return this.fileOffset == fileOffset && this.tag == tag
+					&& this.metadata == metadata;
+		}
+
+	}
+
+}
@@ -23,19 +23,14 @@ import static de.topobyte.squashfs.util.BinUtils.DumpOptions.BINARY;
 import static de.topobyte.squashfs.util.BinUtils.DumpOptions.DECIMAL;
 import static de.topobyte.squashfs.util.BinUtils.DumpOptions.UNSIGNED;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.DataInput;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.zip.Inflater;
-import java.util.zip.InflaterInputStream;
-
-import com.github.luben.zstd.ZstdInputStream;
+import java.util.Arrays;
 
+import de.topobyte.squashfs.CompressionUtil;
 import de.topobyte.squashfs.SquashFsException;
-import de.topobyte.squashfs.compression.SuperBlockFlag;
 import de.topobyte.squashfs.superblock.SuperBlock;
 
 public class MetadataBlock
@@ -46,10 +41,23 @@ public class MetadataBlock
 
 	private static final byte[] EMPTY = new byte[0];
 
+	private static final ThreadLocal<byte[]> SOURCE = new ThreadLocal<>();
+
 	protected short header;
 	protected byte[] data = EMPTY;
 	protected short fileLength = 0;
 
+	public MetadataBlock()
+	{
+	}
+
+	public MetadataBlock(short header, byte[] data, short fileLength)
+	{
+		this.header = header;
+		this.data = data;
+		this.fileLength = fileLength;
+	}
+
 	public static MetadataReader reader(MetadataBlockReader metaReader,
 			MetadataReference metaRef) throws IOException
 	{
@@ -69,6 +77,11 @@ public class MetadataBlock
 		return data;
 	}
 
+	public short getHeader()
+	{
+		return header;
+	}
+
 	public short getDataSize()
 	{
 		return (short) (header & 0x7fff);
@@ -125,94 +138,29 @@ public class MetadataBlock
 	private int readCompressed(DataInput in, SuperBlock sb)
 			throws IOException, SquashFsException
 	{
-		switch (sb.getCompression().getCompressionId()) {
-		case NONE:
-			throw new SquashFsException(
-					"Archive claims no compression, but found compressed data");
-		case ZLIB:
-			return readCompressedZlib(in, sb);
-		case ZSTD:
-			return readCompressedZstd(in, sb);
-		default:
-			throw new UnsupportedOperationException(String.format(
-					"Reading compressed data of type %s not yet supported",
-					sb.getCompression()));
-		}
-	}
-
-	private int readCompressedZlib(DataInput in, SuperBlock sb)
-			throws IOException, SquashFsException
-	{
-		// see if there are compression flags
-		if (sb.hasFlag(SuperBlockFlag.COMPRESSOR_OPTIONS)) {
-			throw new UnsupportedOperationException(
-					"Reading ZLIB compressed data with non-standard options not yet supported");
-		}
-
 		int dataSize = getDataSize();
-		byte[] buf = new byte[dataSize];
-		in.readFully(buf);
-
-		byte[] xfer = new byte[MAX_SIZE];
-		try (ByteArrayInputStream bis = new ByteArrayInputStream(buf)) {
-			try (InflaterInputStream iis = new InflaterInputStream(bis,
-					new Inflater(), MAX_SIZE)) {
-				try (ByteArrayOutputStream bos = new ByteArrayOutputStream(
-						MAX_SIZE)) {
-					int c = 0;
-					while ((c = iis.read(xfer, 0, MAX_SIZE)) >= 0) {
-						if (c > 0) {
-							bos.write(xfer, 0, c);
-						}
-					}
-					data = bos.toByteArray();
-					if (data.length > MAX_SIZE) {
-						throw new SquashFsException(String.format(
-								"Corrupt metadata block: Got size %d (max = %d)",
-								data.length, MAX_SIZE));
-					}
-				}
-			}
-		}
-
+		byte[] buf = sourceBuffer(dataSize);
+		in.readFully(buf, 0, dataSize);
+
+		byte[] decompressed = new byte[MAX_SIZE];
+		int size = CompressionUtil.decompress(sb.getCompression(), buf, 0,
+				dataSize, decompressed, MAX_SIZE);
+		data = size == MAX_SIZE ? decompressed
+				: Arrays.copyOf(decompressed, size);
 		return dataSize;
 	}
 
-	private int readCompressedZstd(DataInput in, SuperBlock sb)
-			throws IOException, SquashFsException
+	private static byte[] sourceBuffer(int size)
 	{
-		// see if there are compression flags
-		if (sb.hasFlag(SuperBlockFlag.COMPRESSOR_OPTIONS)) {
-			throw new UnsupportedOperationException(
-					"Reading Zstd compressed data with non-standard options not yet supported");
+		if (size > MAX_SIZE) {
+			return new byte[size];
 		}
-
-		int dataSize = getDataSize();
-		byte[] buf = new byte[dataSize];
-		in.readFully(buf);
-
-		byte[] xfer = new byte[MAX_SIZE];
-		try (ByteArrayInputStream bis = new ByteArrayInputStream(buf)) {
-			try (ZstdInputStream zis = new ZstdInputStream(bis)) {
-				try (ByteArrayOutputStream bos = new ByteArrayOutputStream(
-						MAX_SIZE)) {
-					int c = 0;
-					while ((c = zis.read(xfer, 0, MAX_SIZE)) >= 0) {
-						if (c > 0) {
-							bos.write(xfer, 0, c);
-						}
-					}
-					data = bos.toByteArray();
-					if (data.length > MAX_SIZE) {
-						throw new SquashFsException(String.format(
-								"Corrupt metadata block: Got size %d (max = %d)",
-								data.length, MAX_SIZE));
-					}
-				}
-			}
+		byte[] buf = SOURCE.get();
+		if (buf == null) {
+			buf = new byte[MAX_SIZE];
+			SOURCE.set(buf);
 		}
-
-		return dataSize;
+		return buf;
 	}
 
 	@Override
@@ -19,13 +19,17 @@
 package de.topobyte.squashfs.metadata;
 
 import java.io.IOException;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Objects;
 import java.util.concurrent.atomic.AtomicLong;
 
 import de.topobyte.squashfs.SquashFsException;
+import de.topobyte.squashfs.io.DiskBlockCache;
 import de.topobyte.squashfs.superblock.SuperBlock;
+import de.topobyte.squashfs.util.CacheBypass;
+import de.topobyte.squashfs.util.CachePolicy;
+import de.topobyte.squashfs.util.FrequencySketch;
 
 public class MetadataBlockCache implements MetadataBlockReader
 {
@@ -35,7 +39,16 @@ public class MetadataBlockCache implements MetadataBlockReader
 	private final int cacheSize;
 	private final TaggedMetadataBlockReader reader;
 	private final boolean shouldClose;
-	private final LruBlockCache cache;
+	private final CachePolicy policy;
+	private final int windowSize;
+	private final int mainSize;
+	// access ordered, only used by TINY_LFU caches
+	private final LinkedHashMap<Key, MetadataBlock> window = new LinkedHashMap<>(
+			16, 0.75f, true);
+	private final LinkedHashMap<Key, MetadataBlock> cache = new LinkedHashMap<>(
+			16, 0.75f, true);
+	private final FrequencySketch sketch;
+	private volatile DiskBlockCache diskCache = null;
 	private final AtomicLong cacheHits = new AtomicLong(0L);
 	private final AtomicLong cacheMisses = new AtomicLong(0L);
 
@@ -57,11 +70,27 @@ public class MetadataBlockCache implements MetadataBlockReader
 
 	public MetadataBlockCache(TaggedMetadataBlockReader reader, int cacheSize,
 			boolean shouldClose)
+	{
+		this(reader, cacheSize, shouldClose, CachePolicy.LRU);
+	}
+
+	public MetadataBlockCache(TaggedMetadataBlockReader reader, int cacheSize,
+			boolean shouldClose, CachePolicy policy)
 	{
 		this.cacheSize = cacheSize;
 		this.reader = reader;
-		this.cache = new LruBlockCache(cacheSize < 1 ? 1 : cacheSize);
 		this.shouldClose = shouldClose;
+		this.policy = policy;
+		int capacity = cacheSize < 1 ? 1 : cacheSize;
+		if (policy == CachePolicy.TINY_LFU) {
+			windowSize = Math.max(1, capacity / 100);
+			mainSize = capacity - windowSize;
+			sketch = new FrequencySketch(capacity);
+		} else {
+			windowSize = 0;
+			mainSize = capacity;
+			sketch = null;
+		}
 	}
 
 	public synchronized void add(int tag, MetadataBlockReader reader)
@@ -80,26 +109,117 @@ public class MetadataBlockCache implements MetadataBlockReader
 			throws IOException, SquashFsException
 	{
 		Key key = new Key(tag, fileOffset);
+		boolean bypass = CacheBypass.isActive();
 
 		MetadataBlock block;
 
 		synchronized (this) {
+			if (sketch != null && !bypass) {
+				sketch.increment(key.hashCode());
+			}
 			block = cache.get(key);
+			if (block == null && sketch != null) {
+				block = window.get(key);
+			}
 		}
 
 		if (block != null) {
 			cacheHits.incrementAndGet();
 		} else {
 			cacheMisses.incrementAndGet();
-			block = reader.read(tag, fileOffset);
-			synchronized (this) {
-				cache.put(key, block);
+			DiskBlockCache disk = diskCache;
+			if (disk != null) {
+				block = disk.getMetadataBlock(tag, fileOffset);
+			}
+			if (block == null) {
+				block = reader.read(tag, fileOffset);
+			}
+			if (!bypass) {
+				Map.Entry<Key, MetadataBlock> evicted;
+				synchronized (this) {
+					evicted = insert(key, block);
+				}
+				// spill without holding the cache lock
+				if (evicted != null) {
+					spill(evicted);
+				}
 			}
 		}
 
 		return block;
 	}
 
+	/**
+	 * @return the evicted entry, or null
+	 */
+	private Map.Entry<Key, MetadataBlock> insert(Key key, MetadataBlock block)
+	{
+		if (sketch == null) {
+			cache.put(key, block);
+			if (cache.size() > mainSize) {
+				return removeEldest(cache);
+			}
+			return null;
+		}
+		if (cache.containsKey(key)) {
+			cache.put(key, block);
+			return null;
+		}
+		window.put(key, block);
+		if (window.size() <= windowSize) {
+			return null;
+		}
+		Map.Entry<Key, MetadataBlock> candidate = removeEldest(window);
+		if (cache.size() < mainSize) {
+			cache.put(candidate.getKey(), candidate.getValue());
+			return null;
+		}
+		if (mainSize == 0) {
+			return candidate;
+		}
+		Key victim = cache.keySet().iterator().next();
+		if (sketch.frequency(candidate.getKey().hashCode()) > sketch
+				.frequency(victim.hashCode())) {
+			Map.Entry<Key, MetadataBlock> evicted = removeEldest(cache);
+			cache.put(candidate.getKey(), candidate.getValue());
+			return evicted;
+		}
+		return candidate;
+	}
+
+	private void spill(Map.Entry<Key, MetadataBlock> entry)
+	{
+		DiskBlockCache disk = diskCache;
+		if (disk != null) {
+			disk.putMetadataBlock(entry.getKey().tag, entry.getKey().fileOffset,
+					entry.getValue());
+		}
+	}
+
+	/**
+	 * Attaches a second cache level that evicted blocks are written to, or
+	 * detaches it if null. The disk cache is not closed by this cache.
+	 */
+	public void setDiskCache(DiskBlockCache diskCache)
+	{
+		this.diskCache = diskCache;
+	}
+
+	public DiskBlockCache getDiskCache()
+	{
+		return diskCache;
+	}
+
+	private static Map.Entry<Key, MetadataBlock> removeEldest(
+			LinkedHashMap<Key, MetadataBlock> map)
+	{
+		Iterator<Map.Entry<Key, MetadataBlock>> iterator = map.entrySet()
+				.iterator();
+		Map.Entry<Key, MetadataBlock> eldest = iterator.next();
+		iterator.remove();
+		return eldest;
+	}
+
 	@Override
 	public void close() throws IOException
 	{
@@ -108,6 +228,11 @@ public class MetadataBlockCache implements MetadataBlockReader
 		}
 	}
 
+	public CachePolicy getPolicy()
+	{
+		return policy;
+	}
+
 	public long getCacheHits()
 	{
 		return cacheHits.get();
@@ -120,7 +245,7 @@ public class MetadataBlockCache implements MetadataBlockReader
 
 	public synchronized int getCacheLoad()
 	{
-		return cache.size();
+		return cache.size() + window.size();
 	}
 
 	public void resetStatistics()
@@ -132,6 +257,7 @@ public class MetadataBlockCache implements MetadataBlockReader
 	public synchronized void clearCache()
 	{
 		cache.clear();
+		window.clear();
 		resetStatistics();
 	}
 
@@ -139,8 +265,8 @@ public class MetadataBlockCache implements MetadataBlockReader
 	public String toString()
 	{
 		return String.format(
-				"metadata-block-cache { capacity=%d, size=%d, hits=%d, misses=%d }",
-				cacheSize, getCacheLoad(), getCacheHits(), getCacheMisses());
+				"metadata-block-cache { policy=%s, capacity=%d, size=%d, hits=%d, misses=%d }",
+				policy, cacheSize, getCacheLoad(), getCacheHits(), getCacheMisses());
 	}
 
 	public static final class Key
@@ -158,7 +284,8 @@ public class MetadataBlockCache implements MetadataBlockReader
 		@Override
 		public int hashCode()
 		{
-			return Objects.hash(tag, fileOffset);
+			long h = (fileOffset ^ ((long) tag << 48)) * 0x9e3779b97f4a7c15L;
+			return (int) (h ^ (h >>> 32));
 		}
 
 		@Override
@@ -179,25 +306,4 @@ public class MetadataBlockCache implements MetadataBlockReader
 		}
 	}
 
-	private static class LruBlockCache extends LinkedHashMap<Key, MetadataBlock>
-	{
-
-		private static final long serialVersionUID = 7509410739092012261L;
-
-		private final int cacheSize;
-
-		public LruBlockCache(int cacheSize)
-		{
-			super(16, 0.75f, true);
-			this.cacheSize = cacheSize;
-		}
-
-		@Override
-		protected boolean removeEldestEntry(
-				Map.Entry<Key, MetadataBlock> eldest)
-		{
-			return size() > cacheSize;
-		}
-
-	}
 }
@@ -23,6 +23,7 @@ import java.io.IOException;
 
 import de.topobyte.squashfs.SquashFsException;
 import de.topobyte.squashfs.directory.DirectoryEntry;
+import de.topobyte.squashfs.directory.DirectoryIndex;
 import de.topobyte.squashfs.inode.DirectoryINode;
 import de.topobyte.squashfs.superblock.SuperBlock;
 
@@ -66,4 +67,11 @@ public interface MetadataBlockReader extends Closeable
 				MetadataReference.directory(tag, getSuperBlock(tag), dir));
 	}
 
+	public default MetadataReader directoryReader(int tag, DirectoryINode dir,
+			DirectoryIndex index) throws IOException, SquashFsException
+	{
+		return reader(MetadataReference.directory(tag, getSuperBlock(tag), dir,
+				index));
+	}
+
 }
@@ -18,22 +18,61 @@
 
 package de.topobyte.squashfs.metadata;
 
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
 import de.topobyte.squashfs.inode.INodeRef;
 
+/**
+ * Location of a byte within a stream of metadata blocks.
+ *
+ * References obtained from a {@link MetadataWriter} record the index of the
+ * uncompressed block, as the location of a block is only known once all
+ * blocks before it have been compressed. Such references are resolved on
+ * demand; {@link #writeLocation(DataOutput)} lets a writer fill in the
+ * location once it is known, without waiting for it.
+ */
 public class MetadataBlockRef
 {
 
-	private final int location;
+	private int location;
 	private final short offset;
+	private final MetadataWriter writer;
+	private final int block;
+	private boolean resolved;
 
 	public MetadataBlockRef(int location, short offset)
 	{
 		this.location = location;
 		this.offset = offset;
+		this.writer = null;
+		this.block = -1;
+		this.resolved = true;
+	}
+
+	MetadataBlockRef(MetadataWriter writer, int block, short offset)
+	{
+		this.offset = offset;
+		this.writer = writer;
+		this.block = block;
+		this.resolved = false;
 	}
 
+	/**
+	 * Returns the location of the block, waiting for the blocks before it to
+	 * be compressed if necessary.
+	 */
 	public int getLocation()
 	{
+		if (!resolved) {
+			try {
+				location = writer.getBlockLocation(block);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			resolved = true;
+		}
 		return location;
 	}
 
@@ -42,21 +81,71 @@ public class MetadataBlockRef
 		return offset;
 	}
 
+	/**
+	 * @return the index of the block within the writer that created this
+	 *         reference, or -1 if it was created from a known location
+	 */
+	public int getBlock()
+	{
+		return block;
+	}
+
+	/**
+	 * @return whether the location is available without waiting
+	 */
+	public boolean isResolved()
+	{
+		if (!resolved && writer.isBlockLocationKnown(block)) {
+			getLocation();
+		}
+		return resolved;
+	}
+
+	/**
+	 * @return whether both references point into the same metadata block
+	 */
+	public boolean isSameBlock(MetadataBlockRef other)
+	{
+		if (writer != null && writer == other.writer) {
+			return block == other.block;
+		}
+		return getLocation() == other.getLocation();
+	}
+
+	/**
+	 * Writes the location as an int. If the output is a
+	 * {@link MetadataWriter} and the location is not known yet, a placeholder
+	 * is written and filled in before the block holding it is compressed.
+	 */
+	public void writeLocation(DataOutput out) throws IOException
+	{
+		if (!isResolved() && out instanceof MetadataWriter) {
+			((MetadataWriter) out).writeLocation(writer, block);
+		} else {
+			out.writeInt(getLocation());
+		}
+	}
+
 	@Override
 	public String toString()
 	{
+		if (!isResolved()) {
+			return String.format(
+					"metadata-block-ref { block=%d, offset=%d }", block,
+					offset);
+		}
 		return String.format("metadata-block-ref { location=%d, offset=%d }",
 				location, offset);
 	}
 
 	public INodeRef toINodeRef()
 	{
-		return new INodeRef(location, offset);
+		return new INodeRef(getLocation(), offset);
 	}
 
 	public long toINodeRefRaw()
 	{
-		return ((long) (location & 0xffffffffL) << 16)
+		return ((long) (getLocation() & 0xffffffffL) << 16)
 				| ((long) (offset & 0xffffL));
 	}
 
@@ -42,6 +42,7 @@ public class MetadataReader implements DataInput
 	private long nextBlockLocation;
 	private int position = -1;
 	private int bytesRead = 0;
+	private final byte[] tb = new byte[4];
 
 	MetadataReader(MetadataBlockReader blockReader, MetadataReference metaRef)
 			throws IOException
@@ -198,13 +199,31 @@ public class MetadataReader implements DataInput
 		return readByte() & 0xff;
 	}
 
+	/**
+	 * @return whether n bytes can be read directly from the current block
+	 */
+	private boolean hasContiguous(int n) throws IOException
+	{
+		return bytesAvailable() >= n;
+	}
+
+	private void advance(int n)
+	{
+		position += n;
+		bytesRead += n;
+	}
+
 	@Override
 	public short readShort() throws IOException
 	{
-		byte[] buf = new byte[2];
-		readFully(buf);
-		short value = (short) ((buf[0] << 8) | (buf[1] & 0xff));
-		return Short.reverseBytes(value);
+		if (hasContiguous(2)) {
+			byte[] d = block.data;
+			int p = position;
+			advance(2);
+			return (short) ((d[p] & 0xff) | (d[p + 1] << 8));
+		}
+		readFully(tb, 0, 2);
+		return (short) ((tb[0] & 0xff) | (tb[1] << 8));
 	}
 
 	@Override
@@ -216,35 +235,52 @@ public class MetadataReader implements DataInput
 	@Override
 	public char readChar() throws IOException
 	{
-		byte[] buf = new byte[2];
-		readFully(buf);
-		char value = (char) ((buf[0] << 8) | (buf[1] & 0xff));
-		return Character.reverseBytes(value);
+		return (char) readShort();
 	}
 
 	@Override
 	public int readInt() throws IOException
 	{
-		byte[] buf = new byte[4];
-		readFully(buf);
-		int value = (((buf[0] & 0xff) << 24) | ((buf[1] & 0xff) << 16)
-				| ((buf[2] & 0xff) << 8) | (buf[3] & 0xff));
-		return Integer.reverseBytes(value);
+		if (hasContiguous(4)) {
+			byte[] d = block.data;
+			int p = position;
+			advance(4);
+			return (d[p] & 0xff) | ((d[p + 1] & 0xff) << 8)
+					| ((d[p + 2] & 0xff) << 16) | (d[p + 3] << 24);
+		}
+		readFully(tb, 0, 4);
+		return (tb[0] & 0xff) | ((tb[1] & 0xff) << 8)
+				| ((tb[2] & 0xff) << 16) | (tb[3] << 24);
+	}
+
+	/**
+	 * Reads a run of ints, such as the block list of a file.
+	 */
+	public void readInts(int[] values) throws IOException
+	{
+		int i = 0;
+		while (i < values.length) {
+			int run = Math.min(values.length - i, bytesAvailable() / 4);
+			if (run <= 0) {
+				values[i++] = readInt();
+				continue;
+			}
+			byte[] d = block.data;
+			int p = position;
+			for (int end = i + run; i < end; i++, p += 4) {
+				values[i] = (d[p] & 0xff) | ((d[p + 1] & 0xff) << 8)
+						| ((d[p + 2] & 0xff) << 16) | (d[p + 3] << 24);
+			}
+			advance(run * 4);
+		}
 	}
 
 	@Override
 	public long readLong() throws IOException
 	{
-		byte[] buf = new byte[8];
-		readFully(buf);
-		long value = (((long) (buf[0] & 0xff) << 56)
-				| ((long) (buf[1] & 0xff) << 48)
-				| ((long) (buf[2] & 0xff) << 40)
-				| ((long) (buf[3] & 0xff) << 32)
-				| ((long) (buf[4] & 0xff) << 24)
-				| ((long) (buf[5] & 0xff) << 16) | ((long) (buf[6] & 0xff) << 8)
-				| (buf[7] & 0xff));
-		return Long.reverseBytes(value);
+		long low = readInt() & 0xffffffffL;
+		long high = readInt();
+		return (high << 32) | low;
 	}
 
 	@Override
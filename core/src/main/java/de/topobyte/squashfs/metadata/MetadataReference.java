@@ -24,6 +24,7 @@ import static de.topobyte.squashfs.util.BinUtils.DumpOptions.UNSIGNED;
 
 import de.topobyte.squashfs.SquashFsException;
 import de.topobyte.squashfs.directory.DirectoryEntry;
+import de.topobyte.squashfs.directory.DirectoryIndex;
 import de.topobyte.squashfs.inode.DirectoryINode;
 import de.topobyte.squashfs.superblock.SuperBlock;
 
@@ -118,6 +119,28 @@ public class MetadataReference
 				dir.getFileSize() - 3);
 	}
 
+	/**
+	 * Creates a reference to the part of a directory listing starting at the
+	 * directory header the given index entry points to.
+	 */
+	public static MetadataReference directory(int tag, SuperBlock sb,
+			DirectoryINode dir, DirectoryIndex index) throws SquashFsException
+	{
+		int listingSize = dir.getFileSize() - 3;
+		if (index.getIndex() < 0 || index.getIndex() >= listingSize) {
+			throw new SquashFsException(String.format(
+					"Invalid directory index with offset %d (listing size = %d)",
+					index.getIndex(), listingSize));
+		}
+		long dirBlockRel = index.getStartBlock() & 0xffffffffL;
+		long dirBlock = sb.getDirectoryTableStart() + dirBlockRel;
+		short dirOffset = (short) (((dir.getOffset() & 0x7fff)
+				+ index.getIndex()) % MetadataBlock.MAX_SIZE);
+
+		return new MetadataReference(tag, dirBlock, dirOffset,
+				listingSize - index.getIndex());
+	}
+
 	public int getTag()
 	{
 		return tag;
@@ -18,50 +18,229 @@
 
 package de.topobyte.squashfs.metadata;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.DataOutput;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.List;
-import java.util.zip.Deflater;
-import java.util.zip.DeflaterOutputStream;
+import java.util.Map;
 
 import de.topobyte.squashfs.CompressionUtil;
 import de.topobyte.squashfs.compression.Compression;
-import de.topobyte.squashfs.compression.ZstdCompression;
+import de.topobyte.squashfs.data.CompressionPipeline;
 
-public class MetadataWriter implements DataOutput
+/**
+ * Writes a stream of metadata blocks.
+ *
+ * If a {@link CompressionPipeline} is given, full blocks are compressed on its
+ * worker threads and committed in order. References returned by
+ * {@link #getCurrentReference()} record the index of the uncompressed block,
+ * so taking one never waits for compression. Locations of other metadata
+ * streams written via {@link MetadataBlockRef#writeLocation} are filled in
+ * once known; a block is only compressed after all of its locations have been
+ * filled in.
+ *
+ * Encoded blocks are kept in memory until they exceed the spill threshold,
+ * after which they are streamed to a temporary file until {@link #save} copies
+ * them to the output.
+ */
+public class MetadataWriter implements DataOutput, Closeable
 {
 
+	public static final long DEFAULT_SPILL_THRESHOLD = 64L * 1024 * 1024;
+
 	private final Compression compression;
+	private final CompressionPipeline pipeline;
 
 	private final byte[] xfer = new byte[1];
-	private final byte[] currentBlock = new byte[8192];
+	private byte[] currentBlock = new byte[MetadataBlock.MAX_SIZE];
+	private Block current = null;
+	private final Deque<byte[]> freeBlocks = new ArrayDeque<>();
 	private final List<byte[]> blocks = new ArrayList<>();
+	private long bufferedBytes = 0L;
+	private long spillThreshold = DEFAULT_SPILL_THRESHOLD;
+	private File spillFile = null;
+	private OutputStream spill = null;
 	private long location = 0L;
 	private int offset = 0;
 
+	private int flushedBlocks = 0;
+	private int committedBlocks = 0;
+	private int[] blockLocations = new int[64];
+	private final Map<Integer, byte[]> encodedBlocks = new HashMap<>();
+	private final Map<Integer, List<Patch>> patches = new HashMap<>();
+
 	public MetadataWriter(Compression compression)
+	{
+		this(compression, null);
+	}
+
+	/**
+	 * @param pipeline
+	 *            pipeline to compress blocks on, or null to compress them on
+	 *            the calling thread
+	 */
+	public MetadataWriter(Compression compression,
+			CompressionPipeline pipeline)
 	{
 		this.compression = compression;
+		this.pipeline = pipeline;
+	}
+
+	/**
+	 * Sets the number of encoded bytes kept in memory before blocks are moved
+	 * to a temporary file.
+	 */
+	public void setSpillThreshold(long spillThreshold)
+	{
+		if (spillThreshold < 0) {
+			throw new IllegalArgumentException(String.format(
+					"Invalid spill threshold %d (min 0)", spillThreshold));
+		}
+		this.spillThreshold = spillThreshold;
+	}
+
+	public long getSpillThreshold()
+	{
+		return spillThreshold;
+	}
+
+	/**
+	 * @return whether blocks have been moved to a temporary file
+	 */
+	public boolean isSpilled()
+	{
+		return spillFile != null;
 	}
 
 	public void save(DataOutput out) throws IOException
 	{
 		flush();
+		getBlockLocation(flushedBlocks);
+		if (spill != null) {
+			spill.close();
+			spill = null;
+			try (InputStream in = new FileInputStream(spillFile)) {
+				byte[] buf = new byte[65536];
+				int c;
+				while ((c = in.read(buf)) >= 0) {
+					out.write(buf, 0, c);
+				}
+			}
+			deleteSpillFile();
+		}
 		for (byte[] block : blocks) {
 			out.write(block);
 		}
 		location = 0L;
-		offset = 0;
+		blockLocations[committedBlocks] = 0;
 		blocks.clear();
+		bufferedBytes = 0L;
+	}
+
+	/**
+	 * Deletes the temporary file, if any. Blocks that have not been saved yet
+	 * are lost.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		if (spill != null) {
+			spill.close();
+			spill = null;
+		}
+		deleteSpillFile();
+		blocks.clear();
+	}
+
+	private void deleteSpillFile()
+	{
+		if (spillFile != null) {
+			spillFile.delete();
+			spillFile = null;
+		}
 	}
 
 	public MetadataBlockRef getCurrentReference()
 	{
-		return new MetadataBlockRef((int) (location & 0xffffffff),
-				(short) offset);
+		return getReference(flushedBlocks, (short) offset);
+	}
+
+	/**
+	 * Recreates a reference from the block index and offset of one obtained
+	 * from {@link #getCurrentReference()}.
+	 */
+	public MetadataBlockRef getReference(int block, short offset)
+	{
+		if (block < 0 || block > flushedBlocks) {
+			throw new IllegalArgumentException(
+					String.format("Invalid block index %d", block));
+		}
+		return new MetadataBlockRef(this, block, offset);
+	}
+
+	boolean isBlockLocationKnown(int block)
+	{
+		return block <= committedBlocks;
+	}
+
+	/**
+	 * Returns the location of the given block, committing compressed blocks
+	 * until it is known.
+	 */
+	public int getBlockLocation(int block) throws IOException
+	{
+		if (block < 0 || block > flushedBlocks) {
+			throw new IllegalArgumentException(
+					String.format("Invalid block index %d", block));
+		}
+		if (block > committedBlocks && pipeline != null) {
+			pipeline.drainUntil(() -> block <= committedBlocks);
+		}
+		if (block > committedBlocks) {
+			throw new IllegalStateException(String.format(
+					"Location of metadata block %d is not known", block));
+		}
+		return blockLocations[block];
+	}
+
+	/**
+	 * Writes a placeholder for the location of a block of another writer,
+	 * which is filled in once that location is known.
+	 */
+	void writeLocation(MetadataWriter target, int block) throws IOException
+	{
+		Patch patch = new Patch(block(), offset);
+		patches(target, block).add(patch);
+		patch.first.waits++;
+		writeInt(0);
+		if (patch.offset + 4 > MetadataBlock.MAX_SIZE) {
+			patch.second = block();
+			patch.second.waits++;
+		}
+	}
+
+	private static List<Patch> patches(MetadataWriter target, int block)
+	{
+		return target.patches.computeIfAbsent(block, k -> new ArrayList<>(1));
+	}
+
+	private Block block()
+	{
+		if (current == null) {
+			current = new Block(flushedBlocks);
+		}
+		return current;
 	}
 
 	@Override
@@ -76,7 +255,62 @@ public class MetadataWriter implements DataOutput
 			return;
 		}
 
-		byte[] compressed = compress(currentBlock, 0, offset);
+		Block block = block();
+		block.data = currentBlock;
+		block.length = offset;
+		current = null;
+		flushedBlocks++;
+		offset = 0;
+
+		byte[] next = freeBlocks.pollFirst();
+		currentBlock = next == null ? new byte[MetadataBlock.MAX_SIZE] : next;
+
+		if (block.waits == 0) {
+			submit(block);
+		}
+	}
+
+	private void submit(Block block) throws IOException
+	{
+		if (pipeline == null) {
+			complete(block, compress(block.data, 0, block.length));
+			return;
+		}
+		pipeline.submit(() -> compress(block.data, 0, block.length),
+				compressed -> complete(block, compressed));
+	}
+
+	private void complete(Block block, byte[] compressed) throws IOException
+	{
+		encodedBlocks.put(block.index,
+				encode(block.data, block.length, compressed));
+		freeBlocks.addFirst(block.data);
+		block.data = null;
+
+		byte[] encoded;
+		while ((encoded = encodedBlocks.remove(committedBlocks)) != null) {
+			store(encoded);
+			location += encoded.length;
+			committedBlocks++;
+			if (committedBlocks == blockLocations.length) {
+				blockLocations = Arrays.copyOf(blockLocations,
+						committedBlocks * 2);
+			}
+			int blockLocation = (int) (location & 0xffffffff);
+			blockLocations[committedBlocks] = blockLocation;
+
+			// may complete blocks of other writers, or of this one
+			List<Patch> resolved = patches.remove(committedBlocks);
+			if (resolved != null) {
+				for (Patch patch : resolved) {
+					patch.apply(blockLocation);
+				}
+			}
+		}
+	}
+
+	private byte[] encode(byte[] block, int length, byte[] compressed)
+	{
 		byte[] encoded;
 		int size;
 
@@ -85,71 +319,106 @@ public class MetadataWriter implements DataOutput
 			encoded = new byte[compressed.length + 2];
 			System.arraycopy(compressed, 0, encoded, 2, compressed.length);
 		} else {
-			size = (offset & 0x7fff) | 0x8000;
-			encoded = new byte[offset + 2];
-			System.arraycopy(currentBlock, 0, encoded, 2, offset);
+			size = (length & 0x7fff) | 0x8000;
+			encoded = new byte[length + 2];
+			System.arraycopy(block, 0, encoded, 2, length);
 		}
 
 		encoded[0] = (byte) (size & 0xff);
 		encoded[1] = (byte) ((size >> 8) & 0xff);
+		return encoded;
+	}
 
-		blocks.add(encoded);
-		location += encoded.length;
-		offset = 0;
+	private void store(byte[] encoded) throws IOException
+	{
+		if (spill == null && bufferedBytes + encoded.length > spillThreshold) {
+			spillFile = File.createTempFile("squashfs-metadata", ".tmp");
+			spillFile.deleteOnExit();
+			spill = new BufferedOutputStream(new FileOutputStream(spillFile),
+					65536);
+			for (byte[] block : blocks) {
+				spill.write(block);
+			}
+			blocks.clear();
+			bufferedBytes = 0L;
+		}
+		if (spill != null) {
+			spill.write(encoded);
+		} else {
+			blocks.add(encoded);
+			bufferedBytes += encoded.length;
+		}
 	}
 
 	private byte[] compress(byte[] data, int offset, int length)
 			throws IOException
 	{
-		switch (compression.getCompressionId()) {
-		case ZLIB:
-			return compressZlib(data, offset, length);
-		case ZSTD:
-			return compressZstd(data, offset, length,
-					(ZstdCompression) compression);
-		case LZ4:
-		case LZMA:
-		case LZO:
-		case NONE:
-		case XZ:
-		default:
-			return null;
-		}
+		return CompressionUtil.compress(compression, MetadataBlock.MAX_SIZE,
+				data, offset, length, length);
 	}
 
-	private byte[] compressZlib(byte[] data, int offset, int length)
-			throws IOException
+	/**
+	 * An uncompressed block, waiting for locations to be filled in or for
+	 * compression.
+	 */
+	private class Block
 	{
-		Deflater def = new Deflater(Deflater.BEST_COMPRESSION);
-		try (ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
-			try (DeflaterOutputStream dos = new DeflaterOutputStream(bos, def,
-					4096)) {
-				dos.write(data, offset, length);
-			}
-			byte[] result = bos.toByteArray();
-			if (result.length > length) {
-				return null;
+
+		final int index;
+		byte[] data;
+		int length = -1;
+		int waits = 0;
+
+		Block(int index)
+		{
+			this.index = index;
+		}
+
+		void filled() throws IOException
+		{
+			if (--waits == 0 && length >= 0) {
+				submit(this);
 			}
-			return result;
-		} finally {
-			def.end();
 		}
+
 	}
 
-	private byte[] compressZstd(byte[] data, int offset, int length,
-			ZstdCompression options) throws IOException
+	/**
+	 * A location placeholder, which may span two blocks.
+	 */
+	private class Patch
 	{
-		try (ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
-			try (OutputStream zos = CompressionUtil.createZstdOutputStream(bos,
-					options)) {
-				zos.write(data, offset, length);
+
+		final Block first;
+		final int offset;
+		Block second;
+
+		Patch(Block first, int offset)
+		{
+			this.first = first;
+			this.offset = offset;
+		}
+
+		void apply(int value) throws IOException
+		{
+			for (int i = 0; i < 4; i++) {
+				int pos = offset + i;
+				byte[] data = pos < MetadataBlock.MAX_SIZE ? data(first)
+						: data(second);
+				data[pos % MetadataBlock.MAX_SIZE] = (byte) (value >>> (8 * i));
 			}
-			byte[] result = bos.toByteArray();
-			if (result.length > length) {
-				return null;
+			first.filled();
+			if (second != null) {
+				second.filled();
 			}
-			return result;
 		}
+
+		private byte[] data(Block block)
+		{
+			return block.data != null ? block.data
+					: block.index == flushedBlocks ? currentBlock : null;
+		}
+
 	}
 
 	@Override
@@ -169,8 +438,21 @@ public class MetadataWriter implements DataOutput
 		}
 	}
 
+	/**
+	 * @return whether n bytes can be stored in the current block without
+	 *         filling it, in which case they may be written directly
+	 */
+	private boolean hasRoom(int n)
+	{
+		return currentBlock.length - offset > n;
+	}
+
 	private void writeByteInternal(byte b) throws IOException
 	{
+		if (hasRoom(1)) {
+			currentBlock[offset++] = b;
+			return;
+		}
 		xfer[0] = b;
 		write(xfer);
 	}
@@ -196,6 +478,14 @@ public class MetadataWriter implements DataOutput
 	@Override
 	public void writeShort(int v) throws IOException
 	{
+		if (hasRoom(2)) {
+			byte[] b = currentBlock;
+			int o = offset;
+			b[o] = (byte) v;
+			b[o + 1] = (byte) (v >>> 8);
+			offset = o + 2;
+			return;
+		}
 		writeByteInternal((byte) ((v >>> 0) & 0xff));
 		writeByteInternal((byte) ((v >>> 8) & 0xff));
 	}
@@ -203,22 +493,62 @@ public class MetadataWriter implements DataOutput
 	@Override
 	public void writeChar(int v) throws IOException
 	{
-		writeByteInternal((byte) ((v >>> 0) & 0xff));
-		writeByteInternal((byte) ((v >>> 8) & 0xff));
+		writeShort(v);
 	}
 
 	@Override
 	public void writeInt(int v) throws IOException
 	{
+		if (hasRoom(4)) {
+			byte[] b = currentBlock;
+			int o = offset;
+			b[o] = (byte) v;
+			b[o + 1] = (byte) (v >>> 8);
+			b[o + 2] = (byte) (v >>> 16);
+			b[o + 3] = (byte) (v >>> 24);
+			offset = o + 4;
+			return;
+		}
 		writeByteInternal((byte) ((v >>> 0) & 0xff));
 		writeByteInternal((byte) ((v >>> 8) & 0xff));
 		writeByteInternal((byte) ((v >>> 16) & 0xff));
 		writeByteInternal((byte) ((v >>> 24) & 0xff));
 	}
 
+	/**
+	 * Writes a run of ints, such as the block list of a file.
+	 */
+	public void writeInts(int[] values) throws IOException
+	{
+		int i = 0;
+		while (i < values.length) {
+			int run = Math.min(values.length - i,
+					(currentBlock.length - offset - 1) / 4);
+			if (run <= 0) {
+				writeInt(values[i++]);
+				continue;
+			}
+			byte[] b = currentBlock;
+			int o = offset;
+			for (int end = i + run; i < end; i++, o += 4) {
+				int v = values[i];
+				b[o] = (byte) v;
+				b[o + 1] = (byte) (v >>> 8);
+				b[o + 2] = (byte) (v >>> 16);
+				b[o + 3] = (byte) (v >>> 24);
+			}
+			offset = o;
+		}
+	}
+
 	@Override
 	public void writeLong(long v) throws IOException
 	{
+		if (hasRoom(8)) {
+			writeInt((int) v);
+			writeInt((int) (v >>> 32));
+			return;
+		}
 		writeByteInternal((byte) ((v >>> 0) & 0xff));
 		writeByteInternal((byte) ((v >>> 8) & 0xff));
 		writeByteInternal((byte) ((v >>> 16) & 0xff));
@@ -0,0 +1,491 @@
+package de.topobyte.squashfs.ra;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An IRandomAccess on top of a FileChannel that collects writes in large
+ * buffers and writes each buffer with a single positional write.
+ *
+ * With background writes enabled, full buffers are handed to a dedicated I/O
+ * thread so that disk writes overlap with whatever the caller does next.
+ * Buffers are written in the order they were filled, so seeking back and
+ * overwriting earlier data (e.g. the superblock) works as expected. Reads
+ * are served from the current buffer if possible, otherwise they wait for
+ * all pending writes first.
+ */
+public class BufferedChannelRandomAccess implements IRandomAccess
+{
+
+	public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+	public static final int DEFAULT_BUFFER_COUNT = 4;
+
+	// large enough for any primitive value
+	public static final int MIN_BUFFER_SIZE = 8;
+
+	private static final AtomicInteger threadCounter = new AtomicInteger(0);
+
+	private final FileChannel channel;
+	private final long offset;
+	private final ExecutorService executor;
+	private final BlockingQueue<ByteBuffer> freeBuffers;
+	private final byte[] scratch = new byte[8];
+
+	private volatile IOException failure = null;
+	private Future<?> lastWrite = null;
+
+	private ByteBuffer buffer;
+	private long bufferStart = 0L;
+	private long position = 0L;
+	private boolean closed = false;
+
+	public BufferedChannelRandomAccess(File file, int offset)
+			throws IOException
+	{
+		this(file, offset, DEFAULT_BUFFER_SIZE, true);
+	}
+
+	/**
+	 * @param offset
+	 *            offset of position 0 within the file
+	 * @param backgroundWrites
+	 *            whether to write full buffers on a background thread
+	 */
+	public BufferedChannelRandomAccess(File file, int offset, int bufferSize,
+			boolean backgroundWrites) throws IOException
+	{
+		if (bufferSize < MIN_BUFFER_SIZE) {
+			throw new IllegalArgumentException(String.format(
+					"Invalid buffer size %d (min %d)", bufferSize,
+					MIN_BUFFER_SIZE));
+		}
+		this.offset = offset;
+		int bufferCount = backgroundWrites ? DEFAULT_BUFFER_COUNT : 1;
+		freeBuffers = new ArrayBlockingQueue<>(bufferCount);
+		for (int i = 1; i < bufferCount; i++) {
+			freeBuffers.add(ByteBuffer.allocateDirect(bufferSize));
+		}
+		buffer = ByteBuffer.allocateDirect(bufferSize);
+		executor = backgroundWrites ? createExecutor() : null;
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+	}
+
+	private static ExecutorService createExecutor()
+	{
+		return Executors.newSingleThreadExecutor(r -> {
+			Thread thread = new Thread(r, String.format("squashfs-writer-%d",
+					threadCounter.incrementAndGet()));
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	private void checkFailure() throws IOException
+	{
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+		if (failure != null) {
+			throw new IOException("Background write failed", failure);
+		}
+	}
+
+	/**
+	 * Make sure the current buffer continues at the current position and has
+	 * room for at least {@code length} bytes.
+	 */
+	private void ensureWritable(int length) throws IOException
+	{
+		if (position != bufferStart + buffer.position()
+				|| buffer.remaining() < length) {
+			flushBuffer();
+			bufferStart = position;
+		}
+	}
+
+	private void flushBuffer() throws IOException
+	{
+		if (buffer.position() == 0) {
+			return;
+		}
+		buffer.flip();
+		if (executor == null) {
+			writeFully(buffer, offset + bufferStart);
+			buffer.clear();
+			return;
+		}
+
+		ByteBuffer full = buffer;
+		long start = offset + bufferStart;
+		try {
+			buffer = freeBuffers.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			buffer = full;
+			buffer.position(buffer.limit());
+			buffer.limit(buffer.capacity());
+			throw new InterruptedIOException(
+					"Interrupted waiting for buffer");
+		}
+		lastWrite = executor.submit(() -> {
+			try {
+				if (failure == null) {
+					writeFully(full, start);
+				}
+			} catch (IOException e) {
+				failure = e;
+			} finally {
+				full.clear();
+				freeBuffers.add(full);
+			}
+		});
+	}
+
+	private void writeFully(ByteBuffer data, long start) throws IOException
+	{
+		long pos = start;
+		while (data.hasRemaining()) {
+			pos += channel.write(data, pos);
+		}
+	}
+
+	/**
+	 * Writes out the current buffer and waits until all pending writes have
+	 * completed.
+	 */
+	public void flush() throws IOException
+	{
+		checkFailure();
+		flushBuffer();
+		bufferStart = position;
+		if (lastWrite != null) {
+			try {
+				lastWrite.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException(
+						"Interrupted waiting for pending writes");
+			} catch (ExecutionException e) {
+				throw new IOException("Background write failed",
+						e.getCause());
+			}
+			lastWrite = null;
+		}
+		checkFailure();
+	}
+
+	@Override
+	public void seek(long offset) throws IOException
+	{
+		checkFailure();
+		if (offset < 0) {
+			throw new IOException(
+					String.format("Negative seek offset %d", offset));
+		}
+		position = offset;
+	}
+
+	@Override
+	public long getFilePointer() throws IOException
+	{
+		return position;
+	}
+
+	public long length() throws IOException
+	{
+		long buffered = bufferStart + buffer.position();
+		return Math.max(channel.size() - offset, buffered);
+	}
+
+	@Override
+	public void write(int b) throws IOException
+	{
+		checkFailure();
+		ensureWritable(1);
+		buffer.put((byte) b);
+		position++;
+	}
+
+	@Override
+	public void write(byte[] data) throws IOException
+	{
+		write(data, 0, data.length);
+	}
+
+	@Override
+	public void write(byte[] data, int off, int len) throws IOException
+	{
+		checkFailure();
+		while (len > 0) {
+			ensureWritable(1);
+			int n = Math.min(len, buffer.remaining());
+			buffer.put(data, off, n);
+			position += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		if (closed) {
+			return;
+		}
+		try {
+			flush();
+		} finally {
+			closed = true;
+			if (executor != null) {
+				executor.shutdown();
+			}
+			channel.close();
+		}
+	}
+
+	// DataInput
+
+	@Override
+	public void readFully(byte[] buf) throws IOException
+	{
+		readFully(buf, 0, buf.length);
+	}
+
+	@Override
+	public void readFully(byte[] buf, int off, int len) throws IOException
+	{
+		checkFailure();
+		long bufferEnd = bufferStart + buffer.position();
+		if (position >= bufferStart && position + len <= bufferEnd) {
+			// still in the current buffer, no need to wait for the disk
+			ByteBuffer view = buffer.duplicate();
+			view.position((int) (position - bufferStart));
+			view.get(buf, off, len);
+			position += len;
+			return;
+		}
+
+		flush();
+		ByteBuffer target = ByteBuffer.wrap(buf, off, len);
+		long pos = offset + position;
+		while (target.hasRemaining()) {
+			int n = channel.read(target, pos);
+			if (n < 0) {
+				throw new EOFException();
+			}
+			pos += n;
+		}
+		position += len;
+	}
+
+	@Override
+	public int skipBytes(int n) throws IOException
+	{
+		if (n <= 0) {
+			return 0;
+		}
+		long skipped = Math.min(n, Math.max(0L, length() - position));
+		position += skipped;
+		return (int) skipped;
+	}
+
+	@Override
+	public boolean readBoolean() throws IOException
+	{
+		return readByte() != 0;
+	}
+
+	@Override
+	public byte readByte() throws IOException
+	{
+		readFully(scratch, 0, 1);
+		return scratch[0];
+	}
+
+	@Override
+	public int readUnsignedByte() throws IOException
+	{
+		return readByte() & 0xff;
+	}
+
+	@Override
+	public short readShort() throws IOException
+	{
+		readFully(scratch, 0, 2);
+		return (short) (((scratch[0] & 0xff) << 8) | (scratch[1] & 0xff));
+	}
+
+	@Override
+	public int readUnsignedShort() throws IOException
+	{
+		return readShort() & 0xffff;
+	}
+
+	@Override
+	public char readChar() throws IOException
+	{
+		return (char) readShort();
+	}
+
+	@Override
+	public int readInt() throws IOException
+	{
+		readFully(scratch, 0, 4);
+		return ((scratch[0] & 0xff) << 24) | ((scratch[1] & 0xff) << 16)
+				| ((scratch[2] & 0xff) << 8) | (scratch[3] & 0xff);
+	}
+
+	@Override
+	public long readLong() throws IOException
+	{
+		long high = readInt() & 0xffffffffL;
+		long low = readInt() & 0xffffffffL;
+		return (high << 32) | low;
+	}
+
+	@Override
+	public float readFloat() throws IOException
+	{
+		return Float.intBitsToFloat(readInt());
+	}
+
+	@Override
+	public double readDouble() throws IOException
+	{
+		return Double.longBitsToDouble(readLong());
+	}
+
+	@Override
+	public String readLine() throws IOException
+	{
+		StringBuilder line = new StringBuilder();
+		long length = length();
+		if (position >= length) {
+			return null;
+		}
+		while (position < length) {
+			int c = readUnsignedByte();
+			if (c == '\n') {
+				break;
+			}
+			if (c == '\r') {
+				if (position < length && readUnsignedByte() != '\n') {
+					position--;
+				}
+				break;
+			}
+			line.append((char) c);
+		}
+		return line.toString();
+	}
+
+	@Override
+	public String readUTF() throws IOException
+	{
+		return DataInputStream.readUTF(this);
+	}
+
+	// DataOutput
+
+	@Override
+	public void writeBoolean(boolean v) throws IOException
+	{
+		write(v ? 1 : 0);
+	}
+
+	@Override
+	public void writeByte(int v) throws IOException
+	{
+		write(v);
+	}
+
+	@Override
+	public void writeShort(int v) throws IOException
+	{
+		checkFailure();
+		ensureWritable(2);
+		buffer.putShort((short) v);
+		position += 2;
+	}
+
+	@Override
+	public void writeChar(int v) throws IOException
+	{
+		writeShort(v);
+	}
+
+	@Override
+	public void writeInt(int v) throws IOException
+	{
+		checkFailure();
+		ensureWritable(4);
+		buffer.putInt(v);
+		position += 4;
+	}
+
+	@Override
+	public void writeLong(long v) throws IOException
+	{
+		checkFailure();
+		ensureWritable(8);
+		buffer.putLong(v);
+		position += 8;
+	}
+
+	@Override
+	public void writeFloat(float v) throws IOException
+	{
+		writeInt(Float.floatToIntBits(v));
+	}
+
+	@Override
+	public void writeDouble(double v) throws IOException
+	{
+		writeLong(Double.doubleToLongBits(v));
+	}
+
+	@Override
+	public void writeBytes(String s) throws IOException
+	{
+		int len = s.length();
+		for (int i = 0; i < len; i++) {
+			write(s.charAt(i));
+		}
+	}
+
+	@Override
+	public void writeChars(String s) throws IOException
+	{
+		int len = s.length();
+		for (int i = 0; i < len; i++) {
+			writeChar(s.charAt(i));
+		}
+	}
+
+	@Override
+	public void writeUTF(String s) throws IOException
+	{
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		try (DataOutputStream dos = new DataOutputStream(bos)) {
+			dos.writeUTF(s);
+		}
+		write(bos.toByteArray());
+	}
+
+}
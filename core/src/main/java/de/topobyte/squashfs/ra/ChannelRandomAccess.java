@@ -0,0 +1,342 @@
+package de.topobyte.squashfs.ra;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A read-only IRandomAccess on top of a FileChannel that can be shared by
+ * multiple threads.
+ *
+ * All reads are positional reads on the channel, which do not touch the
+ * channel's own position. The file pointer that seek() and the read methods
+ * operate on is kept per thread, so concurrent seek/read sequences from
+ * different threads do not interfere with each other and need no locking.
+ */
+public class ChannelRandomAccess implements IRandomAccess
+{
+
+	// attempts in a row that may transfer nothing before giving up
+	private static final int MAX_STALLED_TRANSFERS = 1000;
+
+	private final FileChannel channel;
+	private final long offset;
+	private final ThreadLocal<long[]> position = ThreadLocal
+			.withInitial(() -> new long[1]);
+
+	public ChannelRandomAccess(File file) throws IOException
+	{
+		this(file, 0);
+	}
+
+	/**
+	 * @param offset
+	 *            offset of position 0 within the file
+	 */
+	public ChannelRandomAccess(File file, int offset) throws IOException
+	{
+		this.offset = offset;
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+	}
+
+	/**
+	 * Reads exactly {@code len} bytes starting at {@code filePosition},
+	 * independently of the current file pointer.
+	 */
+	public void readFully(long filePosition, byte[] buf, int off, int len)
+			throws IOException
+	{
+		ByteBuffer target = ByteBuffer.wrap(buf, off, len);
+		long pos = offset + filePosition;
+		while (target.hasRemaining()) {
+			int n = channel.read(target, pos);
+			if (n < 0) {
+				throw new EOFException();
+			}
+			pos += n;
+		}
+	}
+
+	/**
+	 * Transfers {@code count} bytes starting at {@code filePosition} to the
+	 * target channel, which may avoid copying them through user space.
+	 * <p>
+	 * A target that accepts no bytes, such as a full non-blocking channel, is
+	 * retried a few times after yielding the thread before the transfer fails.
+	 */
+	public void transferTo(long filePosition, long count,
+			WritableByteChannel target) throws IOException
+	{
+		long pos = offset + filePosition;
+		long end = pos + count;
+		int stalls = 0;
+		while (pos < end) {
+			long n = channel.transferTo(pos, end - pos, target);
+			if (n <= 0) {
+				if (pos >= channel.size()) {
+					throw new EOFException();
+				}
+				if (++stalls > MAX_STALLED_TRANSFERS) {
+					throw new IOException(String.format(
+							"Target channel accepted no data after %d attempts",
+							stalls));
+				}
+				Thread.yield();
+				continue;
+			}
+			stalls = 0;
+			pos += n;
+		}
+	}
+
+	public long length() throws IOException
+	{
+		return channel.size() - offset;
+	}
+
+	@Override
+	public void seek(long offset) throws IOException
+	{
+		if (offset < 0) {
+			throw new IOException(
+					String.format("Negative seek offset %d", offset));
+		}
+		position.get()[0] = offset;
+	}
+
+	@Override
+	public long getFilePointer() throws IOException
+	{
+		return position.get()[0];
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		channel.close();
+	}
+
+	// DataInput
+
+	@Override
+	public void readFully(byte[] buf) throws IOException
+	{
+		readFully(buf, 0, buf.length);
+	}
+
+	@Override
+	public void readFully(byte[] buf, int off, int len) throws IOException
+	{
+		long[] pos = position.get();
+		readFully(pos[0], buf, off, len);
+		pos[0] += len;
+	}
+
+	private byte[] read(int len) throws IOException
+	{
+		byte[] buf = new byte[len];
+		readFully(buf, 0, len);
+		return buf;
+	}
+
+	@Override
+	public int skipBytes(int n) throws IOException
+	{
+		if (n <= 0) {
+			return 0;
+		}
+		long[] pos = position.get();
+		long skipped = Math.min(n, Math.max(0L, length() - pos[0]));
+		pos[0] += skipped;
+		return (int) skipped;
+	}
+
+	@Override
+	public boolean readBoolean() throws IOException
+	{
+		return readByte() != 0;
+	}
+
+	@Override
+	public byte readByte() throws IOException
+	{
+		return read(1)[0];
+	}
+
+	@Override
+	public int readUnsignedByte() throws IOException
+	{
+		return readByte() & 0xff;
+	}
+
+	@Override
+	public short readShort() throws IOException
+	{
+		return ByteBuffer.wrap(read(2)).getShort();
+	}
+
+	@Override
+	public int readUnsignedShort() throws IOException
+	{
+		return readShort() & 0xffff;
+	}
+
+	@Override
+	public char readChar() throws IOException
+	{
+		return (char) readShort();
+	}
+
+	@Override
+	public int readInt() throws IOException
+	{
+		return ByteBuffer.wrap(read(4)).getInt();
+	}
+
+	@Override
+	public long readLong() throws IOException
+	{
+		return ByteBuffer.wrap(read(8)).getLong();
+	}
+
+	@Override
+	public float readFloat() throws IOException
+	{
+		return Float.intBitsToFloat(readInt());
+	}
+
+	@Override
+	public double readDouble() throws IOException
+	{
+		return Double.longBitsToDouble(readLong());
+	}
+
+	@Override
+	public String readLine() throws IOException
+	{
+		long[] pos = position.get();
+		long length = length();
+		if (pos[0] >= length) {
+			return null;
+		}
+		StringBuilder line = new StringBuilder();
+		while (pos[0] < length) {
+			int c = readUnsignedByte();
+			if (c == '\n') {
+				break;
+			}
+			if (c == '\r') {
+				if (pos[0] < length && readUnsignedByte() != '\n') {
+					pos[0]--;
+				}
+				break;
+			}
+			line.append((char) c);
+		}
+		return line.toString();
+	}
+
+	@Override
+	public String readUTF() throws IOException
+	{
+		return DataInputStream.readUTF(this);
+	}
+
+	// DataOutput
+
+	private static UnsupportedOperationException readOnly()
+	{
+		return new UnsupportedOperationException(
+				"ChannelRandomAccess is read-only");
+	}
+
+	@Override
+	public void write(int b) throws IOException
+	{
+		throw readOnly();
+	}
+
+	@Override
+	public void write(byte[] data) throws IOException
+	{
+		throw readOnly();
+	}
+
+	@Override
+	public void write(byte[] data, int off, int len) throws IOException
+	{
+		throw readOnly();
+	}
+
+	@Override
+	public void writeBoolean(boolean v) throws IOException
+	{
+		throw readOnly();
+	}
+
+	@Override
+	public void writeByte(int v) throws IOException
+	{
+		throw readOnly();
+	}
+
+	@Override
+	public void writeShort(int v) throws IOException
+	{
+		throw readOnly();
+	}
+
+	@Override
+	public void writeChar(int v) throws IOException
+	{
+		throw readOnly();
+	}
+
+	@Override
+	public void writeInt(int v) throws IOException
+	{
+		throw readOnly();
+	}
+
+	@Override
+	public void writeLong(long v) throws IOException
+	{
+		throw readOnly();
+	}
+
+	@Override
+	public void writeFloat(float v) throws IOException
+	{
+		throw readOnly();
+	}
+
+	@Override
+	public void writeDouble(double v) throws IOException
+	{
+		throw readOnly();
+	}
+
+	@Override
+	public void writeBytes(String s) throws IOException
+	{
+		throw readOnly();
+	}
+
+	@Override
+	public void writeChars(String s) throws IOException
+	{
+		throw readOnly();
+	}
+
+	@Override
+	public void writeUTF(String s) throws IOException
+	{
+		throw readOnly();
+	}
+
+}
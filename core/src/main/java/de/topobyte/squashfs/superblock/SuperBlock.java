@@ -49,6 +49,11 @@ public class SuperBlock
 	public static final short DEFAULT_BLOCK_LOG = 17;
 	public static final int DEFAULT_BLOCK_SIZE = 1 << DEFAULT_BLOCK_LOG;
 
+	public static final short MIN_BLOCK_LOG = 12;
+	public static final short MAX_BLOCK_LOG = 20;
+	public static final int MIN_BLOCK_SIZE = 1 << MIN_BLOCK_LOG;
+	public static final int MAX_BLOCK_SIZE = 1 << MAX_BLOCK_LOG;
+
 	public static final short DEFAULT_FLAGS = SuperBlockFlag
 			.flagsFor(SuperBlockFlag.DUPLICATES, SuperBlockFlag.EXPORTABLE);
 
@@ -83,14 +88,85 @@ public class SuperBlock
 		this.compression = compression;
 	}
 
+	public SuperBlock(Compression compression, int blockSize)
+	{
+		if (!isValidBlockSize(blockSize)) {
+			throw new IllegalArgumentException(String.format(
+					"Invalid block size %d (power of two from %d to %d)",
+					blockSize, MIN_BLOCK_SIZE, MAX_BLOCK_SIZE));
+		}
+		this.compression = compression;
+		this.blockSize = blockSize;
+		this.blockLog = (short) Integer.numberOfTrailingZeros(blockSize);
+	}
+
+	public static boolean isValidBlockSize(int blockSize)
+	{
+		return Integer.bitCount(blockSize) == 1 && blockSize >= MIN_BLOCK_SIZE
+				&& blockSize <= MAX_BLOCK_SIZE;
+	}
+
+	/**
+	 * Parses a block size given in bytes or with a K or M suffix, such as
+	 * {@code 4096}, {@code 128K} or {@code 1M}.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the value is not a valid block size
+	 */
+	public static int parseBlockSize(String value)
+	{
+		int multiplier = 1;
+		String digits = value;
+		if (value.endsWith("K") || value.endsWith("k")) {
+			multiplier = 1024;
+			digits = value.substring(0, value.length() - 1);
+		} else if (value.endsWith("M") || value.endsWith("m")) {
+			multiplier = 1024 * 1024;
+			digits = value.substring(0, value.length() - 1);
+		}
+		int blockSize;
+		try {
+			blockSize = Math.multiplyExact(Integer.parseInt(digits, 10),
+					multiplier);
+		} catch (NumberFormatException | ArithmeticException e) {
+			blockSize = -1;
+		}
+		if (!isValidBlockSize(blockSize)) {
+			throw new IllegalArgumentException(
+					String.format("Invalid block size: %s", value));
+		}
+		return blockSize;
+	}
+
 	public static SuperBlock read(DataInput in)
 			throws IOException, SquashFsException
 	{
 		SuperBlock block = new SuperBlock(new ZlibCompression());
 		block.readData(in);
+		if (block.hasFlag(SuperBlockFlag.COMPRESSOR_OPTIONS)) {
+			block.readCompressorOptions(in);
+		}
 		return block;
 	}
 
+	/**
+	 * Reads the compressor options that directly follow the superblock and
+	 * replaces the compression with one configured accordingly.
+	 */
+	public void readCompressorOptions(DataInput in)
+			throws IOException, SquashFsException
+	{
+		int header = (in.readUnsignedByte() | (in.readUnsignedByte() << 8));
+		if ((header & 0x8000) == 0) {
+			throw new SquashFsException(
+					"Compressed compressor options not supported");
+		}
+		byte[] options = new byte[header & 0x7fff];
+		in.readFully(options);
+		compression = CompressionUtil.fromCompressorOptions(
+				compression.getCompressionId(), options, blockSize);
+	}
+
 	public int getInodeCount()
 	{
 		return inodeCount;
@@ -322,6 +398,10 @@ public class SuperBlock
 				.fromValue(buffer.getShort());
 		compression = CompressionUtil.fromCompressionId(compressionId);
 		blockLog = buffer.getShort();
+		if (blockLog < MIN_BLOCK_LOG || blockLog > MAX_BLOCK_LOG) {
+			throw new SquashFsException(String.format(
+					"Corrupt archive, invalid block log %d", blockLog));
+		}
 		int expectedBlockSize = 1 << blockLog;
 		if (blockSize != expectedBlockSize) {
 			throw new SquashFsException(String.format(
@@ -55,7 +55,7 @@ public class FragmentTableEntry
 
 	public int getDiskSize()
 	{
-		return (size & 0xFFFFF);
+		return (size & 0xFFFFFF);
 	}
 
 	@Override
@@ -34,6 +34,7 @@ import org.slf4j.LoggerFactory;
 import de.topobyte.squashfs.SquashFsEntryBuilder;
 import de.topobyte.squashfs.SquashFsWriter;
 import de.topobyte.squashfs.compression.Compression;
+import de.topobyte.squashfs.superblock.SuperBlock;
 import de.topobyte.squashfs.util.PosixUtil;
 
 public class SquashConvertDirectory
@@ -44,6 +45,21 @@ public class SquashConvertDirectory
 
 	public void convertToSquashFs(Path inputFile, Path outputFile,
 			Compression compression, int offset) throws IOException
+	{
+		convertToSquashFs(inputFile, outputFile, compression, offset, 0);
+	}
+
+	public void convertToSquashFs(Path inputFile, Path outputFile,
+			Compression compression, int offset, int compressionThreads)
+			throws IOException
+	{
+		convertToSquashFs(inputFile, outputFile, compression, offset,
+				compressionThreads, SuperBlock.DEFAULT_BLOCK_SIZE);
+	}
+
+	public void convertToSquashFs(Path inputFile, Path outputFile,
+			Compression compression, int offset, int compressionThreads,
+			int blockSize) throws IOException
 	{
 		logger.info("Converting {} -> {}...", inputFile.toAbsolutePath(),
 				outputFile.toAbsolutePath());
@@ -52,7 +68,7 @@ public class SquashConvertDirectory
 
 		long fileCount = 0L;
 		try (SquashFsWriter writer = new SquashFsWriter(outputFile.toFile(),
-				compression, offset)) {
+				compression, offset, compressionThreads, blockSize)) {
 			AtomicReference<Instant> modDate = new AtomicReference<>(
 					Instant.ofEpochMilli(0));
 
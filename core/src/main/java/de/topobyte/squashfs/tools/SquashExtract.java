@@ -45,6 +45,7 @@ import de.topobyte.squashfs.inode.INodeType;
 import de.topobyte.squashfs.inode.SymlinkINode;
 import de.topobyte.squashfs.metadata.MetadataReader;
 import de.topobyte.squashfs.util.BinUtils;
+import de.topobyte.squashfs.util.CacheBypass;
 import de.topobyte.squashfs.util.PosixUtil;
 
 public class SquashExtract
@@ -56,7 +57,10 @@ public class SquashExtract
 			throws IOException
 	{
 		DirectoryINode root = reader.getRootInode();
-		extractSubtree(reader, true, "/", root, directory);
+		// a full extraction reads every block once, keep it out of the caches
+		try (CacheBypass.Scope scope = CacheBypass.begin()) {
+			extractSubtree(reader, true, "/", root, directory);
+		}
 
 		// Creating files within the previously created directories modifies the
 		// contained directory's last modified time, so we need to update it
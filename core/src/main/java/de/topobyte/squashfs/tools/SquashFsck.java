@@ -31,6 +31,7 @@ import de.topobyte.squashfs.inode.FileINode;
 import de.topobyte.squashfs.inode.INode;
 import de.topobyte.squashfs.metadata.MetadataReader;
 import de.topobyte.squashfs.util.BinUtils;
+import de.topobyte.squashfs.util.CacheBypass;
 
 public class SquashFsck
 {
@@ -43,7 +44,9 @@ public class SquashFsck
 		logger.info("Directory tree:");
 		logger.info("");
 		DirectoryINode root = reader.getRootInode();
-		dumpSubtree(reader, true, "/", root, readFiles);
+		try (CacheBypass.Scope scope = CacheBypass.begin()) {
+			dumpSubtree(reader, true, "/", root, readFiles);
+		}
 	}
 
 	private void dumpFileContent(SquashFsReader reader, FileINode inode)
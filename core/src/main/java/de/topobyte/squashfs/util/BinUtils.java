@@ -231,4 +231,20 @@ public class BinUtils
 		}
 	}
 
+	/**
+	 * Compares two byte arrays as unsigned bytes, which is the order squashfs
+	 * uses for directory entries and directory indexes.
+	 */
+	public static int compareBytes(byte[] left, byte[] right)
+	{
+		for (int i = 0; i < left.length && i < right.length; i++) {
+			int a = (left[i] & 0xff);
+			int b = (right[i] & 0xff);
+			if (a != b) {
+				return a - b;
+			}
+		}
+		return left.length - right.length;
+	}
+
 }
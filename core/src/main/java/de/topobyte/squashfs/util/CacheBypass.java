@@ -0,0 +1,78 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.topobyte.squashfs.util;
+
+/**
+ * Marks the current thread as performing a bulk scan, such as a full
+ * extraction or check of an image.
+ *
+ * While a scan is active, the block caches still serve blocks they already
+ * hold to the scanning thread, but they do not admit the blocks it reads and
+ * do not count its accesses towards block recency or frequency. A shared
+ * reader can thus be scanned without evicting the working set of other
+ * threads.
+ *
+ * <pre>
+ * try (CacheBypass.Scope scope = CacheBypass.begin()) {
+ * 	reader.writeFileStream(inode, out);
+ * }
+ * </pre>
+ */
+public class CacheBypass
+{
+
+	private static final ThreadLocal<int[]> depth = ThreadLocal
+			.withInitial(() -> new int[1]);
+
+	private CacheBypass()
+	{
+	}
+
+	public static Scope begin()
+	{
+		depth.get()[0]++;
+		return new Scope();
+	}
+
+	public static boolean isActive()
+	{
+		return depth.get()[0] > 0;
+	}
+
+	public static final class Scope implements AutoCloseable
+	{
+
+		private boolean closed = false;
+
+		private Scope()
+		{
+		}
+
+		@Override
+		public void close()
+		{
+			if (!closed) {
+				closed = true;
+				depth.get()[0]--;
+			}
+		}
+
+	}
+
+}
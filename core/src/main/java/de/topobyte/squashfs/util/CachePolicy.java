@@ -0,0 +1,40 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.topobyte.squashfs.util;
+
+/**
+ * Admission and eviction policies available for the block caches.
+ */
+public enum CachePolicy {
+
+	/**
+	 * Evicts the least recently used block. Every block read is cached.
+	 */
+	LRU,
+
+	/**
+	 * W-TinyLFU: new blocks enter a small LRU window. A block leaving the
+	 * window only replaces the least recently used block of the main area if
+	 * it has been accessed more often recently, as estimated by a frequency
+	 * sketch. One-off reads, such as those of a full scan, therefore cannot
+	 * push out the frequently used blocks.
+	 */
+	TINY_LFU;
+
+}
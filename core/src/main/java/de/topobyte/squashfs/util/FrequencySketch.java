@@ -0,0 +1,108 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.topobyte.squashfs.util;
+
+/**
+ * A count-min sketch with four rows of 4-bit counters, used to estimate how
+ * often a key has been accessed recently.
+ *
+ * Once the number of recorded accesses reaches ten times the expected number
+ * of distinct keys, all counters are halved, so that the estimates favour
+ * recent history. Instances are not thread-safe.
+ */
+public class FrequencySketch
+{
+
+	private static final long[] SEEDS = { 0xc3a5c85c97cb3127L,
+			0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+	private static final long RESET_MASK = 0x7777777777777777L;
+
+	public static final int MAX_FREQUENCY = 15;
+
+	private final long[] table;
+	private final int sampleSize;
+	private int additions = 0;
+
+	/**
+	 * @param expectedKeys
+	 *            expected number of distinct keys being tracked
+	 */
+	public FrequencySketch(int expectedKeys)
+	{
+		int keys = Math.max(16, Math.min(expectedKeys, 1 << 24));
+		int size = Integer.highestOneBit(keys - 1) << 1;
+		table = new long[size];
+		sampleSize = 10 * keys;
+	}
+
+	private int indexOf(int hash, int row)
+	{
+		long h = (hash + SEEDS[row]) * SEEDS[row];
+		h += h >>> 32;
+		return ((int) h) & (table.length - 1);
+	}
+
+	private static int spread(int hash)
+	{
+		hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+		return (hash >>> 16) ^ hash;
+	}
+
+	/**
+	 * @return the estimated number of recent accesses, at most
+	 *         {@link #MAX_FREQUENCY}
+	 */
+	public int frequency(int hash)
+	{
+		int spread = spread(hash);
+		int frequency = MAX_FREQUENCY;
+		for (int row = 0; row < 4; row++) {
+			int shift = ((spread >>> (row << 3)) & 15) << 2;
+			int count = (int) ((table[indexOf(spread, row)] >>> shift) & 15);
+			frequency = Math.min(frequency, count);
+		}
+		return frequency;
+	}
+
+	public void increment(int hash)
+	{
+		int spread = spread(hash);
+		boolean added = false;
+		for (int row = 0; row < 4; row++) {
+			int index = indexOf(spread, row);
+			int shift = ((spread >>> (row << 3)) & 15) << 2;
+			if (((table[index] >>> shift) & 15) < MAX_FREQUENCY) {
+				table[index] += 1L << shift;
+				added = true;
+			}
+		}
+		if (added && ++additions >= sampleSize) {
+			reset();
+		}
+	}
+
+	private void reset()
+	{
+		for (int i = 0; i < table.length; i++) {
+			table[i] = (table[i] >>> 1) & RESET_MASK;
+		}
+		additions /= 2;
+	}
+
+}
@@ -0,0 +1,256 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.topobyte.squashfs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Random;
+
+import org.junit.Test;
+
+import de.topobyte.squashfs.compression.BcjFilter;
+import de.topobyte.squashfs.compression.Lz4Compression;
+import de.topobyte.squashfs.compression.XzCompression;
+import de.topobyte.squashfs.compression.ZlibCompression;
+import de.topobyte.squashfs.compression.ZlibStrategy;
+import de.topobyte.squashfs.compression.ZstdCompression;
+import de.topobyte.squashfs.superblock.CompressionId;
+
+public class CompressionUtilTest
+{
+
+	private static final int BLOCK_SIZE = 131072;
+
+	@Test
+	public void zstdOptionsShouldRoundTrip() throws Exception
+	{
+		byte[] options = CompressionUtil
+				.createCompressorOptions(new ZstdCompression(19), BLOCK_SIZE);
+		assertArrayEquals(new byte[] { 19, 0, 0, 0 }, options);
+
+		ZstdCompression zstd = (ZstdCompression) CompressionUtil
+				.fromCompressorOptions(CompressionId.ZSTD, options,
+						BLOCK_SIZE);
+		assertEquals(19, zstd.getLevel());
+	}
+
+	@Test
+	public void zstdOptionsShouldBeOmittedForSquashFsDefaultLevel()
+	{
+		assertNull(CompressionUtil.createCompressorOptions(
+				new ZstdCompression(ZstdCompression.SQUASHFS_DEFAULT_LEVEL),
+				BLOCK_SIZE));
+	}
+
+	@Test
+	public void zlibOptionsShouldRoundTrip() throws Exception
+	{
+		byte[] options = CompressionUtil.createCompressorOptions(
+				new ZlibCompression(3, ZlibStrategy.HUFFMAN_ONLY), BLOCK_SIZE);
+		assertArrayEquals(new byte[] { 3, 0, 0, 0, 15, 0, 4, 0 }, options);
+
+		ZlibCompression zlib = (ZlibCompression) CompressionUtil
+				.fromCompressorOptions(CompressionId.ZLIB, options,
+						BLOCK_SIZE);
+		assertEquals(3, zlib.getLevel());
+		assertEquals(15, zlib.getWindowSize());
+		assertEquals(EnumSet.of(ZlibStrategy.HUFFMAN_ONLY),
+				zlib.getStrategies());
+	}
+
+	@Test
+	public void zlibOptionsWithUnsupportedStrategiesShouldBeReadable()
+			throws Exception
+	{
+		byte[] options = { 9, 0, 0, 0, 12, 0, 0x18, 0 };
+		ZlibCompression zlib = (ZlibCompression) CompressionUtil
+				.fromCompressorOptions(CompressionId.ZLIB, options,
+						BLOCK_SIZE);
+		assertEquals(12, zlib.getWindowSize());
+		assertEquals(EnumSet.of(ZlibStrategy.RUN_LENGTH_ENCODED,
+				ZlibStrategy.FIXED), zlib.getStrategies());
+	}
+
+	@Test
+	public void defaultZlibCompressionShouldNotNeedOptions()
+	{
+		assertTrue(new ZlibCompression(9, ZlibStrategy.DEFAULT).isDefault());
+		assertFalse(new ZlibCompression(8).isDefault());
+		assertNull(CompressionUtil
+				.createCompressorOptions(new ZlibCompression(), BLOCK_SIZE));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void zlibCompressionShouldRejectInvalidLevel()
+	{
+		new ZlibCompression(10);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void zstdCompressionShouldRejectInvalidLevel()
+	{
+		new ZstdCompression(23);
+	}
+
+	@Test
+	public void lz4OptionsShouldRoundTrip() throws Exception
+	{
+		byte[] options = CompressionUtil
+				.createCompressorOptions(new Lz4Compression(), BLOCK_SIZE);
+		assertArrayEquals(new byte[] { 1, 0, 0, 0, 0, 0, 0, 0 }, options);
+
+		Lz4Compression lz4 = (Lz4Compression) CompressionUtil
+				.fromCompressorOptions(CompressionId.LZ4, options, BLOCK_SIZE);
+		assertFalse(lz4.isHighCompression());
+	}
+
+	@Test
+	public void xzOptionsShouldRoundTrip() throws Exception
+	{
+		byte[] options = CompressionUtil.createCompressorOptions(
+				new XzCompression(98304, BcjFilter.ARMTHUMB), BLOCK_SIZE);
+
+		XzCompression xz = (XzCompression) CompressionUtil
+				.fromCompressorOptions(CompressionId.XZ, options, BLOCK_SIZE);
+		assertEquals(98304, xz.getDictionarySize());
+		assertEquals(EnumSet.of(BcjFilter.ARMTHUMB), xz.getFilters());
+	}
+
+	@Test(expected = SquashFsException.class)
+	public void xzOptionsWithDictionaryLargerThanBlockShouldFail()
+			throws Exception
+	{
+		byte[] options = { 0, 0, 4, 0, 0, 0, 0, 0 };
+		CompressionUtil.fromCompressorOptions(CompressionId.XZ, options,
+				BLOCK_SIZE);
+	}
+
+	@Test(expected = SquashFsException.class)
+	public void lz4OptionsWithUnknownVersionShouldFail() throws Exception
+	{
+		byte[] options = { 2, 0, 0, 0, 0, 0, 0, 0 };
+		CompressionUtil.fromCompressorOptions(CompressionId.LZ4, options,
+				BLOCK_SIZE);
+	}
+
+	@Test(expected = SquashFsException.class)
+	public void zstdOptionsWithInvalidLevelShouldFail() throws Exception
+	{
+		byte[] options = { 0, 0, 0, 0 };
+		CompressionUtil.fromCompressorOptions(CompressionId.ZSTD, options,
+				BLOCK_SIZE);
+	}
+
+	@Test(expected = SquashFsException.class)
+	public void optionsWithWrongSizeShouldFail() throws Exception
+	{
+		byte[] options = { 1, 0, 0, 0 };
+		CompressionUtil.fromCompressorOptions(CompressionId.ZLIB, options,
+				BLOCK_SIZE);
+	}
+
+	@Test
+	public void decompressShouldInflateIntoDestination() throws Exception
+	{
+		byte[] data = new byte[BLOCK_SIZE];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) (i % 37);
+		}
+		byte[] compressed = CompressionUtil.compressZlib(data, 0, data.length,
+				new ZlibCompression());
+		byte[] dst = new byte[BLOCK_SIZE];
+		for (int i = 0; i < 3; i++) {
+			Arrays.fill(dst, (byte) 0);
+			int size = CompressionUtil.decompress(new ZlibCompression(),
+					compressed, 0, compressed.length, dst, dst.length);
+			assertEquals("wrong size", data.length, size);
+			assertArrayEquals("wrong data", data, dst);
+		}
+	}
+
+	@Test
+	public void compressZlibShouldKeepSmallestStrategyInDestination()
+			throws Exception
+	{
+		byte[] data = new byte[BLOCK_SIZE];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) (i % 37);
+		}
+		int smallest = Integer.MAX_VALUE;
+		for (ZlibStrategy strategy : new ZlibStrategy[] {
+				ZlibStrategy.HUFFMAN_ONLY, ZlibStrategy.DEFAULT }) {
+			smallest = Math.min(smallest,
+					CompressionUtil.compressZlib(data, 0, data.length,
+							new ZlibCompression(9, strategy)).length);
+		}
+
+		ZlibCompression zlib = new ZlibCompression(9,
+				ZlibStrategy.HUFFMAN_ONLY, ZlibStrategy.DEFAULT);
+		byte[] dst = new byte[BLOCK_SIZE + 5];
+		int size = CompressionUtil.compressZlib(data, 0, data.length, zlib,
+				dst, 5, BLOCK_SIZE);
+		assertEquals("wrong size", smallest, size);
+		byte[] decompressed = new byte[BLOCK_SIZE];
+		CompressionUtil.decompress(zlib, dst, 5, size, decompressed,
+				BLOCK_SIZE);
+		assertArrayEquals("wrong data", data, decompressed);
+	}
+
+	@Test
+	public void compressZlibShouldReportOverflow() throws Exception
+	{
+		byte[] data = new byte[BLOCK_SIZE];
+		new Random(1L).nextBytes(data);
+		byte[] dst = new byte[BLOCK_SIZE];
+		assertEquals(-1, CompressionUtil.compressZlib(data, 0, data.length,
+				new ZlibCompression(), dst, 0, BLOCK_SIZE));
+		assertEquals(-1, CompressionUtil.compressZlib(data, 0, data.length,
+				new ZlibCompression(9, ZlibStrategy.DEFAULT,
+						ZlibStrategy.FILTERED),
+				dst, 0, BLOCK_SIZE));
+	}
+
+	@Test(expected = SquashFsException.class)
+	public void decompressShouldRejectOversizedBlock() throws Exception
+	{
+		byte[] data = new byte[BLOCK_SIZE];
+		byte[] compressed = CompressionUtil.compressZlib(data, 0, data.length,
+				new ZlibCompression());
+		CompressionUtil.decompress(new ZlibCompression(), compressed, 0,
+				compressed.length, new byte[BLOCK_SIZE - 1], BLOCK_SIZE - 1);
+	}
+
+	@Test(expected = SquashFsException.class)
+	public void decompressShouldRejectTruncatedStream() throws Exception
+	{
+		byte[] data = new byte[BLOCK_SIZE];
+		new Random(1L).nextBytes(data);
+		byte[] compressed = CompressionUtil.compressZlib(data, 0, data.length,
+				new ZlibCompression());
+		CompressionUtil.decompress(new ZlibCompression(), compressed, 0,
+				compressed.length / 2, new byte[BLOCK_SIZE], BLOCK_SIZE);
+	}
+
+}
@@ -0,0 +1,163 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.topobyte.squashfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import de.topobyte.squashfs.PathCache.Dentry;
+import de.topobyte.squashfs.inode.INodeType;
+
+public class PathCacheTest
+{
+
+	private static Dentry dentry(long ref)
+	{
+		return new Dentry(ref, INodeType.BASIC_FILE, null);
+	}
+
+	@Test
+	public void getShouldReturnStoredEntries()
+	{
+		PathCache cache = new PathCache(4);
+		Dentry a = dentry(1L);
+		Dentry b = Dentry.missing();
+		cache.put("/a", a);
+		cache.put("/b", b);
+		assertSame(a, cache.get("/a"));
+		assertSame(b, cache.get("/b"));
+		assertNull(cache.get("/c"));
+		assertEquals(2, cache.size());
+	}
+
+	@Test
+	public void missingEntriesShouldBeDistinct()
+	{
+		Dentry a = Dentry.missing();
+		Dentry b = Dentry.missing();
+		assertNotSame(a, b);
+		assertTrue(a.isMissing());
+		assertFalse(dentry(1L).isMissing());
+
+		PathCache cache = new PathCache(4);
+		cache.put("/a", a);
+		cache.put("/b", b);
+		cache.get("/a");
+		assertTrue(a.referenced);
+		assertFalse(b.referenced);
+	}
+
+	@Test
+	public void evictionShouldRotate()
+	{
+		PathCache cache = new PathCache(4);
+		for (int i = 0; i < 4; i++) {
+			cache.put("/file-" + i, dentry(i));
+		}
+		cache.put("/new-0", dentry(10));
+		cache.put("/new-1", dentry(11));
+		assertNull(cache.get("/file-0"));
+		assertNull(cache.get("/file-1"));
+		assertNotNull(cache.get("/new-0"));
+		assertNotNull(cache.get("/new-1"));
+		assertNotNull(cache.get("/file-2"));
+		assertNotNull(cache.get("/file-3"));
+	}
+
+	@Test
+	public void clearShouldAllowRefilling()
+	{
+		PathCache cache = new PathCache(2);
+		cache.put("/a", dentry(1L));
+		cache.put("/b", dentry(2L));
+		cache.clear();
+		cache.put("/c", dentry(3L));
+		cache.put("/d", dentry(4L));
+		assertEquals(2, cache.size());
+		assertNotNull(cache.get("/c"));
+		assertNotNull(cache.get("/d"));
+	}
+
+	@Test
+	public void putShouldNotExceedCapacity()
+	{
+		PathCache cache = new PathCache(8);
+		for (int i = 0; i < 100; i++) {
+			cache.put("/file-" + i, dentry(i));
+			cache.get("/file-" + i);
+		}
+		assertEquals(8, cache.size());
+		assertNotNull(cache.get("/file-99"));
+	}
+
+	@Test
+	public void evictionShouldPreferUnusedEntries()
+	{
+		PathCache cache = new PathCache(4);
+		for (int i = 0; i < 4; i++) {
+			cache.put("/file-" + i, dentry(i));
+		}
+		for (int round = 0; round < 10; round++) {
+			cache.get("/file-0");
+			cache.put("/other-" + round, dentry(100 + round));
+		}
+		assertNotNull(cache.get("/file-0"));
+		assertEquals(4, cache.size());
+	}
+
+	@Test
+	public void noCacheShouldNotStoreEntries()
+	{
+		PathCache.NO_CACHE.put("/a", dentry(1L));
+		assertNull(PathCache.NO_CACHE.get("/a"));
+		assertEquals(0, PathCache.NO_CACHE.size());
+	}
+
+	@Test
+	public void clearShouldRemoveAllEntries()
+	{
+		PathCache cache = new PathCache(4);
+		cache.put("/a", dentry(1L));
+		cache.clear();
+		assertNull(cache.get("/a"));
+	}
+
+	@Test
+	public void canonicalPathShouldRemoveRedundantSlashes()
+	{
+		assertEquals("", AbstractSquashFsReader.canonicalPath("/"));
+		assertEquals("", AbstractSquashFsReader.canonicalPath(""));
+		assertEquals("/a/b", AbstractSquashFsReader.canonicalPath("a//b/"));
+		assertEquals("/a/b", AbstractSquashFsReader.canonicalPath("//a/b"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void negativeCapacityShouldFail()
+	{
+		new PathCache(-1);
+	}
+
+}
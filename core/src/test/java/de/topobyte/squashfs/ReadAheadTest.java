@@ -0,0 +1,172 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.topobyte.squashfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.junit.Test;
+
+import de.topobyte.squashfs.inode.BasicFileINode;
+
+public class ReadAheadTest
+{
+
+	private final List<Integer> prefetched = new ArrayList<>();
+	private final ReadAhead.Prefetcher recorder = (inode, blockNum) -> prefetched
+			.add(blockNum);
+
+	private static BasicFileINode file(int inodeNumber, int blocks)
+	{
+		int[] sizes = new int[blocks];
+		Arrays.fill(sizes, 100);
+		BasicFileINode inode = new BasicFileINode();
+		inode.setInodeNumber(inodeNumber);
+		inode.setBlocksStart(1000L * inodeNumber);
+		inode.setBlockSizes(sizes);
+		inode.setFileSize(100L * blocks);
+		return inode;
+	}
+
+	@Test
+	public void sequentialReadsShouldPrefetchNextBlock()
+	{
+		ReadAhead ra = new ReadAhead(Runnable::run, 8);
+		BasicFileINode inode = file(1, 10);
+		ra.access(inode, 0, recorder);
+		ra.access(inode, 0, recorder);
+		ra.access(inode, 1, recorder);
+		ra.access(inode, 2, recorder);
+
+		assertEquals("wrong blocks prefetched", Arrays.asList(1, 2, 3),
+				prefetched);
+		assertEquals("wrong depth", 1, ra.getDepth(inode));
+	}
+
+	@Test
+	public void waitingForPrefetchShouldIncreaseDepth()
+	{
+		List<Runnable> queued = new ArrayList<>();
+		Executor deferred = queued::add;
+		ReadAhead ra = new ReadAhead(deferred, 4);
+		BasicFileINode inode = file(1, 20);
+		for (int i = 0; i < 6; i++) {
+			// the prefetch for block i is still queued, run it while waiting
+			Runnable[] tasks = queued.toArray(new Runnable[0]);
+			queued.clear();
+			for (Runnable task : tasks) {
+				task.run();
+			}
+			ra.access(inode, i, recorder);
+		}
+		assertEquals("wrong depth", 1, ra.getDepth(inode));
+
+		ReadAhead lagging = new ReadAhead(queued::add, 4);
+		queued.clear();
+		for (int i = 0; i < 6; i++) {
+			lagging.access(inode, i, recorder);
+		}
+		assertEquals("wrong depth", 4, lagging.getDepth(inode));
+	}
+
+	@Test
+	public void depthShouldShrinkWhenReaderDoesNotWait()
+	{
+		List<Runnable> queued = new ArrayList<>();
+		ReadAhead ra = new ReadAhead(queued::add, 4);
+		BasicFileINode inode = file(1, 40);
+		for (int i = 0; i < 6; i++) {
+			ra.access(inode, i, recorder);
+		}
+		assertEquals("wrong depth", 4, ra.getDepth(inode));
+
+		// from now on every block has been prefetched before it is read
+		for (int i = 6; i < 20; i++) {
+			Runnable[] tasks = queued.toArray(new Runnable[0]);
+			queued.clear();
+			for (Runnable task : tasks) {
+				task.run();
+			}
+			ra.access(inode, i, recorder);
+		}
+		assertEquals("wrong depth", 1, ra.getDepth(inode));
+	}
+
+	@Test
+	public void streamsShouldBeTrackedPerHandle()
+	{
+		ReadAhead ra = new ReadAhead(Runnable::run, 8);
+		BasicFileINode inode = file(1, 10);
+		Object first = new Object();
+		Object second = new Object();
+		ra.access(first, inode, 0, recorder);
+		ra.access(second, inode, 5, recorder);
+		ra.access(first, inode, 1, recorder);
+		ra.access(second, inode, 6, recorder);
+		assertEquals("wrong depth", 1, ra.getDepth(first));
+		assertEquals("wrong depth", 1, ra.getDepth(second));
+		assertEquals("wrong depth", 0, ra.getDepth(inode));
+	}
+
+	@Test
+	public void randomAccessShouldResetStream()
+	{
+		ReadAhead ra = new ReadAhead(Runnable::run, 8);
+		BasicFileINode inode = file(1, 10);
+		ra.access(inode, 0, recorder);
+		ra.access(inode, 5, recorder);
+		assertEquals("wrong depth", 0, ra.getDepth(inode));
+		assertEquals("wrong blocks prefetched", Arrays.asList(1), prefetched);
+	}
+
+	@Test
+	public void prefetchShouldStopAtLastBlock()
+	{
+		ReadAhead ra = new ReadAhead(Runnable::run, 8);
+		BasicFileINode inode = file(1, 3);
+		for (int i = 0; i < 3; i++) {
+			ra.access(inode, i, recorder);
+		}
+		assertTrue("prefetched beyond end", prefetched.stream()
+				.allMatch(block -> block < 3));
+	}
+
+	@Test
+	public void sparseBlocksShouldNotBePrefetched()
+	{
+		ReadAhead ra = new ReadAhead(Runnable::run, 8);
+		BasicFileINode inode = file(1, 4);
+		inode.setBlockSizes(new int[] { 100, 0, 100, 100 });
+		ra.access(inode, 0, recorder);
+		ra.access(inode, 1, recorder);
+		assertEquals("wrong blocks prefetched", Arrays.asList(2), prefetched);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void zeroDepthShouldBeRejected()
+	{
+		new ReadAhead(Runnable::run, 0);
+	}
+
+}
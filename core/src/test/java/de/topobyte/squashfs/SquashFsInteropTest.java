@@ -23,19 +23,33 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.Rule;
 import org.junit.Test;
@@ -44,6 +58,14 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 import org.junit.runners.Parameterized.Parameters;
 
+import de.topobyte.squashfs.compression.BcjFilter;
+import de.topobyte.squashfs.compression.Compression;
+import de.topobyte.squashfs.compression.Lz4Compression;
+import de.topobyte.squashfs.compression.LzmaCompression;
+import de.topobyte.squashfs.compression.SuperBlockFlag;
+import de.topobyte.squashfs.compression.XzCompression;
+import de.topobyte.squashfs.compression.ZlibCompression;
+import de.topobyte.squashfs.compression.ZlibStrategy;
 import de.topobyte.squashfs.data.DataBlockCache;
 import de.topobyte.squashfs.directory.DirectoryEntry;
 import de.topobyte.squashfs.inode.DeviceINode;
@@ -56,6 +78,8 @@ import de.topobyte.squashfs.inode.SymlinkINode;
 import de.topobyte.squashfs.io.MappedFile;
 import de.topobyte.squashfs.metadata.MetadataBlockCache;
 import de.topobyte.squashfs.metadata.TaggedMetadataBlockReader;
+import de.topobyte.squashfs.superblock.SuperBlock;
+import de.topobyte.squashfs.util.CachePolicy;
 
 @RunWith(Parameterized.class)
 public class SquashFsInteropTest
@@ -71,6 +95,9 @@ public class SquashFsInteropTest
 				{ "file", (ReaderCreator) (a -> createFileReader(a)) },
 				{ "file-with-cache",
 						(ReaderCreator) (a -> createFileReaderWithCache(a)) },
+				{ "file-with-off-heap-cache",
+						(ReaderCreator) (a -> createFileReaderWithOffHeapCache(
+								a)) },
 				{ "mapped", (ReaderCreator) (a -> createMappedReader(a)) },
 				{ "mapped-with-cache",
 						(ReaderCreator) (a -> createMappedReaderWithCache(
@@ -84,10 +111,12 @@ public class SquashFsInteropTest
 				throws SquashFsException, IOException;
 	}
 
+	private String testName;
 	private ReaderCreator creator;
 
 	public SquashFsInteropTest(String testName, ReaderCreator creator)
 	{
+		this.testName = testName;
 		this.creator = creator;
 	}
 
@@ -112,6 +141,16 @@ public class SquashFsInteropTest
 				new DataBlockCache(64), new DataBlockCache(64));
 	}
 
+	public static SquashFsReader createFileReaderWithOffHeapCache(File archive)
+			throws SquashFsException, IOException
+	{
+		MetadataBlockCache cache = new MetadataBlockCache(
+				new TaggedMetadataBlockReader(true));
+		return SquashFsReader.fromFile(0, archive, 0, cache,
+				new DataBlockCache(64, 4L << 20, CachePolicy.LRU, true),
+				new DataBlockCache(64, 4L << 20, CachePolicy.LRU, true));
+	}
+
 	public static SquashFsReader createMappedReader(File archive)
 			throws SquashFsException, IOException
 	{
@@ -312,6 +351,54 @@ public class SquashFsInteropTest
 		}
 	}
 
+	@Test
+	public void archiveWithLargeDirectoryShouldUseIndex() throws Exception
+	{
+		File archive = temp.newFile();
+		int count = 3000;
+
+		try (SquashFsWriter writer = new SquashFsWriter(archive)) {
+			for (String name : new String[] { "/a", "/big" }) {
+				writer.entry(name).directory().lastModified(1000000L).uid(0)
+						.gid(0).permissions((short) 0755).build();
+			}
+			for (int i = 0; i < count; i++) {
+				writer.entry(String.format("/big/entry-%05d", i)).directory()
+						.lastModified(1000000L).uid(0).gid(0)
+						.permissions((short) 0755).build();
+			}
+			writer.finish();
+		}
+
+		try (SquashFsReader reader = createReader(archive)) {
+			DirectoryINode big = (DirectoryINode) reader.findInodeByPath("/big");
+			assertTrue("index missing", big.isIndexPresent());
+			assertEquals("wrong index count", big.getIndexes().length,
+					big.getIndexCount());
+
+			List<DirectoryEntry> children = reader.getChildren(big);
+			assertEquals("wrong directory entry count", count,
+					children.size());
+			for (int i = 0; i < count; i++) {
+				INode dir = reader
+						.findInodeByPath(String.format("/big/entry-%05d", i));
+				INode expected = reader
+						.findInodeByDirectoryEntry(children.get(i));
+				assertEquals(String.format("wrong inode for entry %d", i),
+						expected.getInodeNumber(), dir.getInodeNumber());
+			}
+			for (String missing : new String[] { "/big/a", "/big/entry-0",
+					"/big/entry-01000x", "/big/zzz" }) {
+				try {
+					reader.findInodeByPath(missing);
+					fail(String.format("found missing entry %s", missing));
+				} catch (FileNotFoundException e) {
+					// expected
+				}
+			}
+		}
+	}
+
 	@Test
 	public void archiveWithFileContainingFullBlockShouldWork() throws Exception
 	{
@@ -636,6 +723,718 @@ public class SquashFsInteropTest
 		}
 	}
 
+	private static void writeMixedArchive(File archive, int threads,
+			byte[][] contents) throws Exception
+	{
+		try (SquashFsWriter writer = new SquashFsWriter(archive,
+				new ZlibCompression(), 0, threads)) {
+			writer.setModificationTime(1000000);
+			writer.getFsTree().getRoot().lastModified = 1000000;
+			for (int i = 0; i < contents.length; i++) {
+				writer.entry(String.format("/file%d.dat", i)).lastModified(0L)
+						.uid(0).gid(0)
+						.content(new ByteArrayInputStream(contents[i]))
+						.permissions((short) 0644).build();
+			}
+			writer.finish();
+		}
+	}
+
+	private static void writeManyEntries(File archive, int threads)
+			throws Exception
+	{
+		try (SquashFsWriter writer = new SquashFsWriter(archive,
+				new ZlibCompression(), 0, threads)) {
+			writer.setModificationTime(1000000);
+			writer.getFsTree().getRoot().lastModified = 1000000;
+			for (int d = 0; d < 50; d++) {
+				writer.entry(String.format("/dir%d", d)).directory()
+						.lastModified(0L).uid(0).gid(0)
+						.permissions((short) 0755).build();
+				for (int i = 0; i < 200; i++) {
+					writer.entry(String.format("/dir%d/link%d", d, i))
+							.symlink(String.format("target%d", i))
+							.lastModified(0L).uid(0).gid(0)
+							.permissions((short) 0777).build();
+				}
+			}
+			writer.finish();
+		}
+	}
+
+	@Test
+	public void metadataWrittenInParallelShouldMatchSerialArchive()
+			throws Exception
+	{
+		File serial = temp.newFile();
+		File parallel = temp.newFile();
+		writeManyEntries(serial, 0);
+		writeManyEntries(parallel, 4);
+
+		assertArrayEquals("archives differ",
+				Files.readAllBytes(serial.toPath()),
+				Files.readAllBytes(parallel.toPath()));
+
+		try (SquashFsReader reader = createReader(parallel)) {
+			INode link = reader.findInodeByPath("/dir49/link199");
+			assertEquals("wrong target", "target199",
+					new String(((SymlinkINode) link).getTargetPath(),
+							StandardCharsets.ISO_8859_1));
+		}
+	}
+
+	@Test
+	public void archiveWrittenInParallelShouldMatchSerialArchive()
+			throws Exception
+	{
+		File serial = temp.newFile();
+		File parallel = temp.newFile();
+
+		int[] sizes = { 275000, 1000, 0, 131072, 50000, 131072 * 3 + 17 };
+		byte[][] contents = new byte[sizes.length][];
+		Random r = new Random(0L);
+		for (int i = 0; i < sizes.length; i++) {
+			contents[i] = new byte[sizes[i]];
+			if (i % 2 == 0) {
+				r.nextBytes(contents[i]);
+			}
+		}
+
+		writeMixedArchive(serial, 0, contents);
+		writeMixedArchive(parallel, 4, contents);
+
+		assertArrayEquals("archives differ",
+				Files.readAllBytes(serial.toPath()),
+				Files.readAllBytes(parallel.toPath()));
+
+		try (SquashFsReader reader = createReader(parallel)) {
+			for (int i = 0; i < contents.length; i++) {
+				INode file = reader
+						.findInodeByPath(String.format("/file%d.dat", i));
+				try (ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
+					reader.writeFileStream(file, bos);
+					assertArrayEquals(contents[i], bos.toByteArray());
+				}
+			}
+		}
+	}
+
+	@Test
+	public void readerShouldBeUsableFromMultipleThreads() throws Exception
+	{
+		File archive = temp.newFile();
+
+		int bs = SuperBlock.DEFAULT_BLOCK_SIZE;
+		Random r = new Random(0L);
+		byte[][] contents = new byte[16][];
+		for (int i = 0; i < contents.length; i++) {
+			contents[i] = new byte[bs * (i % 3) + 1000 * i + 10];
+			r.nextBytes(contents[i]);
+		}
+
+		try (SquashFsWriter writer = new SquashFsWriter(archive)) {
+			for (int i = 0; i < contents.length; i++) {
+				writer.entry(String.format("/file%d.dat", i))
+						.lastModified(System.currentTimeMillis()).uid(0)
+						.gid(0).content(new ByteArrayInputStream(contents[i]))
+						.permissions((short) 0644).build();
+			}
+			writer.finish();
+		}
+
+		try (SquashFsReader reader = createReader(archive)) {
+			ExecutorService executor = Executors.newFixedThreadPool(8);
+			try {
+				List<Future<?>> results = new ArrayList<>();
+				for (int t = 0; t < 8; t++) {
+					int seed = t;
+					results.add(executor.submit(() -> {
+						Random random = new Random(seed);
+						for (int n = 0; n < 50; n++) {
+							int i = random.nextInt(contents.length);
+							INode file = reader.findInodeByPath(
+									String.format("/file%d.dat", i));
+							int offset = random.nextInt(contents[i].length);
+							byte[] buf = new byte[1000];
+							int len = reader.read(file, offset, buf, 0,
+									buf.length);
+							assertArrayEquals(
+									String.format("wrong data in file %d", i),
+									Arrays.copyOfRange(contents[i], offset,
+											offset + len),
+									Arrays.copyOf(buf, len));
+						}
+						return null;
+					}));
+				}
+				for (Future<?> result : results) {
+					result.get();
+				}
+			} finally {
+				executor.shutdown();
+			}
+		}
+	}
+
+	@Test
+	public void sequentialReadsWithReadAheadShouldReturnFileContent()
+			throws Exception
+	{
+		File archive = temp.newFile();
+
+		int bs = SuperBlock.DEFAULT_BLOCK_SIZE;
+		byte[] content = new byte[bs * 20 + 1234];
+		new Random(0L).nextBytes(content);
+
+		try (SquashFsWriter writer = new SquashFsWriter(archive)) {
+			writer.entry("/video.dat").lastModified(System.currentTimeMillis())
+					.uid(0).gid(0).content(new ByteArrayInputStream(content))
+					.permissions((short) 0644).build();
+			writer.finish();
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try (SquashFsReader reader = createReader(archive)) {
+			try {
+				reader.setReadAhead(new ReadAhead(executor, 4));
+			} catch (IllegalStateException e) {
+				// prefetched blocks would be discarded without a data cache
+				assertFalse("read-ahead rejected", testName.contains("cache"));
+				return;
+			}
+			assertTrue("read-ahead accepted", testName.contains("cache"));
+			INode file = reader.findInodeByPath("/video.dat");
+			byte[] copy = new byte[content.length];
+			int pos = 0;
+			while (pos < copy.length) {
+				int len = reader.read(file, pos, copy, pos,
+						Math.min(10000, copy.length - pos));
+				assertTrue("unexpected end of file", len > 0);
+				pos += len;
+			}
+			assertArrayEquals("wrong content", content, copy);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void parallelWriteFileOutShouldMatchContent() throws Exception
+	{
+		File archive = temp.newFile();
+
+		int bs = SuperBlock.DEFAULT_BLOCK_SIZE;
+		byte[] content = new byte[bs * 30 + 777];
+		Random r = new Random(0L);
+		for (int i = 0; i < 30; i++) {
+			// leave every fifth block empty to get sparse blocks
+			if (i % 5 != 0) {
+				byte[] block = new byte[bs];
+				r.nextBytes(block);
+				System.arraycopy(block, 0, content, i * bs, bs);
+			}
+		}
+
+		try (SquashFsWriter writer = new SquashFsWriter(archive)) {
+			writer.entry("/large.dat").lastModified(System.currentTimeMillis())
+					.uid(0).gid(0).content(new ByteArrayInputStream(content))
+					.permissions((short) 0644).build();
+			writer.finish();
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try (SquashFsReader reader = createReader(archive)) {
+			INode file = reader.findInodeByPath("/large.dat");
+			for (int window : new int[] { 1, 3, 64 }) {
+				ByteArrayOutputStream bos = new ByteArrayOutputStream();
+				long written = reader.writeFileOut(file,
+						new DataOutputStream(bos), executor, window);
+				assertEquals("wrong size", content.length, written);
+				assertArrayEquals("wrong content", content,
+						bos.toByteArray());
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void parallelWriteFileOutShouldNotWaitForBusyExecutor()
+			throws Exception
+	{
+		File archive = temp.newFile();
+
+		byte[] content = new byte[SuperBlock.DEFAULT_BLOCK_SIZE * 5 + 123];
+		new Random(1L).nextBytes(content);
+
+		try (SquashFsWriter writer = new SquashFsWriter(archive)) {
+			writer.entry("/large.dat").lastModified(System.currentTimeMillis())
+					.uid(0).gid(0).content(new ByteArrayInputStream(content))
+					.permissions((short) 0644).build();
+			writer.finish();
+		}
+
+		// an executor whose threads are all busy never starts the tasks
+		Executor busy = task -> {
+		};
+		try (SquashFsReader reader = createReader(archive)) {
+			INode file = reader.findInodeByPath("/large.dat");
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			long written = reader.writeFileOut(file,
+					new DataOutputStream(bos), busy, 3);
+			assertEquals("wrong size", content.length, written);
+			assertArrayEquals("wrong content", content, bos.toByteArray());
+		}
+	}
+
+	@Test
+	public void readBufferAndTransferFileShouldReturnFileContent()
+			throws Exception
+	{
+		File archive = temp.newFile();
+
+		int bs = SuperBlock.DEFAULT_BLOCK_SIZE;
+		// random content is stored uncompressed, text is compressed
+		byte[] stored = new byte[bs * 3 + 500];
+		new Random(0L).nextBytes(stored);
+		StringBuilder text = new StringBuilder();
+		while (text.length() < bs * 2 + 300) {
+			text.append("squashfs compresses text well. ");
+		}
+		byte[] compressed = text.toString().getBytes(StandardCharsets.UTF_8);
+
+		try (SquashFsWriter writer = new SquashFsWriter(archive)) {
+			writer.entry("/stored.dat").lastModified(System.currentTimeMillis())
+					.uid(0).gid(0).content(new ByteArrayInputStream(stored))
+					.permissions((short) 0644).build();
+			writer.entry("/text.txt").lastModified(System.currentTimeMillis())
+					.uid(0).gid(0).content(new ByteArrayInputStream(compressed))
+					.permissions((short) 0644).build();
+			writer.finish();
+		}
+
+		try (SquashFsReader reader = createReader(archive)) {
+			for (byte[] content : new byte[][] { stored, compressed }) {
+				INode file = reader.findInodeByPath(
+						content == stored ? "/stored.dat" : "/text.txt");
+
+				ByteArrayOutputStream bos = new ByteArrayOutputStream();
+				long pos = 0L;
+				ByteBuffer buffer;
+				while ((buffer = reader.readBuffer(file, pos, 10000)) != null) {
+					assertTrue("buffer not read-only", buffer.isReadOnly());
+					// the fragment holds the end of both files and compresses
+					if (content == stored && pos < bs * 3
+							&& reader instanceof MappedSquashFsReader) {
+						assertTrue("stored block copied", buffer.isDirect());
+					}
+					byte[] chunk = new byte[buffer.remaining()];
+					buffer.get(chunk);
+					bos.write(chunk);
+					pos += chunk.length;
+				}
+				assertArrayEquals("wrong content from readBuffer", content,
+						bos.toByteArray());
+
+				File target = temp.newFile();
+				try (FileChannel channel = FileChannel.open(target.toPath(),
+						StandardOpenOption.WRITE)) {
+					assertEquals("wrong size", content.length,
+							reader.transferFile(file, channel));
+				}
+				assertArrayEquals("wrong content from transferFile", content,
+						Files.readAllBytes(target.toPath()));
+			}
+		}
+	}
+
+	@Test
+	public void archiveWithDuplicateBlocksShouldWork() throws Exception
+	{
+		File archive = temp.newFile();
+
+		int bs = SuperBlock.DEFAULT_BLOCK_SIZE;
+		Random r = new Random(0L);
+		byte[] original = new byte[bs * 3 + 100];
+		r.nextBytes(original);
+
+		// identical copy, copy with diverging tail, copy with sparse head
+		byte[] diverging = Arrays.copyOf(original, original.length);
+		Arrays.fill(diverging, bs * 2, bs * 3, (byte) 0x55);
+		byte[] sparseHead = new byte[bs * 3];
+		System.arraycopy(original, 0, sparseHead, bs, bs * 2);
+
+		byte[][] contents = { original, original, diverging, sparseHead };
+		try (SquashFsWriter writer = new SquashFsWriter(archive)) {
+			for (int i = 0; i < contents.length; i++) {
+				writer.entry(String.format("/file%d.dat", i))
+						.lastModified(System.currentTimeMillis()).uid(0)
+						.gid(0).content(new ByteArrayInputStream(contents[i]))
+						.permissions((short) 0644).build();
+			}
+			writer.finish();
+		}
+
+		try (SquashFsReader reader = createReader(archive)) {
+			FileINode file0 = (FileINode) reader.findInodeByPath("/file0.dat");
+			FileINode file1 = (FileINode) reader.findInodeByPath("/file1.dat");
+			assertEquals("blocks not shared", file0.getBlocksStart(),
+					file1.getBlocksStart());
+
+			for (int i = 0; i < contents.length; i++) {
+				INode file = reader
+						.findInodeByPath(String.format("/file%d.dat", i));
+				try (ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
+					reader.writeFileStream(file, bos);
+					assertArrayEquals(String.format("wrong content %d", i),
+							contents[i], bos.toByteArray());
+				}
+			}
+		}
+	}
+
+	@Test
+	public void archiveWithDuplicateFilesShouldShareFragments()
+			throws Exception
+	{
+		File archive = temp.newFile();
+
+		byte[] small = "identical content".getBytes(StandardCharsets.UTF_8);
+		byte[] large = new byte[SuperBlock.DEFAULT_BLOCK_SIZE + 1000];
+		new Random(0L).nextBytes(large);
+
+		byte[][] contents = { small, large, small, large };
+		try (SquashFsWriter writer = new SquashFsWriter(archive)) {
+			for (int i = 0; i < contents.length; i++) {
+				writer.entry(String.format("/file%d.dat", i))
+						.lastModified(System.currentTimeMillis()).uid(0)
+						.gid(0).content(new ByteArrayInputStream(contents[i]))
+						.permissions((short) 0644).build();
+			}
+			writer.finish();
+		}
+
+		try (SquashFsReader reader = createReader(archive)) {
+			assertEquals("wrong fragment count", 1,
+					reader.getSuperBlock().getFragmentEntryCount());
+
+			for (int i = 0; i < 2; i++) {
+				FileINode first = (FileINode) reader
+						.findInodeByPath(String.format("/file%d.dat", i));
+				FileINode second = (FileINode) reader
+						.findInodeByPath(String.format("/file%d.dat", i + 2));
+				assertEquals("wrong blocks start", first.getBlocksStart(),
+						second.getBlocksStart());
+				assertArrayEquals("wrong block sizes", first.getBlockSizes(),
+						second.getBlockSizes());
+				assertEquals("wrong fragment index",
+						first.getFragmentBlockIndex(),
+						second.getFragmentBlockIndex());
+				assertEquals("wrong fragment offset",
+						first.getFragmentOffset(), second.getFragmentOffset());
+			}
+
+			for (int i = 0; i < contents.length; i++) {
+				INode file = reader
+						.findInodeByPath(String.format("/file%d.dat", i));
+				try (ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
+					reader.writeFileStream(file, bos);
+					assertArrayEquals(String.format("wrong content %d", i),
+							contents[i], bos.toByteArray());
+				}
+			}
+		}
+	}
+
+	private void verifyBlockSize(int blockSize) throws Exception
+	{
+		File archive = temp.newFile();
+
+		Random r = new Random(0L);
+		byte[] random = new byte[blockSize * 2 + blockSize / 2];
+		r.nextBytes(random);
+		byte[] text = new byte[blockSize + 17];
+		for (int i = 0; i < text.length; i++) {
+			text[i] = (byte) ('a' + r.nextInt(4));
+		}
+		byte[] sparse = new byte[blockSize * 3];
+		r.nextBytes(sparse);
+		Arrays.fill(sparse, blockSize, blockSize * 2, (byte) 0);
+		byte[] small = new byte[blockSize / 3];
+		r.nextBytes(small);
+
+		byte[][] contents = { random, text, sparse, small };
+		try (SquashFsWriter writer = new SquashFsWriter(archive,
+				new ZlibCompression(), 0, 0, blockSize)) {
+			for (int i = 0; i < contents.length; i++) {
+				writer.entry(String.format("/file%d.dat", i))
+						.lastModified(System.currentTimeMillis()).uid(0)
+						.gid(0).content(new ByteArrayInputStream(contents[i]))
+						.permissions((short) 0644).build();
+			}
+			writer.finish();
+		}
+
+		try (SquashFsReader reader = createReader(archive)) {
+			assertEquals("wrong block size", blockSize,
+					reader.getSuperBlock().getBlockSize());
+			for (int i = 0; i < contents.length; i++) {
+				INode file = reader
+						.findInodeByPath(String.format("/file%d.dat", i));
+				try (ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
+					reader.writeFileStream(file, bos);
+					assertArrayEquals(String.format("wrong content %d", i),
+							contents[i], bos.toByteArray());
+				}
+
+				// read across the boundary between the first two blocks
+				int offset = Math.max(0,
+						Math.min(blockSize - 100, contents[i].length - 200));
+				byte[] buf = new byte[200];
+				int len = reader.read(file, offset, buf, 0, buf.length);
+				assertArrayEquals(String.format("wrong range %d", i),
+						Arrays.copyOfRange(contents[i], offset, offset + len),
+						Arrays.copyOf(buf, len));
+			}
+		}
+	}
+
+	@Test
+	public void archiveWithMinimumBlockSizeShouldWork() throws Exception
+	{
+		verifyBlockSize(SuperBlock.MIN_BLOCK_SIZE);
+	}
+
+	@Test
+	public void archiveWithMaximumBlockSizeShouldWork() throws Exception
+	{
+		verifyBlockSize(SuperBlock.MAX_BLOCK_SIZE);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void writerShouldRejectInvalidBlockSize() throws Exception
+	{
+		new SquashFsWriter(temp.newFile(), new ZlibCompression(), 0, 0,
+				3 * 65536).close();
+	}
+
+	private void verifyCompressedArchive(Compression compression)
+			throws Exception
+	{
+		File archive = temp.newFile();
+
+		byte[] content = new byte[SuperBlock.DEFAULT_BLOCK_SIZE * 2 + 5000];
+		Random r = new Random(0L);
+		for (int i = 0; i < content.length; i++) {
+			// compressible, but not trivially so
+			content[i] = (byte) ('a' + r.nextInt(4));
+		}
+
+		try (SquashFsWriter writer = new SquashFsWriter(archive, compression,
+				0)) {
+			writer.entry("/dir").directory()
+					.lastModified(System.currentTimeMillis()).uid(0).gid(0)
+					.permissions((short) 0755).build();
+			for (int i = 0; i < 50; i++) {
+				writer.entry(String.format("/dir/file-%03d.dat", i))
+						.lastModified(System.currentTimeMillis()).uid(0)
+						.gid(0)
+						.content(new ByteArrayInputStream(
+								Arrays.copyOf(content, content.length - i)))
+						.permissions((short) 0644).build();
+			}
+			writer.finish();
+		}
+
+		try (SquashFsReader reader = createReader(archive)) {
+			assertSame("wrong compression", compression.getCompressionId(),
+					reader.getSuperBlock().getCompression()
+							.getCompressionId());
+			assertEquals("wrong directory entry count", 50,
+					reader.getChildren(reader.findInodeByPath("/dir"))
+							.size());
+
+			for (int i = 0; i < 50; i += 7) {
+				INode file = reader.findInodeByPath(
+						String.format("/dir/file-%03d.dat", i));
+				try (ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
+					reader.writeFileStream(file, bos);
+					assertArrayEquals(String.format("wrong content %d", i),
+							Arrays.copyOf(content, content.length - i),
+							bos.toByteArray());
+				}
+			}
+		}
+	}
+
+	@Test
+	public void archiveWithLz4CompressionShouldWork() throws Exception
+	{
+		verifyCompressedArchive(new Lz4Compression());
+	}
+
+	@Test
+	public void archiveWithLz4HighCompressionShouldWork() throws Exception
+	{
+		verifyCompressedArchive(new Lz4Compression(true));
+	}
+
+	@Test
+	public void archiveWithXzCompressionShouldWork() throws Exception
+	{
+		verifyCompressedArchive(new XzCompression());
+	}
+
+	@Test
+	public void archiveWithXzCompressionAndFiltersShouldWork()
+			throws Exception
+	{
+		verifyCompressedArchive(
+				new XzCompression(65536, BcjFilter.X86, BcjFilter.ARM));
+	}
+
+	@Test
+	public void archiveWithLzmaCompressionShouldWork() throws Exception
+	{
+		verifyCompressedArchive(new LzmaCompression());
+	}
+
+	@Test
+	public void archiveWithXzCompressionShouldStoreOptions() throws Exception
+	{
+		File archive = temp.newFile();
+
+		try (SquashFsWriter writer = new SquashFsWriter(archive,
+				new XzCompression(65536, BcjFilter.X86, BcjFilter.SPARC),
+				0)) {
+			writer.finish();
+		}
+
+		byte[] data = Files.readAllBytes(archive.toPath());
+		byte[] options = Arrays.copyOfRange(data, SuperBlock.SIZE,
+				SuperBlock.SIZE + 10);
+		assertArrayEquals("wrong options block",
+				new byte[] { 8, (byte) 0x80, 0, 0, 1, 0, 33, 0, 0, 0 },
+				options);
+
+		try (SquashFsReader reader = createReader(archive)) {
+			XzCompression xz = (XzCompression) reader.getSuperBlock()
+					.getCompression();
+			assertEquals("wrong dictionary size", 65536,
+					xz.getDictionarySize());
+			assertEquals("wrong filters",
+					EnumSet.of(BcjFilter.X86, BcjFilter.SPARC),
+					xz.getFilters());
+		}
+	}
+
+	@Test
+	public void archiveWithDefaultXzCompressionShouldNotStoreOptions()
+			throws Exception
+	{
+		File archive = temp.newFile();
+
+		try (SquashFsWriter writer = new SquashFsWriter(archive,
+				new XzCompression(), 0)) {
+			writer.finish();
+		}
+
+		try (SquashFsReader reader = createReader(archive)) {
+			assertFalse("options flag set", reader.getSuperBlock()
+					.hasFlag(SuperBlockFlag.COMPRESSOR_OPTIONS));
+		}
+	}
+
+	@Test
+	public void archiveWithLz4CompressionShouldStoreOptions()
+			throws Exception
+	{
+		File archive = temp.newFile();
+
+		try (SquashFsWriter writer = new SquashFsWriter(archive,
+				new Lz4Compression(true), 0)) {
+			writer.finish();
+		}
+
+		try (SquashFsReader reader = createReader(archive)) {
+			assertTrue("options flag not set", reader.getSuperBlock()
+					.hasFlag(SuperBlockFlag.COMPRESSOR_OPTIONS));
+			assertTrue("high compression not restored",
+					((Lz4Compression) reader.getSuperBlock().getCompression())
+							.isHighCompression());
+		}
+
+		byte[] data = Files.readAllBytes(archive.toPath());
+		byte[] options = Arrays.copyOfRange(data, SuperBlock.SIZE,
+				SuperBlock.SIZE + 10);
+		assertArrayEquals("wrong options block",
+				new byte[] { 8, (byte) 0x80, 1, 0, 0, 0, 1, 0, 0, 0 },
+				options);
+	}
+
+	@Test
+	public void archiveWithZlibOptionsShouldWork() throws Exception
+	{
+		verifyCompressedArchive(new ZlibCompression(6,
+				ZlibStrategy.DEFAULT, ZlibStrategy.FILTERED,
+				ZlibStrategy.HUFFMAN_ONLY));
+	}
+
+	@Test
+	public void archiveWithZlibOptionsShouldStoreOptions() throws Exception
+	{
+		File archive = temp.newFile();
+
+		try (SquashFsWriter writer = new SquashFsWriter(archive,
+				new ZlibCompression(6, ZlibStrategy.DEFAULT,
+						ZlibStrategy.FILTERED),
+				0)) {
+			writer.finish();
+		}
+
+		byte[] data = Files.readAllBytes(archive.toPath());
+		byte[] options = Arrays.copyOfRange(data, SuperBlock.SIZE,
+				SuperBlock.SIZE + 10);
+		assertArrayEquals("wrong options block",
+				new byte[] { 8, (byte) 0x80, 6, 0, 0, 0, 15, 0, 3, 0 },
+				options);
+
+		try (SquashFsReader reader = createReader(archive)) {
+			ZlibCompression zlib = (ZlibCompression) reader.getSuperBlock()
+					.getCompression();
+			assertEquals("wrong level", 6, zlib.getLevel());
+			assertEquals("wrong window size", 15, zlib.getWindowSize());
+			assertEquals("wrong strategies",
+					EnumSet.of(ZlibStrategy.DEFAULT, ZlibStrategy.FILTERED),
+					zlib.getStrategies());
+		}
+	}
+
+	@Test
+	public void archiveWithDefaultZlibCompressionShouldNotStoreOptions()
+			throws Exception
+	{
+		File archive = temp.newFile();
+
+		try (SquashFsWriter writer = new SquashFsWriter(archive,
+				new ZlibCompression(), 0)) {
+			writer.finish();
+		}
+
+		try (SquashFsReader reader = createReader(archive)) {
+			assertFalse("options flag set", reader.getSuperBlock()
+					.hasFlag(SuperBlockFlag.COMPRESSOR_OPTIONS));
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void writerShouldRejectUnsupportedZlibStrategy() throws Exception
+	{
+		new SquashFsWriter(temp.newFile(),
+				new ZlibCompression(9, ZlibStrategy.RUN_LENGTH_ENCODED), 0)
+						.close();
+	}
+
 	@Test
 	public void archiveWithCharDeviceShouldWork() throws Exception
 	{
@@ -774,6 +1573,70 @@ public class SquashFsInteropTest
 		}
 	}
 
+	@Test
+	public void findInodeByPathShouldFollowSymlinks() throws Exception
+	{
+		File archive = temp.newFile();
+
+		try (SquashFsWriter writer = new SquashFsWriter(archive)) {
+			for (String name : new String[] { "/dir", "/dir/sub" }) {
+				writer.entry(name).directory().lastModified(1000000L).uid(0)
+						.gid(0).permissions((short) 0755).build();
+			}
+			writer.entry("/dir/target.dat").lastModified(1000000L).uid(0)
+					.gid(0).content(new ByteArrayInputStream(new byte[16]))
+					.permissions((short) 0644).build();
+			String[][] links = { { "/link-dir", "/dir" },
+					{ "/dir/relative", "target.dat" },
+					{ "/dir/sub/up", "../target.dat" },
+					{ "/dir/chain", "/link-dir/sub/up" },
+					{ "/loop-1", "/loop-2" }, { "/loop-2", "loop-1" } };
+			for (String[] link : links) {
+				writer.entry(link[0]).lastModified(1000000L).uid(0).gid(0)
+						.symlink(link[1]).permissions((short) 0777).build();
+			}
+			writer.finish();
+		}
+
+		try (SquashFsReader reader = createReader(archive)) {
+			int target = reader.findInodeByPath("/dir/target.dat")
+					.getInodeNumber();
+			for (String path : new String[] { "/link-dir/target.dat",
+					"/dir/relative", "/dir/sub/up", "/dir/chain",
+					"//link-dir/./sub/../relative/",
+					"/dir/sub/../../dir/chain" }) {
+				INode inode = reader.findInodeByPath(path, true);
+				assertEquals(String.format("wrong inode for %s", path), target,
+						inode.getInodeNumber());
+				// again, now from the cache
+				inode = reader.findInodeByPath(path, true);
+				assertEquals(String.format("wrong inode for %s", path), target,
+						inode.getInodeNumber());
+			}
+
+			assertSame("wrong type", INodeType.BASIC_SYMLINK,
+					reader.findInodeByPath("/dir/relative").getInodeType());
+			assertSame("wrong type", INodeType.BASIC_DIRECTORY,
+					reader.findInodeByPath("/", true).getInodeType());
+
+			for (String missing : new String[] { "/link-dir/target.dat",
+					"/dir/missing", "/dir/missing", "/dir/target.dat/x" }) {
+				try {
+					reader.findInodeByPath(missing);
+					fail(String.format("found missing entry %s", missing));
+				} catch (FileNotFoundException e) {
+					// expected
+				}
+			}
+			try {
+				reader.findInodeByPath("/loop-1", true);
+				fail("symlink loop not detected");
+			} catch (SquashFsException e) {
+				// expected
+			}
+		}
+	}
+
 	@Test(expected = IllegalArgumentException.class)
 	public void fileWithNullNameShouldFail() throws Exception
 	{
@@ -0,0 +1,173 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.topobyte.squashfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.topobyte.squashfs.inode.INodeType;
+
+public class SquashFsTreeTest
+{
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	@Test
+	public void childrenMayBeAddedBeforeTheirParent() throws Exception
+	{
+		File archive = temp.newFile();
+		try (SquashFsWriter writer = new SquashFsWriter(archive)) {
+			SquashFsEntry file = writer.entry("/a/b/file.dat").file().uid(0)
+					.gid(0).permissions((short) 0644).fileSize(0L).build();
+			SquashFsEntry b = directory(writer, "/a/b");
+			SquashFsEntry a = directory(writer, "/a");
+			writer.finish();
+
+			assertEquals("/a/b/file.dat", file.getName());
+			assertEquals("file.dat", file.getShortName());
+			assertSame(b, file.getParent());
+			assertSame(a, b.getParent());
+			assertSame(writer.getFsTree().getRoot(), a.getParent());
+			assertEquals(1, a.getChildren().size());
+			assertEquals(4, writer.getFsTree().getInodeCount());
+		}
+	}
+
+	@Test
+	public void inodesShouldNotBeKeptAfterWriting() throws Exception
+	{
+		File archive = temp.newFile();
+		try (SquashFsWriter writer = new SquashFsWriter(archive)) {
+			SquashFsEntry dir = directory(writer, "/dir");
+			SquashFsEntry file = writer.entry("/dir/file.dat").file().uid(0)
+					.gid(0).permissions((short) 0644).fileSize(0L).build();
+			writer.finish();
+
+			assertNull(dir.inode);
+			assertNull(dir.directoryInode);
+			assertNull(file.inode);
+			assertSame(INodeType.BASIC_FILE, file.getInode().getInodeType());
+		}
+	}
+
+	@Test
+	public void childrenShouldBeSortedByName() throws Exception
+	{
+		File archive = temp.newFile();
+		try (SquashFsWriter writer = new SquashFsWriter(archive)) {
+			directory(writer, "/dir");
+			for (String name : new String[] { "c", "a", "B", "b" }) {
+				directory(writer, "/dir/" + name);
+			}
+			writer.finish();
+
+			List<SquashFsEntry> children = writer.getFsTree().getRoot()
+					.getChildren().get(0).getChildren();
+			assertEquals(4, children.size());
+			assertEquals("B", children.get(0).getShortName());
+			assertEquals("a", children.get(1).getShortName());
+			assertEquals("b", children.get(2).getShortName());
+			assertEquals("c", children.get(3).getShortName());
+		}
+	}
+
+	@Test
+	public void realEntryShouldReplaceSyntheticEntry() throws Exception
+	{
+		File archive = temp.newFile();
+		try (SquashFsWriter writer = new SquashFsWriter(archive)) {
+			writer.entry("/dir").directory().uid(0).gid(0)
+					.permissions((short) 0700).synthetic().build();
+			SquashFsEntry child = directory(writer, "/dir/child");
+			SquashFsEntry dir = directory(writer, "/dir");
+			writer.finish();
+
+			assertSame(dir, child.getParent());
+			assertSame(dir, writer.getFsTree().getRoot().getChildren().get(0));
+			assertEquals((short) 0755, dir.permissions);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void missingParentShouldFail() throws Exception
+	{
+		File archive = temp.newFile();
+		try (SquashFsWriter writer = new SquashFsWriter(archive)) {
+			directory(writer, "/missing/dir");
+			writer.finish();
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void fileAsParentShouldFail() throws Exception
+	{
+		File archive = temp.newFile();
+		try (SquashFsWriter writer = new SquashFsWriter(archive)) {
+			writer.entry("/file").file().uid(0).gid(0)
+					.permissions((short) 0644).fileSize(0L).build();
+			directory(writer, "/file/dir");
+			writer.finish();
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void hardlinkToParentOnlyPathShouldFail() throws Exception
+	{
+		File archive = temp.newFile();
+		try (SquashFsWriter writer = new SquashFsWriter(archive)) {
+			writer.entry("/link").hardlink("/missing").build();
+			directory(writer, "/missing/dir");
+			writer.finish();
+		}
+	}
+
+	@Test
+	public void hardlinkShouldResolveTarget() throws Exception
+	{
+		File archive = temp.newFile();
+		try (SquashFsWriter writer = new SquashFsWriter(archive)) {
+			SquashFsEntry link = writer.entry("/dir/link")
+					.hardlink("/dir/target").build();
+			directory(writer, "/dir");
+			SquashFsEntry target = writer.entry("/dir/target").file().uid(0)
+					.gid(0).permissions((short) 0644).fileSize(0L).build();
+			writer.finish();
+
+			assertSame(target, link.getHardlinkEntry());
+			assertSame(target.getInode(), link.getInode());
+			assertEquals(2, target.getNlink());
+		}
+	}
+
+	private static SquashFsEntry directory(SquashFsWriter writer, String name)
+	{
+		return writer.entry(name).directory().uid(0).gid(0)
+				.permissions((short) 0755).build();
+	}
+
+}
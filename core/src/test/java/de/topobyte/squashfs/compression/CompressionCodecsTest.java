@@ -0,0 +1,169 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.topobyte.squashfs.compression;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Test;
+
+import de.topobyte.squashfs.CompressionUtil;
+import de.topobyte.squashfs.superblock.CompressionId;
+
+public class CompressionCodecsTest
+{
+
+	private static final int BLOCK_SIZE = 131072;
+
+	@After
+	public void tearDown()
+	{
+		CompressionCodecs.reset();
+	}
+
+	private static byte[] compressibleData(int size)
+	{
+		byte[] data = new byte[size];
+		Random random = new Random(0L);
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) ('a' + random.nextInt(4));
+		}
+		return data;
+	}
+
+	@Test
+	public void builtInCodecsShouldBeAvailable()
+	{
+		for (CompressionId id : new CompressionId[] { CompressionId.ZLIB,
+				CompressionId.ZSTD, CompressionId.LZ4, CompressionId.XZ,
+				CompressionId.LZMA }) {
+			CompressionCodec codec = CompressionCodecs.getCodec(id);
+			assertEquals("wrong codec", id, codec.getCompressionId());
+			assertTrue("codec not listed",
+					CompressionCodecs.getCodecs(id).contains(codec));
+		}
+		assertNull("unexpected codec",
+				CompressionCodecs.getCodec(CompressionId.LZO));
+		assertTrue("unexpected codecs",
+				CompressionCodecs.getCodecs(CompressionId.NONE).isEmpty());
+	}
+
+	@Test
+	public void codecsShouldRoundTripDirectBuffers() throws Exception
+	{
+		byte[] data = compressibleData(BLOCK_SIZE);
+		CompressionCodec[] codecs = { new ZlibCodec(), new Lz4Codec(),
+				new XzCodec(), new LzmaCodec() };
+		Compression[] options = { new ZlibCompression(),
+				new Lz4Compression(), new XzCompression(),
+				new LzmaCompression() };
+		for (int i = 0; i < codecs.length; i++) {
+			ByteBuffer src = ByteBuffer.allocateDirect(data.length);
+			src.put(data).flip();
+			ByteBuffer compressed = ByteBuffer.allocateDirect(BLOCK_SIZE);
+			int size = codecs[i].compress(options[i], BLOCK_SIZE, src,
+					compressed);
+			assertTrue("not compressed", size > 0 && size < data.length);
+			assertEquals("source position changed", 0, src.position());
+			assertEquals("target position changed", 0,
+					compressed.position());
+
+			compressed.limit(size);
+			ByteBuffer dst = ByteBuffer.allocateDirect(BLOCK_SIZE);
+			assertEquals("wrong size", data.length,
+					codecs[i].decompress(compressed, dst));
+			byte[] result = new byte[data.length];
+			dst.get(result);
+			assertArrayEquals("wrong data", data, result);
+		}
+	}
+
+	@Test
+	public void compressShouldFailIfResultDoesNotFit() throws Exception
+	{
+		byte[] data = new byte[BLOCK_SIZE];
+		new Random(1L).nextBytes(data);
+		assertEquals("result should not fit", -1,
+				new Lz4Codec().compress(new Lz4Compression(), BLOCK_SIZE,
+						ByteBuffer.wrap(data), ByteBuffer.allocate(100)));
+		assertNull("result should not fit",
+				CompressionUtil.compress(new ZlibCompression(), BLOCK_SIZE,
+						data, 0, data.length, data.length));
+	}
+
+	@Test
+	public void selectedCodecShouldBeUsed() throws Exception
+	{
+		CountingCodec counting = new CountingCodec();
+		CompressionCodecs.setCodec(counting);
+		assertSame("codec not selected", counting,
+				CompressionCodecs.getCodec(CompressionId.ZLIB));
+
+		byte[] data = compressibleData(BLOCK_SIZE);
+		byte[] compressed = CompressionUtil.compress(new ZlibCompression(),
+				BLOCK_SIZE, data, 0, data.length, BLOCK_SIZE);
+		byte[] result = new byte[BLOCK_SIZE];
+		CompressionUtil.decompress(new ZlibCompression(), compressed, 0,
+				compressed.length, result, result.length);
+		assertArrayEquals("wrong data", data, result);
+		assertEquals("wrong call count", 2, counting.calls);
+
+		CompressionCodecs.reset();
+		assertTrue("codec not reset", CompressionCodecs
+				.getCodec(CompressionId.ZLIB) instanceof ZlibCodec);
+	}
+
+	private static class CountingCodec implements CompressionCodec
+	{
+
+		private final ZlibCodec delegate = new ZlibCodec();
+		int calls = 0;
+
+		@Override
+		public CompressionId getCompressionId()
+		{
+			return CompressionId.ZLIB;
+		}
+
+		@Override
+		public int compress(Compression options, int blockSize,
+				ByteBuffer src, ByteBuffer dst) throws IOException
+		{
+			calls++;
+			return delegate.compress(options, blockSize, src, dst);
+		}
+
+		@Override
+		public int decompress(ByteBuffer src, ByteBuffer dst)
+				throws IOException
+		{
+			calls++;
+			return delegate.decompress(src, dst);
+		}
+
+	}
+
+}
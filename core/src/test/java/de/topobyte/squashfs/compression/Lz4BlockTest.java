@@ -0,0 +1,220 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.topobyte.squashfs.compression;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.compress.compressors.lz4.BlockLZ4CompressorInputStream;
+import org.apache.commons.compress.compressors.lz4.BlockLZ4CompressorOutputStream;
+import org.junit.Test;
+
+import de.topobyte.squashfs.SquashFsException;
+
+public class Lz4BlockTest
+{
+
+	static byte[] randomData(int length)
+	{
+		byte[] data = new byte[length];
+		new Random(0L).nextBytes(data);
+		return data;
+	}
+
+	static byte[] textData(int length)
+	{
+		Random r = new Random(0L);
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++) {
+			data[i] = (byte) ('a' + r.nextInt(4));
+		}
+		return data;
+	}
+
+	static void verifyRoundTrip(byte[] data, boolean highCompression)
+			throws Exception
+	{
+		byte[] compressed = Lz4Block.compress(data, 0, data.length,
+				highCompression);
+		assertTrue("output too large", compressed.length <= Lz4Block
+				.maxCompressedLength(data.length));
+		byte[] decompressed = Lz4Block.decompress(compressed, 0,
+				compressed.length, data.length);
+		assertArrayEquals("wrong data", data, decompressed);
+
+		// must also be readable by an independent LZ4 block decoder
+		try (InputStream in = new BlockLZ4CompressorInputStream(
+				new ByteArrayInputStream(compressed));
+				ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
+			byte[] xfer = new byte[4096];
+			int c;
+			while ((c = in.read(xfer)) >= 0) {
+				bos.write(xfer, 0, c);
+			}
+			assertArrayEquals("wrong data", data, bos.toByteArray());
+		}
+	}
+
+	@Test
+	public void emptyInputShouldRoundTrip() throws Exception
+	{
+		verifyRoundTrip(new byte[0], false);
+		verifyRoundTrip(new byte[0], true);
+	}
+
+	@Test
+	public void shortInputShouldRoundTrip() throws Exception
+	{
+		for (int i = 1; i < 20; i++) {
+			verifyRoundTrip(textData(i), false);
+			verifyRoundTrip(textData(i), true);
+		}
+	}
+
+	@Test
+	public void randomInputShouldRoundTrip() throws Exception
+	{
+		verifyRoundTrip(randomData(131072), false);
+		verifyRoundTrip(randomData(131072), true);
+	}
+
+	@Test
+	public void compressibleInputShouldRoundTrip() throws Exception
+	{
+		verifyRoundTrip(textData(131072), false);
+		verifyRoundTrip(textData(131072), true);
+		verifyRoundTrip(new byte[131072], false);
+		verifyRoundTrip(new byte[131072], true);
+	}
+
+	@Test
+	public void highCompressionShouldNotBeWorse() throws Exception
+	{
+		byte[] data = textData(131072);
+		int fast = Lz4Block.compress(data, 0, data.length, false).length;
+		int hc = Lz4Block.compress(data, 0, data.length, true).length;
+		assertTrue(String.format("hc %d > fast %d", hc, fast), hc <= fast);
+		assertTrue("not compressed", fast < data.length);
+	}
+
+	@Test
+	public void compressShouldHonorOffset() throws Exception
+	{
+		byte[] data = textData(10000);
+		byte[] compressed = Lz4Block.compress(data, 1000, 5000, false);
+		byte[] decompressed = Lz4Block.decompress(compressed, 0,
+				compressed.length, 5000);
+		byte[] expected = new byte[5000];
+		System.arraycopy(data, 1000, expected, 0, 5000);
+		assertArrayEquals("wrong data", expected, decompressed);
+	}
+
+	@Test
+	public void tablesReusedAcrossCallsShouldNotMatchStaleData()
+			throws Exception
+	{
+		// the same thread compresses inputs of different sizes and offsets
+		// so that entries of earlier calls point into the current input
+		byte[] text = textData(70000);
+		byte[] random = randomData(70000);
+		for (int i = 0; i < 3; i++) {
+			verifyRoundTrip(text, i == 1);
+			verifyRoundTrip(random, i == 1);
+			verifyRoundTrip(textData(8192), i == 2);
+			verifyRoundTrip(new byte[300], false);
+		}
+	}
+
+	@Test
+	public void compressIntoArrayShouldReportOverflow() throws Exception
+	{
+		byte[] data = randomData(8192);
+		byte[] dst = new byte[Lz4Block.maxCompressedLength(data.length) + 10];
+		int size = Lz4Block.compress(data, 0, data.length, dst, 10,
+				dst.length - 10, false);
+		assertTrue("no result", size > 0);
+		byte[] decompressed = Lz4Block.decompress(
+				Arrays.copyOfRange(dst, 10, 10 + size), 0, size, data.length);
+		assertArrayEquals("wrong data", data, decompressed);
+
+		assertEquals(-1, Lz4Block.compress(data, 0, data.length, dst, 0,
+				data.length, false));
+		assertEquals(-1, Lz4Block.compress(data, 0, data.length, dst, 0,
+				data.length, true));
+	}
+
+	@Test
+	public void overlappingMatchesShouldDecompress() throws Exception
+	{
+		byte[] data = new byte[10000];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) (i % 3 == 0 ? 'x' : 'a' + i % 7);
+		}
+		verifyRoundTrip(data, false);
+		verifyRoundTrip(data, true);
+	}
+
+	@Test
+	public void outputOfIndependentEncoderShouldDecompress() throws Exception
+	{
+		byte[] data = textData(8192);
+		byte[] compressed;
+		try (ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
+			try (OutputStream out = new BlockLZ4CompressorOutputStream(bos)) {
+				out.write(data);
+			}
+			compressed = bos.toByteArray();
+		}
+		assertArrayEquals("wrong data", data, Lz4Block.decompress(compressed,
+				0, compressed.length, data.length));
+	}
+
+	@Test(expected = SquashFsException.class)
+	public void decompressOfOversizedOutputShouldFail() throws Exception
+	{
+		byte[] data = textData(8192);
+		byte[] compressed = Lz4Block.compress(data, 0, data.length, false);
+		Lz4Block.decompress(compressed, 0, compressed.length, 8191);
+	}
+
+	@Test(expected = SquashFsException.class)
+	public void decompressOfTruncatedInputShouldFail() throws Exception
+	{
+		byte[] data = textData(8192);
+		byte[] compressed = Lz4Block.compress(data, 0, data.length, false);
+		Lz4Block.decompress(compressed, 0, compressed.length / 2, 8192);
+	}
+
+	@Test(expected = SquashFsException.class)
+	public void decompressOfInvalidOffsetShouldFail() throws Exception
+	{
+		// one literal followed by a match reaching before the start
+		byte[] compressed = { 0x10, 'a', 0x05, 0x00, 0x00 };
+		Lz4Block.decompress(compressed, 0, compressed.length, 8192);
+	}
+
+}
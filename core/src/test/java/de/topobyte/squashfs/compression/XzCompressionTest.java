@@ -0,0 +1,82 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.topobyte.squashfs.compression;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.EnumSet;
+
+import org.junit.Test;
+
+public class XzCompressionTest
+{
+
+	@Test
+	public void dictionarySizeShouldDefaultToBlockSize()
+	{
+		XzCompression xz = new XzCompression();
+		assertEquals(131072, xz.getDictionarySize(131072));
+		assertTrue(xz.getFilters().isEmpty());
+	}
+
+	@Test
+	public void explicitDictionarySizeShouldBeUsed()
+	{
+		XzCompression xz = new XzCompression(65536, BcjFilter.ARM);
+		assertEquals(65536, xz.getDictionarySize(131072));
+		assertEquals(EnumSet.of(BcjFilter.ARM), xz.getFilters());
+	}
+
+	@Test
+	public void validDictionarySizesShouldBeAccepted()
+	{
+		assertTrue(XzCompression.isValidDictionarySize(8192));
+		assertTrue(XzCompression.isValidDictionarySize(12288));
+		assertTrue(XzCompression.isValidDictionarySize(1 << 20));
+		assertTrue(XzCompression.isValidDictionarySize(3 << 19));
+	}
+
+	@Test
+	public void invalidDictionarySizesShouldBeRejected()
+	{
+		assertFalse(XzCompression.isValidDictionarySize(4096));
+		assertFalse(XzCompression.isValidDictionarySize(10000));
+		assertFalse(XzCompression.isValidDictionarySize(5 << 16));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void constructorShouldRejectInvalidDictionarySize()
+	{
+		new XzCompression(10000);
+	}
+
+	@Test
+	public void filterFlagsShouldMatchSquashFsEncoding()
+	{
+		assertEquals(1, BcjFilter.X86.mask());
+		assertEquals(32, BcjFilter.SPARC.mask());
+		assertEquals(9, BcjFilter.flagsFor(
+				EnumSet.of(BcjFilter.X86, BcjFilter.ARM)));
+		assertEquals(EnumSet.of(BcjFilter.POWERPC, BcjFilter.ARMTHUMB),
+				BcjFilter.filtersPresent(18));
+	}
+
+}
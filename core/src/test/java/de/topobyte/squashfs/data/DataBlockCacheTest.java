@@ -18,17 +18,32 @@
 
 package de.topobyte.squashfs.data;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
 
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.topobyte.squashfs.io.DiskBlockCache;
+import de.topobyte.squashfs.util.CacheBypass;
+import de.topobyte.squashfs.util.CachePolicy;
 
 public class DataBlockCacheTest
 {
 
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
 	DataBlockCache cache;
 	DataBlockCache.Key[] keys;
 	DataBlock[] blocks;
@@ -128,4 +143,289 @@ public class DataBlockCacheTest
 		assertEquals("wrong cache load", keys.length, cache.getCacheLoad());
 	}
 
+	@Test
+	public void cacheShouldBeBoundedByBytes() throws Exception
+	{
+		cache = new DataBlockCache(64, 100L);
+		for (int i = 0; i < 4; i++) {
+			cache.put(1, false, i, 32, 32, blocks[i]);
+		}
+		assertEquals("wrong cache load", 3, cache.getCacheLoad());
+		assertEquals("wrong cache bytes", 96L, cache.getCacheBytes());
+		assertNull("not null block", cache.get(1, false, 0, 32, 32));
+		for (int i = 1; i < 4; i++) {
+			assertSame("wrong block", blocks[i],
+					cache.get(1, false, i, 32, 32));
+		}
+	}
+
+	@Test
+	public void putWithSameKeyShouldReplaceBlock() throws Exception
+	{
+		cache.put(keys[0], extraBlock);
+		assertSame("wrong block", extraBlock, cache.get(keys[0]));
+		assertEquals("wrong cache load", keys.length, cache.getCacheLoad());
+		assertEquals("wrong cache bytes", keys.length * 32L,
+				cache.getCacheBytes());
+	}
+
+	@Test
+	public void getWithDifferentSizesShouldMiss() throws Exception
+	{
+		assertNull("not null block", cache.get(1, false, 0, 32, 16));
+		assertNull("not null block", cache.get(1, true, 0, 32, 32));
+		assertNull("not null block", cache.get(2, false, 0, 32, 32));
+	}
+
+	@Test
+	public void concurrentAccessShouldCountExactly() throws Exception
+	{
+		DataBlockCache shared = new DataBlockCache(8192, 4096L * 32L);
+		int threadCount = 8;
+		int perThread = 20000;
+		Thread[] threads = new Thread[threadCount];
+		for (int t = 0; t < threadCount; t++) {
+			int seed = t;
+			threads[t] = new Thread(() -> {
+				for (int i = 0; i < perThread; i++) {
+					long offset = (i * 31L + seed) % 6000L;
+					if (shared.get(1, false, offset, 32, 32) == null) {
+						shared.put(1, false, offset, 32, 32, blocks[0]);
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals("wrong access count", (long) threadCount * perThread,
+				shared.getCacheHits() + shared.getCacheMisses());
+		assertTrue("cache too large",
+				shared.getCacheBytes() <= 4096L * 32L);
+	}
+
+	@Test
+	public void tinyLfuShouldKeepHotBlocksDuringScan() throws Exception
+	{
+		DataBlockCache lfu = new DataBlockCache(100, DataBlockCache.UNLIMITED_BYTES,
+				CachePolicy.TINY_LFU);
+		for (int round = 0; round < 3; round++) {
+			for (int i = 0; i < 50; i++) {
+				if (lfu.get(1, false, i, 32, 32) == null) {
+					lfu.put(1, false, i, 32, 32, blocks[0]);
+				}
+			}
+		}
+		// a scan, while the hot blocks remain in use
+		for (int i = 0; i < 10000; i++) {
+			long offset = i % 5 == 0 ? (i / 5) % 50 : 1000 + i;
+			if (lfu.get(1, false, offset, 32, 32) == null) {
+				lfu.put(1, false, offset, 32, 32, blocks[0]);
+			}
+		}
+		int retained = 0;
+		for (int i = 0; i < 50; i++) {
+			if (lfu.get(1, false, i, 32, 32) != null) {
+				retained++;
+			}
+		}
+		assertTrue("hot blocks evicted: " + retained, retained >= 45);
+		assertTrue("cache too large", lfu.getCacheLoad() <= 100);
+	}
+
+	@Test
+	public void lruShouldLoseHotBlocksDuringScan() throws Exception
+	{
+		DataBlockCache lru = new DataBlockCache(100);
+		for (int i = 0; i < 50; i++) {
+			lru.put(1, false, i, 32, 32, blocks[0]);
+		}
+		for (int i = 1000; i < 1100; i++) {
+			lru.put(1, false, i, 32, 32, blocks[0]);
+		}
+		for (int i = 0; i < 50; i++) {
+			assertNull("hot block retained", lru.get(1, false, i, 32, 32));
+		}
+	}
+
+	@Test
+	public void tinyLfuShouldRespectByteLimit() throws Exception
+	{
+		DataBlockCache lfu = new DataBlockCache(1000, 32L * 20L,
+				CachePolicy.TINY_LFU);
+		for (int i = 0; i < 500; i++) {
+			lfu.put(1, false, i % 70, 32, 32, blocks[0]);
+			assertTrue("cache too large", lfu.getCacheBytes() <= 32L * 20L);
+		}
+		assertEquals("wrong cache load", 20, lfu.getCacheLoad());
+	}
+
+	@Test
+	public void bypassShouldServeHitsWithoutAdmitting() throws Exception
+	{
+		try (CacheBypass.Scope scope = CacheBypass.begin()) {
+			assertSame("wrong block", blocks[0], cache.get(keys[0]));
+			cache.put(extraKey, extraBlock);
+			assertNull("block admitted", cache.get(extraKey));
+		}
+		cache.put(extraKey, extraBlock);
+		assertSame("wrong block", extraBlock, cache.get(extraKey));
+	}
+
+	private static DataBlock randomBlock(int size, long seed)
+	{
+		byte[] data = new byte[size];
+		new Random(seed).nextBytes(data);
+		return new DataBlock(data, size, size);
+	}
+
+	@Test
+	public void offHeapCacheShouldReturnEqualData() throws Exception
+	{
+		DataBlockCache offHeap = new DataBlockCache(16, 1L << 20,
+				CachePolicy.LRU, true);
+		DataBlock block = randomBlock(10000, 1L);
+		offHeap.put(1, false, 0, 10000, 10000, block);
+
+		DataBlock cached = offHeap.get(1, false, 0, 10000, 10000);
+		assertArrayEquals("wrong data", block.getData(), cached.getData());
+		byte[] buf = new byte[5000];
+		cached.copyTo(4000, buf, 0, buf.length);
+		assertArrayEquals("wrong partial data",
+				Arrays.copyOfRange(block.getData(), 4000, 9000), buf);
+		cached.release();
+		assertTrue("not off-heap", offHeap.isOffHeap());
+		offHeap.close();
+	}
+
+	@Test
+	public void offHeapCacheShouldStayWithinBudget() throws Exception
+	{
+		long budget = 64L * 1024L;
+		DataBlockCache offHeap = new DataBlockCache(1000, budget,
+				CachePolicy.LRU, true);
+		for (int i = 0; i < 100; i++) {
+			offHeap.put(1, false, i, 5000, 5000, randomBlock(5000, i));
+			assertTrue("too much memory", offHeap.getOffHeapBytes() <= budget);
+			assertTrue("cache too large", offHeap.getCacheBytes() <= budget);
+		}
+		assertTrue("nothing cached", offHeap.getCacheLoad() > 0);
+		for (int i = 100 - offHeap.getCacheLoad(); i < 100; i++) {
+			DataBlock cached = offHeap.get(1, false, i, 5000, 5000);
+			assertArrayEquals("wrong data", randomBlock(5000, i).getData(),
+					cached.getData());
+			cached.release();
+		}
+		offHeap.close();
+		assertEquals("memory not freed", 0L, offHeap.getOffHeapBytes());
+	}
+
+	@Test
+	public void pinnedOffHeapBlockShouldSurviveEviction() throws Exception
+	{
+		DataBlockCache offHeap = new DataBlockCache(2, 1L << 20,
+				CachePolicy.LRU, true);
+		DataBlock block = randomBlock(8000, 7L);
+		offHeap.put(1, false, 0, 8000, 8000, block);
+		DataBlock pinned = offHeap.get(1, false, 0, 8000, 8000);
+		for (int i = 1; i < 10; i++) {
+			offHeap.put(1, false, i, 8000, 8000, randomBlock(8000, 100 + i));
+		}
+		assertNull("block not evicted", offHeap.get(1, false, 0, 8000, 8000));
+		assertArrayEquals("pinned block overwritten", block.getData(),
+				pinned.getData());
+		pinned.release();
+		offHeap.close();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void offHeapCacheShouldRequireByteLimit() throws Exception
+	{
+		new DataBlockCache(16, DataBlockCache.UNLIMITED_BYTES, CachePolicy.LRU,
+				true);
+	}
+
+	@Test
+	public void evictedBlocksShouldBeServedFromDiskCache() throws Exception
+	{
+		File file = temp.newFile();
+		try (DiskBlockCache disk = new DiskBlockCache(file, 1L << 20)) {
+			cache.setDiskCache(disk);
+			cache.put(extraKey, extraBlock);
+			assertEquals("wrong disk cache load", 1, disk.getCacheLoad());
+
+			DataBlock block = cache.get(keys[0]);
+			assertArrayEquals("wrong data", blocks[0].getData(),
+					block.getData());
+			assertEquals("wrong disk hit count", 1L, disk.getCacheHits());
+			assertSame("block not promoted", block, cache.get(keys[0]));
+		}
+	}
+
+	@Test
+	public void pooledBlockShouldReturnToPoolOnceItLeavesTheCache()
+			throws Exception
+	{
+		BlockBufferPool pool = BlockBufferPool.forSize(12345);
+		byte[] array = pool.acquire();
+		new Random(3L).nextBytes(array);
+		byte[] expected = array.clone();
+		DataBlock block = new PooledDataBlock(pool, array, 12345, 12345);
+
+		DataBlockCache heap = new DataBlockCache(2);
+		heap.put(1, true, 0, 100, 12345, block);
+		block.release();
+		DataBlock hit = heap.get(1, true, 0, 100, 12345);
+		for (int i = 1; i < 10; i++) {
+			heap.put(1, false, i, 8000, 8000, randomBlock(8000, 200 + i));
+		}
+		assertNull("block not evicted", heap.get(1, true, 0, 100, 12345));
+		int pooled = pool.getPooledCount();
+
+		byte[] copy = new byte[12345];
+		hit.copyTo(0, copy, 0, copy.length);
+		assertArrayEquals("pinned block overwritten", expected, copy);
+		hit.release();
+		assertEquals("array not recycled", pooled + 1, pool.getPooledCount());
+		assertSame("wrong array reused", array, pool.acquire());
+	}
+
+	@Test
+	public void exposedPooledBlockShouldNotBeRecycled() throws Exception
+	{
+		BlockBufferPool pool = BlockBufferPool.forSize(12346);
+		DataBlock block = new PooledDataBlock(pool, pool.acquire(), 12346,
+				12346);
+		int pooled = pool.getPooledCount();
+		block.asBuffer();
+		block.release();
+		assertEquals("exposed array recycled", pooled, pool.getPooledCount());
+	}
+
+	@Test
+	public void spilledPooledBlockShouldReturnToPool() throws Exception
+	{
+		BlockBufferPool pool = BlockBufferPool.forSize(12347);
+		byte[] array = pool.acquire();
+		new Random(4L).nextBytes(array);
+		byte[] expected = array.clone();
+		DataBlock block = new PooledDataBlock(pool, array, 12347, 12347);
+
+		File file = temp.newFile();
+		try (DiskBlockCache disk = new DiskBlockCache(file, 1L << 20)) {
+			DataBlockCache heap = new DataBlockCache(1);
+			heap.setDiskCache(disk);
+			heap.put(1, true, 0, 100, 12347, block);
+			int pooled = pool.getPooledCount();
+			block.release();
+			heap.put(extraKey, extraBlock);
+			assertEquals("array not recycled", pooled + 1,
+					pool.getPooledCount());
+
+			DataBlock spilled = disk.getDataBlock(1, 0, true, 100, 12347);
+			assertArrayEquals("wrong data", expected, spilled.getData());
+		}
+	}
+
 }
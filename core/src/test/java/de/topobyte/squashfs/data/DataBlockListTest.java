@@ -0,0 +1,128 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.topobyte.squashfs.data;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class DataBlockListTest
+{
+
+	@Test
+	public void emptyListShouldHaveNoBlocks()
+	{
+		DataBlockList list = new DataBlockList();
+		assertTrue(list.isEmpty());
+		assertEquals(0, list.size());
+		assertEquals(0, list.getInodeSizes().length);
+		assertTrue(list.asList().isEmpty());
+	}
+
+	@Test
+	public void blocksShouldBeEncodedInInodeFormat()
+	{
+		DataBlockList list = new DataBlockList();
+		list.add(new DataBlockRef(1000L, 131072, 500, true, false));
+		list.add(new DataBlockRef(1500L, 131072, 0, false, true));
+		list.add(new DataBlockRef(1500L, 131072, 131072, false, false));
+
+		assertFalse(list.isEmpty());
+		assertEquals(3, list.size());
+		assertEquals(1000L, list.getStart());
+		assertEquals(131072L, list.getSparseBytes());
+		assertArrayEquals(new int[] { 500, 0, 131072 | 0x1000000 },
+				list.getInodeSizes());
+	}
+
+	@Test
+	public void listViewShouldRecreateReferences()
+	{
+		DataBlockList list = new DataBlockList();
+		for (int i = 0; i < 100; i++) {
+			list.add(new DataBlockRef(1000L + i * 10L, 4096, 10, true, false));
+		}
+		list.add(new DataBlockRef(2000L, 1000, 0, false, true));
+
+		List<DataBlockRef> refs = list.asList();
+		assertEquals(101, refs.size());
+		for (int i = 0; i < 100; i++) {
+			DataBlockRef ref = refs.get(i);
+			assertEquals(1000L + i * 10L, ref.getLocation());
+			assertEquals(4096, ref.getLogicalSize());
+			assertEquals(10, ref.getPhysicalSize());
+			assertTrue(ref.isCompressed());
+			assertFalse(ref.isSparse());
+		}
+		DataBlockRef last = refs.get(100);
+		assertEquals(2000L, last.getLocation());
+		assertEquals(1000, last.getLogicalSize());
+		assertTrue(last.isSparse());
+	}
+
+	@Test
+	public void blocksShouldBeEncodedOnceCommitted()
+	{
+		DataBlockRef first = new DataBlockRef(4096);
+		DataBlockRef second = new DataBlockRef(4096);
+		DataBlockList list = new DataBlockList();
+		list.add(first);
+		list.add(second);
+		assertEquals(2, list.size());
+
+		first.commit(100L, 50, true, false);
+		second.commit(150L, 4096, false, false);
+
+		// a relocated run only moves the first block's location
+		first.commit(300L, 50, true, false);
+		assertEquals(300L, list.getStart());
+		assertArrayEquals(new int[] { 50, 4096 | 0x1000000 },
+				list.getInodeSizes());
+		assertEquals(350L, list.asList().get(1).getLocation());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void uncommittedBlocksShouldNotBeEncoded()
+	{
+		DataBlockList list = new DataBlockList();
+		list.add(new DataBlockRef(4096));
+		list.getInodeSizes();
+	}
+
+	@Test
+	public void copyShouldNotShareBlocks()
+	{
+		DataBlockList list = new DataBlockList();
+		list.add(new DataBlockRef(0L, 4096, 10, true, false));
+		DataBlockList copy = list.copy();
+		list.add(new DataBlockRef(10L, 4096, 10, true, false));
+
+		assertEquals(2, list.size());
+		assertEquals(1, copy.size());
+		copy.add(new DataBlockRef(10L, 4096, 20, true, false));
+		assertArrayEquals(new int[] { 10, 10 }, list.getInodeSizes());
+		assertArrayEquals(new int[] { 10, 20 }, copy.getInodeSizes());
+	}
+
+}
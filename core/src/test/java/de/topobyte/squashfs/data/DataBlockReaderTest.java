@@ -20,9 +20,12 @@ package de.topobyte.squashfs.data;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Random;
 
 import org.junit.Before;
@@ -31,9 +34,9 @@ import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
 import de.topobyte.squashfs.SquashFsException;
+import de.topobyte.squashfs.compression.LzoCompression;
 import de.topobyte.squashfs.compression.NoCompression;
 import de.topobyte.squashfs.compression.SuperBlockFlag;
-import de.topobyte.squashfs.compression.XzCompression;
 import de.topobyte.squashfs.compression.ZlibCompression;
 import de.topobyte.squashfs.inode.BasicFileINode;
 import de.topobyte.squashfs.ra.IRandomAccess;
@@ -110,6 +113,55 @@ public class DataBlockReaderTest
 		assertArrayEquals("wrong data", data, block.getData());
 	}
 
+	@Test
+	public void readOfCachedFragmentShouldReturnSliceOfBlock()
+			throws Exception
+	{
+		byte[] data = new byte[1000];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) (i % 13);
+		}
+
+		FragmentWriter fw = new FragmentWriter(raf,
+				SuperBlock.DEFAULT_BLOCK_SIZE, new ZlibCompression());
+		writeFragment(fw, data, 0, 300);
+		FragmentRef ref = writeFragment(fw, data, 300, 700);
+		fw.flush();
+		FragmentTable ft = new InMemoryFragmentTable(
+				fw.getFragmentEntries().get(0));
+
+		BasicFileINode inode = new BasicFileINode();
+		inode.setFileSize(700);
+		inode.setFragmentOffset(ref.getOffset());
+		inode.setFragmentBlockIndex(ref.getFragmentIndex());
+
+		byte[] expected = Arrays.copyOfRange(data, 300, 1000);
+		DataBlockCache cache = new DataBlockCache(4);
+		for (int i = 0; i < 2; i++) {
+			DataBlock block = DataBlockReader.readFragment(tag, raf, sb, inode,
+					ft, 700, cache);
+			try {
+				assertEquals("wrong logical size", 700,
+						block.getLogicalSize());
+				assertArrayEquals("wrong data", expected, block.getData());
+
+				ByteBuffer buffer = block.asBuffer();
+				assertTrue("not read-only", buffer.isReadOnly());
+				byte[] copy = new byte[buffer.remaining()];
+				buffer.get(copy);
+				assertArrayEquals("wrong buffer", expected, copy);
+
+				byte[] part = new byte[10];
+				block.copyTo(5, part, 0, part.length);
+				assertArrayEquals("wrong copy",
+						Arrays.copyOfRange(expected, 5, 15), part);
+			} finally {
+				block.release();
+			}
+		}
+		assertEquals("fragment block not cached", 1L, cache.getCacheHits());
+	}
+
 	@Test(expected = SquashFsException.class)
 	public void readOfSingleFragmentShouldFailIfReadTooManyBytes()
 			throws Exception
@@ -183,8 +235,8 @@ public class DataBlockReaderTest
 		DataBlockReader.readBlock(tag, raf, sb, inode, 0);
 	}
 
-	@Test(expected = UnsupportedOperationException.class)
-	public void readOfCompressedBlockShouldFailIfCompressionOptionsSet()
+	@Test
+	public void readOfCompressedBlockShouldSucceedIfCompressionOptionsSet()
 			throws Exception
 	{
 		sb.setFlags((short) (sb.getFlags()
@@ -201,7 +253,9 @@ public class DataBlockReaderTest
 		inode.setBlocksStart(ref.getLocation());
 		inode.setBlockSizes(new int[] { ref.getInodeSize() });
 
-		DataBlockReader.readBlock(tag, raf, sb, inode, 0);
+		DataBlock block = DataBlockReader.readBlock(tag, raf, sb, inode, 0);
+		assertEquals("wrong logical size", data.length, block.getLogicalSize());
+		assertArrayEquals("wrong data", data, block.getData());
 	}
 
 	@Test(expected = SquashFsException.class)
@@ -228,7 +282,7 @@ public class DataBlockReaderTest
 	public void readOfCompressedBlockShouldFailIfCompressionIdIsSetToAnUnsupportedAlgorithm()
 			throws Exception
 	{
-		sb.setCompression(new XzCompression());
+		sb.setCompression(new LzoCompression());
 		byte[] data = new byte[SuperBlock.DEFAULT_BLOCK_SIZE];
 		for (int i = 0; i < data.length; i++) {
 			data[i] = (byte) 0xff;
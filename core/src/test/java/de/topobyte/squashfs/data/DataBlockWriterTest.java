@@ -24,6 +24,7 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
+import java.util.Arrays;
 import java.util.Random;
 
 import org.junit.After;
@@ -129,6 +130,149 @@ public class DataBlockWriterTest
 		assertTrue("sparse", ref.isSparse());
 	}
 
+	@Test
+	public void duplicateBlocksMustShareLocationWhenDeduplicating()
+			throws Exception
+	{
+		writer = new DataBlockWriter(raf, SuperBlock.DEFAULT_BLOCK_SIZE,
+				new ZlibCompression(), null, true);
+
+		Random random = new Random(0L);
+		byte[] buf1 = new byte[SuperBlock.DEFAULT_BLOCK_SIZE];
+		byte[] buf2 = new byte[SuperBlock.DEFAULT_BLOCK_SIZE];
+		random.nextBytes(buf1);
+		Arrays.fill(buf2, (byte) 0xff);
+
+		writer.startFile();
+		DataBlockRef a1 = writer.write(buf1, 0, buf1.length);
+		DataBlockRef a2 = writer.write(buf2, 0, buf2.length);
+		long end = raf.getFilePointer();
+
+		writer.startFile();
+		DataBlockRef b1 = writer.write(buf1, 0, buf1.length);
+		DataBlockRef b2 = writer.write(buf2, 0, buf2.length);
+
+		assertEquals("wrong location", a1.getLocation(), b1.getLocation());
+		assertEquals("wrong location", a2.getLocation(), b2.getLocation());
+		assertEquals("wrong physical size", a2.getPhysicalSize(),
+				b2.getPhysicalSize());
+		assertTrue("not compressed", b2.isCompressed());
+		assertEquals("data written", end, raf.getFilePointer());
+	}
+
+	@Test
+	public void divergingDuplicateBlocksMustBeStoredContiguously()
+			throws Exception
+	{
+		writer = new DataBlockWriter(raf, SuperBlock.DEFAULT_BLOCK_SIZE,
+				new ZlibCompression(), null, true);
+
+		Random random = new Random(0L);
+		byte[] buf1 = new byte[SuperBlock.DEFAULT_BLOCK_SIZE];
+		byte[] buf2 = new byte[SuperBlock.DEFAULT_BLOCK_SIZE];
+		random.nextBytes(buf1);
+		random.nextBytes(buf2);
+
+		writer.startFile();
+		DataBlockRef a1 = writer.write(buf1, 0, buf1.length);
+		long end = raf.getFilePointer();
+
+		writer.startFile();
+		DataBlockRef b1 = writer.write(buf1, 0, buf1.length);
+		assertEquals("wrong location", a1.getLocation(), b1.getLocation());
+		DataBlockRef b2 = writer.write(buf2, 0, buf2.length);
+
+		assertEquals("wrong location", end, b1.getLocation());
+		assertEquals("wrong location",
+				b1.getLocation() + b1.getPhysicalSize(), b2.getLocation());
+
+		byte[] copy = new byte[b1.getPhysicalSize()];
+		raf.seek(b1.getLocation());
+		raf.readFully(copy);
+		assertArrayEquals("Wrong buffer", buf1, copy);
+	}
+
+	@Test
+	public void duplicateOfOldBlockMustBeSharedWhenDeduplicating()
+			throws Exception
+	{
+		writer = new DataBlockWriter(raf, SuperBlock.DEFAULT_BLOCK_SIZE,
+				new ZlibCompression(), null, true);
+
+		// enough distinct blocks to push the first one out of the cache
+		byte[] buf = new byte[SuperBlock.DEFAULT_BLOCK_SIZE];
+		DataBlockRef first = null;
+		for (int i = 1; i <= 100; i++) {
+			Arrays.fill(buf, (byte) i);
+			writer.startFile();
+			DataBlockRef ref = writer.write(buf, 0, buf.length);
+			if (first == null) {
+				first = ref;
+			}
+		}
+		long end = raf.getFilePointer();
+
+		Arrays.fill(buf, (byte) 1);
+		writer.startFile();
+		DataBlockRef dup = writer.write(buf, 0, buf.length);
+
+		assertEquals("wrong location", first.getLocation(), dup.getLocation());
+		assertTrue("not compressed", dup.isCompressed());
+		assertEquals("data written", end, raf.getFilePointer());
+	}
+
+	@Test
+	public void pipelinedDuplicateBlocksMustShareLocation() throws Exception
+	{
+		byte[] buf1 = new byte[SuperBlock.DEFAULT_BLOCK_SIZE];
+		byte[] buf2 = new byte[SuperBlock.DEFAULT_BLOCK_SIZE];
+		for (int i = 0; i < buf1.length; i++) {
+			buf1[i] = (byte) (i % 7);
+		}
+		Arrays.fill(buf2, (byte) 0xff);
+
+		DataBlockRef a1, a2, b1, c1, c2;
+		try (CompressionPipeline pipeline = new CompressionPipeline(
+				SuperBlock.DEFAULT_BLOCK_SIZE, 2)) {
+			writer = new DataBlockWriter(raf, SuperBlock.DEFAULT_BLOCK_SIZE,
+					new ZlibCompression(), pipeline, true);
+
+			writer.startFile();
+			a1 = writer.write(buf1, 0, buf1.length);
+			a2 = writer.write(buf2, 0, buf2.length);
+			pipeline.drain();
+
+			writer.startFile();
+			b1 = writer.write(buf1, 0, buf1.length);
+			// seen before, but cannot join the run of this file
+			writer.startFile();
+			c1 = writer.write(buf1, 0, buf1.length);
+			c2 = writer.write(buf1, 0, buf1.length);
+			pipeline.drain();
+		}
+
+		assertEquals("wrong location", a1.getLocation(), b1.getLocation());
+		assertEquals("wrong location",
+				c1.getLocation() + c1.getPhysicalSize(), c2.getLocation());
+		assertTrue("not compressed", a1.isCompressed());
+		assertTrue("not compressed", a2.isCompressed());
+		assertTrue("not compressed", c2.isCompressed());
+		assertEquals("wrong physical size", a1.getPhysicalSize(),
+				c2.getPhysicalSize());
+	}
+
+	@Test
+	public void duplicateBlocksMustNotBeSharedByDefault() throws Exception
+	{
+		byte[] buf = new byte[SuperBlock.DEFAULT_BLOCK_SIZE];
+		Arrays.fill(buf, (byte) 0xff);
+
+		DataBlockRef ref1 = writer.write(buf, 0, buf.length);
+		DataBlockRef ref2 = writer.write(buf, 0, buf.length);
+		assertEquals("wrong location", ref1.getPhysicalSize(),
+				ref2.getLocation());
+	}
+
 	@Test(expected = IllegalArgumentException.class)
 	public void writeOfShortBlockMustFail() throws Exception
 	{
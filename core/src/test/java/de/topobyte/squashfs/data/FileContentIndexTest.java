@@ -0,0 +1,151 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.topobyte.squashfs.data;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.topobyte.squashfs.compression.ZlibCompression;
+import de.topobyte.squashfs.ra.IRandomAccess;
+import de.topobyte.squashfs.ra.SimpleRandomAccess;
+import de.topobyte.squashfs.superblock.SuperBlock;
+
+public class FileContentIndexTest
+{
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	IRandomAccess raf;
+	FragmentWriter fragments;
+	FileContentIndex index;
+	int writes;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		raf = new SimpleRandomAccess(temp.newFile(), "rw");
+		fragments = new FragmentWriter(raf, SuperBlock.DEFAULT_BLOCK_SIZE,
+				new ZlibCompression());
+		index = new FileContentIndex(fragments);
+		writes = 0;
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		raf.close();
+	}
+
+	FragmentRef share(long fileSize, String tail) throws Exception
+	{
+		byte[] data = tail.getBytes(StandardCharsets.UTF_8);
+		return index.share(fileSize, data, 0, data.length, () -> {
+			writes++;
+			return fragments.write(data, 0, data.length);
+		});
+	}
+
+	@Test
+	public void shareShouldWriteFirstTail() throws Exception
+	{
+		FragmentRef fragment = share(5L, "hello");
+		assertEquals(0, fragment.getOffset());
+		assertEquals(1, writes);
+	}
+
+	@Test
+	public void shareShouldReturnMatchingFragment() throws Exception
+	{
+		FragmentRef fragment = share(5L, "hello");
+		assertSame(fragment, share(5L, "hello"));
+		assertEquals(1, writes);
+	}
+
+	@Test
+	public void shareShouldMatchFragmentReadBack() throws Exception
+	{
+		FragmentRef fragment = share(5L, "hello");
+		fragments.flush();
+		assertSame(fragment, share(5L, "hello"));
+		assertEquals(1, writes);
+	}
+
+	@Test
+	public void shareShouldNotMatchDifferentSize() throws Exception
+	{
+		FragmentRef fragment = share(5L, "hello");
+		assertNotSame(fragment, share(6L, "hello"));
+		assertEquals(2, writes);
+	}
+
+	@Test
+	public void shareShouldNotMatchDifferentContent() throws Exception
+	{
+		FragmentRef fragment = share(5L, "hello");
+		assertNotSame(fragment, share(5L, "world"));
+		assertEquals(2, writes);
+	}
+
+	@Test
+	public void shareShouldNotReadBackDifferentContent() throws Exception
+	{
+		share(5L, "hello");
+		fragments.flush();
+		// any read back would fail now
+		raf.close();
+		share(5L, "world");
+		assertEquals(2, writes);
+	}
+
+	@Test
+	public void getFileCountShouldCountAllBuckets() throws Exception
+	{
+		share(5L, "hello");
+		share(5L, "world");
+		share(3L, "foo");
+		share(3L, "foo");
+		assertEquals(3, index.getFileCount());
+	}
+
+	@Test
+	public void digestShouldNotDependOnEarlierCalls() throws Exception
+	{
+		byte[] data = "hello world".getBytes(StandardCharsets.UTF_8);
+		MessageDigest md = FileContentIndex.createDigest();
+		md.update(data, 6, 5);
+		byte[] expected = md.digest();
+
+		FileContentIndex.digest(data, 0, 5);
+		assertArrayEquals(expected, FileContentIndex.digest(data, 6, 5));
+		assertArrayEquals(expected, FileContentIndex.digest(data, 6, 5));
+	}
+
+}
@@ -20,6 +20,7 @@ package de.topobyte.squashfs.directory;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 import java.nio.charset.StandardCharsets;
 import java.util.List;
@@ -27,7 +28,13 @@ import java.util.List;
 import org.junit.Before;
 import org.junit.Test;
 
+import de.topobyte.squashfs.compression.ZlibCompression;
 import de.topobyte.squashfs.inode.INodeType;
+import de.topobyte.squashfs.metadata.MemoryMetadataBlockReader;
+import de.topobyte.squashfs.metadata.MetadataBlock;
+import de.topobyte.squashfs.metadata.MetadataBlockReader;
+import de.topobyte.squashfs.metadata.MetadataReader;
+import de.topobyte.squashfs.superblock.SuperBlock;
 import de.topobyte.squashfs.test.DirectoryTestUtils;
 
 public class DirectoryBuilderTest
@@ -217,4 +224,51 @@ public class DirectoryBuilderTest
 				new String(entry.getName(), StandardCharsets.ISO_8859_1));
 	}
 
+	@Test
+	public void writeShouldNotCreateIndexesForSmallDirectory() throws Exception
+	{
+		for (int i = 1; i <= 256; i++) {
+			db.add("test" + i, 1, i, (short) 3, INodeType.EXTENDED_FILE);
+		}
+		DirectoryTestUtils.serializeDirectoryBuilder(db);
+		assertTrue("unexpected indexes", db.getIndexes().isEmpty());
+	}
+
+	@Test
+	public void writeShouldCreateIndexesForLargeDirectory() throws Exception
+	{
+		int count = 2000;
+		for (int i = 0; i < count; i++) {
+			db.add(String.format("entry-%05d", i), 1, i + 1, (short) 3,
+					INodeType.EXTENDED_FILE);
+		}
+		byte[] data = DirectoryTestUtils.serializeDirectoryBuilder(db);
+		int size = db.getStructureSize();
+
+		List<DirectoryIndex> indexes = db.getIndexes();
+		assertEquals("wrong index count", size / MetadataBlock.MAX_SIZE,
+				indexes.size());
+
+		SuperBlock sb = new SuperBlock();
+		sb.setCompression(new ZlibCompression());
+		int tag = 0;
+		try (MetadataBlockReader mbr = new MemoryMetadataBlockReader(tag, sb,
+				data)) {
+			int lastBlock = 0;
+			for (DirectoryIndex index : indexes) {
+				assertTrue("index out of order",
+						index.getStartBlock() > lastBlock);
+				lastBlock = index.getStartBlock();
+
+				MetadataReader reader = mbr.rawReader(tag,
+						index.getStartBlock(),
+						(short) (index.getIndex() % MetadataBlock.MAX_SIZE));
+				DirectoryHeader header = DirectoryHeader.read(reader);
+				DirectoryEntry entry = DirectoryEntry.read(header, reader);
+				assertEquals("wrong index name", entry.getNameAsString(),
+						index.getNameAsString());
+			}
+		}
+	}
+
 }
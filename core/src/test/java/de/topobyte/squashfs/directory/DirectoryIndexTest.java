@@ -0,0 +1,119 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.topobyte.squashfs.directory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class DirectoryIndexTest
+{
+
+	DirectoryIndex[] indexes;
+
+	@Before
+	public void setUp()
+	{
+		indexes = new DirectoryIndex[] { index(8192, 1, "bbb"),
+				index(16384, 2, "ddd"), index(24576, 3, "fff") };
+	}
+
+	private static DirectoryIndex index(int index, int startBlock,
+			String name)
+	{
+		return new DirectoryIndex(index, startBlock,
+				name.getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+	private DirectoryIndex find(String name)
+	{
+		return DirectoryIndex.find(indexes,
+				name.getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+	@Test
+	public void findShouldReturnNullBeforeFirstIndex()
+	{
+		assertNull(find("aaa"));
+		assertNull(find("bb"));
+	}
+
+	@Test
+	public void findShouldReturnLastIndexNotGreaterThanName()
+	{
+		assertSame(indexes[0], find("bbb"));
+		assertSame(indexes[0], find("ccc"));
+		assertSame(indexes[1], find("ddd"));
+		assertSame(indexes[1], find("ddda"));
+		assertSame(indexes[2], find("zzz"));
+	}
+
+	@Test
+	public void findShouldReturnNullForNoIndexes()
+	{
+		assertNull(DirectoryIndex.find(new DirectoryIndex[0],
+				"test".getBytes(StandardCharsets.ISO_8859_1)));
+	}
+
+	@Test
+	public void getStructureSizeShouldReturnCorrectValue()
+	{
+		assertEquals(15, indexes[0].getStructureSize());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void createWithEmptyNameShouldFail()
+	{
+		new DirectoryIndex(0, 0, new byte[0]);
+	}
+
+	@Test
+	public void writeDataAndReadDataShouldBeReflexive() throws Exception
+	{
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		try (DataOutputStream dos = new DataOutputStream(bos)) {
+			indexes[1].writeData(dos);
+		}
+		byte[] data = bos.toByteArray();
+		assertEquals("wrong length", 15, data.length);
+
+		DirectoryIndex dest = DirectoryIndex.read(
+				new DataInputStream(new ByteArrayInputStream(data)));
+		assertEquals("wrong index", 16384, dest.getIndex());
+		assertEquals("wrong start block", 2, dest.getStartBlock());
+		assertEquals("wrong size", 2, dest.getSize());
+		assertEquals("wrong name", "ddd", dest.getNameAsString());
+	}
+
+	@Test
+	public void toStringShouldNotFail()
+	{
+		System.out.println(indexes[0].toString());
+	}
+
+}
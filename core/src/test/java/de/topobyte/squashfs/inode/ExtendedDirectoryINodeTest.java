@@ -24,10 +24,12 @@ import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 
 import org.junit.Before;
 import org.junit.Test;
 
+import de.topobyte.squashfs.directory.DirectoryIndex;
 import de.topobyte.squashfs.test.INodeTestUtils;
 
 public class ExtendedDirectoryINodeTest
@@ -44,10 +46,20 @@ public class ExtendedDirectoryINodeTest
 		inode.setFileSize(3);
 		inode.setOffset((short) 4);
 		inode.setParentInodeNumber(5);
-		inode.setIndexCount((short) 6);
+		inode.setIndexes(createIndexes(6));
 		inode.setXattrIndex(7);
 	}
 
+	private static DirectoryIndex[] createIndexes(int count)
+	{
+		DirectoryIndex[] indexes = new DirectoryIndex[count];
+		for (int i = 0; i < count; i++) {
+			indexes[i] = new DirectoryIndex(i * 8192, i * 100,
+					("name" + i).getBytes(StandardCharsets.ISO_8859_1));
+		}
+		return indexes;
+	}
+
 	@Test
 	public void getNameShouldReturnCorrectValue()
 	{
@@ -135,6 +147,8 @@ public class ExtendedDirectoryINodeTest
 	@Test
 	public void getChildSerializedSizeShouldReturnCorrectValue()
 	{
+		assertEquals(24 + 6 * 17, inode.getChildSerializedSize());
+		inode.setIndexes(DirectoryINode.NO_INDEXES);
 		assertEquals(24, inode.getChildSerializedSize());
 	}
 
@@ -155,6 +169,14 @@ public class ExtendedDirectoryINodeTest
 				bDest.getParentInodeNumber());
 		assertEquals("wrong index count", (short) 6, bDest.getIndexCount());
 		assertEquals("wrong xattr index", 7, bDest.getXattrIndex());
+		for (int i = 0; i < 6; i++) {
+			DirectoryIndex index = bDest.getIndexes()[i];
+			assertEquals("wrong index", i * 8192, index.getIndex());
+			assertEquals("wrong index start block", i * 100,
+					index.getStartBlock());
+			assertEquals("wrong index name", "name" + i,
+					index.getNameAsString());
+		}
 	}
 
 	@Test
@@ -126,6 +126,25 @@ public class ExtendedFileINodeTest
 		assertEquals(52, inode.getChildSerializedSize());
 	}
 
+	@Test
+	public void getBlockOffsetShouldSumPrecedingBlockSizes()
+	{
+		inode.setBlockSizes(new int[] { 10, 0x1000000 | 20, 30 });
+		assertEquals(0L, inode.getBlockOffset(0));
+		assertEquals(10L, inode.getBlockOffset(1));
+		assertEquals(30L, inode.getBlockOffset(2));
+		assertEquals(60L, inode.getBlockOffset(3));
+	}
+
+	@Test
+	public void getBlockOffsetShouldReflectNewBlockSizes()
+	{
+		inode.setBlockSizes(new int[] { 10, 20 });
+		assertEquals(10L, inode.getBlockOffset(1));
+		inode.setBlockSizes(new int[] { 7, 20 });
+		assertEquals(7L, inode.getBlockOffset(1));
+	}
+
 	@Test
 	public void xattrIndexPropertyShouldWorkAsExpected()
 	{
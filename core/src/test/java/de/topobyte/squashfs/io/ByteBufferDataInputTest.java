@@ -25,6 +25,7 @@ import static org.junit.Assert.assertTrue;
 
 import java.io.EOFException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
 import java.util.Random;
 
@@ -190,6 +191,27 @@ public class ByteBufferDataInputTest
 		assertEquals(value, r.readDouble(), 0.0000001d);
 	}
 
+	@Test
+	public void readsShouldBeBigEndianRegardlessOfBufferOrder()
+			throws Exception
+	{
+		byte[] data = new byte[14];
+		ByteBuffer.wrap(data).putShort((short) 0x1234).putInt(0x12345678)
+				.putLong(0x0102030405060708L);
+		ByteBufferDataInput r = new ByteBufferDataInput(
+				ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN));
+		assertEquals((short) 0x1234, r.readShort());
+		assertEquals(0x12345678, r.readInt());
+		assertEquals(0x0102030405060708L, r.readLong());
+	}
+
+	@Test(expected = EOFException.class)
+	public void readLongShouldThrowEOFExceptionIfEndOfStream() throws Exception
+	{
+		ByteBufferDataInput r = input(new byte[7]);
+		r.readLong();
+	}
+
 	@Test(expected = UnsupportedOperationException.class)
 	public void readLineShouldThrowUnsupportedOperationException()
 			throws Exception
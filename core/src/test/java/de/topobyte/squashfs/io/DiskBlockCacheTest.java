@@ -0,0 +1,202 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.topobyte.squashfs.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.topobyte.squashfs.data.DataBlock;
+import de.topobyte.squashfs.metadata.MetadataBlock;
+
+public class DiskBlockCacheTest
+{
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	File file;
+	DiskBlockCache cache;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		file = new File(temp.getRoot(), "cache");
+		cache = new DiskBlockCache(file, 10000L, 4000);
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		cache.close();
+	}
+
+	private static byte[] random(int size, long seed)
+	{
+		byte[] data = new byte[size];
+		new Random(seed).nextBytes(data);
+		return data;
+	}
+
+	@Test
+	public void dataBlockShouldRoundTrip() throws Exception
+	{
+		byte[] data = random(1000, 1L);
+		cache.putDataBlock(1, 100L, true, 500, 1200,
+				new DataBlock(data, 1200, 1000));
+
+		DataBlock block = cache.getDataBlock(1, 100L, true, 500, 1200);
+		assertNotNull("missing block", block);
+		assertArrayEquals("wrong data", data, block.getData());
+		assertEquals("wrong logical size", 1200, block.getLogicalSize());
+		assertEquals("wrong physical size", 1000, block.getPhysicalSize());
+		assertEquals("wrong hit count", 1L, cache.getCacheHits());
+	}
+
+	@Test
+	public void dataBlockWithDifferentSizesShouldMiss() throws Exception
+	{
+		cache.putDataBlock(1, 100L, true, 500, 1000,
+				new DataBlock(random(1000, 1L), 1000, 1000));
+
+		assertNull("not null block", cache.getDataBlock(1, 100L, false, 500,
+				1000));
+		assertNull("not null block", cache.getDataBlock(1, 100L, true, 400,
+				1000));
+		assertNull("not null block", cache.getDataBlock(2, 100L, true, 500,
+				1000));
+		assertEquals("wrong miss count", 3L, cache.getCacheMisses());
+	}
+
+	@Test
+	public void metadataBlockShouldRoundTrip() throws Exception
+	{
+		byte[] data = random(300, 2L);
+		cache.putMetadataBlock(1, 100L,
+				new MetadataBlock((short) 0x8000, data, (short) 302));
+
+		assertNull("data block returned",
+				cache.getDataBlock(1, 100L, true, 300, 300));
+		MetadataBlock block = cache.getMetadataBlock(1, 100L);
+		assertArrayEquals("wrong data", data, block.getData());
+		assertEquals("wrong header", (short) 0x8000, block.getHeader());
+		assertEquals("wrong file length", (short) 302, block.getFileLength());
+	}
+
+	@Test
+	public void oldestBlocksShouldBeEvictedWhenWrapping() throws Exception
+	{
+		for (int i = 0; i < 30; i++) {
+			cache.putDataBlock(1, i, false, 1500, 1500,
+					new DataBlock(random(1500, i), 1500, 1500));
+			assertTrue("cache too large", cache.getCacheBytes() <= 10000L);
+		}
+		// two blocks fit into each 4000 byte mapping, one into the last
+		assertEquals("wrong cache load", 5, cache.getCacheLoad());
+		for (int i = 0; i < 25; i++) {
+			assertNull("block not evicted",
+					cache.getDataBlock(1, i, false, 1500, 1500));
+		}
+		for (int i = 25; i < 30; i++) {
+			DataBlock block = cache.getDataBlock(1, i, false, 1500, 1500);
+			assertArrayEquals("wrong data", random(1500, i), block.getData());
+		}
+	}
+
+	@Test
+	public void replacedBlockShouldReturnNewData() throws Exception
+	{
+		cache.putDataBlock(1, 0L, false, 100, 100,
+				new DataBlock(random(100, 1L), 100, 100));
+		cache.putDataBlock(1, 0L, false, 100, 100,
+				new DataBlock(random(100, 2L), 100, 100));
+		assertEquals("wrong cache load", 1, cache.getCacheLoad());
+		assertEquals("wrong cache bytes", 100L, cache.getCacheBytes());
+		assertArrayEquals("wrong data", random(100, 2L),
+				cache.getDataBlock(1, 0L, false, 100, 100).getData());
+	}
+
+	@Test
+	public void blockLargerThanMappingShouldNotBeCached() throws Exception
+	{
+		cache.putDataBlock(1, 0L, false, 5000, 5000,
+				new DataBlock(random(5000, 1L), 5000, 5000));
+		assertEquals("wrong cache load", 0, cache.getCacheLoad());
+	}
+
+	@Test
+	public void concurrentAccessShouldNeverReturnOverwrittenData()
+			throws Exception
+	{
+		int threadCount = 8;
+		int perThread = 2000;
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		Thread[] threads = new Thread[threadCount];
+		for (int t = 0; t < threadCount; t++) {
+			int seed = t;
+			threads[t] = new Thread(() -> {
+				try {
+					for (int i = 0; i < perThread; i++) {
+						long offset = (i * 31L + seed) % 40L;
+						DataBlock block = cache.getDataBlock(1, offset, false,
+								700, 700);
+						if (block == null) {
+							cache.putDataBlock(1, offset, false, 700, 700,
+									new DataBlock(random(700, offset), 700,
+											700));
+						} else {
+							assertArrayEquals("wrong data",
+									random(700, offset), block.getData());
+						}
+					}
+				} catch (Throwable e) {
+					failure.compareAndSet(null, e);
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertNull("concurrent access failed", failure.get());
+		assertTrue("cache too large", cache.getCacheBytes() <= 10000L);
+	}
+
+	@Test
+	public void closeShouldDeleteFile() throws Exception
+	{
+		assertTrue("file missing", file.exists());
+		cache.close();
+		assertFalse("file not deleted", file.exists());
+	}
+
+}
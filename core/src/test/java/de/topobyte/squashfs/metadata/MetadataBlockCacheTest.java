@@ -18,26 +18,36 @@
 
 package de.topobyte.squashfs.metadata;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
+import java.io.File;
 import java.util.Map;
 import java.util.SortedMap;
 import java.util.TreeMap;
 
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import de.topobyte.squashfs.io.DiskBlockCache;
 import de.topobyte.squashfs.superblock.SuperBlock;
 import de.topobyte.squashfs.test.MetadataBlockReaderMock;
 import de.topobyte.squashfs.test.MetadataTestUtils;
+import de.topobyte.squashfs.util.CacheBypass;
+import de.topobyte.squashfs.util.CachePolicy;
 
 public class MetadataBlockCacheTest
 {
 
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
 	SuperBlock sb;
 	MetadataBlockReaderMock mbr;
 	TaggedMetadataBlockReader tmbr;
@@ -283,4 +293,61 @@ public class MetadataBlockCacheTest
 		cache.close();
 		assertFalse("closed", mbr.isClosed());
 	}
+
+	@Test
+	public void tinyLfuShouldKeepHotBlocksDuringScan() throws Exception
+	{
+		cache = new MetadataBlockCache(tmbr, 20, true, CachePolicy.TINY_LFU);
+		for (int round = 0; round < 3; round++) {
+			for (int i = 0; i < 10; i++) {
+				cache.read(10101, i * 1000L);
+			}
+		}
+		// a scan, while the hot blocks remain in use
+		for (int i = 0; i < 5000; i++) {
+			long offset = i % 5 == 0 ? (i / 5) % 10 : 100 + i;
+			cache.read(10101, (offset % 10000) * 1000L);
+		}
+		cache.resetStatistics();
+		for (int i = 0; i < 10; i++) {
+			cache.read(10101, i * 1000L);
+		}
+		assertEquals("wrong hit count", 10L, cache.getCacheHits());
+		assertTrue("cache too large", cache.getCacheLoad() <= 20);
+	}
+
+	@Test
+	public void bypassShouldNotAdmitBlocks() throws Exception
+	{
+		cache = new MetadataBlockCache(tmbr, 10);
+		cache.read(10101, 0L);
+		try (CacheBypass.Scope scope = CacheBypass.begin()) {
+			cache.read(10101, 0L);
+			cache.read(10101, 1000L);
+			cache.read(10101, 1000L);
+		}
+		assertEquals("wrong hit count", 1L, cache.getCacheHits());
+		assertEquals("wrong miss count", 3L, cache.getCacheMisses());
+		assertEquals("wrong cache load", 1, cache.getCacheLoad());
+	}
+
+	@Test
+	public void evictedBlocksShouldBeServedFromDiskCache() throws Exception
+	{
+		cache = new MetadataBlockCache(tmbr, 10);
+		File file = temp.newFile();
+		try (DiskBlockCache disk = new DiskBlockCache(file, 1L << 20)) {
+			cache.setDiskCache(disk);
+			for (int i = 0; i < 20; i++) {
+				cache.read(10101, i * 1000L);
+			}
+			assertEquals("wrong disk cache load", 10, disk.getCacheLoad());
+
+			MetadataBlock block = cache.read(10101, 0L);
+			assertArrayEquals("wrong data", blockMap.get(0L).getData(),
+					block.getData());
+			assertEquals("wrong disk hit count", 1L, disk.getCacheHits());
+		}
+	}
+
 }
@@ -34,9 +34,9 @@ import org.junit.Before;
 import org.junit.Test;
 
 import de.topobyte.squashfs.SquashFsException;
+import de.topobyte.squashfs.compression.LzoCompression;
 import de.topobyte.squashfs.compression.NoCompression;
 import de.topobyte.squashfs.compression.SuperBlockFlag;
-import de.topobyte.squashfs.compression.XzCompression;
 import de.topobyte.squashfs.superblock.SuperBlock;
 import de.topobyte.squashfs.test.DataTestUtils;
 import de.topobyte.squashfs.test.MetadataTestUtils;
@@ -106,7 +106,7 @@ public class MetadataBlockTest
 		byte[] blockData = MetadataTestUtils.saveMetadataBlock(buf);
 
 		SuperBlock sb = new SuperBlock();
-		sb.setCompression(new XzCompression());
+		sb.setCompression(new LzoCompression());
 		try (DataInputStream dis = new DataInputStream(
 				new ByteArrayInputStream(blockData))) {
 			MetadataBlock.read(dis, sb);
@@ -114,8 +114,8 @@ public class MetadataBlockTest
 
 	}
 
-	@Test(expected = UnsupportedOperationException.class)
-	public void readingCompressedBlockShouldFailIfSuperblockHasCompressionOptionFlag()
+	@Test
+	public void readingCompressedBlockShouldSucceedIfSuperblockHasCompressionOptionFlag()
 			throws Exception
 	{
 
@@ -130,7 +130,9 @@ public class MetadataBlockTest
 				| SuperBlockFlag.COMPRESSOR_OPTIONS.mask()));
 		try (DataInputStream dis = new DataInputStream(
 				new ByteArrayInputStream(blockData))) {
-			MetadataBlock.read(dis, sb);
+			MetadataBlock block = MetadataBlock.read(dis, sb);
+			assertTrue("not compressed", block.isCompressed());
+			assertArrayEquals(buf, block.getData());
 		}
 
 	}
@@ -29,6 +29,9 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Random;
 
 import org.junit.Test;
@@ -249,6 +252,39 @@ public class MetadataReaderTest
 		assertEquals(0x12345678, r.readInt());
 	}
 
+	@Test
+	public void readIntsShouldSpanBlockBoundaries() throws Exception
+	{
+		byte[] data = new byte[20];
+		ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer()
+				.put(new int[] { 1, -2, 0x12345678, 0x7fffffff, 0x80000000 });
+
+		Map<Long, MetadataBlock> blocks = new HashMap<>();
+		blocks.put(10101L,
+				MetadataTestUtils.block(Arrays.copyOfRange(data, 0, 10)));
+		blocks.put(10113L,
+				MetadataTestUtils.block(Arrays.copyOfRange(data, 10, 20)));
+		MetadataBlockReaderMock mbr = new MetadataBlockReaderMock(10101,
+				new SuperBlock(), blocks);
+		MetadataReader r = new MetadataReader(mbr,
+				ref(10101, 10101L, (short) 0, 20));
+
+		int[] values = new int[5];
+		r.readInts(values);
+		assertArrayEquals(
+				new int[] { 1, -2, 0x12345678, 0x7fffffff, 0x80000000 },
+				values);
+		assertTrue(r.isEof());
+	}
+
+	@Test(expected = EOFException.class)
+	public void readIntsShouldThrowEOFExceptionIfTooLong() throws Exception
+	{
+		byte[] data = new byte[8];
+		MetadataReader r = reader(data, ref(10101, 0L, (short) 0, 8));
+		r.readInts(new int[3]);
+	}
+
 	@Test
 	public void readFloatShouldSwapBytes() throws Exception
 	{
@@ -20,6 +20,8 @@ package de.topobyte.squashfs.metadata;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
@@ -32,13 +34,19 @@ import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
 import java.nio.LongBuffer;
 import java.nio.ShortBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.junit.Before;
 import org.junit.Test;
 
 import de.topobyte.squashfs.compression.ZlibCompression;
+import de.topobyte.squashfs.data.CompressionPipeline;
 import de.topobyte.squashfs.test.MetadataTestUtils;
 
 public class MetadataWriterTest
@@ -54,6 +62,7 @@ public class MetadataWriterTest
 
 	@Test
 	public void getCurrentReferenceShouldReturnZeroBeforeBlocksWritten()
+			throws Exception
 	{
 		MetadataBlockRef ref = writer.getCurrentReference();
 		assertEquals("wrong location", 0, ref.getLocation());
@@ -247,6 +256,42 @@ public class MetadataWriterTest
 		}
 	}
 
+	@Test
+	public void writeIntsShouldSpanBlockBoundaries() throws Exception
+	{
+		writer.write(new byte[MetadataBlock.MAX_SIZE - 6]);
+		int[] values = new int[4096];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = i * 0x01010101;
+		}
+		writer.writeInts(values);
+
+		byte[] out = MetadataTestUtils.saveMetadataBlock(writer);
+		byte[] buf2 = MetadataTestUtils.decodeMetadataBlocks(out, 0);
+		assertEquals("wrong length", MetadataBlock.MAX_SIZE - 6 + 16384,
+				buf2.length);
+		IntBuffer ib = ByteBuffer.wrap(buf2, MetadataBlock.MAX_SIZE - 6, 16384)
+				.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+		for (int i = 0; i < values.length; i++) {
+			assertEquals(String.format("wrong value at index %d", i),
+					values[i], ib.get(i));
+		}
+	}
+
+	@Test
+	public void writeLongShouldSpanBlockBoundaries() throws Exception
+	{
+		writer.write(new byte[MetadataBlock.MAX_SIZE - 3]);
+		writer.writeLong(0x0102030405060708L);
+
+		byte[] out = MetadataTestUtils.saveMetadataBlock(writer);
+		byte[] buf2 = MetadataTestUtils.decodeMetadataBlocks(out, 0);
+		assertEquals("wrong length", MetadataBlock.MAX_SIZE + 5, buf2.length);
+		assertEquals(0x0102030405060708L,
+				ByteBuffer.wrap(buf2).order(ByteOrder.LITTLE_ENDIAN)
+						.getLong(MetadataBlock.MAX_SIZE - 3));
+	}
+
 	@Test
 	public void writIntShouldByteSwapOutput() throws Exception
 	{
@@ -387,4 +432,146 @@ public class MetadataWriterTest
 		writer.writeUTF("test");
 	}
 
+	private static void writeRecords(MetadataWriter out,
+			List<MetadataBlockRef> refs) throws IOException
+	{
+		Random random = new Random(7L);
+		for (int i = 0; i < 20000; i++) {
+			if (i % 100 == 0) {
+				refs.add(out.getCurrentReference());
+			}
+			out.writeInt(i);
+			out.writeLong(random.nextInt(16));
+		}
+	}
+
+	private static byte[] save(MetadataWriter out) throws IOException
+	{
+		try (ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
+			try (DataOutputStream dos = new DataOutputStream(bos)) {
+				out.save(dos);
+			}
+			return bos.toByteArray();
+		}
+	}
+
+	@Test
+	public void pipelinedWriterShouldMatchInlineWriter() throws Exception
+	{
+		List<MetadataBlockRef> expectedRefs = new ArrayList<>();
+		writeRecords(writer, expectedRefs);
+		byte[] expected = save(writer);
+
+		try (CompressionPipeline pipeline = new CompressionPipeline(8192, 4)) {
+			MetadataWriter pipelined = new MetadataWriter(
+					new ZlibCompression(), pipeline);
+			List<MetadataBlockRef> refs = new ArrayList<>();
+			writeRecords(pipelined, refs);
+			assertArrayEquals("wrong data", expected, save(pipelined));
+			assertEquals("wrong reference count", expectedRefs.size(),
+					refs.size());
+			for (int i = 0; i < refs.size(); i++) {
+				assertEquals("wrong location",
+						expectedRefs.get(i).getLocation(),
+						refs.get(i).getLocation());
+				assertEquals("wrong offset", expectedRefs.get(i).getOffset(),
+						refs.get(i).getOffset());
+			}
+		}
+	}
+
+	@Test
+	public void spilledWriterShouldMatchInMemoryWriter() throws Exception
+	{
+		writeRecords(writer, new ArrayList<>());
+		byte[] expected = save(writer);
+
+		try (CompressionPipeline pipeline = new CompressionPipeline(8192, 2);
+				MetadataWriter spilled = new MetadataWriter(
+						new ZlibCompression(), pipeline)) {
+			spilled.setSpillThreshold(10000);
+			writeRecords(spilled, new ArrayList<>());
+			spilled.flush();
+			spilled.getCurrentReference().getLocation();
+			assertTrue("not spilled", spilled.isSpilled());
+			assertArrayEquals("wrong data", expected, save(spilled));
+			assertFalse("spill file kept", spilled.isSpilled());
+		}
+	}
+
+	@Test
+	public void getCurrentReferenceShouldNotWaitForCompression()
+			throws Exception
+	{
+		List<MetadataBlockRef> expectedRefs = new ArrayList<>();
+		writeRecords(writer, expectedRefs);
+		byte[] expected = save(writer);
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		CountDownLatch latch = new CountDownLatch(1);
+		try (CompressionPipeline pipeline = new CompressionPipeline(8192,
+				executor, 1000, true)) {
+			executor.submit(() -> {
+				latch.await();
+				return null;
+			});
+			MetadataWriter pipelined = new MetadataWriter(
+					new ZlibCompression(), pipeline);
+			List<MetadataBlockRef> refs = new ArrayList<>();
+			writeRecords(pipelined, refs);
+
+			MetadataBlockRef last = refs.get(refs.size() - 1);
+			assertFalse("resolved before compression", last.isResolved());
+			assertTrue("no block index", last.getBlock() > 0);
+
+			latch.countDown();
+			assertArrayEquals("wrong data", expected, save(pipelined));
+			for (int i = 0; i < refs.size(); i++) {
+				assertEquals("wrong location",
+						expectedRefs.get(i).getLocation(),
+						refs.get(i).getLocation());
+				assertEquals("wrong offset", expectedRefs.get(i).getOffset(),
+						refs.get(i).getOffset());
+			}
+		}
+	}
+
+	@Test
+	public void locationsShouldBeFilledInOnceKnown() throws Exception
+	{
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		CountDownLatch latch = new CountDownLatch(1);
+		try (CompressionPipeline pipeline = new CompressionPipeline(8192,
+				executor, 1000, true)) {
+			executor.submit(() -> {
+				latch.await();
+				return null;
+			});
+			MetadataWriter target = new MetadataWriter(new ZlibCompression(),
+					pipeline);
+			MetadataWriter source = new MetadataWriter(new ZlibCompression(),
+					pipeline);
+
+			writeRecords(target, new ArrayList<>());
+			MetadataBlockRef ref = target.getCurrentReference();
+			assertFalse("resolved before compression", ref.isResolved());
+
+			// place the location across a block boundary of the source
+			source.write(new byte[MetadataBlock.MAX_SIZE - 2]);
+			ref.writeLocation(source);
+			source.writeInt(0x12345678);
+
+			latch.countDown();
+			save(target);
+			byte[] out = save(source);
+			byte[] decoded = MetadataTestUtils.decodeMetadataBlocks(out, 0);
+			ByteBuffer bb = ByteBuffer.wrap(decoded)
+					.order(ByteOrder.LITTLE_ENDIAN);
+			assertEquals("wrong location", ref.getLocation(),
+					bb.getInt(MetadataBlock.MAX_SIZE - 2));
+			assertEquals("wrong value", 0x12345678,
+					bb.getInt(MetadataBlock.MAX_SIZE + 2));
+		}
+	}
+
 }
@@ -0,0 +1,137 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.topobyte.squashfs.ra;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BufferedChannelRandomAccessTest
+{
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	private static void writeSample(IRandomAccess raf, byte[] data)
+			throws Exception
+	{
+		raf.write(new byte[16]);
+		raf.writeInt(0x01020304);
+		raf.writeShort(0x0506);
+		raf.writeLong(0x0708090a0b0c0d0eL);
+		raf.write(0x0f);
+		raf.writeUTF("squashfs");
+		raf.write(data, 3, data.length - 3);
+		raf.seek(4);
+		raf.write(new byte[] { 1, 2, 3, 4 });
+		raf.seek(raf.getFilePointer() + 4);
+		raf.writeInt(-1);
+	}
+
+	@Test
+	public void outputShouldMatchRandomAccessFile() throws Exception
+	{
+		byte[] data = new byte[100000];
+		new Random(0L).nextBytes(data);
+
+		File expected = temp.newFile();
+		try (IRandomAccess raf = new SimpleRandomAccess(expected, "rw")) {
+			writeSample(raf, data);
+		}
+
+		for (boolean background : new boolean[] { false, true }) {
+			File actual = temp.newFile();
+			try (IRandomAccess raf = new BufferedChannelRandomAccess(actual, 0,
+					4096, background)) {
+				writeSample(raf, data);
+			}
+			assertArrayEquals("wrong output, background = " + background,
+					Files.readAllBytes(expected.toPath()),
+					Files.readAllBytes(actual.toPath()));
+		}
+	}
+
+	@Test
+	public void offsetShouldBeApplied() throws Exception
+	{
+		File file = temp.newFile();
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.write(new byte[] { 9, 9, 9 });
+		}
+
+		try (IRandomAccess raf = new BufferedChannelRandomAccess(file, 3)) {
+			raf.write(new byte[] { 1, 2, 3 });
+			assertEquals(3L, raf.getFilePointer());
+			raf.seek(0);
+			raf.write(4);
+		}
+
+		assertArrayEquals(new byte[] { 9, 9, 9, 4, 2, 3 },
+				Files.readAllBytes(file.toPath()));
+	}
+
+	@Test
+	public void readsShouldSeePendingWrites() throws Exception
+	{
+		byte[] data = new byte[50000];
+		new Random(0L).nextBytes(data);
+
+		File file = temp.newFile();
+		try (IRandomAccess raf = new BufferedChannelRandomAccess(file, 0,
+				4096, true)) {
+			raf.write(data);
+
+			// still in the current buffer
+			byte[] tail = new byte[100];
+			raf.seek(data.length - tail.length);
+			raf.readFully(tail);
+			assertArrayEquals(
+					Arrays.copyOfRange(data, data.length - 100, data.length),
+					tail);
+
+			// already handed to the background thread
+			byte[] head = new byte[10000];
+			raf.seek(1000);
+			raf.readFully(head);
+			assertArrayEquals(Arrays.copyOfRange(data, 1000, 11000), head);
+			assertEquals(11000L, raf.getFilePointer());
+
+			raf.seek(data.length);
+			raf.write(7);
+			raf.seek(data.length);
+			assertEquals(7, raf.readUnsignedByte());
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void tooSmallBufferShouldBeRejected() throws Exception
+	{
+		new BufferedChannelRandomAccess(temp.newFile(), 0, 4, false).close();
+	}
+
+}
@@ -0,0 +1,152 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.topobyte.squashfs.ra;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ChannelRandomAccessTest
+{
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	File file;
+	byte[] data;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		file = temp.newFile();
+		data = new byte[10000];
+		new Random(0L).nextBytes(data);
+		Files.write(file.toPath(), data);
+	}
+
+	@Test
+	public void readsShouldHonorOffset() throws Exception
+	{
+		try (ChannelRandomAccess raf = new ChannelRandomAccess(file, 100)) {
+			assertEquals(9900L, raf.length());
+			raf.seek(10);
+			byte[] buf = new byte[20];
+			raf.readFully(buf);
+			assertArrayEquals(Arrays.copyOfRange(data, 110, 130), buf);
+			assertEquals(30L, raf.getFilePointer());
+			assertEquals(data[130], raf.readByte());
+		}
+	}
+
+	@Test
+	public void filePointerShouldBeKeptPerThread() throws Exception
+	{
+		try (ChannelRandomAccess raf = new ChannelRandomAccess(file)) {
+			raf.seek(500);
+
+			long[] other = new long[1];
+			Thread thread = new Thread(() -> {
+				try {
+					raf.seek(2000);
+					raf.readInt();
+					other[0] = raf.getFilePointer();
+				} catch (Exception e) {
+					other[0] = -1L;
+				}
+			});
+			thread.start();
+			thread.join();
+
+			assertEquals(2004L, other[0]);
+			assertEquals(500L, raf.getFilePointer());
+		}
+	}
+
+	@Test(expected = EOFException.class)
+	public void readPastEndShouldFail() throws Exception
+	{
+		try (ChannelRandomAccess raf = new ChannelRandomAccess(file)) {
+			raf.seek(data.length - 2);
+			raf.readInt();
+		}
+	}
+
+	@Test
+	public void transferToShouldCopyRange() throws Exception
+	{
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		try (ChannelRandomAccess raf = new ChannelRandomAccess(file, 100)) {
+			raf.transferTo(50, 1000, Channels.newChannel(bos));
+		}
+		assertArrayEquals(Arrays.copyOfRange(data, 150, 1150),
+				bos.toByteArray());
+	}
+
+	@Test(expected = IOException.class)
+	public void transferToStalledTargetShouldFail() throws Exception
+	{
+		WritableByteChannel stalled = new WritableByteChannel() {
+
+			@Override
+			public boolean isOpen()
+			{
+				return true;
+			}
+
+			@Override
+			public void close()
+			{
+			}
+
+			@Override
+			public int write(ByteBuffer src)
+			{
+				return 0;
+			}
+
+		};
+		try (ChannelRandomAccess raf = new ChannelRandomAccess(file)) {
+			raf.transferTo(0, 100, stalled);
+		}
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void writesShouldBeRejected() throws Exception
+	{
+		try (ChannelRandomAccess raf = new ChannelRandomAccess(file)) {
+			raf.write(1);
+		}
+	}
+
+}
@@ -23,6 +23,7 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
@@ -34,6 +35,7 @@ import de.topobyte.squashfs.SquashFsException;
 import de.topobyte.squashfs.compression.LzoCompression;
 import de.topobyte.squashfs.compression.NoCompression;
 import de.topobyte.squashfs.compression.SuperBlockFlag;
+import de.topobyte.squashfs.compression.ZlibCompression;
 import de.topobyte.squashfs.test.SuperBlockTestUtils;
 
 public class SuperBlockTest
@@ -240,6 +242,41 @@ public class SuperBlockTest
 		SuperBlockTestUtils.deserializeSuperBlock(data);
 	}
 
+	@Test
+	public void constructorShouldSetBlockSizeAndLog()
+	{
+		SuperBlock block = new SuperBlock(new ZlibCompression(), 1 << 20);
+		assertEquals(1 << 20, block.getBlockSize());
+		assertEquals((short) 20, block.getBlockLog());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void constructorShouldRejectTooSmallBlockSize()
+	{
+		new SuperBlock(new ZlibCompression(), 2048);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void constructorShouldRejectTooLargeBlockSize()
+	{
+		new SuperBlock(new ZlibCompression(), 1 << 21);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void constructorShouldRejectNonPowerOfTwoBlockSize()
+	{
+		new SuperBlock(new ZlibCompression(), 100000);
+	}
+
+	@Test(expected = SquashFsException.class)
+	public void readDataShouldFailOnOutOfRangeBlockLog() throws Exception
+	{
+		sb.setBlockLog((short) 21);
+		sb.setBlockSize(1 << 21);
+		byte[] data = SuperBlockTestUtils.serializeSuperBlock(sb);
+		SuperBlockTestUtils.deserializeSuperBlock(data);
+	}
+
 	@Test
 	public void writeDataAndReadDataShouldBeReflexive() throws Exception
 	{
@@ -300,4 +337,27 @@ public class SuperBlockTest
 		System.out.println(sb.toString());
 	}
 
+	@Test
+	public void parseBlockSizeShouldAcceptSuffixes()
+	{
+		assertEquals(4096, SuperBlock.parseBlockSize("4096"));
+		assertEquals(131072, SuperBlock.parseBlockSize("128K"));
+		assertEquals(131072, SuperBlock.parseBlockSize("128k"));
+		assertEquals(1048576, SuperBlock.parseBlockSize("1M"));
+	}
+
+	@Test
+	public void parseBlockSizeShouldRejectInvalidSizes()
+	{
+		for (String value : new String[] { "", "K", "abc", "100K", "2M",
+				"2K", "4194304M", "-4K" }) {
+			try {
+				SuperBlock.parseBlockSize(value);
+				fail("accepted " + value);
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+	}
+
 }
@@ -0,0 +1,73 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.topobyte.squashfs.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class FrequencySketchTest
+{
+
+	@Test
+	public void unknownKeyShouldHaveFrequencyZero()
+	{
+		FrequencySketch sketch = new FrequencySketch(64);
+		assertEquals("wrong frequency", 0, sketch.frequency(42));
+	}
+
+	@Test
+	public void incrementShouldIncreaseFrequency()
+	{
+		FrequencySketch sketch = new FrequencySketch(64);
+		for (int i = 0; i < 5; i++) {
+			sketch.increment(42);
+		}
+		assertEquals("wrong frequency", 5, sketch.frequency(42));
+	}
+
+	@Test
+	public void frequencyShouldSaturate()
+	{
+		FrequencySketch sketch = new FrequencySketch(64);
+		for (int i = 0; i < 100; i++) {
+			sketch.increment(42);
+		}
+		assertEquals("wrong frequency", FrequencySketch.MAX_FREQUENCY,
+				sketch.frequency(42));
+	}
+
+	@Test
+	public void countersShouldAgeAfterSampleSize()
+	{
+		FrequencySketch sketch = new FrequencySketch(16);
+		for (int i = 0; i < 8; i++) {
+			sketch.increment(42);
+		}
+		for (int i = 0; i < 160; i++) {
+			sketch.increment(1000 + i);
+		}
+		int frequency = sketch.frequency(42);
+		assertTrue("not aged: " + frequency, frequency < 8);
+		assertFalse("aged to zero", frequency == 0);
+	}
+
+}